@@ -3,10 +3,14 @@ package com.lielamar.auth.bukkit;
 import com.lielamar.auth.bukkit.commands.TwoFactorAuthenticationCommand;
 import com.lielamar.auth.bukkit.communication.BasicAuthCommunication;
 import com.lielamar.auth.bukkit.communication.ProxyAuthCommunication;
+import com.lielamar.auth.bukkit.communication.RabbitMQAuthCommunication;
+import com.lielamar.auth.bukkit.communication.RedisAuthCommunication;
 import com.lielamar.auth.bukkit.listeners.OnMapDrop;
 import com.lielamar.auth.shared.TwoFactorAuthenticationPlugin;
 import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
 import com.lielamar.auth.shared.communication.CommunicationMethod;
+import com.lielamar.auth.shared.metrics.AuthMetrics;
+import com.lielamar.auth.shared.metrics.PrometheusExporter;
 import com.lielamar.auth.shared.utils.Constants;
 import com.lielamar.lielsutils.bukkit.updater.SpigotUpdateChecker;
 import com.lielamar.lielsutils.bukkit.bstats.BukkitMetrics;
@@ -16,20 +20,33 @@ import com.lielamar.auth.bukkit.handlers.*;
 import com.lielamar.auth.bukkit.listeners.DisabledEvents;
 import com.lielamar.auth.bukkit.listeners.OnAuthStateChange;
 import com.lielamar.auth.bukkit.listeners.OnPlayerConnection;
+import com.lielamar.auth.shared.storage.CircuitBreakerStorage;
+import com.lielamar.auth.shared.storage.JournaledStorage;
 import com.lielamar.auth.shared.storage.StorageHandler;
 import com.lielamar.auth.shared.utils.AuthTracker;
+import com.lielamar.auth.shared.utils.JoinProfiler;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.Filter;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 import org.bukkit.plugin.messaging.PluginMessageListener;
+import org.jetbrains.annotations.Nullable;
 
 import org.apache.logging.log4j.core.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuthenticationPlugin {
 
@@ -39,6 +56,20 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
     private StorageHandler storageHandler;
     private AuthHandler authHandler;
     private AuthTracker authTracker;
+    private final AuthMetrics metrics = new AuthMetrics();
+    private PrometheusExporter metricsExporter;
+    private final JoinProfiler joinProfiler = new JoinProfiler();
+    private DependencyHandler dependencyHandler;
+    private TwoFactorAuthenticationPlaceholders placeholders;
+
+    public TwoFactorAuthentication() {}
+
+    /**
+     * Creates the plugin outside of a server, for the tests
+     */
+    protected TwoFactorAuthentication(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
 
     @Override
     public void onEnable() {
@@ -53,6 +84,7 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
 
         this.sendStartupMessage();
 
+        this.registerMetrics();
         this.setupAuth();
         this.authHandler.reloadOnlinePlayers();
         this.registerListeners();
@@ -74,9 +106,17 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
             }
         }
 
+        if (this.authHandler != null && this.authHandler.getAuthCommunicationHandler() != null) {
+            this.authHandler.getAuthCommunicationHandler().unload();
+        }
+
         if (this.storageHandler != null) {
             this.storageHandler.unload();
         }
+
+        if (this.metricsExporter != null) {
+            this.metricsExporter.unload();
+        }
     }
 
     private void setupDependencies() {
@@ -84,11 +124,12 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
             Class.forName("com.warrenstrange.googleauth.GoogleAuthenticator");
         } catch (ClassNotFoundException exception) {
             Bukkit.getServer().getConsoleSender().sendMessage(ChatColor.YELLOW + "[2FA] The default spigot dependency loader either does not exist or failed to load dependencies. Falling back to a custom dependency loader");
-            new DependencyHandler(this);
+            this.dependencyHandler = new DependencyHandler(this);
         }
 
         if (Bukkit.getPluginManager().isPluginEnabled("PlaceholderAPI")) {
-            new TwoFactorAuthenticationPlaceholders(this).register();
+            this.placeholders = new TwoFactorAuthenticationPlaceholders(this);
+            this.placeholders.register();
         }
     }
 
@@ -115,7 +156,32 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
 
         this.messageHandler = new MessageHandler(fileManager);
         this.configHandler = new ConfigHandler(fileManager);
-        this.storageHandler = StorageHandler.loadStorageHandler(this.configHandler, getDataFolder().getAbsolutePath());
+
+        // Writing pending changes and closing connections of the previous storage when reloading
+        if (this.storageHandler != null) {
+            this.storageHandler.unload();
+        }
+
+        // Only the configured methods' libraries are loaded, so a method changed before a reload is loaded here
+        if (this.dependencyHandler != null) {
+            this.dependencyHandler.loadDependencies(this.configHandler.getStorageMethod(), this.configHandler.getCommunicationMethod());
+        }
+
+        this.storageHandler = StorageHandler.loadStorageHandler(this.configHandler, getDataFolder().getAbsolutePath(),
+                this.configHandler.isMetricsEnabled() ? this.metrics : null, this.joinProfiler);
+
+        StorageHandler breaker = this.storageHandler instanceof JournaledStorage ? ((JournaledStorage) this.storageHandler).getStorage() : this.storageHandler;
+        if (breaker instanceof CircuitBreakerStorage) {
+            ((CircuitBreakerStorage) breaker).setStateListener(state -> Bukkit.getScheduler().runTask(this, () ->
+                    Bukkit.getOnlinePlayers().stream().filter(pl -> pl.hasPermission(Constants.alertsPermission)).forEach(pl
+                            -> this.messageHandler.sendMessage(pl, state == CircuitBreakerStorage.State.OPEN
+                            ? MessageHandler.TwoFAMessages.STORAGE_UNREACHABLE_ALERT : MessageHandler.TwoFAMessages.STORAGE_RECOVERED_ALERT))));
+        }
+
+        // Releasing the previous communication handler's connections when reloading
+        if (this.authHandler != null && this.authHandler.getAuthCommunicationHandler() != null) {
+            this.authHandler.getAuthCommunicationHandler().unload();
+        }
 
         AuthCommunicationHandler authCommunicationHandler;
 
@@ -125,12 +191,85 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
             getServer().getMessenger().registerOutgoingPluginChannel(this, Constants.PROXY_CHANNEL_NAME);
             getServer().getMessenger().registerIncomingPluginChannel(this, Constants.PROXY_CHANNEL_NAME,
                     (PluginMessageListener) authCommunicationHandler);
+        } else if (this.configHandler.getCommunicationMethod() == CommunicationMethod.REDIS) {
+            try {
+                authCommunicationHandler = new RedisAuthCommunication(this);
+            } catch (NoClassDefFoundError | RuntimeException exception) {
+                exception.printStackTrace();
+                Bukkit.getServer().getLogger().severe("[2FA] Could not set up the REDIS communication method, falling back to NONE");
+                authCommunicationHandler = new BasicAuthCommunication(this);
+            }
+        } else if (this.configHandler.getCommunicationMethod() == CommunicationMethod.RABBITMQ) {
+            try {
+                authCommunicationHandler = new RabbitMQAuthCommunication(this);
+            } catch (IOException | TimeoutException | NoClassDefFoundError | RuntimeException exception) {
+                exception.printStackTrace();
+                Bukkit.getServer().getLogger().severe("[2FA] Could not connect to RabbitMQ, falling back to NONE");
+                authCommunicationHandler = new BasicAuthCommunication(this);
+            }
         } else {
             authCommunicationHandler = new BasicAuthCommunication(this);
         }
 
         this.authHandler = new AuthHandler(this, storageHandler, authCommunicationHandler, new BasicAuthCommunication(this));
-        this.authTracker = new AuthTracker();
+        // The statistics cover the last hour, so they are kept when reloading
+        if (this.authTracker == null) {
+            this.authTracker = new AuthTracker();
+        }
+
+        this.setupMetricsExporter();
+    }
+
+    /**
+     * Registers the values the plugin already keeps track of as metrics. They are read from the exporter's thread
+     */
+    private void registerMetrics() {
+        this.metrics.register("players", "gauge", "Players with a session by their auth state", () -> {
+            Map<String, Integer> players = new LinkedHashMap<>();
+
+            if (this.authHandler != null) {
+                this.authHandler.countStates().forEach((authState, count) -> players.put("state=\"" + authState.name() + "\"", count));
+            }
+            return players;
+        });
+
+        this.metrics.register("communication_pending_callbacks", "gauge", "Communication messages waiting for an answer", () ->
+                this.authHandler == null || this.authHandler.getAuthCommunicationHandler() == null ? Collections.emptyMap()
+                        : Collections.singletonMap("", this.authHandler.getAuthCommunicationHandler().getPendingCallbacks()));
+
+        this.metrics.register("communication_timeouts_total", "counter", "Communication messages that were not answered in time", () ->
+                this.authHandler == null || this.authHandler.getAuthCommunicationHandler() == null ? Collections.emptyMap()
+                        : Collections.singletonMap("", this.authHandler.getAuthCommunicationHandler().getTimeouts()));
+
+        this.metrics.register("map_pool_maps", "gauge", "Maps reserved for QR codes by whether they were given out since the server started", () -> {
+            Map<String, Integer> maps = new HashMap<>();
+
+            if (this.authHandler != null && this.configHandler != null) {
+                int used = this.authHandler.getUsedMapCount();
+                maps.put("status=\"used\"", used);
+                maps.put("status=\"free\"", Math.max(0, this.configHandler.getAmountOfReservedMaps() - used));
+            }
+            return maps;
+        });
+    }
+
+    private void setupMetricsExporter() {
+        if (this.metricsExporter != null) {
+            this.metricsExporter.unload();
+            this.metricsExporter = null;
+        }
+
+        if (!this.configHandler.isMetricsEnabled()) {
+            return;
+        }
+
+        try {
+            this.metricsExporter = new PrometheusExporter(this.metrics, this.configHandler.getMetricsAddress(), this.configHandler.getMetricsPort());
+        } catch (IOException | RuntimeException exception) {
+            exception.printStackTrace();
+            Bukkit.getServer().getLogger().severe("[2FA] Could not serve the metrics on " + this.configHandler.getMetricsAddress() + ":"
+                    + this.configHandler.getMetricsPort() + ", check the console for more info.");
+        }
     }
 
     private void registerListeners() {
@@ -140,6 +279,10 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
         pm.registerEvents(new OnPlayerConnection(this), this);
         pm.registerEvents(new DisabledEvents(this), this);
         pm.registerEvents(new OnMapDrop(this), this);
+
+        if (this.placeholders != null) {
+            pm.registerEvents(this.placeholders, this);
+        }
     }
 
     private void registerCommands() {
@@ -150,11 +293,7 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
         int pluginId = 9355;
         BukkitMetrics metrics = new BukkitMetrics(this, pluginId);
 
-        metrics.addCustomChart(new BukkitMetrics.SingleLineChart("authentications", () -> {
-            int value = this.authTracker.getAuthentications();
-            this.authTracker.setAuthentications(0);
-            return value;
-        }));
+        metrics.addCustomChart(new BukkitMetrics.SingleLineChart("authentications", () -> this.authTracker.takeAuthentications()));
     }
 
     private void setupUpdateChecker() {
@@ -189,4 +328,26 @@ public class TwoFactorAuthentication extends JavaPlugin implements TwoFactorAuth
     public AuthTracker getAuthTracker() {
         return this.authTracker;
     }
+
+    public AuthMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public JoinProfiler getJoinProfiler() {
+        return this.joinProfiler;
+    }
+
+    /**
+     * @return PlaceholderAPI expansion, or null if PlaceholderAPI is not installed
+     */
+    public @Nullable TwoFactorAuthenticationPlaceholders getPlaceholders() {
+        return this.placeholders;
+    }
+
+    /**
+     * @return Dependency handler, or null if the server loaded the libraries of the plugin.yml
+     */
+    public @Nullable DependencyHandler getDependencyHandler() {
+        return this.dependencyHandler;
+    }
 }
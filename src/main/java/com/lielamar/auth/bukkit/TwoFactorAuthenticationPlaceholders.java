@@ -1,18 +1,45 @@
 package com.lielamar.auth.bukkit;
 
+import com.lielamar.auth.bukkit.events.PlayerStateChangeEvent;
+import com.lielamar.auth.shared.handlers.AuthHandler;
+import com.lielamar.auth.shared.storage.PlayerRecord;
+import com.lielamar.auth.shared.storage.StorageHandler;
+import com.lielamar.auth.shared.storage.StorageUnavailableException;
+import com.lielamar.auth.shared.utils.AuthTracker;
 import com.lielamar.auth.shared.utils.Constants;
 import com.lielamar.lielsutils.time.TimeUtils;
 
 import com.lielamar.auth.shared.handlers.MessageHandler;
 import me.clip.placeholderapi.expansion.PlaceholderExpansion;
+import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-public class TwoFactorAuthenticationPlaceholders extends PlaceholderExpansion {
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Placeholders can be requested every tick for every player by scoreboards and tab lists, so they are answered from a
+ * snapshot of each player that is kept in memory. The snapshot is built from the player's stored data when they are
+ * loaded, and replaced whenever their state changes. The stored key and enable date are then read again off the main
+ * thread the next time they are requested.
+ */
+public class TwoFactorAuthenticationPlaceholders extends PlaceholderExpansion implements Listener {
 
     private final TwoFactorAuthentication plugin;
+    private final Map<UUID, Snapshot> snapshots;
 
     public TwoFactorAuthenticationPlaceholders(TwoFactorAuthentication plugin) {
         this.plugin = plugin;
+        this.snapshots = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -32,27 +59,224 @@ public class TwoFactorAuthenticationPlaceholders extends PlaceholderExpansion {
 
     @Override
     public String onPlaceholderRequest(Player player, String identifier) {
+        if (identifier.toLowerCase().startsWith("stats_")) {
+            return this.getStatistic(identifier.toLowerCase().substring("stats_".length()));
+        }
+
+        if (player == null) {
+            return null;
+        }
+
+        Snapshot snapshot = this.getSnapshot(player);
+        if (snapshot == null) {
+            return null;
+        }
+
         switch (identifier.toLowerCase()) {
             case "is_enabled":
-                return plugin.getAuthHandler().is2FAEnabled(player.getUniqueId())
+                return snapshot.enabled
                         ? MessageHandler.TwoFAMessages.KEYWORD_ENABLED.getMessage()
                         : MessageHandler.TwoFAMessages.KEYWORD_DISABLED.getMessage();
                 
             case "time_since_enabled":
-                long enableDate = plugin.getAuthHandler().getStorageHandler().getEnableDate(player.getUniqueId());
-                return enableDate == -1 ? "Not Enabled"
-                        : TimeUtils.parseTime(System.currentTimeMillis() - enableDate);
+                this.refresh(player.getUniqueId(), snapshot);
+                return snapshot.getTimeSinceEnabled();
                 
             case "key":
-                return plugin.getAuthHandler().getStorageHandler()
-                        .getKey(player.getUniqueId());
+                this.refresh(player.getUniqueId(), snapshot);
+                return snapshot.key;
                 
             case "is_required":
-                return player.hasPermission(Constants.demandPermission)
+                return snapshot.required
                         ? MessageHandler.TwoFAMessages.KEYWORD_REQUIRED.getMessage()
                         : MessageHandler.TwoFAMessages.KEYWORD_NOT_REQUIRED.getMessage();
         }
 
         return null;
     }
+
+    /**
+     * Returns a player's snapshot. Players that had no state change yet get one from their current state
+     *
+     * @param player Player to get the snapshot of
+     * @return Player's snapshot, or null if they are not online
+     */
+    private @Nullable Snapshot getSnapshot(@NotNull Player player) {
+        Snapshot snapshot = this.snapshots.get(player.getUniqueId());
+
+        if (snapshot == null && player.isOnline() && plugin.getAuthHandler() != null) {
+            this.update(player, plugin.getAuthHandler().getAuthState(player.getUniqueId()));
+            snapshot = this.snapshots.get(player.getUniqueId());
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Builds a player's snapshot from their stored data that was read while they were loaded
+     *
+     * @param record Stored data of the player
+     */
+    public void load(@NotNull PlayerRecord record) {
+        Player player = Bukkit.getPlayer(record.getUuid());
+        if (player == null || !player.isOnline() || plugin.getAuthHandler() == null) {
+            return;
+        }
+
+        this.snapshots.put(record.getUuid(), new Snapshot(plugin.getAuthHandler().getAuthState(record.getUuid()),
+                player.hasPermission(Constants.demandPermission), record.getKey(), record.getEnableDate(), false));
+    }
+
+    /**
+     * Replaces a player's snapshot with their new state. The stored key and enable date may have changed with the
+     * state, so they are read again the next time a placeholder needs them
+     *
+     * @param player Player to update the snapshot of
+     * @param authState Player's new state
+     */
+    private void update(@NotNull Player player, @NotNull AuthHandler.AuthState authState) {
+        boolean required = player.hasPermission(Constants.demandPermission);
+
+        this.snapshots.compute(player.getUniqueId(), (id, previous) -> previous == null
+                ? new Snapshot(authState, required, null, -1, true)
+                : new Snapshot(authState, required, previous.key, previous.enableDate, true));
+    }
+
+    /**
+     * Reads a player's key and enable date off the main thread if their snapshot is outdated. Until then the
+     * placeholders show the previous values
+     *
+     * @param uuid UUID of the player
+     * @param snapshot Player's current snapshot
+     */
+    private void refresh(@NotNull UUID uuid, @NotNull Snapshot snapshot) {
+        if (!snapshot.outdated || !snapshot.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        // Waiting a tick, so a change saved in the same tick as the state change is read
+        Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, () -> {
+            StorageHandler storageHandler = plugin.getAuthHandler() == null ? null : plugin.getAuthHandler().getStorageHandler();
+            if (storageHandler == null) {
+                return;
+            }
+
+            String key;
+            long enableDate;
+
+            try {
+                key = storageHandler.getKey(uuid);
+                enableDate = storageHandler.getEnableDate(uuid);
+            } catch (StorageUnavailableException exception) {
+                // Trying again on the next render
+                snapshot.refreshing.set(false);
+                return;
+            }
+
+            // If the state changed again meanwhile, the newer snapshot reads its own data
+            this.snapshots.computeIfPresent(uuid, (id, current) -> current != snapshot ? current
+                    : new Snapshot(current.authState, current.required, key, enableDate, false));
+        }, 1L);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStateChange(PlayerStateChangeEvent event) {
+        this.update(event.getPlayer(), event.getNewAuthState());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        this.snapshots.remove(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * Parses statistic placeholders: {@code stats_<statistic>_<1m|15m|1h>} gives the count in the window,
+     * and {@code stats_<statistic>_rate_<1m|15m|1h>} the average per minute
+     *
+     * @param identifier Identifier without the stats_ prefix, for example authentications_15m
+     * @return Value of the placeholder, or null if it's not a valid statistic
+     */
+    private String getStatistic(String identifier) {
+        int separator = identifier.lastIndexOf('_');
+        if (separator == -1) {
+            return null;
+        }
+
+        int minutes;
+        switch (identifier.substring(separator + 1)) {
+            case "1m":
+                minutes = 1;
+                break;
+            case "15m":
+                minutes = 15;
+                break;
+            case "1h":
+                minutes = 60;
+                break;
+            default:
+                return null;
+        }
+
+        String name = identifier.substring(0, separator);
+        boolean rate = name.endsWith("_rate");
+        if (rate) {
+            name = name.substring(0, name.length() - "_rate".length());
+        }
+
+        AuthTracker.Statistic statistic;
+        try {
+            statistic = AuthTracker.Statistic.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException exception) {
+            return null;
+        }
+
+        return rate ? String.format("%.2f", plugin.getAuthTracker().getRate(statistic, minutes))
+                : String.valueOf(plugin.getAuthTracker().getCount(statistic, minutes));
+    }
+
+    /**
+     * What the placeholders show of a player at one point. Never changed, it's replaced instead
+     */
+    private static final class Snapshot {
+
+        private final AuthHandler.AuthState authState;
+        private final boolean enabled;
+        private final boolean required;
+        private final String key;
+        private final long enableDate;
+
+        private final boolean outdated;
+        private final AtomicBoolean refreshing;
+
+        // The time since enabling is formatted at most once per second, by its elapsed seconds
+        private volatile Map.Entry<Long, String> formatted;
+
+        private Snapshot(AuthHandler.AuthState authState, boolean required, @Nullable String key, long enableDate, boolean outdated) {
+            this.authState = authState;
+            this.enabled = authState == AuthHandler.AuthState.DEMAND_SETUP || authState == AuthHandler.AuthState.PENDING_LOGIN
+                    || authState == AuthHandler.AuthState.AUTHENTICATED;
+            this.required = required;
+            this.key = key;
+            this.enableDate = enableDate;
+
+            this.outdated = outdated;
+            this.refreshing = new AtomicBoolean(false);
+        }
+
+        private String getTimeSinceEnabled() {
+            if (this.enableDate == -1) {
+                return "Not Enabled";
+            }
+
+            long seconds = (System.currentTimeMillis() - this.enableDate) / 1000;
+            Map.Entry<Long, String> formatted = this.formatted;
+
+            if (formatted == null || formatted.getKey() != seconds) {
+                formatted = new AbstractMap.SimpleImmutableEntry<>(seconds, TimeUtils.parseTime(seconds * 1000));
+                this.formatted = formatted;
+            }
+
+            return formatted.getValue();
+        }
+    }
 }
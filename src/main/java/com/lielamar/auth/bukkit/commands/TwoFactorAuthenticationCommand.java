@@ -33,6 +33,10 @@ public class TwoFactorAuthenticationCommand extends SuperCommand {
                 new CancelCommand(plugin, this),
                 new ReloadCommand(plugin, this),
                 new ReportCommand(plugin, this),
+                new StorageCommand(plugin, this),
+                new MigrateCommand(plugin, this),
+                new StatsCommand(plugin, this),
+                new ProfileCommand(plugin, this),
                 new HelpCommand(plugin, this)};
 
         this.helpCommand = super.getSubCommand("help");
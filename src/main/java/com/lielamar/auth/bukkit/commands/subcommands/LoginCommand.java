@@ -3,6 +3,7 @@ package com.lielamar.auth.bukkit.commands.subcommands;
 import com.lielamar.auth.bukkit.TwoFactorAuthentication;
 import com.lielamar.auth.bukkit.events.PlayerFailedAuthenticationEvent;
 import com.lielamar.auth.shared.handlers.MessageHandler;
+import com.lielamar.auth.shared.utils.AuthTracker;
 import com.lielamar.auth.shared.utils.Constants;
 import com.lielamar.lielsutils.bukkit.commands.StandaloneCommand;
 import com.lielamar.lielsutils.bukkit.commands.SuperCommand;
@@ -48,6 +49,7 @@ public class LoginCommand extends StandaloneCommand {
                 this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.SUCCESSFULLY_AUTHENTICATED);
             } else {
                 this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.INCORRECT_CODE);
+                this.plugin.getAuthTracker().record(AuthTracker.Statistic.FAILURES);
 
                 PlayerFailedAuthenticationEvent event = new PlayerFailedAuthenticationEvent(player,
                         this.plugin.getAuthHandler().increaseFailedAttempts(player.getUniqueId(), 1));
@@ -0,0 +1,186 @@
+package com.lielamar.auth.bukkit.commands.subcommands;
+
+import com.lielamar.auth.bukkit.TwoFactorAuthentication;
+import com.lielamar.auth.shared.handlers.MessageHandler;
+import com.lielamar.auth.shared.storage.StorageHandler;
+import com.lielamar.auth.shared.storage.StorageMethod;
+import com.lielamar.auth.shared.storage.StorageMigration;
+import com.lielamar.auth.shared.storage.json.JSONStorage;
+import com.lielamar.auth.shared.utils.Constants;
+import com.lielamar.lielsutils.bukkit.commands.StandaloneCommand;
+import com.lielamar.lielsutils.bukkit.commands.SuperCommand;
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MigrateCommand extends StandaloneCommand {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final TwoFactorAuthentication plugin;
+    private final SuperCommand parent;
+
+    private boolean running;
+
+    public MigrateCommand(@NotNull TwoFactorAuthentication plugin, @NotNull SuperCommand parent) {
+        super(Constants.migrateCommand.getA(), Constants.migrateCommand.getB());
+
+        this.plugin = plugin;
+        this.parent = parent;
+    }
+
+    @Override
+    public boolean runCommand(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        StorageMethod from = args.length > 0 ? this.parseMethod(args[0]) : null;
+        StorageMethod to = args.length > 1 ? this.parseMethod(args[1]) : null;
+
+        if (from == null || to == null) {
+            commandSender.sendMessage(ChatColor.RED + "Usage: /" + Constants.mainCommand.getA() + " " + Constants.migrateCommand.getA() + " <from> <to>");
+            return false;
+        }
+
+        if (from == to) {
+            commandSender.sendMessage(ChatColor.RED + "The source and target storage must be different.");
+            return false;
+        }
+
+        if (this.running) {
+            commandSender.sendMessage(ChatColor.RED + "A migration is already running.");
+            return false;
+        }
+
+        this.running = true;
+        commandSender.sendMessage(ChatColor.GREEN + "Migrating players from " + from.name() + " to " + to.name() + "...");
+
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            try {
+                this.migrate(commandSender, from, to);
+            } finally {
+                Bukkit.getScheduler().runTask(this.plugin, () -> this.running = false);
+            }
+        });
+
+        return false;
+    }
+
+    /**
+     * Runs a migration on the calling thread
+     *
+     * @param commandSender Sender to report the progress to
+     * @param from Storage to copy the players from
+     * @param to Storage to copy the players to
+     */
+    private void migrate(@NotNull CommandSender commandSender, @NotNull StorageMethod from, @NotNull StorageMethod to) {
+        StorageHandler source = null, target = null;
+
+        try {
+            source = this.openStorage(from);
+            target = this.openStorage(to);
+        } catch (Exception exception) {
+            exception.printStackTrace();
+            this.sendMessage(commandSender, ChatColor.RED + "Could not connect to the " + (source == null ? from : to).name() + " storage, check the console for more info.");
+            this.closeStorage(source);
+            return;
+        }
+
+        // Records in the old flat JSON layout are only read after they are moved to the sharded folders
+        if (StorageHandler.getBackingStorage(source) instanceof JSONStorage) {
+            ((JSONStorage) StorageHandler.getBackingStorage(source)).compact();
+        }
+
+        File checkpointFile = new File(this.plugin.getDataFolder(), "migration-" + from.name().toLowerCase() + "-" + to.name().toLowerCase() + ".json");
+        StorageMigration migration = new StorageMigration(source, target, checkpointFile,
+                Math.min(4, Runtime.getRuntime().availableProcessors()), BATCH_SIZE);
+
+        if (migration.isResuming()) {
+            this.sendMessage(commandSender, ChatColor.YELLOW + "Continuing the previous migration from its checkpoint.");
+        }
+
+        boolean completed = migration.run(message -> this.sendMessage(commandSender, ChatColor.GREEN + message));
+
+        if (!completed) {
+            this.sendMessage(commandSender, ChatColor.RED + "The migration did not complete, check the console for more info.");
+        }
+
+        this.closeStorage(source);
+        this.closeStorage(target);
+    }
+
+    /**
+     * Returns the active storage if it uses the given method, or connects to a new one
+     *
+     * @param storageMethod Storage method to open
+     * @return Storage handler of the method
+     * @throws Exception Throws an exception if the storage could not be set up
+     */
+    private @NotNull StorageHandler openStorage(@NotNull StorageMethod storageMethod) throws Exception {
+        if (this.plugin.getConfigHandler().getStorageMethod() == storageMethod) {
+            return this.plugin.getStorageHandler();
+        }
+
+        if (this.plugin.getDependencyHandler() != null) {
+            this.plugin.getDependencyHandler().loadDependencies(storageMethod, null);
+        }
+
+        return StorageHandler.createStorageHandler(storageMethod, this.plugin.getConfigHandler(), this.plugin.getDataFolder().getAbsolutePath());
+    }
+
+    /**
+     * Unloads a storage opened by {@link #openStorage(StorageMethod)}, unless it's the active storage
+     *
+     * @param storageHandler Storage to unload
+     */
+    private void closeStorage(@Nullable StorageHandler storageHandler) {
+        if (storageHandler != null && storageHandler != this.plugin.getStorageHandler()) {
+            storageHandler.unload();
+        }
+    }
+
+    private @Nullable StorageMethod parseMethod(@NotNull String name) {
+        try {
+            return StorageMethod.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException exception) {
+            return null;
+        }
+    }
+
+    private void sendMessage(@NotNull CommandSender commandSender, @NotNull String message) {
+        Bukkit.getScheduler().runTask(this.plugin, () -> commandSender.sendMessage(message));
+    }
+
+    @Override
+    public List<String> tabOptions(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        List<String> options = new ArrayList<>();
+
+        if (args.length == 1 || args.length == 2) {
+            for (StorageMethod storageMethod : StorageMethod.values()) {
+                if (storageMethod.name().toLowerCase().startsWith(args[args.length - 1].toLowerCase())) {
+                    options.add(storageMethod.name().toLowerCase());
+                }
+            }
+        }
+
+        return options;
+    }
+
+    @Override
+    public void noPermissionEvent(@NotNull CommandSender commandSender) {
+        this.parent.noPermissionEvent(commandSender);
+    }
+
+    @Override
+    public @NotNull String getDescription() {
+        return ChatColor.translateAlternateColorCodes('&', MessageHandler.TwoFAMessages.DESCRIPTION_OF_MIGRATE_COMMAND.getMessage());
+    }
+
+    @Override
+    public String[] getAliases() {
+        return new String[0];
+    }
+}
@@ -0,0 +1,117 @@
+package com.lielamar.auth.bukkit.commands.subcommands;
+
+import com.lielamar.auth.bukkit.TwoFactorAuthentication;
+import com.lielamar.auth.shared.handlers.MessageHandler;
+import com.lielamar.auth.shared.utils.Constants;
+import com.lielamar.auth.shared.utils.JoinProfiler;
+import com.lielamar.lielsutils.bukkit.commands.StandaloneCommand;
+import com.lielamar.lielsutils.bukkit.commands.SuperCommand;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class ProfileCommand extends StandaloneCommand {
+
+    private static final String[] ACTIONS = {"start", "stop", "report"};
+
+    private final TwoFactorAuthentication plugin;
+    private final SuperCommand parent;
+
+    public ProfileCommand(@NotNull TwoFactorAuthentication plugin, @NotNull SuperCommand parent) {
+        super(Constants.profileCommand.getA(), Constants.profileCommand.getB());
+
+        this.plugin = plugin;
+        this.parent = parent;
+    }
+
+    @Override
+    public boolean runCommand(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        JoinProfiler joinProfiler = this.plugin.getJoinProfiler();
+        String action = args.length > 0 ? args[0].toLowerCase() : "";
+
+        switch (action) {
+            case "start":
+                joinProfiler.start();
+                commandSender.sendMessage(ChatColor.GREEN + "Profiling player joins. Use /" + Constants.mainCommand.getA() + " "
+                        + Constants.profileCommand.getA() + " stop to see the results.");
+                break;
+            case "stop":
+                if (!joinProfiler.isRunning()) {
+                    commandSender.sendMessage(ChatColor.RED + "The join profiler is not running.");
+                    break;
+                }
+
+                this.sendReport(commandSender, joinProfiler.stop());
+                break;
+            case "report":
+                if (!joinProfiler.isRunning()) {
+                    commandSender.sendMessage(ChatColor.RED + "The join profiler is not running.");
+                    break;
+                }
+
+                this.sendReport(commandSender, joinProfiler.getReport());
+                break;
+            default:
+                commandSender.sendMessage(ChatColor.RED + "Usage: /" + Constants.mainCommand.getA() + " " + Constants.profileCommand.getA() + " <start|stop|report>");
+        }
+
+        return false;
+    }
+
+    private void sendReport(@NotNull CommandSender commandSender, @NotNull JoinProfiler.Report report) {
+        commandSender.sendMessage(ChatColor.DARK_AQUA + "Join profile " + ChatColor.GRAY + "(" + report.getDuration() / 1000 + "s, "
+                + report.getJoins() + " joins, " + report.getUnfinished() + " still loading)");
+
+        if (report.getJoins() == 0) {
+            return;
+        }
+
+        commandSender.sendMessage(ChatColor.GRAY + "- Main thread per join: " + ChatColor.AQUA + String.format("%.2fms avg / %.2fms p99",
+                report.getAverageMainThreadMillis(), report.getMainThreadMillis(99)));
+        commandSender.sendMessage(ChatColor.GRAY + "- Storage calls per join: " + ChatColor.AQUA + String.format("%.2f avg / %d max",
+                report.getAverageStorageCalls(), report.getMaximumStorageCalls()));
+        commandSender.sendMessage(ChatColor.GRAY + "- Time to final state: " + ChatColor.AQUA + String.format("%.0fms p50 / %.0fms p99",
+                report.getTimeToStateMillis(50), report.getTimeToStateMillis(99)));
+        commandSender.sendMessage(ChatColor.GRAY + "- Peak pending callbacks: " + ChatColor.AQUA + report.getPeakPendingCallbacks());
+
+        StringBuilder states = new StringBuilder(ChatColor.GRAY + "- Final states: " + ChatColor.AQUA);
+        for (Map.Entry<String, Integer> state : report.getStates().entrySet()) {
+            states.append(state.getKey()).append(" ").append(state.getValue()).append("  ");
+        }
+        commandSender.sendMessage(states.toString().trim());
+    }
+
+    @Override
+    public List<String> tabOptions(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        List<String> options = new ArrayList<>();
+
+        if (args.length == 1) {
+            for (String action : ACTIONS) {
+                if (action.startsWith(args[0].toLowerCase())) {
+                    options.add(action);
+                }
+            }
+        }
+
+        return options;
+    }
+
+    @Override
+    public void noPermissionEvent(@NotNull CommandSender commandSender) {
+        this.parent.noPermissionEvent(commandSender);
+    }
+
+    @Override
+    public @NotNull String getDescription() {
+        return ChatColor.translateAlternateColorCodes('&', MessageHandler.TwoFAMessages.DESCRIPTION_OF_PROFILE_COMMAND.getMessage());
+    }
+
+    @Override
+    public String[] getAliases() {
+        return new String[0];
+    }
+}
@@ -2,6 +2,9 @@ package com.lielamar.auth.bukkit.commands.subcommands;
 
 import com.lielamar.auth.bukkit.TwoFactorAuthentication;
 import com.lielamar.auth.bukkit.communication.ProxyAuthCommunication;
+import com.lielamar.auth.bukkit.communication.ProxyMessageQueue;
+import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
+import com.lielamar.auth.shared.communication.RoundTripTracker;
 import com.lielamar.auth.shared.handlers.MessageHandler;
 import com.lielamar.auth.shared.storage.StorageHandler;
 import com.lielamar.auth.shared.utils.Constants;
@@ -93,6 +96,26 @@ public class ReportCommand extends StandaloneCommand {
             writer.println("- Communication Method in config: " + this.plugin.getConfigHandler().getCommunicationMethod().name());
             writer.println("- Communication Timeout in config: " + this.plugin.getConfigHandler().getCommunicationTimeout() + " ticks");
 
+            AuthCommunicationHandler communicationHandler = this.plugin.getAuthHandler().getAuthCommunicationHandler();
+            if (communicationHandler != null) {
+                RoundTripTracker roundTrips = communicationHandler.getRoundTrips();
+
+                writer.println("- Round Trip Samples: " + roundTrips.getSamples());
+                writer.println("- Smoothed Round Trip: " + String.format("%.1f", roundTrips.getSmoothed()) + " ms (deviation " + String.format("%.1f", roundTrips.getDeviation()) + " ms)");
+                writer.println("- Round Trip p99: " + roundTrips.getPercentile99() + " ms");
+                writer.println("- Effective Timeout: " + roundTrips.getTimeout() + " ms (maximum " + roundTrips.getMaximumTimeout() + " ms, backoff x" + roundTrips.getBackoff() + ")");
+                writer.println("- Hedge Delay: " + roundTrips.getHedgeDelay() + " ms");
+                writer.println("- Hedged / Timed out Callbacks: " + communicationHandler.getHedges() + " / " + communicationHandler.getTimeouts());
+            }
+
+            if (this.plugin.getAuthHandler().getAuthCommunicationHandler() instanceof ProxyAuthCommunication) {
+                ProxyMessageQueue outbound = ((ProxyAuthCommunication) this.plugin.getAuthHandler().getAuthCommunicationHandler()).getOutboundQueue();
+
+                writer.println("- Proxy Queue Depth: " + outbound.getDepth());
+                writer.println("- Proxy Messages Sent: " + outbound.getSent() + " / " + outbound.getEnqueued());
+                writer.println("- Proxy Messages Dropped: " + outbound.getDropped() + " (" + String.format("%.2f", outbound.getDropRate() * 100) + "%)");
+            }
+
             writer.println("");
 
             writer.println("Storage Information: ");
@@ -0,0 +1,75 @@
+package com.lielamar.auth.bukkit.commands.subcommands;
+
+import com.lielamar.auth.bukkit.TwoFactorAuthentication;
+import com.lielamar.auth.shared.handlers.MessageHandler;
+import com.lielamar.auth.shared.utils.AuthTracker;
+import com.lielamar.auth.shared.utils.Constants;
+import com.lielamar.lielsutils.bukkit.commands.StandaloneCommand;
+import com.lielamar.lielsutils.bukkit.commands.SuperCommand;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StatsCommand extends StandaloneCommand {
+
+    /** Windows (in minutes) the statistics are shown for */
+    private static final int[] WINDOWS = {1, 15, 60};
+
+    private final TwoFactorAuthentication plugin;
+    private final SuperCommand parent;
+
+    public StatsCommand(@NotNull TwoFactorAuthentication plugin, @NotNull SuperCommand parent) {
+        super(Constants.statsCommand.getA(), Constants.statsCommand.getB());
+
+        this.plugin = plugin;
+        this.parent = parent;
+    }
+
+    @Override
+    public boolean runCommand(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        AuthTracker authTracker = this.plugin.getAuthTracker();
+
+        commandSender.sendMessage(ChatColor.DARK_AQUA + "2FA statistics " + ChatColor.GRAY + "(last 1m / 15m / 1h, per minute over the last hour)");
+
+        for (AuthTracker.Statistic statistic : AuthTracker.Statistic.values()) {
+            StringBuilder line = new StringBuilder(ChatColor.GRAY + "- " + getName(statistic) + ": " + ChatColor.AQUA);
+
+            for (int i = 0; i < WINDOWS.length; i++) {
+                line.append(i == 0 ? "" : ChatColor.GRAY + " / " + ChatColor.AQUA).append(authTracker.getCount(statistic, WINDOWS[i]));
+            }
+
+            line.append(ChatColor.GRAY).append(" (").append(String.format("%.2f", authTracker.getRate(statistic, AuthTracker.MAXIMUM_WINDOW))).append("/min)");
+            commandSender.sendMessage(line.toString());
+        }
+
+        return false;
+    }
+
+    private static String getName(AuthTracker.Statistic statistic) {
+        String name = statistic.name().replace('_', ' ').toLowerCase();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    @Override
+    public List<String> tabOptions(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void noPermissionEvent(@NotNull CommandSender commandSender) {
+        this.parent.noPermissionEvent(commandSender);
+    }
+
+    @Override
+    public @NotNull String getDescription() {
+        return ChatColor.translateAlternateColorCodes('&', MessageHandler.TwoFAMessages.DESCRIPTION_OF_STATS_COMMAND.getMessage());
+    }
+
+    @Override
+    public String[] getAliases() {
+        return new String[0];
+    }
+}
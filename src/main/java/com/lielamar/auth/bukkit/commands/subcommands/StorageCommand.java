@@ -0,0 +1,139 @@
+package com.lielamar.auth.bukkit.commands.subcommands;
+
+import com.lielamar.auth.bukkit.TwoFactorAuthentication;
+import com.lielamar.auth.shared.handlers.MessageHandler;
+import com.lielamar.auth.shared.storage.StorageHandler;
+import com.lielamar.auth.shared.storage.json.JSONStorage;
+import com.lielamar.auth.shared.storage.sql.ShardedStorage;
+import com.lielamar.auth.shared.utils.Constants;
+import com.lielamar.lielsutils.bukkit.commands.StandaloneCommand;
+import com.lielamar.lielsutils.bukkit.commands.SuperCommand;
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StorageCommand extends StandaloneCommand {
+
+    private final TwoFactorAuthentication plugin;
+    private final SuperCommand parent;
+
+    private boolean running;
+
+    public StorageCommand(@NotNull TwoFactorAuthentication plugin, @NotNull SuperCommand parent) {
+        super(Constants.storageCommand.getA(), Constants.storageCommand.getB());
+
+        this.plugin = plugin;
+        this.parent = parent;
+    }
+
+    @Override
+    public boolean runCommand(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        if (args.length == 0 || (!args[0].equalsIgnoreCase("compact") && !args[0].equalsIgnoreCase("rebalance"))) {
+            commandSender.sendMessage(ChatColor.RED + "Usage: /" + Constants.mainCommand.getA() + " " + Constants.storageCommand.getA() + " <compact|rebalance>");
+            return false;
+        }
+
+        if (this.running) {
+            commandSender.sendMessage(ChatColor.RED + "A storage job is already running.");
+            return false;
+        }
+
+        StorageHandler storage = StorageHandler.getBackingStorage(this.plugin.getStorageHandler());
+
+        if (args[0].equalsIgnoreCase("compact")) {
+            if (!(storage instanceof JSONStorage)) {
+                commandSender.sendMessage(ChatColor.RED + "Compacting is only needed for JSON storage.");
+                return false;
+            }
+
+            this.compact(commandSender, (JSONStorage) storage);
+        } else {
+            if (!(storage instanceof ShardedStorage)) {
+                commandSender.sendMessage(ChatColor.RED + "Rebalancing is only needed when the storage has shards.");
+                return false;
+            }
+
+            this.rebalance(commandSender, (ShardedStorage) storage);
+        }
+
+        return false;
+    }
+
+    private void compact(@NotNull CommandSender commandSender, @NotNull JSONStorage storage) {
+        this.running = true;
+
+        commandSender.sendMessage(ChatColor.GREEN + "Compacting the JSON storage...");
+
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            long start = System.currentTimeMillis();
+            JSONStorage.Compaction compaction = storage.compact();
+            long took = System.currentTimeMillis() - start;
+
+            Bukkit.getScheduler().runTask(this.plugin, () -> {
+                this.running = false;
+
+                commandSender.sendMessage(ChatColor.GREEN + "Compacted the JSON storage in " + took + " ms: scanned " + compaction.getScanned()
+                        + " files, moved " + compaction.getMigrated() + " to the new layout and deleted " + compaction.getPruned() + " empty ones.");
+
+                if (compaction.getFailed() > 0) {
+                    commandSender.sendMessage(ChatColor.RED + "" + compaction.getFailed() + " files could not be read, check the console for more info.");
+                }
+            });
+        });
+    }
+
+    private void rebalance(@NotNull CommandSender commandSender, @NotNull ShardedStorage storage) {
+        this.running = true;
+
+        commandSender.sendMessage(ChatColor.GREEN + "Moving players to their shards...");
+
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            long start = System.currentTimeMillis();
+            String result;
+
+            try {
+                long moved = storage.rebalance();
+                result = ChatColor.GREEN + "Moved " + moved + " players in " + (System.currentTimeMillis() - start) + " ms.";
+            } catch (IOException exception) {
+                exception.printStackTrace();
+                result = ChatColor.RED + "Some players could not be moved, check the console for more info. Run the command again to continue.";
+            }
+
+            String message = result;
+            Bukkit.getScheduler().runTask(this.plugin, () -> {
+                this.running = false;
+                commandSender.sendMessage(message);
+            });
+        });
+    }
+
+    @Override
+    public List<String> tabOptions(@NotNull CommandSender commandSender, @NotNull String[] args) {
+        if (args.length == 1) {
+            return new ArrayList<>(Arrays.asList("compact", "rebalance"));
+        }
+
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void noPermissionEvent(@NotNull CommandSender commandSender) {
+        this.parent.noPermissionEvent(commandSender);
+    }
+
+    @Override
+    public @NotNull String getDescription() {
+        return ChatColor.translateAlternateColorCodes('&', MessageHandler.TwoFAMessages.DESCRIPTION_OF_STORAGE_COMMAND.getMessage());
+    }
+
+    @Override
+    public String[] getAliases() {
+        return new String[0];
+    }
+}
@@ -3,7 +3,6 @@ package com.lielamar.auth.bukkit.communication;
 import com.lielamar.auth.bukkit.TwoFactorAuthentication;
 import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
 import com.lielamar.auth.shared.handlers.AuthHandler;
-import org.bukkit.Bukkit;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -21,24 +20,11 @@ public class BasicAuthCommunication extends AuthCommunicationHandler {
         this.authHandler = new AuthHandler() {
             @Override
             public void changeState(@NotNull UUID uuid, @NotNull AuthState authState) {
-                super.authStates.put(uuid, authState);
+                this.writeState(uuid, authState);
             }
         };
 
-        long timeout = this.plugin.getConfigHandler().getCommunicationTimeout();
-
-        // Timeouts all callbacks that were set more than ${timeout} seconds ago using #onTimeout
-        Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
-            long currentTimestamp = System.currentTimeMillis();
-
-            super.callbacks.entrySet().removeIf(entry -> {
-                if (((currentTimestamp - entry.getValue().getExecutionStamp()) / 1000) > (timeout / 20)) {
-                    entry.getValue().onTimeout();
-                    return true;
-                }
-                return false;
-            });
-        }, timeout, timeout);
+        // Responses are given right away, so callbacks never wait around and there is nothing to time out
     }
 
     @Override
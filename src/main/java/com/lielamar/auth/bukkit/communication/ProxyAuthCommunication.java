@@ -14,43 +14,77 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 @SuppressWarnings("UnstableApiUsage")
 public class ProxyAuthCommunication extends AuthCommunicationHandler implements PluginMessageListener {
 
     private final TwoFactorAuthentication plugin;
 
+    private static final long PUSH_WAIT_TICKS = 10;
+
+    private final ProxyMessageQueue outbound;
+    private final Map<UUID, AuthHandler.AuthState> pushedStates;
+    private final Map<UUID, Runnable> awaitingPush;
+    private final Map<UUID, UUID> loads;
+    private final Set<UUID> requested;
+    private final int timeoutTaskId;
+
+    private boolean pushing;
+
     public ProxyAuthCommunication(TwoFactorAuthentication plugin) {
+        super(plugin.getConfigHandler().getCommunicationTimeout() * 50L);
+
         this.plugin = plugin;
 
         long timeout = this.plugin.getConfigHandler().getCommunicationTimeout();
 
-        // Timeouts all callbacks that were set more than ${timeout} seconds ago using #onTimeout
-        Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
-            long currentTimestamp = System.currentTimeMillis();
+        this.outbound = new ProxyMessageQueue(plugin, this.plugin.getConfigHandler().getProxyQueueCapacity(),
+                this.plugin.getConfigHandler().getProxyMessagesPerTick(), timeout * 50);
 
-            List<Map.Entry<UUID, AuthCommunicationCallback>> remove = new ArrayList<>();
-            
-            super.callbacks.entrySet().stream()
-                    .filter(entry -> ((currentTimestamp - entry.getValue().getExecutionStamp()) / 1000) > (timeout / 20))
-                    .forEach(remove::add);
+        this.pushedStates = new HashMap<>();
+        this.awaitingPush = new HashMap<>();
+        this.loads = new HashMap<>();
+        this.requested = new HashSet<>();
+        this.pushing = false;
 
-            remove.forEach(entry -> {
-                entry.getValue().onTimeout();
-                super.callbacks.remove(entry.getKey());
-            });
+        // Times out and hedges callbacks based on how fast the proxy usually answers
+        this.timeoutTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
+            this.expireCallbacks();
 
-        }, timeout, timeout);
+            if (!this.loads.isEmpty()) {
+                this.loads.keySet().retainAll(super.callbacks.keySet());
+            }
+        }, 1, 1);
     }
 
     @Override
     public void loadPlayerState(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback) {
+        // The proxy already told us the player's state when they connected, so there's no need to ask
+        // The callback is answered directly, since nothing went over the network and there's no round trip to record
+        AuthHandler.AuthState pushed = this.pushedStates.remove(uuid);
+        if (pushed != null) {
+            if (callback != null) {
+                callback.execute(pushed);
+            }
+            return;
+        }
+
+        this.requested.add(uuid);
+
+        UUID messageUUID = registerCallback(callback);
+        if (callback != null) {
+            this.loads.put(messageUUID, uuid);
+        }
+
         ByteArrayDataOutput msg = ByteStreams.newDataOutput();
-        this.setMessageHeader(msg, uuid, registerCallback(callback));
+        this.setMessageHeader(msg, uuid, messageUUID);
 
         ByteArrayOutputStream msgBody = new ByteArrayOutputStream();
         this.setMessageBody(msgBody, AuthCommunicationHandler.MessageType.LOAD_STATE);
@@ -83,6 +117,83 @@ public class ProxyAuthCommunication extends AuthCommunicationHandler implements
         this.sendMessage(uuid, msg);
     }
 
+    @Override
+    public void unload() {
+        Bukkit.getScheduler().cancelTask(this.timeoutTaskId);
+        this.outbound.unload();
+    }
+
+    public @NotNull ProxyMessageQueue getOutboundQueue() {
+        return this.outbound;
+    }
+
+    /**
+     * Runs a join once the proxy pushed the player's state, so loading it doesn't need a request.
+     * If the proxy doesn't push within {@link #PUSH_WAIT_TICKS}, or never pushed any state, the join runs without it
+     *
+     * @param uuid   UUID of the player that joined
+     * @param join   Loads the player
+     */
+    public void awaitPushedState(@NotNull UUID uuid, @NotNull Runnable join) {
+        if (this.pushedStates.containsKey(uuid)) {
+            join.run();
+            return;
+        }
+
+        this.awaitingPush.put(uuid, join);
+
+        // Older proxies don't push at all, so players are only kept waiting once we know this one does
+        Bukkit.getScheduler().runTaskLater(this.plugin, () -> {
+            if (this.awaitingPush.remove(uuid, join)) {
+                join.run();
+            }
+        }, this.pushing ? PUSH_WAIT_TICKS : 1L);
+    }
+
+    /**
+     * Forgets the player's pushed state and any join waiting for it
+     *
+     * @param uuid   UUID of the player that quit
+     */
+    public void playerQuit(@NotNull UUID uuid) {
+        this.pushedStates.remove(uuid);
+        this.awaitingPush.remove(uuid);
+        this.requested.remove(uuid);
+    }
+
+    private void onPushedState(@NotNull UUID playerUUID, @NotNull AuthHandler.AuthState authState) {
+        this.pushing = true;
+
+        // If the player joined before the push arrived we already asked the proxy, and the push answers that request.
+        // Only load requests are answered, a push says nothing about whether a state change reached the proxy.
+        // The push wasn't sent because of the request, so how long it took isn't a round trip
+        List<UUID> waiting = this.loads.entrySet().stream()
+                .filter(entry -> playerUUID.equals(entry.getValue()) && super.callbacks.containsKey(entry.getKey()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        if (!waiting.isEmpty()) {
+            waiting.forEach(messageUUID -> {
+                this.loads.remove(messageUUID);
+                super.onResponse(playerUUID, messageUUID, MessageType.LOAD_STATE, authState, false);
+            });
+            return;
+        }
+
+        // A push that comes after the proxy already answered the player's load has nothing left to answer
+        if (this.requested.contains(playerUUID)) {
+            return;
+        }
+
+        // Otherwise the player's load wasn't sent yet, and the push is kept for it until they quit
+        this.pushedStates.put(playerUUID, authState);
+
+        Runnable join = this.awaitingPush.remove(playerUUID);
+        if (join != null) {
+            join.run();
+        }
+    }
+
     @Override
     public void onPluginMessageReceived(@NotNull String channel, @NotNull Player player, byte[] data) {
         if (!channel.equals(Constants.PROXY_CHANNEL_NAME)) {
@@ -109,6 +220,12 @@ public class ProxyAuthCommunication extends AuthCommunicationHandler implements
             MessageType messageType = MessageType.valueOf(msgBodyData.readUTF());
             AuthHandler.AuthState authState = AuthHandler.AuthState.valueOf(msgBodyData.readUTF());
 
+            if (messageType == MessageType.PUSH_STATE) {
+                this.onPushedState(playerUUID, authState);
+                return;
+            }
+
+            this.loads.remove(messageUUID);
             super.onResponse(playerUUID, messageUUID, messageType, authState);
         } catch (IOException | IllegalArgumentException exception) {
             exception.printStackTrace();
@@ -141,10 +258,6 @@ public class ProxyAuthCommunication extends AuthCommunicationHandler implements
     }
 
     public void sendMessage(@NotNull UUID uuid, @NotNull ByteArrayDataOutput msg) {
-        Player player = Bukkit.getPlayer(uuid);
-
-        if (player != null && player.isOnline()) {
-            player.sendPluginMessage(this.plugin, Constants.PROXY_CHANNEL_NAME, msg.toByteArray());
-        }
+        this.outbound.send(uuid, msg.toByteArray());
     }
 }
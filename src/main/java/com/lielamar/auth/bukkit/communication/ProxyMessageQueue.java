@@ -0,0 +1,198 @@
+package com.lielamar.auth.bukkit.communication;
+
+import com.lielamar.auth.bukkit.TwoFactorAuthentication;
+import com.lielamar.auth.shared.utils.Constants;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Outbound plugin messages to the proxy.
+ *
+ * Plugin messages ride on a player's connection, so a message can only leave this server while some player is
+ * connected to it and listening on the 2FA channel. Messages are sent through the player they are about if possible,
+ * otherwise through any other player, and are held here while nobody can carry them.
+ *
+ * All methods must be called from the main thread.
+ */
+public class ProxyMessageQueue {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final TwoFactorAuthentication plugin;
+
+    private final int capacity;
+    private final int maxPerTick;
+    private final long expiry;
+
+    private final Deque<OutboundMessage> queue;
+
+    private long enqueued;
+    private long sent;
+    private long dropped;
+
+    private int taskId;
+
+    public ProxyMessageQueue(@NotNull TwoFactorAuthentication plugin, int capacity, int maxPerTick, long expiry) {
+        this.plugin = plugin;
+
+        this.capacity = Math.max(1, capacity);
+        this.maxPerTick = Math.max(1, maxPerTick);
+        this.expiry = expiry;
+
+        this.queue = new ArrayDeque<>();
+        this.taskId = -1;
+    }
+
+    /**
+     * Sends a message right away if there's a carrier for it, otherwise queues it until one joins.
+     *
+     * @param playerUUID   UUID of the player the message is about
+     * @param data         Message to send
+     */
+    public void send(@NotNull UUID playerUUID, byte[] data) {
+        this.enqueued++;
+
+        if (this.queue.isEmpty() && this.trySend(new OutboundMessage(playerUUID, data))) {
+            return;
+        }
+
+        // When the queue is full we drop the oldest message, since it's the closest one to timing out anyway
+        if (this.queue.size() >= this.capacity) {
+            this.queue.pollFirst();
+            this.dropped++;
+        }
+
+        this.queue.addLast(new OutboundMessage(playerUUID, data));
+        this.scheduleFlush();
+    }
+
+    /**
+     * Sends as many queued messages as possible, up to the per tick limit.
+     * Messages older than the expiry are dropped, since their callbacks have timed out already.
+     */
+    public void flush() {
+        long now = System.currentTimeMillis();
+        int budget = this.maxPerTick;
+
+        Iterator<OutboundMessage> iterator = this.queue.iterator();
+        while (iterator.hasNext() && budget > 0) {
+            OutboundMessage message = iterator.next();
+
+            if (now - message.createdAt > this.expiry || message.attempts >= MAX_ATTEMPTS) {
+                iterator.remove();
+                this.dropped++;
+                continue;
+            }
+
+            if (this.trySend(message)) {
+                iterator.remove();
+                budget--;
+            } else if (message.attempts == 0) {
+                // There's no carrier at all. Messages keep their order, so we wait for the next flush.
+                break;
+            }
+        }
+
+        if (this.queue.isEmpty()) {
+            this.cancelFlush();
+        }
+    }
+
+    public void unload() {
+        this.cancelFlush();
+        this.queue.clear();
+    }
+
+    public int getDepth() {
+        return this.queue.size();
+    }
+
+    public long getEnqueued() {
+        return this.enqueued;
+    }
+
+    public long getSent() {
+        return this.sent;
+    }
+
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    public double getDropRate() {
+        return this.enqueued == 0 ? 0 : (double) this.dropped / this.enqueued;
+    }
+
+    private boolean trySend(@NotNull OutboundMessage message) {
+        Player carrier = this.findCarrier(message.playerUUID);
+
+        if (carrier == null) {
+            return false;
+        }
+
+        try {
+            carrier.sendPluginMessage(this.plugin, Constants.PROXY_CHANNEL_NAME, message.data);
+            this.sent++;
+            return true;
+        } catch (RuntimeException exception) {
+            // The carrier probably disconnected while we were sending. The message stays queued for another try.
+            message.attempts++;
+            return false;
+        }
+    }
+
+    private @Nullable Player findCarrier(@NotNull UUID playerUUID) {
+        Player player = Bukkit.getPlayer(playerUUID);
+
+        if (isCarrier(player)) {
+            return player;
+        }
+
+        for (Player online : Bukkit.getOnlinePlayers()) {
+            if (isCarrier(online)) {
+                return online;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isCarrier(@Nullable Player player) {
+        return player != null && player.isOnline() && player.getListeningPluginChannels().contains(Constants.PROXY_CHANNEL_NAME);
+    }
+
+    private void scheduleFlush() {
+        if (this.taskId == -1 && this.plugin.isEnabled()) {
+            this.taskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(this.plugin, this::flush, 1, 1);
+        }
+    }
+
+    private void cancelFlush() {
+        if (this.taskId != -1) {
+            Bukkit.getScheduler().cancelTask(this.taskId);
+            this.taskId = -1;
+        }
+    }
+
+    private static class OutboundMessage {
+
+        private final UUID playerUUID;
+        private final byte[] data;
+        private final long createdAt;
+        private int attempts;
+
+        private OutboundMessage(UUID playerUUID, byte[] data) {
+            this.playerUUID = playerUUID;
+            this.data = data;
+            this.createdAt = System.currentTimeMillis();
+            this.attempts = 0;
+        }
+    }
+}
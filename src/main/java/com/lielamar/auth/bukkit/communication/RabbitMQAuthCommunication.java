@@ -0,0 +1,461 @@
+package com.lielamar.auth.bukkit.communication;
+
+import com.lielamar.auth.bukkit.TwoFactorAuthentication;
+import com.lielamar.auth.bukkit.handlers.ConfigHandler;
+import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
+import com.lielamar.auth.shared.handlers.AuthHandler;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Shares auth states between servers through a RabbitMQ topic exchange.
+ *
+ * State changes are published with the routing key {@code state.<uuid>} and every server keeps the states it
+ * receives for {@code state-ttl} seconds, so most loads are answered without leaving the server. A server that
+ * doesn't know a player (for example, right after it started) asks its peers on {@code load.<uuid>} and collects
+ * their replies on its own queue, matched by correlation id. SET_STATE callbacks only run once the broker has
+ * confirmed the publish.
+ *
+ * States are sent along with the fingerprint of the address they were reached from, and an authenticated state is only
+ * handed to a join from that same address. The queue is named after the server, so it keeps its name when the
+ * connection is recovered and replies sent to it still arrive.
+ */
+public class RabbitMQAuthCommunication extends AuthCommunicationHandler {
+
+    private static final String STATE_ROUTING_PREFIX = "state.";
+    private static final String LOAD_ROUTING_PREFIX = "load.";
+    private static final String TOUCH_ROUTING_KEY = "touch";
+    private static final String QUEUE_PREFIX = "2fa.server.";
+
+    private final TwoFactorAuthentication plugin;
+
+    private final String serverId;
+    private final String exchange;
+    private final long stateTTL;
+    private final long collectTicks;
+
+    private final Connection connection;
+    private final Channel confirmChannel;
+    private final Channel requestChannel;
+    private final Channel consumerChannel;
+    private final String queue;
+
+    private final Map<UUID, KnownState> knownStates;
+    private final ConcurrentNavigableMap<Long, PendingSet> unconfirmed;
+    private final Map<UUID, PendingLoad> pendingLoads;
+
+    private final int timeoutTaskId;
+    private final int heartbeatTaskId;
+
+    public RabbitMQAuthCommunication(TwoFactorAuthentication plugin) throws IOException, TimeoutException {
+        super(plugin.getConfigHandler().getCommunicationTimeout() * 50L);
+
+        this.plugin = plugin;
+
+        ConfigHandler configHandler = this.plugin.getConfigHandler();
+
+        this.serverId = UUID.randomUUID().toString();
+        this.exchange = configHandler.getRabbitMQExchange();
+        this.stateTTL = Math.max(1, configHandler.getRabbitMQStateTTL()) * 1000L;
+
+        long timeout = configHandler.getCommunicationTimeout();
+        this.collectTicks = Math.max(1, timeout / 3);
+
+        this.knownStates = new ConcurrentHashMap<>();
+        this.unconfirmed = new ConcurrentSkipListMap<>();
+        this.pendingLoads = new HashMap<>();
+
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(configHandler.getRabbitMQHost());
+        factory.setPort(configHandler.getRabbitMQPort());
+        factory.setUsername(configHandler.getRabbitMQUsername());
+        factory.setPassword(configHandler.getRabbitMQPassword());
+        factory.setVirtualHost(configHandler.getRabbitMQVirtualHost());
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+
+        this.connection = factory.newConnection("2FA");
+
+        this.confirmChannel = this.connection.createChannel();
+        this.confirmChannel.exchangeDeclare(this.exchange, BuiltinExchangeType.TOPIC, true);
+        this.confirmChannel.confirmSelect();
+        this.confirmChannel.addConfirmListener(new StateConfirmListener());
+
+        this.requestChannel = this.connection.createChannel();
+
+        this.consumerChannel = this.connection.createChannel();
+        this.consumerChannel.basicQos(Math.max(1, configHandler.getRabbitMQPrefetch()));
+        this.queue = declareQueue(this.consumerChannel, this.exchange, this.serverId);
+        this.consumerChannel.basicConsume(this.queue, false, new StateConsumer(this.consumerChannel));
+
+        // Times out and hedges callbacks based on how fast the other servers usually answer
+        this.timeoutTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, this::expireCallbacks, 1, 1);
+
+        // Tells the other servers that our online players are still around, so their states don't expire
+        long heartbeat = Math.max(20, this.stateTTL / 50 / 3);
+        this.heartbeatTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
+            String online = Bukkit.getOnlinePlayers().stream().map(player -> player.getUniqueId().toString())
+                    .collect(Collectors.joining("\n"));
+
+            if (!online.isEmpty()) {
+                this.publish(this.requestChannel, this.exchange, TOUCH_ROUTING_KEY, this.properties(null, null), online);
+            }
+
+            long currentTimestamp = System.currentTimeMillis();
+            this.knownStates.values().removeIf(state -> state.expiry < currentTimestamp);
+        }, heartbeat, heartbeat);
+    }
+
+    /**
+     * Declares the queue of a server and binds it to the exchange. The queue is only used by this connection and
+     * deleted with it, but is named by us so recovering the connection declares it again under the same name
+     *
+     * @param channel Channel to declare the queue on
+     * @param exchange Exchange the servers publish to
+     * @param serverId Id of the server
+     * @return Name of the queue
+     * @throws IOException Throws an exception if the queue could not be declared
+     */
+    static @NotNull String declareQueue(@NotNull Channel channel, @NotNull String exchange, @NotNull String serverId) throws IOException {
+        String queue = channel.queueDeclare(QUEUE_PREFIX + serverId, false, true, true, null).getQueue();
+
+        channel.queueBind(queue, exchange, STATE_ROUTING_PREFIX + "*");
+        channel.queueBind(queue, exchange, LOAD_ROUTING_PREFIX + "*");
+        channel.queueBind(queue, exchange, TOUCH_ROUTING_KEY);
+        return queue;
+    }
+
+    @Override
+    public void loadPlayerState(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback) {
+        UUID messageUUID = registerCallback(callback);
+        String fingerprint = this.plugin.getAuthHandler().getAddressFingerprint(uuid);
+
+        KnownState known = this.knownStates.get(uuid);
+        if (known != null && known.expiry >= System.currentTimeMillis()) {
+            super.onResponse(uuid, messageUUID, MessageType.LOAD_STATE, known.getState(fingerprint));
+            return;
+        }
+
+        // We don't know this player yet, so we ask every other server and take the best answer we get in time
+        this.pendingLoads.put(messageUUID, new PendingLoad(uuid, fingerprint));
+        this.publish(this.requestChannel, this.exchange, LOAD_ROUTING_PREFIX + uuid,
+                this.properties(messageUUID.toString(), this.queue), "");
+
+        Bukkit.getScheduler().runTaskLater(this.plugin, () -> this.completeLoad(messageUUID), this.collectTicks);
+    }
+
+    @Override
+    public void setPlayerState(@NotNull UUID uuid, AuthHandler.@NotNull AuthState authState, @Nullable AuthCommunicationCallback callback) {
+        UUID messageUUID = registerCallback(callback);
+
+        KnownState known = new KnownState(authState, this.plugin.getAuthHandler().getAddressFingerprint(uuid), System.currentTimeMillis() + this.stateTTL);
+        this.knownStates.put(uuid, known);
+
+        synchronized (this.confirmChannel) {
+            long sequence = this.confirmChannel.getNextPublishSeqNo();
+            this.unconfirmed.put(sequence, new PendingSet(uuid, messageUUID, authState));
+
+            if (!this.publish(this.confirmChannel, this.exchange, STATE_ROUTING_PREFIX + uuid, this.properties(null, null), known.encode())) {
+                this.unconfirmed.remove(sequence);
+            }
+        }
+    }
+
+    @Override
+    public void checkCommunication(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback) {
+        UUID messageUUID = registerCallback(callback);
+
+        if (this.connection.isOpen()) {
+            super.onResponse(uuid, messageUUID, MessageType.CHECK_COMMUNICATION, AuthHandler.AuthState.NONE);
+        }
+    }
+
+    @Override
+    public void unload() {
+        Bukkit.getScheduler().cancelTask(this.timeoutTaskId);
+        Bukkit.getScheduler().cancelTask(this.heartbeatTaskId);
+
+        try {
+            this.connection.close();
+        } catch (IOException | RuntimeException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private void completeLoad(@NotNull UUID messageUUID) {
+        PendingLoad load = this.pendingLoads.remove(messageUUID);
+
+        if (load != null) {
+            super.onResponse(load.playerUUID, messageUUID, MessageType.LOAD_STATE, load.best);
+        }
+    }
+
+    private void onLoadReply(@NotNull UUID messageUUID, @NotNull KnownState reply) {
+        PendingLoad load = this.pendingLoads.get(messageUUID);
+        if (load == null) {
+            return;
+        }
+
+        AuthHandler.AuthState authState = reply.getState(load.fingerprint);
+        if (authState == AuthHandler.AuthState.NONE) {
+            return;
+        }
+
+        load.best = authState;
+
+        // Nothing beats an authenticated state, so there is no need to wait for the other servers
+        if (authState == AuthHandler.AuthState.AUTHENTICATED) {
+            this.completeLoad(messageUUID);
+        }
+    }
+
+    private void onRemoteState(@NotNull UUID playerUUID, @NotNull KnownState known) {
+        Player player = Bukkit.getPlayer(playerUUID);
+
+        if (player == null || !player.isOnline()) {
+            return;
+        }
+
+        // The server a player is on decides their state. The only thing we take from other servers is an
+        // authentication that raced with this server's load request while the player was switching servers.
+        AuthHandler.AuthState authState = known.getState(this.plugin.getAuthHandler().getAddressFingerprint(playerUUID));
+
+        if (authState == AuthHandler.AuthState.AUTHENTICATED
+                && this.plugin.getAuthHandler().getAuthState(playerUUID) == AuthHandler.AuthState.PENDING_LOGIN) {
+            this.plugin.getAuthHandler().changeState(playerUUID, authState);
+        }
+    }
+
+    private void onConfirm(long sequence, boolean multiple, boolean acknowledged) {
+        List<PendingSet> confirmed;
+
+        if (multiple) {
+            ConcurrentNavigableMap<Long, PendingSet> head = this.unconfirmed.headMap(sequence, true);
+            confirmed = new ArrayList<>(head.values());
+            head.clear();
+        } else {
+            PendingSet pending = this.unconfirmed.remove(sequence);
+            confirmed = new ArrayList<>();
+
+            if (pending != null) {
+                confirmed.add(pending);
+            }
+        }
+
+        // Negatively acknowledged states are left to time out, which passes them on to the fallback handler
+        if (!acknowledged) {
+            Bukkit.getServer().getLogger().warning("[2FA] RabbitMQ rejected " + confirmed.size() + " state update(s)");
+            return;
+        }
+
+        if (!confirmed.isEmpty() && this.plugin.isEnabled()) {
+            Bukkit.getScheduler().runTask(this.plugin, () -> confirmed.forEach(pending ->
+                    super.onResponse(pending.playerUUID, pending.messageUUID, MessageType.SET_STATE, pending.authState)));
+        }
+    }
+
+    private @NotNull AMQP.BasicProperties properties(@Nullable String correlationId, @Nullable String replyTo) {
+        return new AMQP.BasicProperties.Builder()
+                .appId(this.serverId)
+                .correlationId(correlationId)
+                .replyTo(replyTo)
+                .build();
+    }
+
+    private boolean publish(@NotNull Channel channel, @NotNull String exchange, @NotNull String routingKey,
+                            @NotNull AMQP.BasicProperties properties, @NotNull String body) {
+        try {
+            synchronized (channel) {
+                channel.basicPublish(exchange, routingKey, properties, body.getBytes(StandardCharsets.UTF_8));
+            }
+            return true;
+        } catch (IOException | RuntimeException exception) {
+            // The callback stays registered and will be passed to the fallback handler once it times out
+            Bukkit.getServer().getLogger().severe("[2FA] Could not publish to RabbitMQ: " + exception.getMessage());
+            return false;
+        }
+    }
+
+    private class StateConsumer extends DefaultConsumer {
+
+        public StateConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            try {
+                this.handle(envelope, properties, new String(body, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException exception) {
+                exception.printStackTrace();
+            } finally {
+                getChannel().basicAck(envelope.getDeliveryTag(), false);
+            }
+        }
+
+        private void handle(Envelope envelope, AMQP.BasicProperties properties, String body) {
+            String routingKey = envelope.getRoutingKey();
+
+            // Replies to our own load requests are sent straight to our queue through the default exchange
+            if (envelope.getExchange().isEmpty()) {
+                UUID messageUUID = UUID.fromString(properties.getCorrelationId());
+                KnownState reply = KnownState.decode(body, 0);
+
+                if (plugin.isEnabled()) {
+                    Bukkit.getScheduler().runTask(plugin, () -> onLoadReply(messageUUID, reply));
+                }
+                return;
+            }
+
+            if (serverId.equals(properties.getAppId())) {
+                return;
+            }
+
+            long expiry = System.currentTimeMillis() + stateTTL;
+
+            if (routingKey.startsWith(STATE_ROUTING_PREFIX)) {
+                UUID playerUUID = UUID.fromString(routingKey.substring(STATE_ROUTING_PREFIX.length()));
+                KnownState known = KnownState.decode(body, expiry);
+
+                knownStates.put(playerUUID, known);
+
+                if (plugin.isEnabled()) {
+                    Bukkit.getScheduler().runTask(plugin, () -> onRemoteState(playerUUID, known));
+                }
+            } else if (routingKey.startsWith(LOAD_ROUTING_PREFIX)) {
+                if (properties.getReplyTo() == null || properties.getCorrelationId() == null) {
+                    return;
+                }
+
+                UUID playerUUID = UUID.fromString(routingKey.substring(LOAD_ROUTING_PREFIX.length()));
+                KnownState known = knownStates.get(playerUUID);
+
+                // The requesting server decides whether the state may be carried over to the address the player joined from
+                String reply = (known == null || known.expiry < System.currentTimeMillis())
+                        ? AuthHandler.AuthState.NONE.name() : known.encode();
+
+                publish(requestChannel, "", properties.getReplyTo(), properties(properties.getCorrelationId(), null), reply);
+            } else if (routingKey.equals(TOUCH_ROUTING_KEY)) {
+                for (String uuid : body.split("\n")) {
+                    KnownState known = knownStates.get(UUID.fromString(uuid));
+
+                    if (known != null) {
+                        known.expiry = expiry;
+                    }
+                }
+            }
+        }
+    }
+
+    private class StateConfirmListener implements ConfirmListener {
+
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) {
+            onConfirm(deliveryTag, multiple, true);
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) {
+            onConfirm(deliveryTag, multiple, false);
+        }
+    }
+
+    /**
+     * A player's state along with the fingerprint of the address it was reached from
+     */
+    static class KnownState {
+
+        private final AuthHandler.AuthState authState;
+        private final String fingerprint;
+        private volatile long expiry;
+
+        KnownState(@NotNull AuthHandler.AuthState authState, @Nullable String fingerprint, long expiry) {
+            this.authState = authState;
+            this.fingerprint = fingerprint;
+            this.expiry = expiry;
+        }
+
+        /**
+         * @param body State as it was sent, optionally followed by a semicolon and the fingerprint
+         * @param expiry Timestamp the state expires at
+         * @return Received state. Unknown states are read as NONE
+         */
+        static @NotNull KnownState decode(@NotNull String body, long expiry) {
+            String[] parts = body.split(";", 2);
+            AuthHandler.AuthState authState;
+
+            try {
+                authState = AuthHandler.AuthState.valueOf(parts[0]);
+            } catch (IllegalArgumentException exception) {
+                authState = AuthHandler.AuthState.NONE;
+            }
+
+            return new KnownState(authState, parts.length > 1 && !parts[1].isEmpty() ? parts[1] : null, expiry);
+        }
+
+        @NotNull String encode() {
+            return this.authState.name() + ";" + (this.fingerprint == null ? "" : this.fingerprint);
+        }
+
+        /**
+         * @param fingerprint Fingerprint of the address the player joined from
+         * @return State to load the player with. An authentication reached from another address is not carried over
+         */
+        @NotNull AuthHandler.AuthState getState(@Nullable String fingerprint) {
+            if (this.authState == AuthHandler.AuthState.AUTHENTICATED && (fingerprint == null || !fingerprint.equals(this.fingerprint))) {
+                return AuthHandler.AuthState.NONE;
+            }
+
+            return this.authState;
+        }
+    }
+
+    private static class PendingLoad {
+
+        private final UUID playerUUID;
+        private final String fingerprint;
+        private AuthHandler.AuthState best;
+
+        private PendingLoad(UUID playerUUID, String fingerprint) {
+            this.playerUUID = playerUUID;
+            this.fingerprint = fingerprint;
+            this.best = AuthHandler.AuthState.NONE;
+        }
+    }
+
+    private static class PendingSet {
+
+        private final UUID playerUUID;
+        private final UUID messageUUID;
+        private final AuthHandler.AuthState authState;
+
+        private PendingSet(UUID playerUUID, UUID messageUUID, AuthHandler.AuthState authState) {
+            this.playerUUID = playerUUID;
+            this.messageUUID = messageUUID;
+            this.authState = authState;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.lielamar.auth.bukkit.communication;
+
+import com.lielamar.auth.bukkit.TwoFactorAuthentication;
+import com.lielamar.auth.bukkit.handlers.ConfigHandler;
+import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
+import com.lielamar.auth.shared.handlers.AuthHandler;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Shares auth states between servers through Redis.
+ *
+ * Every player has a hash at {@code 2fa:state:<uuid>} holding their state, which expires {@code state-ttl} seconds
+ * after the player was last seen on any server. An authenticated state is bound to the fingerprint of the address it
+ * was reached from, and is only handed to a join from that same address, so a player who left the network can't be
+ * joined as by someone else while their state is still kept. Requests are queued and a single worker thread sends everything
+ * that piled up in one pipeline, so a burst of joins costs one round trip instead of one per player.
+ * State changes are also published on {@link #STATES_CHANNEL} so a server can pick up an authentication that
+ * happened elsewhere while its own load request was still in flight.
+ */
+public class RedisAuthCommunication extends AuthCommunicationHandler {
+
+    private static final String STATE_KEY_PREFIX = "2fa:state:";
+    private static final String STATE_FIELD = "state";
+    private static final String SERVER_FIELD = "server";
+    private static final String ADDRESS_FIELD = "address";
+    private static final String STATES_CHANNEL = "2fa:states";
+
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long MAX_RECONNECT_DELAY = 30_000;
+
+    private final TwoFactorAuthentication plugin;
+
+    private final String serverId;
+    private final int stateTTL;
+
+    private final JedisPool pool;
+    private final BlockingQueue<RedisRequest> requests;
+
+    private final Thread worker;
+    private final Thread subscriber;
+    private volatile JedisPubSub pubSub;
+    private volatile boolean running;
+
+    private final int timeoutTaskId;
+    private final int heartbeatTaskId;
+
+    public RedisAuthCommunication(TwoFactorAuthentication plugin) {
+        super(plugin.getConfigHandler().getCommunicationTimeout() * 50L);
+
+        this.plugin = plugin;
+
+        ConfigHandler configHandler = this.plugin.getConfigHandler();
+
+        this.serverId = UUID.randomUUID().toString();
+        this.stateTTL = Math.max(1, configHandler.getRedisStateTTL());
+
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(Math.max(2, configHandler.getRedisMaximumPoolSize()));
+        poolConfig.setTestWhileIdle(true);
+
+        String password = configHandler.getRedisPassword();
+        this.pool = new JedisPool(poolConfig, configHandler.getRedisHost(), configHandler.getRedisPort(), 2000,
+                (password == null || password.isEmpty()) ? null : password, configHandler.getRedisDatabase());
+
+        this.requests = new LinkedBlockingQueue<>();
+        this.running = true;
+
+        this.worker = new Thread(this::processRequests, "2FA Redis Worker");
+        this.worker.setDaemon(true);
+        this.worker.start();
+
+        this.subscriber = new Thread(this::listenForStates, "2FA Redis Subscriber");
+        this.subscriber.setDaemon(true);
+        this.subscriber.start();
+
+        // Times out and hedges callbacks based on how fast Redis usually answers
+        this.timeoutTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, this::expireCallbacks, 1, 1);
+
+        // Keeps the states of online players alive, so they only expire once the player has left the network
+        long heartbeat = Math.max(20, this.stateTTL * 20L / 3);
+        this.heartbeatTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
+            List<UUID> online = Bukkit.getOnlinePlayers().stream().map(Player::getUniqueId).collect(Collectors.toList());
+
+            if (!online.isEmpty()) {
+                this.requests.offer(RedisRequest.refresh(online));
+            }
+        }, heartbeat, heartbeat);
+    }
+
+    @Override
+    public void loadPlayerState(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback) {
+        this.requests.offer(RedisRequest.of(MessageType.LOAD_STATE, uuid, registerCallback(callback), null,
+                this.plugin.getAuthHandler().getAddressFingerprint(uuid)));
+    }
+
+    @Override
+    public void setPlayerState(@NotNull UUID uuid, AuthHandler.@NotNull AuthState authState, @Nullable AuthCommunicationCallback callback) {
+        this.requests.offer(RedisRequest.of(MessageType.SET_STATE, uuid, registerCallback(callback), authState,
+                this.plugin.getAuthHandler().getAddressFingerprint(uuid)));
+    }
+
+    @Override
+    public void checkCommunication(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback) {
+        this.requests.offer(RedisRequest.of(MessageType.CHECK_COMMUNICATION, uuid, registerCallback(callback), null, null));
+    }
+
+    @Override
+    public void unload() {
+        this.running = false;
+
+        Bukkit.getScheduler().cancelTask(this.timeoutTaskId);
+        Bukkit.getScheduler().cancelTask(this.heartbeatTaskId);
+
+        JedisPubSub current = this.pubSub;
+        if (current != null && current.isSubscribed()) {
+            try {
+                current.unsubscribe();
+            } catch (JedisException ignored) {}
+        }
+
+        this.worker.interrupt();
+        this.subscriber.interrupt();
+
+        this.pool.close();
+    }
+
+    /**
+     * Drains the request queue and sends every batch through a single pipeline.
+     * Responses are handed back to the main thread, where callbacks are executed.
+     */
+    private void processRequests() {
+        List<RedisRequest> batch = new ArrayList<>();
+
+        while (this.running) {
+            try {
+                batch.add(this.requests.take());
+            } catch (InterruptedException exception) {
+                return;
+            }
+
+            this.requests.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            try (Jedis jedis = this.pool.getResource()) {
+                List<RedisResponse> responses = execute(jedis, batch, this.serverId, this.stateTTL);
+
+                if (!responses.isEmpty() && this.plugin.isEnabled()) {
+                    Bukkit.getScheduler().runTask(this.plugin, () -> responses.forEach(response ->
+                            super.onResponse(response.playerUUID, response.messageUUID, response.messageType, response.authState)));
+                }
+            } catch (JedisException exception) {
+                // The callbacks of this batch stay registered and will be passed to the fallback handler once they time out
+                if (this.running) {
+                    Bukkit.getServer().getLogger().severe("[2FA] Could not reach the Redis server: " + exception.getMessage());
+                }
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends a batch of requests through a single pipeline
+     *
+     * @param jedis Connection to send the requests through
+     * @param batch Requests to send
+     * @param serverId Id of this server, published along with state changes
+     * @param stateTTL Seconds to keep the states of the players for
+     * @return Responses to the requests that have a callback, in order
+     */
+    static List<RedisResponse> execute(@NotNull Jedis jedis, @NotNull List<RedisRequest> batch, @NotNull String serverId, int stateTTL) {
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<?>> loads = new ArrayList<>(batch.size());
+
+        for (RedisRequest request : batch) {
+            Response<?> load = null;
+
+            if (request.messageType == null) {
+                for (UUID uuid : request.refreshed) {
+                    pipeline.expire(STATE_KEY_PREFIX + uuid, stateTTL);
+                }
+            } else if (request.messageType == MessageType.LOAD_STATE) {
+                String key = STATE_KEY_PREFIX + request.playerUUID;
+                load = pipeline.hmget(key, STATE_FIELD, ADDRESS_FIELD);
+                pipeline.expire(key, stateTTL);
+            } else if (request.messageType == MessageType.SET_STATE) {
+                String key = STATE_KEY_PREFIX + request.playerUUID;
+                pipeline.hset(key, STATE_FIELD, request.authState.name());
+                pipeline.hset(key, SERVER_FIELD, serverId);
+
+                if (request.fingerprint != null) {
+                    pipeline.hset(key, ADDRESS_FIELD, request.fingerprint);
+                } else {
+                    pipeline.hdel(key, ADDRESS_FIELD);
+                }
+
+                pipeline.expire(key, stateTTL);
+                pipeline.publish(STATES_CHANNEL, serverId + ";" + request.playerUUID + ";" + request.authState.name() + ";"
+                        + (request.fingerprint == null ? "" : request.fingerprint));
+            } else {
+                load = pipeline.ping();
+            }
+
+            loads.add(load);
+        }
+
+        pipeline.sync();
+
+        List<RedisResponse> responses = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            RedisRequest request = batch.get(i);
+
+            if (request.messageType == null) {
+                continue;
+            }
+
+            AuthHandler.AuthState authState = AuthHandler.AuthState.NONE;
+
+            if (request.messageType == MessageType.SET_STATE) {
+                authState = request.authState;
+            } else if (request.messageType == MessageType.LOAD_STATE) {
+                @SuppressWarnings("unchecked")
+                List<String> values = (List<String>) loads.get(i).get();
+                authState = parseState(values.get(0), values.get(1), request.fingerprint);
+            }
+
+            responses.add(new RedisResponse(request.playerUUID, request.messageUUID, request.messageType, authState));
+        }
+
+        return responses;
+    }
+
+    /**
+     * Keeps a subscription to {@link #STATES_CHANNEL} open, reconnecting with an increasing delay if it drops.
+     */
+    private void listenForStates() {
+        long delay = 1000;
+
+        while (this.running) {
+            this.pubSub = new StatesSubscriber();
+
+            try (Jedis jedis = this.pool.getResource()) {
+                delay = 1000;
+                jedis.subscribe(this.pubSub, STATES_CHANNEL);
+            } catch (JedisException exception) {
+                if (!this.running) {
+                    return;
+                }
+
+                Bukkit.getServer().getLogger().warning("[2FA] Lost the Redis subscription, retrying in " + (delay / 1000) + " seconds");
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException exception) {
+                return;
+            }
+
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+        }
+    }
+
+    private void onRemoteState(@NotNull UUID playerUUID, @NotNull AuthHandler.AuthState authState, @Nullable String fingerprint) {
+        Player player = Bukkit.getPlayer(playerUUID);
+
+        if (player == null || !player.isOnline()) {
+            return;
+        }
+
+        // The server a player is on decides their state. The only thing we take from other servers is an
+        // authentication that raced with this server's load request while the player was switching servers.
+        if (authState == AuthHandler.AuthState.AUTHENTICATED && fingerprint != null
+                && fingerprint.equals(this.plugin.getAuthHandler().getAddressFingerprint(playerUUID))
+                && this.plugin.getAuthHandler().getAuthState(playerUUID) == AuthHandler.AuthState.PENDING_LOGIN) {
+            this.plugin.getAuthHandler().changeState(playerUUID, authState);
+        }
+    }
+
+    /**
+     * @param value Stored state
+     * @param storedFingerprint Fingerprint of the address the state was reached from
+     * @param fingerprint Fingerprint of the address the player joined from
+     * @return State to load the player with. An authentication reached from another address is not carried over
+     */
+    private static @NotNull AuthHandler.AuthState parseState(@Nullable String value, @Nullable String storedFingerprint, @Nullable String fingerprint) {
+        if (value == null) {
+            return AuthHandler.AuthState.NONE;
+        }
+
+        try {
+            AuthHandler.AuthState authState = AuthHandler.AuthState.valueOf(value);
+
+            if (authState == AuthHandler.AuthState.AUTHENTICATED && (fingerprint == null || !fingerprint.equals(storedFingerprint))) {
+                return AuthHandler.AuthState.NONE;
+            }
+            return authState;
+        } catch (IllegalArgumentException exception) {
+            return AuthHandler.AuthState.NONE;
+        }
+    }
+
+    private class StatesSubscriber extends JedisPubSub {
+
+        @Override
+        public void onMessage(String channel, String message) {
+            String[] parts = message.split(";", -1);
+
+            if (parts.length != 4 || parts[0].equals(serverId)) {
+                return;
+            }
+
+            try {
+                UUID playerUUID = UUID.fromString(parts[1]);
+                AuthHandler.AuthState authState = AuthHandler.AuthState.valueOf(parts[2]);
+                String fingerprint = parts[3].isEmpty() ? null : parts[3];
+
+                if (plugin.isEnabled()) {
+                    Bukkit.getScheduler().runTask(plugin, () -> onRemoteState(playerUUID, authState, fingerprint));
+                }
+            } catch (IllegalArgumentException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    static class RedisRequest {
+
+        private final MessageType messageType;
+        private final UUID playerUUID;
+        private final UUID messageUUID;
+        private final AuthHandler.AuthState authState;
+        private final String fingerprint;
+        private final List<UUID> refreshed;
+
+        private RedisRequest(MessageType messageType, UUID playerUUID, UUID messageUUID, AuthHandler.AuthState authState, String fingerprint,
+                             List<UUID> refreshed) {
+            this.messageType = messageType;
+            this.playerUUID = playerUUID;
+            this.messageUUID = messageUUID;
+            this.authState = authState;
+            this.fingerprint = fingerprint;
+            this.refreshed = refreshed;
+        }
+
+        static RedisRequest of(MessageType messageType, UUID playerUUID, UUID messageUUID, AuthHandler.AuthState authState, String fingerprint) {
+            return new RedisRequest(messageType, playerUUID, messageUUID, authState, fingerprint, null);
+        }
+
+        static RedisRequest refresh(List<UUID> players) {
+            return new RedisRequest(null, null, null, null, null, players);
+        }
+    }
+
+    static class RedisResponse {
+
+        final UUID playerUUID;
+        final UUID messageUUID;
+        final MessageType messageType;
+        final AuthHandler.AuthState authState;
+
+        private RedisResponse(UUID playerUUID, UUID messageUUID, MessageType messageType, AuthHandler.AuthState authState) {
+            this.playerUUID = playerUUID;
+            this.messageUUID = messageUUID;
+            this.messageType = messageType;
+            this.authState = authState;
+        }
+    }
+}
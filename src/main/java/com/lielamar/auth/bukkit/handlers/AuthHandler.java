@@ -4,13 +4,16 @@ import com.lielamar.auth.bukkit.TwoFactorAuthentication;
 import com.lielamar.auth.bukkit.communication.BasicAuthCommunication;
 import com.lielamar.auth.bukkit.events.PlayerStateChangeEvent;
 import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
+import com.lielamar.auth.shared.handlers.IPFingerprintHandler;
 import com.lielamar.auth.shared.handlers.MessageHandler;
+import com.lielamar.auth.shared.handlers.PlayerSession;
+import com.lielamar.auth.shared.storage.PlayerRecord;
 import com.lielamar.auth.shared.storage.StorageHandler;
+import com.lielamar.auth.shared.storage.StorageUnavailableException;
+import com.lielamar.auth.shared.utils.AuthTracker;
 import com.lielamar.auth.shared.utils.Constants;
+import com.lielamar.auth.shared.utils.JoinProfiler;
 import com.lielamar.auth.shared.utils.hash.Hash;
-import com.lielamar.auth.shared.utils.hash.NoHash;
-import com.lielamar.auth.shared.utils.hash.SHA256;
-import com.lielamar.auth.shared.utils.hash.SHA512;
 import com.lielamar.lielsutils.bukkit.color.ColorUtils;
 
 import com.lielamar.lielsutils.bukkit.map.ImageRender;
@@ -34,44 +37,33 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
 
+    private static final int PLAYERS_LOADED_PER_TICK = 20;
+
     protected final TwoFactorAuthentication plugin;
 
     protected Map<Integer, Long> lastUsedMapIds;
     protected Version.ServerVersion version;
 
-    protected Hash hash;
-
     public AuthHandler(@NotNull TwoFactorAuthentication plugin, @Nullable StorageHandler storageHandler,
             @Nullable AuthCommunicationHandler authCommunicationHandler, @Nullable AuthCommunicationHandler fallbackCommunicationHandler) {
         super(storageHandler, authCommunicationHandler, fallbackCommunicationHandler);
 
         this.plugin = plugin;
 
-        this.lastUsedMapIds = new HashMap<>();
+        // Read by the metrics exporter's thread as well
+        this.lastUsedMapIds = new ConcurrentHashMap<>();
         Arrays.stream(plugin.getConfigHandler().getMapIDs()).forEach(i -> lastUsedMapIds.put(i, -1L));
 
         this.version = Version.getInstance().getServerVersion();
 
-        String hashType = this.plugin.getConfigHandler().getIpHashType();
-        
-        switch (hashType.toUpperCase()){
-            case "SHA256":
-                this.hash = new SHA256();
-                break;
-            case "SHA512":
-                this.hash = new SHA512();
-                break;
-            default:
-                this.hash = new NoHash();
-                break;
-        }
+        this.metrics = plugin.getMetrics();
+        this.fingerprintHandler = new IPFingerprintHandler(Hash.of(plugin.getConfigHandler().getIpHashType(), plugin.getConfigHandler().getIpHashSecret()),
+                plugin.getConfigHandler().getTrustedIPs());
 
         for(Player pl : Bukkit.getOnlinePlayers())
             removeQRItem(pl);
@@ -80,9 +72,86 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
     public void reloadOnlinePlayers() {
         // Applying 2fa for online players
         // We add at least 1 tick delay, ensuring the permission plugin is loaded beforehand
-        Bukkit.getScheduler().runTaskLater(this.plugin,
-                () -> Bukkit.getOnlinePlayers().forEach(player -> this.playerJoin(player.getUniqueId())),
-                Math.min(1, this.plugin.getConfigHandler().getReloadDelay()));
+        Bukkit.getScheduler().runTaskLater(this.plugin, this::loadOnlinePlayers, Math.min(1, this.plugin.getConfigHandler().getReloadDelay()));
+    }
+
+    /**
+     * Reads the stored data of all online players in bulk off the main thread, and then loads a few players per tick
+     */
+    private void loadOnlinePlayers() {
+        List<UUID> uuids = new ArrayList<>();
+        Bukkit.getOnlinePlayers().forEach(player -> uuids.add(player.getUniqueId()));
+
+        StorageHandler storageHandler = this.getStorageHandler();
+        if (uuids.isEmpty() || storageHandler == null) {
+            uuids.forEach(this::playerJoin);
+            return;
+        }
+
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            Map<UUID, PlayerRecord> records;
+
+            try {
+                records = storageHandler.loadPlayers(uuids);
+            } catch (RuntimeException exception) {
+                exception.printStackTrace();
+                Bukkit.getServer().getLogger().warning("[2FA] Could not read the online players in bulk, reading them one at a time instead");
+                records = new HashMap<>();
+            }
+
+            Map<UUID, PlayerRecord> loaded = records;
+            Bukkit.getScheduler().runTask(this.plugin, () -> this.loadPlayers(new ArrayDeque<>(uuids), loaded));
+        });
+    }
+
+    /**
+     * Loads {@value #PLAYERS_LOADED_PER_TICK} players per tick, so a reload with many players online doesn't stall a
+     * single tick. Players that were not read in advance are read from storage as they are loaded
+     *
+     * @param queue Players left to load
+     * @param records Stored data of the players that was read in advance
+     */
+    private void loadPlayers(Queue<UUID> queue, Map<UUID, PlayerRecord> records) {
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                // Stopping if the plugin was reloaded again in the meantime
+                if (plugin.getAuthHandler() != AuthHandler.this) {
+                    this.cancel();
+                    return;
+                }
+
+                for (int i = 0; i < PLAYERS_LOADED_PER_TICK && !queue.isEmpty(); i++) {
+                    UUID uuid = queue.poll();
+                    Player player = Bukkit.getPlayer(uuid);
+
+                    if (player == null || !player.isOnline()) {
+                        continue;
+                    }
+
+                    PlayerRecord record = records.get(uuid);
+                    if (record != null) {
+                        loadSession(record);
+                    }
+
+                    playerJoin(uuid);
+                }
+
+                if (queue.isEmpty()) {
+                    this.cancel();
+                }
+            }
+        }.runTaskTimer(this.plugin, 0L, 1L);
+    }
+
+    @Override
+    public void loadSession(@NotNull PlayerRecord record) {
+        super.loadSession(record);
+
+        // The placeholders show the data that was just read instead of waiting for a read of their own
+        if (this.plugin.getPlaceholders() != null) {
+            this.plugin.getPlaceholders().load(record);
+        }
     }
 
     @Override
@@ -144,7 +213,16 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
             authState = event.getNewAuthState();
         }
 
-        authStates.put(uuid, authState);
+        this.writeState(uuid, authState);
+
+        PlayerSession session = this.findSession(uuid);
+        if (authState == AuthState.AUTHENTICATED && this.metrics != null && session != null) {
+            long joinedAt = session.takeJoinedAt();
+
+            if (joinedAt != -1) {
+                this.metrics.getJoinToAuthenticated().recordMillis(System.currentTimeMillis() - joinedAt);
+            }
+        }
 
         // If the PlayerStateChangeEvent was not cancelled we want to update the auth communication handler
         if (player != null && authState == AuthState.AUTHENTICATED) {
@@ -153,6 +231,10 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
     }
 
     public void playerJoin(@NotNull UUID uuid) {
+        this.plugin.getJoinProfiler().profile(uuid, () -> this.loadPlayer(uuid));
+    }
+
+    private void loadPlayer(@NotNull UUID uuid) {
         if (super.authCommunicationHandler == null) {
             super.authCommunicationHandler = new BasicAuthCommunication(this.plugin);
         }
@@ -166,11 +248,32 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
 
         if (!player.hasPermission("2fa.use")) {
             this.changeState(uuid, AuthState.DISABLED);
+            this.plugin.getJoinProfiler().finish(uuid, AuthState.DISABLED.name());
             return;
         }
 
+        this.getSession(uuid).setJoinedAt(System.currentTimeMillis());
+
         // Asking communication handler to load the player state and execute LoadAuthCallback when a result is given
         super.authCommunicationHandler.loadPlayerState(uuid, new LoadAuthCallback(uuid));
+        this.plugin.getJoinProfiler().observePendingCallbacks(super.authCommunicationHandler.getPendingCallbacks());
+    }
+
+    /**
+     * Returns the fingerprint of the address an online player is connected from. Auth states that are shared
+     * between servers are bound to it, so an authentication is only carried over to a join from the same address
+     *
+     * @param uuid UUID of the player
+     * @return Fingerprint of the player's address, or null if the player is not online
+     */
+    public @Nullable String getAddressFingerprint(@NotNull UUID uuid) {
+        Player player = Bukkit.getPlayer(uuid);
+
+        if (player == null || player.getAddress() == null || player.getAddress().getAddress() == null) {
+            return null;
+        }
+
+        return this.fingerprintHandler.getFingerprint(this.getSession(uuid), player.getAddress().getAddress().getHostAddress());
     }
 
     public @Nullable
@@ -331,6 +434,13 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
         return mapView;
     }
 
+    /**
+     * @return Amount of reserved maps that were given to a player since the server started
+     */
+    public int getUsedMapCount() {
+        return (int) this.lastUsedMapIds.values().stream().filter(lastUsed -> lastUsed != -1).count();
+    }
+
     /**
      * Removes all QR Code items from the player's inventory
      *
@@ -368,19 +478,58 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
         private final UUID playerUUID;
         private final long timeMillis;
 
+        private boolean completed;
+        private boolean reading;
+        private boolean authenticatedMeanwhile;
+
         public LoadAuthCallback(@NotNull UUID playerUUID) {
             this.playerUUID = playerUUID;
             this.timeMillis = System.currentTimeMillis();
+
+            this.completed = false;
+            this.reading = false;
+            this.authenticatedMeanwhile = false;
         }
 
         @Override
         public void execute(AuthState authState) {
+            this.profile(() -> this.load(authState));
+        }
+
+        /**
+         * Runs a part of the player's load on the main thread, and finishes their join once they are left in a state
+         */
+        private void profile(Runnable work) {
+            JoinProfiler joinProfiler = plugin.getJoinProfiler();
+            joinProfiler.profile(this.playerUUID, work);
+
+            if (this.completed && !this.reading) {
+                joinProfiler.finish(this.playerUUID, getAuthState(this.playerUUID).name());
+            }
+        }
+
+        private void load(AuthState authState) {
             Player player = Bukkit.getPlayer(this.getPlayerUUID());
 
             if (player == null || !player.isOnline()) {
                 return;
             }
 
+            // The hedged fallback answered first. The communication handler still knows best whether the player
+            // already authenticated somewhere else, so a late authenticated answer is applied on top of it.
+            if (this.completed) {
+                if (authState == AuthState.AUTHENTICATED) {
+                    if (this.reading) {
+                        this.authenticatedMeanwhile = true;
+                    } else if (getAuthState(this.playerUUID) == AuthState.PENDING_LOGIN) {
+                        changeState(this.playerUUID, authState);
+                    }
+                }
+                return;
+            }
+
+            this.completed = true;
+
             if (getStorageHandler() == null) {
                 return;
             }
@@ -392,29 +541,109 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
             }
 
             if (authState == AuthState.NONE) {
-                if (getStorageHandler().getKey(this.playerUUID) == null) {
-                    if (player.hasPermission(Constants.demandPermission)) {
-                        createKey(this.playerUUID);
-                        changeState(this.playerUUID, AuthState.DEMAND_SETUP);
-
-                        if (getAuthCommunicationHandler() != null) {
-                            getAuthCommunicationHandler().setPlayerState(this.playerUUID, AuthState.DEMAND_SETUP);
-                        }
+                // The key may have been read in advance when the players were reloaded
+                PlayerSession session = getSession(this.playerUUID);
 
-                        plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.YOU_ARE_REQUIRED);
-                    } else {
-                        changeState(this.playerUUID, AuthState.DISABLED);
+                if (!session.isKeyLoaded()) {
+                    this.readRecord();
+                    return;
+                }
 
-                        if (plugin.getConfigHandler().shouldAdvise2FA()) {
-                            plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.SETUP_RECOMMENDATION);
-                            plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.GET_STARTED);
-                        }
-                    }
+                if (session.getKey() == null) {
+                    this.setUp(player);
                     return;
                 }
             }
 
-            // Otherwise, we want to wait for them to log in.
+            this.waitForLogin(player);
+        }
+
+        /**
+         * Reads the player's stored data off the main thread, so a slow storage doesn't stall the server while many
+         * players join, and then continues loading them on the main thread
+         */
+        private void readRecord() {
+            StorageHandler storageHandler = getStorageHandler();
+            this.reading = true;
+
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> plugin.getJoinProfiler().profileAsync(this.playerUUID, () -> {
+                PlayerRecord record;
+
+                try {
+                    record = new PlayerRecord(this.playerUUID, storageHandler.getKey(this.playerUUID),
+                            storageHandler.getIP(this.playerUUID), storageHandler.getEnableDate(this.playerUUID));
+                } catch (StorageUnavailableException exception) {
+                    Bukkit.getServer().getLogger().warning("[2FA] " + exception.getMessage());
+                    record = null;
+                } catch (RuntimeException exception) {
+                    exception.printStackTrace();
+                    record = null;
+                }
+
+                PlayerRecord loaded = record;
+                Bukkit.getScheduler().runTask(plugin, () -> this.profile(() -> this.onRecordRead(loaded)));
+            }));
+        }
+
+        /**
+         * @param record Player's stored data, or null if it could not be read
+         */
+        private void onRecordRead(@Nullable PlayerRecord record) {
+            this.reading = false;
+
+            Player player = Bukkit.getPlayer(this.getPlayerUUID());
+            if (player == null || !player.isOnline()) {
+                return;
+            }
+
+            if (record == null) {
+                // Letting the player in could skip their 2FA, so they have to come back once the storage is up
+                Bukkit.getServer().getLogger().warning("[2FA] Could not read the stored data of " + player.getName() + ", they were not let in");
+                player.kickPlayer(ChatColor.translateAlternateColorCodes('&', MessageHandler.TwoFAMessages.STORAGE_UNAVAILABLE.getMessage()));
+                return;
+            }
+
+            loadSession(record);
+
+            if (record.getKey() == null) {
+                this.setUp(player);
+                return;
+            }
+
+            this.waitForLogin(player);
+
+            if (this.authenticatedMeanwhile && getAuthState(this.playerUUID) == AuthState.PENDING_LOGIN) {
+                changeState(this.playerUUID, AuthState.AUTHENTICATED);
+            }
+        }
+
+        /**
+         * Demands the player to set up 2FA if they are required to, and otherwise leaves it disabled
+         */
+        private void setUp(Player player) {
+            if (player.hasPermission(Constants.demandPermission)) {
+                createKey(this.playerUUID);
+                changeState(this.playerUUID, AuthState.DEMAND_SETUP);
+
+                if (getAuthCommunicationHandler() != null) {
+                    getAuthCommunicationHandler().setPlayerState(this.playerUUID, AuthState.DEMAND_SETUP);
+                }
+
+                plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.YOU_ARE_REQUIRED);
+            } else {
+                changeState(this.playerUUID, AuthState.DISABLED);
+
+                if (plugin.getConfigHandler().shouldAdvise2FA()) {
+                    plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.SETUP_RECOMMENDATION);
+                    plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.GET_STARTED);
+                }
+            }
+        }
+
+        /**
+         * Waits for the player to log in, unless they are authenticated automatically
+         */
+        private void waitForLogin(Player player) {
             changeState(playerUUID, AuthState.PENDING_LOGIN);
             tryToAutoAuthenticate(player);
 
@@ -423,6 +652,11 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
 
         @Override
         public void onTimeout() {
+            // The fallback already answered, so the communication method is only slow
+            if (this.completed) {
+                return;
+            }
+
             Bukkit.getOnlinePlayers().stream().filter(pl -> pl.hasPermission(Constants.alertsPermission)).forEach(pl
                     -> plugin.getMessageHandler().sendMessage(pl, MessageHandler.TwoFAMessages.COMMUNICATION_METHOD_NOT_CORRECT));
 
@@ -431,6 +665,14 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
             }
         }
 
+        @Override
+        public void onHedge() {
+            // The communication handler is slower than it usually is, so we don't keep the player waiting any longer
+            if (!this.completed && fallbackCommunicationHandler != null) {
+                fallbackCommunicationHandler.loadPlayerState(playerUUID, this);
+            }
+        }
+
         @Override
         public long getExecutionStamp() {
             return this.timeMillis;
@@ -443,15 +685,17 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
 
         private void tryToAutoAuthenticate(Player player) {
             if (player.getAddress() != null && player.getAddress().getAddress() != null) {
-                String ip = hash.hash(player.getAddress().getAddress().getHostAddress());
-
-                boolean hasIPChanged = getStorageHandler().getIP(player.getUniqueId()) == null
-                        || !getStorageHandler().getIP(player.getUniqueId()).equalsIgnoreCase(ip);
+                boolean hasIPChanged = !isTrustedAddress(player.getUniqueId(), player.getAddress().getAddress().getHostAddress());
 
                 boolean isRequiredDueToIPChange = plugin.getConfigHandler().shouldRequiredOnIPChange() && hasIPChanged;
                 boolean isRequiredOnEveryJoin = plugin.getConfigHandler().shouldRequiredOnEveryLogin();
 
                 if (!isRequiredDueToIPChange && !isRequiredOnEveryJoin) {
+                    if (metrics != null) {
+                        metrics.recordAutoAuthentication();
+                    }
+                    plugin.getAuthTracker().record(AuthTracker.Statistic.AUTO_AUTHENTICATIONS);
+
                     changeState(player.getUniqueId(), AuthState.AUTHENTICATED);
                     plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.AUTHENTICATED_AUTOMATICALLY);
                     return;
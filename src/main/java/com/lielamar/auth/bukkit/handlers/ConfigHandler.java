@@ -6,6 +6,7 @@ import com.lielamar.lielsutils.bukkit.files.FileManager;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.World;
+import org.bukkit.command.PluginCommand;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.event.Event;
 import org.bukkit.event.block.BlockBreakEvent;
@@ -16,8 +17,15 @@ import org.bukkit.event.entity.PlayerDeathEvent;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryMoveItemEvent;
 import org.bukkit.event.player.*;
+import org.jetbrains.annotations.NotNull;
 
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 public final class ConfigHandler extends com.lielamar.auth.shared.handlers.ConfigHandler {
 
@@ -41,6 +49,8 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
 
     protected String qrCodeURL = "https://www.google.com/chart?chs=128x128&cht=qr&chl=otpauth://totp/";
     protected String ipHashType = "SHA256";
+    protected String ipHashSecret = "";
+    protected int trustedIPs = 3;
 
     protected boolean requireOnIPChange = true;
     protected boolean requireOnEveryLogin = false;
@@ -53,6 +63,29 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
     protected CommunicationMethod communicationMethod = CommunicationMethod.NONE;
     protected int communicationTimeout = 30;
 
+    protected int proxyQueueCapacity = 512;
+    protected int proxyMessagesPerTick = 64;
+
+    protected String redisHost = "localhost";
+    protected int redisPort = 6379;
+    protected String redisPassword = "";
+    protected int redisDatabase = 0;
+    protected int redisStateTTL = 60;
+    protected int redisMaximumPoolSize = 8;
+
+    protected String rabbitMQHost = "localhost";
+    protected int rabbitMQPort = 5672;
+    protected String rabbitMQUsername = "guest";
+    protected String rabbitMQPassword = "guest";
+    protected String rabbitMQVirtualHost = "/";
+    protected String rabbitMQExchange = "2fa";
+    protected int rabbitMQStateTTL = 60;
+    protected int rabbitMQPrefetch = 64;
+
+    protected boolean metricsEnabled = false;
+    protected String metricsAddress = "127.0.0.1";
+    protected int metricsPort = 9225;
+
     public boolean shouldCheckForUpdates() {
         return this.checkForUpdates;
     }
@@ -85,6 +118,14 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
         return this.ipHashType;
     }
 
+    public String getIpHashSecret() {
+        return this.ipHashSecret;
+    }
+
+    public int getTrustedIPs() {
+        return this.trustedIPs;
+    }
+
     public boolean shouldRequiredOnIPChange() {
         return this.requireOnIPChange;
     }
@@ -117,6 +158,82 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
         return this.communicationTimeout;
     }
 
+    public int getProxyQueueCapacity() {
+        return this.proxyQueueCapacity;
+    }
+
+    public int getProxyMessagesPerTick() {
+        return this.proxyMessagesPerTick;
+    }
+
+    public String getRedisHost() {
+        return this.redisHost;
+    }
+
+    public int getRedisPort() {
+        return this.redisPort;
+    }
+
+    public String getRedisPassword() {
+        return this.redisPassword;
+    }
+
+    public int getRedisDatabase() {
+        return this.redisDatabase;
+    }
+
+    public int getRedisStateTTL() {
+        return this.redisStateTTL;
+    }
+
+    public int getRedisMaximumPoolSize() {
+        return this.redisMaximumPoolSize;
+    }
+
+    public String getRabbitMQHost() {
+        return this.rabbitMQHost;
+    }
+
+    public int getRabbitMQPort() {
+        return this.rabbitMQPort;
+    }
+
+    public String getRabbitMQUsername() {
+        return this.rabbitMQUsername;
+    }
+
+    public String getRabbitMQPassword() {
+        return this.rabbitMQPassword;
+    }
+
+    public String getRabbitMQVirtualHost() {
+        return this.rabbitMQVirtualHost;
+    }
+
+    public String getRabbitMQExchange() {
+        return this.rabbitMQExchange;
+    }
+
+    public int getRabbitMQStateTTL() {
+        return this.rabbitMQStateTTL;
+    }
+
+    public int getRabbitMQPrefetch() {
+        return this.rabbitMQPrefetch;
+    }
+
+    public boolean isMetricsEnabled() {
+        return this.metricsEnabled;
+    }
+
+    public String getMetricsAddress() {
+        return this.metricsAddress;
+    }
+
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
     @Override
     public void reload() {
         config.setHeader(Arrays.asList(
@@ -138,12 +255,14 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
                 "#",
                 "# Local",
                 "# - JSON",
+                "# - H2",
                 "#",
                 "# Remote",
                 "# - MYSQL",
                 "# - MARIADB",
                 "# - POSTGRESQL",
                 "# - MONGODB",
+                "# - MONGODB_ASYNC (MongoDB without blocking the server while saving)",
                 "#",
                 "# If your server uses a proxy, it is recommended to use a Remote Storage Type!"
             });
@@ -245,6 +364,133 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
             super.mongodbURI = config.getString("storage-data.mongodb-uri");
         }
 
+        if (!config.contains("storage-data.shards")) {
+            config.set("storage-data.shards", super.shards);
+            config.addComments("storage-data.shards", new String[]{
+                "  # Splits the players over more SQL databases (MYSQL, MARIADB and POSTGRESQL only), next to the one above",
+                "  # Every entry is written as host:port/database. The port and database can be left out to use the ones above",
+                "  # The databases use the credentials and settings above. After adding a database, run /2fa storage rebalance"
+            });
+        } else {
+            super.shards = config.getStringList("storage-data.shards");
+        }
+
+        if (!config.contains("storage-data.read-replica")) {
+            config.addComments("storage-data.read-replica", new String[]{
+                "  # A read-only copy of the SQL database to send reads to (MYSQL, MARIADB and POSTGRESQL only)",
+                "  # Leave the host empty to read from the main database"
+            });
+        }
+
+        if (!config.contains("storage-data.read-replica.host")) {
+            config.set("storage-data.read-replica.host", super.readReplicaHost);
+        } else {
+            super.readReplicaHost = config.getString("storage-data.read-replica.host");
+        }
+
+        if (!config.contains("storage-data.read-replica.port")) {
+            config.set("storage-data.read-replica.port", super.readReplicaPort);
+        } else {
+            super.readReplicaPort = config.getInt("storage-data.read-replica.port");
+        }
+
+        if (!config.contains("storage-data.read-replica.username")) {
+            config.set("storage-data.read-replica.username", super.readReplicaUsername);
+            config.addComment("storage-data.read-replica.username", "    # Leave the credentials empty to use the ones of the main database");
+        } else {
+            super.readReplicaUsername = config.getString("storage-data.read-replica.username");
+        }
+
+        if (!config.contains("storage-data.read-replica.password")) {
+            config.set("storage-data.read-replica.password", super.readReplicaPassword);
+        } else {
+            super.readReplicaPassword = config.getString("storage-data.read-replica.password");
+        }
+
+        if (!config.contains("storage-data.read-replica.consistency-window")) {
+            config.set("storage-data.read-replica.consistency-window", super.readReplicaConsistencyWindow);
+            config.addComment("storage-data.read-replica.consistency-window", "    # Seconds after a player's data changed in which it is still read from the main database, while the replica catches up");
+        } else {
+            super.readReplicaConsistencyWindow = config.getInt("storage-data.read-replica.consistency-window");
+        }
+
+        if (!config.contains("storage-data.h2")) {
+            config.addComment("storage-data.h2", "  # Settings for the embedded H2 database, which is stored in the plugin's folder");
+        }
+
+        if (!config.contains("storage-data.h2.cache-size")) {
+            config.set("storage-data.h2.cache-size", super.h2CacheSize);
+            config.addComment("storage-data.h2.cache-size", "    # How much memory (in KB) H2 may use to cache the database");
+        } else {
+            super.h2CacheSize = config.getInt("storage-data.h2.cache-size");
+        }
+
+        if (!config.contains("storage-data.json")) {
+            config.addComment("storage-data.json", "  # Settings for JSON storage");
+        }
+
+        if (!config.contains("storage-data.json.cache-size")) {
+            config.set("storage-data.json.cache-size", super.jsonCacheSize);
+            config.addComment("storage-data.json.cache-size", "    # How many player records to keep in memory");
+        } else {
+            super.jsonCacheSize = config.getInt("storage-data.json.cache-size");
+        }
+
+        if (!config.contains("storage-data.json.write-delay")) {
+            config.set("storage-data.json.write-delay", super.jsonWriteDelay);
+            config.addComment("storage-data.json.write-delay", "    # Milliseconds between writing changed records to their files. 0 writes every change straight away");
+        } else {
+            super.jsonWriteDelay = config.getLong("storage-data.json.write-delay");
+        }
+
+        if (!config.contains("storage-data.circuit-breaker")) {
+            config.addComments("storage-data.circuit-breaker", new String[]{
+                "  # Settings for remote storages when the database can't be reached",
+                "  # After a few failed queries in a row the plugin stops querying the database and answers from the data it last saw,",
+                "  # until a background check finds the database reachable again"
+            });
+        }
+
+        if (!config.contains("storage-data.circuit-breaker.enabled")) {
+            config.set("storage-data.circuit-breaker.enabled", super.circuitBreakerEnabled);
+        } else {
+            super.circuitBreakerEnabled = config.getBoolean("storage-data.circuit-breaker.enabled");
+        }
+
+        if (!config.contains("storage-data.circuit-breaker.failure-threshold")) {
+            config.set("storage-data.circuit-breaker.failure-threshold", super.circuitBreakerFailureThreshold);
+            config.addComment("storage-data.circuit-breaker.failure-threshold", "    # How many queries in a row have to fail before the database is considered down");
+        } else {
+            super.circuitBreakerFailureThreshold = config.getInt("storage-data.circuit-breaker.failure-threshold");
+        }
+
+        if (!config.contains("storage-data.circuit-breaker.probe-interval")) {
+            config.set("storage-data.circuit-breaker.probe-interval", super.circuitBreakerProbeInterval);
+            config.addComment("storage-data.circuit-breaker.probe-interval", "    # Seconds between checks whether the database is back up");
+        } else {
+            super.circuitBreakerProbeInterval = config.getInt("storage-data.circuit-breaker.probe-interval");
+        }
+
+        if (!config.contains("storage-data.circuit-breaker.cache-size")) {
+            config.set("storage-data.circuit-breaker.cache-size", super.circuitBreakerCacheSize);
+            config.addComment("storage-data.circuit-breaker.cache-size", "    # How many players to remember the last known data of");
+        } else {
+            super.circuitBreakerCacheSize = config.getInt("storage-data.circuit-breaker.cache-size");
+        }
+
+        if (!config.contains("storage-data.journal")) {
+            config.addComments("storage-data.journal", new String[]{
+                "  # Saves changes to a file in the plugin's folder before sending them to a remote storage, and sends them once it's reachable",
+                "  # Changes made while the database is down are kept this way. Requires the circuit breaker"
+            });
+        }
+
+        if (!config.contains("storage-data.journal.enabled")) {
+            config.set("storage-data.journal.enabled", super.journalEnabled);
+        } else {
+            super.journalEnabled = config.getBoolean("storage-data.journal.enabled");
+        }
+
         ConfigurationSection disabledEventsSection = config.getConfigurationSection("disabled-events");
         try {
             if (disabledEventsSection != null) {
@@ -285,6 +531,8 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
             super.blacklistedCommands = config.getStringList("blacklisted-commands");
         }
 
+        super.clearCommandMatchers();
+
         if (!config.contains("qr-code-service")) {
             config.set("qr-code-service", this.qrCodeURL);
             config.addComment("qr-code-service", "# Service to use when generating QR codes");
@@ -338,12 +586,39 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
                 "# The hash method to use for players' IP addresses",
                 "# - SHA256",
                 "# - SHA512",
+                "# - HMAC-SHA256 (SHA256 keyed with ip-hash-secret)",
                 "# - NONE (no hash - not recommended!)"
             });
         } else {
             this.ipHashType = config.getString("ip-hash");
         }
 
+        if (!config.contains("ip-hash-secret")) {
+            this.ipHashSecret = generateSecret();
+            config.set("ip-hash-secret", this.ipHashSecret);
+            config.addComments("ip-hash-secret", new String[]{
+                "# Secret key of the HMAC-SHA256 ip-hash. It's generated on the first start",
+                "# Use the same secret on every server that shares a storage. Changing it makes players authenticate again on their next join"
+            });
+        } else {
+            this.ipHashSecret = config.getString("ip-hash-secret");
+
+            if (this.ipHashSecret == null || this.ipHashSecret.isEmpty()) {
+                this.ipHashSecret = generateSecret();
+                config.set("ip-hash-secret", this.ipHashSecret);
+            }
+        }
+
+        if (!config.contains("trusted-ips")) {
+            config.set("trusted-ips", this.trustedIPs);
+            config.addComments("trusted-ips", new String[]{
+                "# How many IP addresses to remember per player for require-when.ip-changes",
+                "# Players don't need to authenticate again when they join from any of their last trusted-ips addresses"
+            });
+        } else {
+            this.trustedIPs = config.getInt("trusted-ips");
+        }
+
         if (!config.contains("player-reload-delay")) {
             config.set("player-reload-delay", this.reloadDelay);
             config.addComments("player-reload-delay", new String[]{
@@ -433,8 +708,8 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
                 "#",
                 //                    "# - NONE (use if you only have a single server)",
                 "# - PROXY",
-                "# - REDIS (NOT SUPPORTED YET)",
-                "# - RABBITMQ (NOT SUPPORTED YET)"
+                "# - REDIS",
+                "# - RABBITMQ"
             });
         } else {
             this.communicationMethod = CommunicationMethod.valueOf(config.getString("communication-method", "PROXY").toUpperCase());
@@ -450,9 +725,194 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
             this.communicationTimeout = config.getInt("communication-data.timeout");
         }
 
+        if (!config.contains("communication-data.proxy")) {
+            config.addComments("communication-data.proxy", new String[]{
+                "  # Settings for the PROXY communication method",
+                "  # Messages to the proxy are sent through an online player and wait in a queue while there's no player to send them through"
+            });
+        }
+
+        if (!config.contains("communication-data.proxy.queue-capacity")) {
+            config.set("communication-data.proxy.queue-capacity", this.proxyQueueCapacity);
+            config.addComment("communication-data.proxy.queue-capacity", "    # How many messages can wait in the queue before the oldest ones are dropped");
+        } else {
+            this.proxyQueueCapacity = config.getInt("communication-data.proxy.queue-capacity");
+        }
+
+        if (!config.contains("communication-data.proxy.messages-per-tick")) {
+            config.set("communication-data.proxy.messages-per-tick", this.proxyMessagesPerTick);
+            config.addComment("communication-data.proxy.messages-per-tick", "    # How many queued messages can be sent every tick");
+        } else {
+            this.proxyMessagesPerTick = config.getInt("communication-data.proxy.messages-per-tick");
+        }
+
+        if (!config.contains("communication-data.redis")) {
+            config.addComment("communication-data.redis", "  # Settings for the REDIS communication method");
+        }
+
+        if (!config.contains("communication-data.redis.host")) {
+            config.set("communication-data.redis.host", this.redisHost);
+        } else {
+            this.redisHost = config.getString("communication-data.redis.host");
+        }
+
+        if (!config.contains("communication-data.redis.port")) {
+            config.set("communication-data.redis.port", this.redisPort);
+        } else {
+            this.redisPort = config.getInt("communication-data.redis.port");
+        }
+
+        if (!config.contains("communication-data.redis.password")) {
+            config.set("communication-data.redis.password", this.redisPassword);
+            config.addComment("communication-data.redis.password", "    # Leave blank for no authentication");
+        } else {
+            this.redisPassword = config.getString("communication-data.redis.password");
+        }
+
+        if (!config.contains("communication-data.redis.database")) {
+            config.set("communication-data.redis.database", this.redisDatabase);
+        } else {
+            this.redisDatabase = config.getInt("communication-data.redis.database");
+        }
+
+        if (!config.contains("communication-data.redis.state-ttl")) {
+            config.set("communication-data.redis.state-ttl", this.redisStateTTL);
+            config.addComments("communication-data.redis.state-ttl", new String[]{
+                "    # How long (in seconds) a player's auth state is kept after they leave the network",
+                "    # Players that rejoin from the same address within this time will not have to authenticate again"
+            });
+        } else {
+            this.redisStateTTL = config.getInt("communication-data.redis.state-ttl");
+        }
+
+        if (!config.contains("communication-data.redis.maximum-pool-size")) {
+            config.set("communication-data.redis.maximum-pool-size", this.redisMaximumPoolSize);
+        } else {
+            this.redisMaximumPoolSize = config.getInt("communication-data.redis.maximum-pool-size");
+        }
+
+        if (!config.contains("communication-data.rabbitmq")) {
+            config.addComment("communication-data.rabbitmq", "  # Settings for the RABBITMQ communication method");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.host")) {
+            config.set("communication-data.rabbitmq.host", this.rabbitMQHost);
+        } else {
+            this.rabbitMQHost = config.getString("communication-data.rabbitmq.host");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.port")) {
+            config.set("communication-data.rabbitmq.port", this.rabbitMQPort);
+        } else {
+            this.rabbitMQPort = config.getInt("communication-data.rabbitmq.port");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.username")) {
+            config.set("communication-data.rabbitmq.username", this.rabbitMQUsername);
+        } else {
+            this.rabbitMQUsername = config.getString("communication-data.rabbitmq.username");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.password")) {
+            config.set("communication-data.rabbitmq.password", this.rabbitMQPassword);
+        } else {
+            this.rabbitMQPassword = config.getString("communication-data.rabbitmq.password");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.virtual-host")) {
+            config.set("communication-data.rabbitmq.virtual-host", this.rabbitMQVirtualHost);
+        } else {
+            this.rabbitMQVirtualHost = config.getString("communication-data.rabbitmq.virtual-host");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.exchange")) {
+            config.set("communication-data.rabbitmq.exchange", this.rabbitMQExchange);
+            config.addComment("communication-data.rabbitmq.exchange", "    # The topic exchange all of your servers publish auth states to");
+        } else {
+            this.rabbitMQExchange = config.getString("communication-data.rabbitmq.exchange");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.state-ttl")) {
+            config.set("communication-data.rabbitmq.state-ttl", this.rabbitMQStateTTL);
+            config.addComments("communication-data.rabbitmq.state-ttl", new String[]{
+                "    # How long (in seconds) a player's auth state is kept after they leave the network",
+                "    # Players that rejoin from the same address within this time will not have to authenticate again"
+            });
+        } else {
+            this.rabbitMQStateTTL = config.getInt("communication-data.rabbitmq.state-ttl");
+        }
+
+        if (!config.contains("communication-data.rabbitmq.prefetch")) {
+            config.set("communication-data.rabbitmq.prefetch", this.rabbitMQPrefetch);
+            config.addComment("communication-data.rabbitmq.prefetch", "    # How many messages the broker may send before the plugin has acknowledged them");
+        } else {
+            this.rabbitMQPrefetch = config.getInt("communication-data.rabbitmq.prefetch");
+        }
+
+        if (!config.contains("metrics")) {
+            config.addComments("metrics", new String[]{
+                "# Serves the plugin's metrics in the Prometheus format on http://<address>:<port>/metrics",
+                "# Keep the address local or firewalled, the endpoint has no authentication"
+            });
+        }
+
+        if (!config.contains("metrics.enabled")) {
+            config.set("metrics.enabled", this.metricsEnabled);
+        } else {
+            this.metricsEnabled = config.getBoolean("metrics.enabled");
+        }
+
+        if (!config.contains("metrics.address")) {
+            config.set("metrics.address", this.metricsAddress);
+        } else {
+            this.metricsAddress = config.getString("metrics.address");
+        }
+
+        if (!config.contains("metrics.port")) {
+            config.set("metrics.port", this.metricsPort);
+        } else {
+            this.metricsPort = config.getInt("metrics.port");
+        }
+
         config.saveConfig();
     }
 
+    private static String generateSecret() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+
+        StringBuilder secret = new StringBuilder();
+        for (byte b : bytes) {
+            secret.append(String.format("%02x", b));
+        }
+        return secret.toString();
+    }
+
+    @Override
+    protected @NotNull Collection<String> getCommandAliases(@NotNull String command) {
+        PluginCommand pluginCommand = Bukkit.getPluginCommand(command);
+
+        if (pluginCommand == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> aliases = new ArrayList<>(pluginCommand.getAliases());
+        aliases.add(pluginCommand.getName());
+        return aliases;
+    }
+
+    @Override
+    protected @NotNull Collection<String> getCommandNamespaces(@NotNull String command) {
+        PluginCommand pluginCommand = Bukkit.getPluginCommand(command);
+
+        // Plugin commands are registered under the plugin's name as a fallback prefix
+        if (pluginCommand == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.singletonList(pluginCommand.getPlugin().getName().toLowerCase(Locale.ENGLISH));
+    }
+
     protected enum ShorterEvents {
         MOVE(PlayerMoveEvent.class),
         BLOCK_BREAK(BlockBreakEvent.class),
@@ -1,116 +1,341 @@
 package com.lielamar.auth.bukkit.handlers;
 
+import com.lielamar.auth.shared.communication.CommunicationMethod;
+import com.lielamar.auth.shared.storage.StorageMethod;
 import net.byteflux.libby.BukkitLibraryManager;
 import net.byteflux.libby.Library;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the libraries of the plugin on servers that don't load the libraries listed in the plugin.yml.
+ *
+ * Only the libraries of the configured storage and communication methods are loaded. Libraries that are not downloaded
+ * yet are downloaded in parallel and checked against the checksums Maven Central publishes. The SHA-256 of every
+ * verified jar is kept in a file next to them, and jars are hashed again on every start, so a jar that is already
+ * there is only loaded if it still matches.
+ */
 public class DependencyHandler {
 
+    private enum Dependency {
+        GOOGLE_AUTH("Google Auth", "com.warrenstrange", "googleauth", "1.5.0"),
+        COMMONS_CODEC("Commons-Codec", "commons-codec", "commons-codec", "1.15"),
+        HIKARI_CP("HikariCP", "com.zaxxer", "HikariCP", "4.0.3"),
+        H2("H2", "com.h2database", "h2", "2.1.212"),
+        MYSQL("MySQL", "mysql", "mysql-connector-java", "8.0.29"),
+        MARIADB("MariaDB", "org.mariadb.jdbc", "mariadb-java-client", "2.7.3"),
+        POSTGRESQL("PostgreSQL", "org.postgresql", "postgresql", "42.3.6"),
+        MONGODB("MongoDB", "org.mongodb", "mongo-java-driver", "3.12.11"),
+        MONGODB_ASYNC("MongoDB Async", "org.mongodb", "mongodb-driver-async", "3.12.11"),
+        JEDIS("Jedis", "redis.clients", "jedis", "3.9.0"),
+        COMMONS_POOL("Commons-Pool2", "org.apache.commons", "commons-pool2", "2.11.1"),
+        AMQP_CLIENT("AMQP Client", "com.rabbitmq", "amqp-client", "5.16.0"),
+        SLF4J("Slf4j", "org.slf4j", "slf4j-api", "2.0.0-alpha7"),
+        LOG4J("Log4j", "org.apache.logging.log4j", "log4j-core", "2.18.0");
+
+        private final String name;
+        private final Library library;
+
+        Dependency(String name, String groupId, String artifactId, String version) {
+            this.name = name + " v" + version;
+            this.library = Library.builder()
+                    .groupId(groupId)
+                    .artifactId(artifactId)
+                    .version(version)
+                    .build();
+        }
+    }
+
+    private static final int MAXIMUM_DOWNLOADS = 4;
+    private static final String CHECKSUMS_FILE = "checksums.properties";
+    private static final String MAVEN_CENTRAL = "https://repo1.maven.org/maven2/";
+
+    private final BukkitLibraryManager loader;
+    private final File libraryFolder;
+    private final Properties checksums;
+    private final Set<Dependency> loaded;
+    private volatile boolean checksumsChanged;
+
     public DependencyHandler(Plugin plugin) {
+        this.loader = new BukkitLibraryManager(plugin);
+        this.loader.addMavenCentral();
+
+        this.libraryFolder = new File(plugin.getDataFolder(), "lib");
+        this.checksums = new Properties();
+        this.loaded = EnumSet.noneOf(Dependency.class);
+
+        this.loadChecksums();
+        this.loadDependencies(EnumSet.of(Dependency.GOOGLE_AUTH, Dependency.COMMONS_CODEC, Dependency.LOG4J));
+    }
+
+    /**
+     * Loads the libraries the given methods need, if they are not loaded yet
+     *
+     * @param storageMethod Storage method to load the libraries of
+     * @param communicationMethod Communication method to load the libraries of
+     */
+    public void loadDependencies(@NotNull StorageMethod storageMethod, @Nullable CommunicationMethod communicationMethod) {
+        Set<Dependency> dependencies = getDependencies(storageMethod);
+
+        if (communicationMethod == CommunicationMethod.REDIS) {
+            dependencies.addAll(Arrays.asList(Dependency.JEDIS, Dependency.COMMONS_POOL, Dependency.SLF4J));
+        } else if (communicationMethod == CommunicationMethod.RABBITMQ) {
+            dependencies.addAll(Arrays.asList(Dependency.AMQP_CLIENT, Dependency.SLF4J));
+        }
+
+        this.loadDependencies(dependencies);
+    }
+
+    private static Set<Dependency> getDependencies(StorageMethod storageMethod) {
+        switch (storageMethod) {
+            case H2:
+                return EnumSet.of(Dependency.HIKARI_CP, Dependency.SLF4J, Dependency.H2);
+            case MYSQL:
+                return EnumSet.of(Dependency.HIKARI_CP, Dependency.SLF4J, Dependency.MYSQL);
+            case MARIADB:
+                return EnumSet.of(Dependency.HIKARI_CP, Dependency.SLF4J, Dependency.MARIADB);
+            case POSTGRESQL:
+                return EnumSet.of(Dependency.HIKARI_CP, Dependency.SLF4J, Dependency.POSTGRESQL);
+            case MONGODB:
+                return EnumSet.of(Dependency.MONGODB);
+            case MONGODB_ASYNC:
+                return EnumSet.of(Dependency.MONGODB, Dependency.MONGODB_ASYNC);
+            default:
+                return EnumSet.noneOf(Dependency.class);
+        }
+    }
+
+    private synchronized void loadDependencies(Set<Dependency> dependencies) {
+        dependencies.removeAll(this.loaded);
+        if (dependencies.isEmpty()) {
+            return;
+        }
+
+        List<Dependency> downloads = new ArrayList<>();
+        for (Dependency dependency : dependencies) {
+            if (!this.isCached(dependency)) {
+                downloads.add(dependency);
+            }
+        }
+
+        if (!downloads.isEmpty()) {
+            this.download(downloads);
+        }
+
+        if (this.checksumsChanged) {
+            this.saveChecksums();
+        }
+
         try {
-            this.loadDependencies(plugin);
+            for (Dependency dependency : dependencies) {
+                Bukkit.getServer().getLogger().info("Loading library " + dependency.name);
+                this.loader.loadLibrary(dependency.library);
+                this.loaded.add(dependency);
+            }
         } catch (Exception exception) {
             Bukkit.getServer().getConsoleSender().sendMessage(ChatColor.RED + "[2FA] 2FA detected that you are using Java 16 without the --add-opens java.base/java.lang=ALL-UNNAMED or the --add-opens java.base/java.net=ALL-UNNAMED flags!");
             Bukkit.getServer().getConsoleSender().sendMessage(ChatColor.RED + "[2FA] If you want the plugin to support all features, most significantly Remote Databases, please add this flag to your startup script");
         }
     }
 
-    private void loadDependencies(Plugin plugin) {
-        BukkitLibraryManager loader = new BukkitLibraryManager(plugin);
-
-        loader.addMavenCentral();
-
-        String googleAuthVersion = "1.5.0";
-        String commonsCodecVersion = "1.15";
-        String hikariCpVersion = "4.0.3";
-        String h2Version = "2.1.212";
-        String mysqlVersion = "8.0.29";
-        String mariaDBVersion = "2.7.3";
-        String postgresVersion = "42.3.6";
-        String mongoDBVersion = "3.12.11";
-        String slf4jVersion = "2.0.0-alpha7";
-        String log4jVersion = "2.18.0";
-
-        Bukkit.getServer().getLogger().info("Loading library Google Auth v" + googleAuthVersion);
-        Library library = Library.builder()
-                .groupId("com.warrenstrange")
-                .artifactId("googleauth")
-                .version(googleAuthVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library Commons-Codec v" + commonsCodecVersion);
-        library = Library.builder()
-                .groupId("commons-codec")
-                .artifactId("commons-codec")
-                .version(commonsCodecVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library HikariCP v" + hikariCpVersion);
-        library = Library.builder()
-                .groupId("com.zaxxer")
-                .artifactId("HikariCP")
-                .version(hikariCpVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library H2 v" + h2Version);
-        library = Library.builder()
-                .groupId("com.h2database")
-                .artifactId("h2")
-                .version(h2Version)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library MySQL v" + mysqlVersion);
-        library = Library.builder()
-                .groupId("mysql")
-                .artifactId("mysql-connector-java")
-                .version(mysqlVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library MariaDB v" + mariaDBVersion);
-        library = Library.builder()
-                .groupId("org.mariadb.jdbc")
-                .artifactId("mariadb-java-client")
-                .version(mariaDBVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library PostgreSQL v" + postgresVersion);
-        library = Library.builder()
-                .groupId("org.postgresql")
-                .artifactId("postgresql")
-                .version(postgresVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library MongoDB v" + mongoDBVersion);
-        library = Library.builder()
-                .groupId("org.mongodb")
-                .artifactId("mongo-java-driver")
-                .version(mongoDBVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library Slf4j v" + slf4jVersion);
-        library = Library.builder()
-                .groupId("org.slf4j")
-                .artifactId("slf4j-api")
-                .version(slf4jVersion)
-                .build();
-        loader.loadLibrary(library);
-
-        Bukkit.getServer().getLogger().info("Loading library Log4j v" + slf4jVersion);
-        library = Library.builder()
-                .groupId("org.apache.logging.log4j")
-                .artifactId("log4j-core")
-                .version(log4jVersion)
-                .build();
-        loader.loadLibrary(library);
+    /**
+     * Checks whether a library's jar was already downloaded and was not changed since. Jars without a recorded
+     * checksum are only trusted if they match the checksum Maven Central publishes for them. If that can't be checked
+     * (like when the server is offline) the jar is kept and loaded, and checked again on the next start
+     *
+     * @param dependency Library to check
+     * @return Whether the jar can be loaded without downloading it
+     */
+    private boolean isCached(Dependency dependency) {
+        File file = new File(this.libraryFolder, dependency.library.getPath());
+        if (!file.exists()) {
+            return false;
+        }
+
+        String record = this.checksums.getProperty(dependency.library.getPath());
+
+        try {
+            if (record != null) {
+                if (record.equals(Base64.getEncoder().encodeToString(digest(file.toPath(), "SHA-256")))) {
+                    return true;
+                }
+            } else if (this.isPublished(dependency, file.toPath())) {
+                this.recordChecksum(dependency, file.toPath());
+                return true;
+            }
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            Bukkit.getServer().getLogger().warning("[2FA] Could not verify the downloaded library " + dependency.name + ", it will be verified again on the next start");
+            return true;
+        }
+
+        Bukkit.getServer().getLogger().warning("[2FA] The downloaded library " + dependency.name + " does not match its checksum, downloading it again");
+        if (!file.delete()) {
+            Bukkit.getServer().getLogger().warning("[2FA] Could not delete " + file.getAbsolutePath());
+        }
+        return false;
+    }
+
+    private void download(List<Dependency> dependencies) {
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(dependencies.size(), MAXIMUM_DOWNLOADS), runnable -> {
+            Thread thread = new Thread(runnable, "2FA Library Download #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Map<Dependency, Future<?>> futures = new LinkedHashMap<>();
+        for (Dependency dependency : dependencies) {
+            futures.put(dependency, executor.submit(() -> {
+                Bukkit.getServer().getLogger().info("Downloading library " + dependency.name);
+                Path file = this.loader.downloadLibrary(dependency.library);
+
+                if (!this.isPublished(dependency, file)) {
+                    Files.deleteIfExists(file);
+                    throw new IOException("The downloaded jar does not match the checksum published on Maven Central");
+                }
+
+                this.recordChecksum(dependency, file);
+                return null;
+            }));
+        }
+
+        try {
+            for (Map.Entry<Dependency, Future<?>> future : futures.entrySet()) {
+                try {
+                    future.getValue().get();
+                } catch (ExecutionException exception) {
+                    exception.getCause().printStackTrace();
+                    Bukkit.getServer().getLogger().severe("[2FA] Could not download the library " + future.getKey().name);
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compares a jar with the checksum Maven Central publishes next to it, preferring SHA-256 over SHA-1
+     *
+     * @param dependency Library the jar is of
+     * @param file Jar to check
+     * @return Whether the jar matches the published checksum
+     * @throws IOException Throws an exception if no checksum could be fetched
+     */
+    private boolean isPublished(Dependency dependency, Path file) throws IOException {
+        IOException failure = null;
+
+        for (String algorithm : new String[]{"SHA-256", "SHA-1"}) {
+            String extension = "." + algorithm.replace("-", "").toLowerCase();
+
+            try {
+                String published = fetch(MAVEN_CENTRAL + dependency.library.getPath() + extension);
+                return published.equalsIgnoreCase(toHex(digest(file, algorithm)));
+            } catch (IOException exception) {
+                failure = exception;
+            }
+        }
+
+        throw failure;
+    }
+
+    /**
+     * @param url URL of a checksum file
+     * @return The checksum in the file, without the file name some repositories write after it
+     * @throws IOException Throws an exception if the file could not be fetched
+     */
+    private static String fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII))) {
+            String line = reader.readLine();
+            if (line == null || line.trim().isEmpty()) {
+                throw new IOException("Empty checksum at " + url);
+            }
+
+            return line.trim().split("\\s+")[0];
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void recordChecksum(Dependency dependency, Path file) throws IOException {
+        this.checksums.setProperty(dependency.library.getPath(), Base64.getEncoder().encodeToString(digest(file, "SHA-256")));
+        this.checksumsChanged = true;
+    }
+
+    private static byte[] digest(Path file, String algorithm) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                byte[] buffer = new byte[8192];
+                int read;
+
+                while ((read = inputStream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+
+            return digest.digest();
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private void loadChecksums() {
+        File file = new File(this.libraryFolder, CHECKSUMS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            this.checksums.load(inputStream);
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private void saveChecksums() {
+        if (!this.libraryFolder.exists() && !this.libraryFolder.mkdirs()) {
+            return;
+        }
+
+        try (OutputStream outputStream = new FileOutputStream(new File(this.libraryFolder, CHECKSUMS_FILE))) {
+            this.checksums.store(outputStream, "SHA-256 checksums of the downloaded libraries");
+            this.checksumsChanged = false;
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
     }
 }
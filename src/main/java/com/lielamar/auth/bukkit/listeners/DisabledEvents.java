@@ -3,7 +3,7 @@ package com.lielamar.auth.bukkit.listeners;
 import com.lielamar.auth.bukkit.TwoFactorAuthentication;
 import com.lielamar.auth.bukkit.handlers.MessageHandler;
 import com.lielamar.auth.shared.handlers.AuthHandler;
-import com.lielamar.auth.shared.utils.Constants;
+import com.lielamar.auth.shared.handlers.CommandMatcher;
 import com.lielamar.lielsutils.numbers.NumbersUtils;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
@@ -174,34 +174,27 @@ public class DisabledEvents implements Listener {
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onCommand(PlayerCommandPreprocessEvent event) {
         if (this.plugin.getAuthHandler().needsToAuthenticate(event.getPlayer().getUniqueId())) {
-            String[] args = event.getMessage().substring(1).split("\\s+");
+            String message = event.getMessage();
 
             if (this.plugin.getConfigHandler().getDisabledEvents().getOrDefault(event.getClass(), true)) {
-                if (args.length > 0) {
-                    String command = args[0];
-
-                    if (Constants.mainCommand.getA().equalsIgnoreCase(command)) {
-                        if (args.length > 1) {
-                            if (args[1].equalsIgnoreCase("help") || NumbersUtils.isInteger(args[1])) {
-                                return;
-                            }
-                        }
-                    }
+                if (this.plugin.getConfigHandler().getMainCommandMatcher().matches(message)) {
+                    String argument = CommandMatcher.getFirstArgument(message);
 
-                    if (this.plugin.getConfigHandler().getWhitelistedCommands().contains(command)) {
+                    if (argument != null && (argument.equalsIgnoreCase("help") || NumbersUtils.isInteger(argument))) {
                         return;
                     }
+                }
 
-                    event.setCancelled(true);
-                    this.plugin.getMessageHandler().sendMessage(event.getPlayer(), MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
+                if (this.plugin.getConfigHandler().getWhitelistedCommandMatcher().matches(message)) {
+                    return;
                 }
+
+                event.setCancelled(true);
+                this.plugin.getMessageHandler().sendMessage(event.getPlayer(), MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
             } else {
-                if (args.length > 0) {
-                    String command = args[0];
-                    if (this.plugin.getConfigHandler().getBlacklistedCommands().contains(command)) {
-                        event.setCancelled(true);
-                        this.plugin.getMessageHandler().sendMessage(event.getPlayer(), MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
-                    }
+                if (this.plugin.getConfigHandler().getBlacklistedCommandMatcher().matches(message)) {
+                    event.setCancelled(true);
+                    this.plugin.getMessageHandler().sendMessage(event.getPlayer(), MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
                 }
             }
         }
@@ -3,10 +3,7 @@ package com.lielamar.auth.bukkit.listeners;
 import com.lielamar.auth.bukkit.TwoFactorAuthentication;
 import com.lielamar.auth.bukkit.events.PlayerStateChangeEvent;
 import com.lielamar.auth.shared.handlers.AuthHandler;
-import com.lielamar.auth.shared.utils.hash.Hash;
-import com.lielamar.auth.shared.utils.hash.NoHash;
-import com.lielamar.auth.shared.utils.hash.SHA256;
-import com.lielamar.auth.shared.utils.hash.SHA512;
+import com.lielamar.auth.shared.utils.AuthTracker;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -15,38 +12,37 @@ import org.jetbrains.annotations.NotNull;
 public class OnAuthStateChange implements Listener {
 
     private final TwoFactorAuthentication plugin;
-    private final Hash hash;
 
     public OnAuthStateChange(@NotNull TwoFactorAuthentication plugin) {
         this.plugin = plugin;
-
-        String hashType = this.plugin.getConfigHandler().getIpHashType().toUpperCase();
-        switch (hashType.toUpperCase()){
-            case "SHA256":
-                this.hash = new SHA256();
-                break;
-            case "SHA512":
-                this.hash = new SHA512();
-                break;
-            default:
-                this.hash = new NoHash();
-                break;
-        }
     }
 
     @EventHandler
     public void onStateChange(PlayerStateChangeEvent event) {
+        AuthHandler.AuthState oldAuthState = event.getOldAuthState();
+
+        // Players that had a key and no longer have one disabled 2FA, unlike players that join without a key
+        if (event.getNewAuthState() == AuthHandler.AuthState.DISABLED
+                && (oldAuthState == AuthHandler.AuthState.AUTHENTICATED || oldAuthState == AuthHandler.AuthState.PENDING_LOGIN)) {
+            this.plugin.getAuthTracker().record(AuthTracker.Statistic.DISABLES);
+        }
+
         if (event.getNewAuthState().equals(AuthHandler.AuthState.AUTHENTICATED)) {
+            if (oldAuthState == AuthHandler.AuthState.PENDING_SETUP || oldAuthState == AuthHandler.AuthState.DEMAND_SETUP) {
+                this.plugin.getAuthTracker().record(AuthTracker.Statistic.SETUPS);
+            }
             
             if (plugin.getConfig().getBoolean("change-walking-speed", false)) {
                 event.getPlayer().setFlySpeed((float) 0.1);
                 event.getPlayer().setWalkSpeed((float) 0.2);
             }
 
-            this.plugin.getStorageHandler().setIP(event.getPlayer().getUniqueId(),
-                    this.hash.hash(event.getPlayer().getAddress().getAddress().getHostAddress()));
+            if (event.getPlayer().getAddress() != null && event.getPlayer().getAddress().getAddress() != null) {
+                this.plugin.getAuthHandler().trustAddress(event.getPlayer().getUniqueId(),
+                        event.getPlayer().getAddress().getAddress().getHostAddress());
+            }
 
-            this.plugin.getAuthTracker().setAuthentications(this.plugin.getAuthTracker().getAuthentications() + 1);
+            this.plugin.getAuthTracker().record(AuthTracker.Statistic.AUTHENTICATIONS);
         }
     }
 
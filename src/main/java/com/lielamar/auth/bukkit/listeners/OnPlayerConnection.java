@@ -7,6 +7,7 @@ import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
 import com.lielamar.auth.shared.handlers.AuthHandler;
 import com.lielamar.auth.shared.handlers.MessageHandler;
 import com.lielamar.auth.shared.utils.Constants;
+import com.lielamar.auth.shared.utils.JoinProfiler;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
@@ -34,8 +35,20 @@ public class OnPlayerConnection implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
 
-        this.plugin.getAuthHandler().removeQRItem(player);
-        this.plugin.getAuthHandler().changeState(player.getUniqueId(), AuthHandler.AuthState.PENDING_LOGIN);
+        JoinProfiler joinProfiler = this.plugin.getJoinProfiler();
+        joinProfiler.join(player.getUniqueId());
+        joinProfiler.profile(player.getUniqueId(), () -> {
+            this.plugin.getAuthHandler().removeQRItem(player);
+            this.plugin.getAuthHandler().changeState(player.getUniqueId(), AuthHandler.AuthState.PENDING_LOGIN);
+        });
+
+        // The proxy pushes the player's state once they connected, so we wait for it instead of asking
+        AuthCommunicationHandler authCommunicationHandler = this.plugin.getAuthHandler().getAuthCommunicationHandler();
+        if (authCommunicationHandler instanceof ProxyAuthCommunication) {
+            ((ProxyAuthCommunication) authCommunicationHandler).awaitPushedState(player.getUniqueId(),
+                    () -> this.plugin.getAuthHandler().playerJoin(player.getUniqueId()));
+            return;
+        }
 
         // Adding a 1 tick delay so requests to proxy are sent correctly
         Bukkit.getScheduler().runTaskLater(this.plugin, () -> {
@@ -57,6 +70,11 @@ public class OnPlayerConnection implements Listener {
         }
 
         this.plugin.getAuthHandler().playerQuit(player.getUniqueId());
+
+        AuthCommunicationHandler authCommunicationHandler = this.plugin.getAuthHandler().getAuthCommunicationHandler();
+        if (authCommunicationHandler instanceof ProxyAuthCommunication) {
+            ((ProxyAuthCommunication) authCommunicationHandler).playerQuit(player.getUniqueId());
+        }
     }
 
     private void checkProxy(Player player) {
@@ -78,6 +96,8 @@ public class OnPlayerConnection implements Listener {
 
         proxyAuthComm.checkCommunication(player.getUniqueId(), new AuthCommunicationHandler.AuthCommunicationCallback() {
 
+            private final long executionStamp = System.currentTimeMillis();
+
             @Override
             public void execute(AuthHandler.AuthState authState) {
                 Bukkit.getOnlinePlayers().stream().filter(pl -> pl.hasPermission(Constants.alertsPermission)).forEach(pl
@@ -85,15 +105,22 @@ public class OnPlayerConnection implements Listener {
 
                 plugin.getServer().getMessenger().unregisterIncomingPluginChannel(plugin, Constants.PROXY_CHANNEL_NAME,
                         (PluginMessageListener) proxyAuthComm);
+                this.close();
             }
 
             @Override
             public void onTimeout() {
+                this.close();
+            }
+
+            private void close() {
+                plugin.getServer().getMessenger().unregisterOutgoingPluginChannel(plugin, Constants.PROXY_CHANNEL_NAME);
+                proxyAuthComm.unload();
             }
 
             @Override
             public long getExecutionStamp() {
-                return System.currentTimeMillis();
+                return this.executionStamp;
             }
 
             @Override
@@ -102,8 +129,6 @@ public class OnPlayerConnection implements Listener {
             }
         });
 
-        this.plugin.getServer().getMessenger().unregisterOutgoingPluginChannel(this.plugin, Constants.PROXY_CHANNEL_NAME);
-
         this.checkedProxy = true;
     }
 }
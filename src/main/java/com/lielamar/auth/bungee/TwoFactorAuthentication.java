@@ -39,7 +39,9 @@ public class TwoFactorAuthentication extends Plugin implements TwoFactorAuthenti
         this.configHandler = new ConfigHandler(this);
         this.authHandler = new AuthHandler();
 
-        this.authTracker = new AuthTracker();
+        if (this.authTracker == null) {
+            this.authTracker = new AuthTracker();
+        }
     }
 
     public void registerListeners() {
@@ -56,11 +58,7 @@ public class TwoFactorAuthentication extends Plugin implements TwoFactorAuthenti
         int pluginId = 9355;
         BungeeMetrics metrics = new BungeeMetrics(this, pluginId);
 
-        metrics.addCustomChart(new BungeeMetrics.SingleLineChart("authentications", () -> {
-            int value = this.authTracker.getAuthentications();
-            this.authTracker.setAuthentications(0);
-            return value;
-        }));
+        metrics.addCustomChart(new BungeeMetrics.SingleLineChart("authentications", () -> this.authTracker.takeAuthentications()));
     }
 
     @Override
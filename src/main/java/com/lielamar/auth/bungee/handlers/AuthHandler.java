@@ -1,14 +1,19 @@
 package com.lielamar.auth.bungee.handlers;
 
 import com.lielamar.auth.bungee.events.PlayerStateChangeEvent;
+import com.lielamar.auth.shared.utils.AuthStateTable;
 import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.UUID;
 
 public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
 
+    // Proxies can hold a lot of players, and their events aren't always fired on the same thread
+    private final AuthStateTable states = new AuthStateTable();
+
     @Override
     public void changeState(@NotNull UUID uuid, @NotNull AuthState authState) {
         if (authState == super.getAuthState(uuid)) {
@@ -17,7 +22,7 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
 
         ProxiedPlayer player = ProxyServer.getInstance().getPlayer(uuid);
         if (player != null) {
-            PlayerStateChangeEvent event = new PlayerStateChangeEvent(player, authStates.get(uuid), authState);
+            PlayerStateChangeEvent event = new PlayerStateChangeEvent(player, getAuthState(uuid), authState);
 
             ProxyServer.getInstance().getPluginManager().callEvent(event);
             if (event.isCancelled()) {
@@ -27,6 +32,21 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
             authState = event.getNewAuthState();
         }
 
-        super.authStates.put(uuid, authState);
+        this.writeState(uuid, authState);
+    }
+
+    @Override
+    protected @Nullable AuthState readState(@NotNull UUID uuid) {
+        return this.states.get(uuid);
+    }
+
+    @Override
+    protected void writeState(@NotNull UUID uuid, @NotNull AuthState authState) {
+        this.states.put(uuid, authState);
+    }
+
+    @Override
+    protected void clearState(@NotNull UUID uuid) {
+        this.states.remove(uuid);
     }
 }
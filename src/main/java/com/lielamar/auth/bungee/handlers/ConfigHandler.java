@@ -1,6 +1,8 @@
 package com.lielamar.auth.bungee.handlers;
 
 import com.lielamar.auth.bungee.TwoFactorAuthentication;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
@@ -10,6 +12,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.util.*;
 
 public final class ConfigHandler extends com.lielamar.auth.shared.handlers.ConfigHandler {
 
@@ -74,12 +77,29 @@ public final class ConfigHandler extends com.lielamar.auth.shared.handlers.Confi
                 super.blacklistedCommands = config.getStringList("blacklisted-commands");
             }
 
+            super.clearCommandMatchers();
+
             ConfigurationProvider.getProvider(YamlConfiguration.class).save(config, file);
         } catch (IOException exception) {
             exception.printStackTrace();
         }
     }
 
+    @Override
+    protected @NotNull Collection<String> getCommandAliases(@NotNull String command) {
+        for (Map.Entry<String, Command> entry : ProxyServer.getInstance().getPluginManager().getCommands()) {
+            Command registered = entry.getValue();
+
+            if (registered.getName().equalsIgnoreCase(command) || Arrays.stream(registered.getAliases()).anyMatch(command::equalsIgnoreCase)) {
+                List<String> aliases = new ArrayList<>(Arrays.asList(registered.getAliases()));
+                aliases.add(registered.getName());
+                return aliases;
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
     public boolean isDisableCommands() {
         return this.disableCommands;
     }
@@ -2,7 +2,6 @@ package com.lielamar.auth.bungee.listeners;
 
 import com.lielamar.auth.bungee.TwoFactorAuthentication;
 import com.lielamar.auth.shared.handlers.MessageHandler;
-import com.lielamar.auth.shared.utils.Constants;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.ChatEvent;
 import net.md_5.bungee.api.event.ServerConnectEvent;
@@ -27,23 +26,18 @@ public class DisabledEvents implements Listener {
         ProxiedPlayer player = (ProxiedPlayer) event.getSender();
 
         if (this.plugin.getAuthHandler().needsToAuthenticate(player.getUniqueId())) {
-            String[] args = event.getMessage().substring(1).split("\\s+");
+            String message = event.getMessage();
 
             if (this.plugin.getConfigHandler().isDisableCommands()) {
-                if (args.length > 0) {
-                    String command = args[0];
-                    if (!this.plugin.getConfigHandler().getWhitelistedCommands().contains(command) && !Constants.mainCommand.getA().equalsIgnoreCase(command)) {
-                        event.setCancelled(true);
-                        this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
-                    }
+                if (!this.plugin.getConfigHandler().getWhitelistedCommandMatcher().matches(message)
+                        && !this.plugin.getConfigHandler().getMainCommandMatcher().matches(message)) {
+                    event.setCancelled(true);
+                    this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
                 }
             } else {
-                if (args.length > 0) {
-                    String command = args[0];
-                    if (this.plugin.getConfigHandler().getBlacklistedCommands().contains(command)) {
-                        event.setCancelled(true);
-                        this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
-                    }
+                if (this.plugin.getConfigHandler().getBlacklistedCommandMatcher().matches(message)) {
+                    event.setCancelled(true);
+                    this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
                 }
             }
         }
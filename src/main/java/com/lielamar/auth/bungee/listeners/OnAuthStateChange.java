@@ -3,6 +3,7 @@ package com.lielamar.auth.bungee.listeners;
 import com.lielamar.auth.bungee.TwoFactorAuthentication;
 import com.lielamar.auth.bungee.events.PlayerStateChangeEvent;
 import com.lielamar.auth.shared.handlers.AuthHandler;
+import com.lielamar.auth.shared.utils.AuthTracker;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import org.jetbrains.annotations.NotNull;
@@ -18,7 +19,7 @@ public class OnAuthStateChange implements Listener {
     @EventHandler
     public void onStateChange(PlayerStateChangeEvent event) {
         if (event.getNewAuthState().equals(AuthHandler.AuthState.AUTHENTICATED)) {
-            this.plugin.getAuthTracker().setAuthentications(this.plugin.getAuthTracker().getAuthentications() + 1);
+            this.plugin.getAuthTracker().record(AuthTracker.Statistic.AUTHENTICATIONS);
         }
     }
 }
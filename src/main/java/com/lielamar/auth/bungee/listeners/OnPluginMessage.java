@@ -9,7 +9,9 @@ import com.lielamar.auth.shared.handlers.AuthHandler;
 import com.lielamar.auth.shared.utils.Constants;
 import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.PluginMessageEvent;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 
@@ -32,6 +34,16 @@ public class OnPluginMessage implements Listener {
             return;
         }
 
+        // Messages on our channel are meant for us only, so they should never be forwarded to the player
+        event.setCancelled(true);
+
+        // Backends can send messages through any player connected to them, so replies go back to the sending server
+        if (!(event.getSender() instanceof Server)) {
+            return;
+        }
+
+        Server server = (Server) event.getSender();
+
         ByteArrayDataInput msg = ByteStreams.newDataInput(event.getData());
         String subChannel = msg.readUTF();
 
@@ -50,26 +62,44 @@ public class OnPluginMessage implements Listener {
             try {
                 AuthCommunicationHandler.MessageType messageType = AuthCommunicationHandler.MessageType.valueOf(msgBodyData.readUTF());
 
-                if (messageType == AuthCommunicationHandler.MessageType.SET_STATE) {
+                // States of players that already left the proxy are not kept, they would never be cleaned up
+                if (messageType == AuthCommunicationHandler.MessageType.SET_STATE && player != null) {
                     AuthHandler.AuthState state = AuthHandler.AuthState.valueOf(msgBodyData.readUTF());
 
                     this.plugin.getAuthHandler().changeState(player.getUniqueId(), state);
                 }
 
-                this.sendResponse(messageUUID, player, messageType);
+                this.sendResponse(messageUUID, playerUUID, server, messageType);
             } catch (IOException exception) {
                 exception.printStackTrace();
             }
         }
     }
 
-    public void sendResponse(UUID messageUUID, ProxiedPlayer player, AuthCommunicationHandler.MessageType messageType) {
-        AuthHandler.AuthState authState = this.plugin.getAuthHandler().getAuthState(player.getUniqueId());
+    /**
+     * Pushes the player's state to the server they just connected to, so it doesn't have to ask for it
+     */
+    @EventHandler
+    public void onServerConnected(ServerConnectedEvent event) {
+        UUID playerUUID = event.getPlayer().getUniqueId();
+        AuthHandler.AuthState authState = this.plugin.getAuthHandler().getAuthState(playerUUID);
+
+        event.getServer().sendData(Constants.PROXY_CHANNEL_NAME,
+                this.createMessage(UUID.randomUUID(), playerUUID, AuthCommunicationHandler.MessageType.PUSH_STATE, authState));
+    }
+
+    public void sendResponse(UUID messageUUID, UUID playerUUID, Server server, AuthCommunicationHandler.MessageType messageType) {
+        AuthHandler.AuthState authState = this.plugin.getAuthHandler().getAuthState(playerUUID);
+
+        // ServerInfo#sendData queues the message if the server has no players to carry it right now
+        server.getInfo().sendData(Constants.PROXY_CHANNEL_NAME, this.createMessage(messageUUID, playerUUID, messageType, authState));
+    }
 
+    private byte[] createMessage(UUID messageUUID, UUID playerUUID, AuthCommunicationHandler.MessageType messageType, AuthHandler.AuthState authState) {
         ByteArrayDataOutput response = ByteStreams.newDataOutput();
         response.writeUTF(Constants.PROXY_SUB_CHANNEL_NAME);
         response.writeUTF(messageUUID.toString());
-        response.writeUTF(player.getUniqueId().toString());
+        response.writeUTF(playerUUID.toString());
 
         ByteArrayOutputStream msgBody = new ByteArrayOutputStream();
         DataOutputStream msgBodyData = new DataOutputStream(msgBody);
@@ -83,6 +113,6 @@ public class OnPluginMessage implements Listener {
         response.writeShort(msgBody.toByteArray().length);
         response.write(msgBody.toByteArray());
 
-        player.getServer().getInfo().sendData(Constants.PROXY_CHANNEL_NAME, response.toByteArray());
+        return response.toByteArray();
     }
 }
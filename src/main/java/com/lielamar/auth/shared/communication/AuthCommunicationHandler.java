@@ -6,17 +6,39 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
 
 public abstract class AuthCommunicationHandler {
 
+    private static final long DEFAULT_TIMEOUT = 1500;
+
     protected final Map<UUID, AuthCommunicationCallback> callbacks;
+    protected final RoundTripTracker roundTrips;
+
+    private final Set<UUID> hedged;
+    private final LongAdder hedges;
+    private final LongAdder timeouts;
 
     protected boolean connected;
 
     public AuthCommunicationHandler() {
+        this(DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param maximumTimeout   Longest time (in milliseconds) to wait for an answer before timing out a callback
+     */
+    public AuthCommunicationHandler(long maximumTimeout) {
         this.callbacks = new HashMap<>();
+        this.roundTrips = new RoundTripTracker(maximumTimeout);
+
+        this.hedged = new HashSet<>();
+        this.hedges = new LongAdder();
+        this.timeouts = new LongAdder();
 
         this.connected = false;
     }
@@ -39,21 +61,101 @@ public abstract class AuthCommunicationHandler {
 
     public abstract void checkCommunication(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback);
 
+    /**
+     * Releases any connections, threads or tasks held by this handler.
+     * Called when the plugin is disabled or the handler is replaced on reload.
+     */
+    public void unload() {}
+
     public void onResponse(@NotNull UUID playerUUID, @NotNull UUID messageUUID, @NotNull MessageType messageType,
             @NotNull AuthHandler.AuthState authState) {
-        AuthCommunicationCallback callback = this.callbacks.get(messageUUID);
+        this.onResponse(playerUUID, messageUUID, messageType, authState, true);
+    }
+
+    /**
+     * @param roundTrip   Whether the answer was sent because of the message, so the time it took is a round trip.
+     *                    Answers that weren't (like states the other side pushed on its own) aren't recorded
+     */
+    protected void onResponse(@NotNull UUID playerUUID, @NotNull UUID messageUUID, @NotNull MessageType messageType,
+            @NotNull AuthHandler.AuthState authState, boolean roundTrip) {
+        AuthCommunicationCallback callback = this.callbacks.remove(messageUUID);
+        this.hedged.remove(messageUUID);
 
         if (callback != null) {
+            if (roundTrip) {
+                this.roundTrips.record(System.currentTimeMillis() - callback.getExecutionStamp());
+            }
             callback.execute(authState);
         }
 
-        this.callbacks.remove(messageUUID);
-
         if (messageType == MessageType.CHECK_COMMUNICATION) {
             this.connected = true;
         }
     }
 
+    /**
+     * Times out callbacks that waited longer than the adaptive timeout, and hedges the ones that
+     * waited longer than almost every answer we got so far.
+     * Handlers that answer asynchronously should run this every tick.
+     */
+    protected void expireCallbacks() {
+        if (this.callbacks.isEmpty()) {
+            return;
+        }
+
+        long currentTimestamp = System.currentTimeMillis();
+        long timeout = this.roundTrips.getTimeout();
+        long hedgeDelay = this.roundTrips.getHedgeDelay();
+
+        Map<UUID, AuthCommunicationCallback> expired = new HashMap<>();
+        Map<UUID, AuthCommunicationCallback> hedging = new HashMap<>();
+
+        this.callbacks.forEach((messageUUID, callback) -> {
+            long waited = currentTimestamp - callback.getExecutionStamp();
+
+            if (waited > timeout) {
+                expired.put(messageUUID, callback);
+            } else if (hedgeDelay != -1 && waited > hedgeDelay && !this.hedged.contains(messageUUID)) {
+                hedging.put(messageUUID, callback);
+            }
+        });
+
+        // Callbacks are run after iterating, since they may register new callbacks
+        hedging.forEach((messageUUID, callback) -> {
+            this.hedged.add(messageUUID);
+            this.hedges.increment();
+            callback.onHedge();
+        });
+
+        expired.forEach((messageUUID, callback) -> {
+            this.callbacks.remove(messageUUID);
+            this.hedged.remove(messageUUID);
+            this.timeouts.increment();
+            this.roundTrips.recordTimeout();
+            callback.onTimeout();
+        });
+    }
+
+    public @NotNull RoundTripTracker getRoundTrips() {
+        return this.roundTrips;
+    }
+
+    public long getHedges() {
+        return this.hedges.sum();
+    }
+
+    public long getTimeouts() {
+        return this.timeouts.sum();
+    }
+
+    /**
+     * @return   Amount of callbacks waiting for an answer. May be read from any thread, but is only exact on the
+     *           thread the handler answers on
+     */
+    public int getPendingCallbacks() {
+        return this.callbacks.size();
+    }
+
     protected @NotNull
     UUID registerCallback(@Nullable AuthCommunicationCallback callback) {
         UUID randomUUID = UUID.randomUUID();
@@ -71,6 +173,12 @@ public abstract class AuthCommunicationHandler {
 
         void onTimeout();
 
+        /**
+         * Called once when the handler is taking longer than it usually does, before the callback times out.
+         * Callbacks can use it to ask a fallback handler in parallel.
+         */
+        default void onHedge() {}
+
         long getExecutionStamp();
 
         UUID getPlayerUUID();
@@ -79,6 +187,7 @@ public abstract class AuthCommunicationHandler {
     public enum MessageType {
         LOAD_STATE,
         SET_STATE,
-        CHECK_COMMUNICATION
+        CHECK_COMMUNICATION,
+        PUSH_STATE
     }
 }
@@ -0,0 +1,135 @@
+package com.lielamar.auth.shared.communication;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of how long a communication handler takes to answer.
+ *
+ * The smoothed round trip time and its deviation are calculated the same way TCP calculates its retransmission
+ * timeout (RFC 6298), and the 99th percentile is taken from the most recent samples. Answers that time out never
+ * become samples, so every timeout doubles the timeout instead (RFC 6298, section 5.5) until an answer arrives in time.
+ */
+public class RoundTripTracker {
+
+    private static final int WINDOW_SIZE = 256;
+    private static final int MINIMUM_SAMPLES = 20;
+    private static final long MINIMUM_TIMEOUT = 250;
+
+    private final long maximumTimeout;
+
+    private final long[] window;
+    private int windowIndex;
+    private long samples;
+
+    private double smoothed;
+    private double deviation;
+
+    private long percentile;
+    private boolean percentileDirty;
+
+    private int backoff;
+
+    public RoundTripTracker(long maximumTimeout) {
+        this.maximumTimeout = maximumTimeout;
+
+        this.window = new long[WINDOW_SIZE];
+        this.windowIndex = 0;
+        this.samples = 0;
+
+        this.percentile = -1;
+        this.percentileDirty = false;
+
+        this.backoff = 1;
+    }
+
+    public synchronized void record(long roundTrip) {
+        roundTrip = Math.max(0, roundTrip);
+
+        if (this.samples == 0) {
+            this.smoothed = roundTrip;
+            this.deviation = roundTrip / 2.0;
+        } else {
+            this.deviation = 0.75 * this.deviation + 0.25 * Math.abs(this.smoothed - roundTrip);
+            this.smoothed = 0.875 * this.smoothed + 0.125 * roundTrip;
+        }
+
+        this.window[this.windowIndex] = roundTrip;
+        this.windowIndex = (this.windowIndex + 1) % WINDOW_SIZE;
+        this.samples++;
+
+        this.percentileDirty = true;
+        this.backoff = 1;
+    }
+
+    /**
+     * Doubles the timeout after a callback timed out, up to the configured timeout
+     */
+    public synchronized void recordTimeout() {
+        if (this.backoff < this.maximumTimeout / MINIMUM_TIMEOUT) {
+            this.backoff *= 2;
+        }
+    }
+
+    /**
+     * @return   How long (in milliseconds) to wait for an answer before timing out.
+     *           Until there are enough samples this is the configured timeout.
+     */
+    public synchronized long getTimeout() {
+        if (this.samples < MINIMUM_SAMPLES) {
+            return this.maximumTimeout;
+        }
+
+        long timeout = (long) Math.ceil(this.smoothed + 4 * this.deviation);
+        return Math.min(this.maximumTimeout, Math.max(MINIMUM_TIMEOUT, timeout) * this.backoff);
+    }
+
+    /**
+     * @return   How long (in milliseconds) to wait before asking the fallback handler as well,
+     *           or -1 if there are not enough samples or the timeout would fire first anyway
+     */
+    public synchronized long getHedgeDelay() {
+        if (this.samples < MINIMUM_SAMPLES) {
+            return -1;
+        }
+
+        long p99 = this.getPercentile99();
+        return p99 < this.getTimeout() ? Math.max(1, p99) : -1;
+    }
+
+    public synchronized long getPercentile99() {
+        if (this.samples == 0) {
+            return -1;
+        }
+
+        if (this.percentileDirty) {
+            int size = (int) Math.min(this.samples, WINDOW_SIZE);
+            long[] sorted = Arrays.copyOf(this.window, size);
+            Arrays.sort(sorted);
+
+            this.percentile = sorted[(int) Math.ceil(size * 0.99) - 1];
+            this.percentileDirty = false;
+        }
+
+        return this.percentile;
+    }
+
+    public synchronized double getSmoothed() {
+        return this.smoothed;
+    }
+
+    public synchronized double getDeviation() {
+        return this.deviation;
+    }
+
+    public synchronized long getSamples() {
+        return this.samples;
+    }
+
+    public synchronized int getBackoff() {
+        return this.backoff;
+    }
+
+    public long getMaximumTimeout() {
+        return this.maximumTimeout;
+    }
+}
@@ -1,24 +1,27 @@
 package com.lielamar.auth.shared.handlers;
 
 import com.lielamar.auth.shared.communication.AuthCommunicationHandler;
+import com.lielamar.auth.shared.metrics.AuthMetrics;
+import com.lielamar.auth.shared.storage.PlayerRecord;
 import com.lielamar.auth.shared.storage.StorageHandler;
+import com.lielamar.auth.shared.utils.TotpKey;
 import com.warrenstrange.googleauth.GoogleAuthenticator;
 import com.warrenstrange.googleauth.GoogleAuthenticatorKey;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class AuthHandler {
 
-    private final HashMap<UUID, String> pendingKeys;
-    private final Map<UUID, Integer> failedAttempts;
-
     protected StorageHandler storageHandler;
     protected AuthCommunicationHandler authCommunicationHandler, fallbackCommunicationHandler;
-    protected HashMap<UUID, AuthState> authStates;
+    protected final Map<UUID, PlayerSession> sessions;
+    protected IPFingerprintHandler fingerprintHandler;
+    protected AuthMetrics metrics;
 
     public AuthHandler() {
         this(null, null);
@@ -30,14 +33,11 @@ public abstract class AuthHandler {
 
     public AuthHandler(@Nullable StorageHandler storageHandler, @Nullable AuthCommunicationHandler authCommunicationHandler,
             @Nullable AuthCommunicationHandler fallbackCommunicationHandler) {
-        this.pendingKeys = new HashMap<>();
-        this.failedAttempts = new HashMap<>();
-
         this.storageHandler = storageHandler;
         this.authCommunicationHandler = authCommunicationHandler;
         this.fallbackCommunicationHandler = fallbackCommunicationHandler;
 
-        this.authStates = new HashMap<>();
+        this.sessions = new ConcurrentHashMap<>();
     }
 
     public @Nullable StorageHandler getStorageHandler() {
@@ -49,7 +49,72 @@ public abstract class AuthHandler {
     }
 
     /**
-     * Returns a player's key
+     * Returns a player's session, creating it if they don't have one yet. Sessions are dropped when the player
+     * leaves, so this should only be used for online players. Use {@link #findSession(UUID)} for anyone else
+     *
+     * @param uuid UUID of the player to get the session of
+     * @return Player's session
+     */
+    public @NotNull PlayerSession getSession(@NotNull UUID uuid) {
+        return this.sessions.computeIfAbsent(uuid, id -> new PlayerSession());
+    }
+
+    /**
+     * @param uuid UUID of the player to get the session of
+     * @return Player's session, or null if they don't have one
+     */
+    public @Nullable PlayerSession findSession(@NotNull UUID uuid) {
+        return this.sessions.get(uuid);
+    }
+
+    /**
+     * Fills a player's session with their stored data that was read in advance, so it is not read again while the
+     * player is loaded. Data the session already has is kept
+     *
+     * @param record Stored data of the player
+     */
+    public void loadSession(@NotNull PlayerRecord record) {
+        PlayerSession session = this.getSession(record.getUuid());
+
+        if (!session.isKeyLoaded()) {
+            session.setKey(record.getKey());
+        }
+
+        if (this.fingerprintHandler != null) {
+            this.fingerprintHandler.load(session, record.getIP());
+        }
+    }
+
+    /**
+     * Checks whether a player was authenticated from an address before
+     *
+     * @param uuid UUID of the player
+     * @param address Address the player connected from
+     * @return Whether the address is one of the player's trusted addresses
+     */
+    public boolean isTrustedAddress(@NotNull UUID uuid, @NotNull String address) {
+        if (this.fingerprintHandler == null || this.storageHandler == null) {
+            return false;
+        }
+
+        return this.fingerprintHandler.isTrusted(this.storageHandler, uuid, this.getSession(uuid), address);
+    }
+
+    /**
+     * Adds an address to a player's trusted addresses
+     *
+     * @param uuid UUID of the player
+     * @param address Address to trust
+     */
+    public void trustAddress(@NotNull UUID uuid, @NotNull String address) {
+        if (this.fingerprintHandler != null && this.storageHandler != null) {
+            this.fingerprintHandler.trust(this.storageHandler, uuid, this.getSession(uuid), address);
+        }
+    }
+
+    /**
+     * Returns a player's key. The key is loaded from storage once and kept in the player's session until they
+     * authenticated. Players without a session are looked up without keeping anything.
      *
      * @param uuid UUID of the player to get the key of
      * @return Player's key
@@ -63,7 +128,16 @@ public abstract class AuthHandler {
             return null;
         }
 
-        return this.getStorageHandler().getKey(uuid);
+        PlayerSession session = this.findSession(uuid);
+        if (session == null) {
+            return this.getStorageHandler().getKey(uuid);
+        }
+
+        if (!session.isKeyLoaded()) {
+            session.setKey(this.getStorageHandler().getKey(uuid));
+        }
+
+        return session.getKey();
     }
 
     /**
@@ -77,7 +151,8 @@ public abstract class AuthHandler {
             return null;
         }
 
-        return this.pendingKeys.get(uuid);
+        PlayerSession session = this.sessions.get(uuid);
+        return session == null ? null : session.getPendingKey();
     }
 
     /**
@@ -87,11 +162,43 @@ public abstract class AuthHandler {
      * @return Auth State
      */
     public @NotNull AuthState getAuthState(@NotNull UUID uuid) {
-        if (this.authStates.containsKey(uuid)) {
-            return this.authStates.get(uuid);
-        }
+        AuthState authState = this.readState(uuid);
+        return authState == null ? AuthState.NONE : authState;
+    }
 
-        return AuthState.NONE;
+    /**
+     * Reads a player's state from wherever this handler keeps states
+     *
+     * @param uuid UUID of the player to get the Auth State of
+     * @return Auth State, or null if the player has none
+     */
+    protected @Nullable AuthState readState(@NotNull UUID uuid) {
+        PlayerSession session = this.sessions.get(uuid);
+        return session == null ? null : session.getAuthState();
+    }
+
+    /**
+     * Stores a player's state. Implementations of {@link #changeState(UUID, AuthState)} use this once
+     * they decided the state should change.
+     *
+     * @param uuid UUID of the player to set the Auth State of
+     * @param authState Auth State to set
+     */
+    protected void writeState(@NotNull UUID uuid, @NotNull AuthState authState) {
+        this.getSession(uuid).setAuthState(authState);
+    }
+
+    /**
+     * Forgets a player's state
+     *
+     * @param uuid UUID of the player to remove the Auth State of
+     */
+    protected void clearState(@NotNull UUID uuid) {
+        PlayerSession session = this.sessions.get(uuid);
+
+        if (session != null) {
+            session.setAuthState(null);
+        }
     }
 
     /**
@@ -101,12 +208,9 @@ public abstract class AuthHandler {
      * @return Whether or not the player has a Secret Key
      */
     public boolean is2FAEnabled(@NotNull UUID uuid) {
-        if (!this.authStates.containsKey(uuid)) {
-            return false;
-        }
+        AuthState authState = this.getAuthState(uuid);
 
-        return this.authStates.get(uuid).equals(AuthState.DEMAND_SETUP)
-                || this.authStates.get(uuid).equals(AuthState.PENDING_LOGIN) || this.authStates.get(uuid).equals(AuthState.AUTHENTICATED);
+        return authState == AuthState.DEMAND_SETUP || authState == AuthState.PENDING_LOGIN || authState == AuthState.AUTHENTICATED;
     }
 
     /**
@@ -116,8 +220,9 @@ public abstract class AuthHandler {
      * @return Whether or not the player is pending setup
      */
     public boolean isPendingSetup(@NotNull UUID uuid) {
-        return this.authStates.get(uuid).equals(AuthState.PENDING_SETUP)
-                || this.authStates.get(uuid).equals(AuthState.DEMAND_SETUP);
+        AuthState authState = this.getAuthState(uuid);
+
+        return authState == AuthState.PENDING_SETUP || authState == AuthState.DEMAND_SETUP;
     }
 
     /**
@@ -131,7 +236,7 @@ public abstract class AuthHandler {
         GoogleAuthenticatorKey key = authenticator.createCredentials();
 
         this.changeState(uuid, AuthState.PENDING_SETUP);
-        this.pendingKeys.put(uuid, key.getKey());
+        this.getSession(uuid).setPendingKey(key.getKey());
         return key.getKey();
     }
 
@@ -143,16 +248,64 @@ public abstract class AuthHandler {
      * @return Whether or not the code is valid
      */
     public boolean validateKey(@NotNull UUID uuid, @NotNull Integer code) {
+        if (this.getAuthState(uuid) != AuthState.PENDING_LOGIN) {
+            return false;
+        }
+
         String key = this.getKey(uuid);
+        PlayerSession session = this.findSession(uuid);
+        boolean valid = key != null && this.authorize(this.decode(session, key), code);
+
+        // The key may have been changed by an admin or on another server since it was loaded
+        if (!valid && session != null && session.isKeyLoaded()) {
+            session.unloadKey();
+            String storedKey = this.getKey(uuid);
+
+            valid = storedKey != null && !storedKey.equals(key) && this.authorize(this.decode(session, storedKey), code);
+        }
 
-        if (key != null && new GoogleAuthenticator().authorize(key, code) && this.authStates.get(uuid).equals(AuthState.PENDING_LOGIN)) {
+        if (valid && this.getAuthState(uuid) == AuthState.PENDING_LOGIN) {
             this.changeState(uuid, AuthState.AUTHENTICATED);
+
+            // Nothing needs the key until the player joins again, and by then it may have changed
+            if (session != null) {
+                session.unloadKey();
+            }
             return true;
         }
 
         return false;
     }
 
+    /**
+     * Returns the decoded copy of a key, cached in the player's session if it holds that key
+     *
+     * @param session Session of the player, if they have one
+     * @param key Key to decode
+     * @return Decoded key
+     */
+    private @NotNull TotpKey decode(@Nullable PlayerSession session, @NotNull String key) {
+        TotpKey decodedKey = session == null ? null : session.getDecodedKey();
+        return decodedKey != null && decodedKey.getKey().equals(key) ? decodedKey : new TotpKey(key);
+    }
+
+    /**
+     * Checks a code against a key
+     *
+     * @param key Key to check the code with
+     * @param code Inserted code
+     * @return Whether or not the code is valid
+     */
+    protected boolean authorize(@NotNull TotpKey key, int code) {
+        boolean valid = key.authorize(code);
+
+        if (this.metrics != null) {
+            this.metrics.recordVerification(valid);
+        }
+
+        return valid;
+    }
+
     /**
      * Approves a key and storing it
      *
@@ -167,13 +320,18 @@ public abstract class AuthHandler {
 
         String key = this.getPendingKey(uuid);
 
-        if (key != null && new GoogleAuthenticator().authorize(key, code)
-                && (this.authStates.get(uuid).equals(AuthState.PENDING_SETUP) || this.authStates.get(uuid).equals(AuthState.DEMAND_SETUP))) {
+        if (key != null && this.authorize(new TotpKey(key), code)
+                && this.isPendingSetup(uuid)) {
             this.changeState(uuid, AuthState.AUTHENTICATED);
 
             this.getStorageHandler().setKey(uuid, key);
             this.getStorageHandler().setEnableDate(uuid, System.currentTimeMillis());
-            this.pendingKeys.remove(uuid);
+
+            PlayerSession session = this.findSession(uuid);
+            if (session != null) {
+                session.setPendingKey(null);
+                session.unloadKey();
+            }
 
             return true;
         }
@@ -190,12 +348,19 @@ public abstract class AuthHandler {
             return;
         }
 
-        this.changeState(uuid, AuthState.DISABLED);
+        // Players that are not loaded here have no state to change
+        if (this.readState(uuid) != null) {
+            this.changeState(uuid, AuthState.DISABLED);
+        }
 
         this.getStorageHandler().removeKey(uuid);
         this.getStorageHandler().setEnableDate(uuid, -1);
 
-        this.pendingKeys.remove(uuid);
+        PlayerSession session = this.findSession(uuid);
+        if (session != null) {
+            session.setPendingKey(null);
+            session.setKey(null);
+        }
     }
 
     /**
@@ -207,11 +372,13 @@ public abstract class AuthHandler {
     public boolean cancelKey(@NotNull UUID uuid) {
         String key = getPendingKey(uuid);
 
-        if (key != null && (this.authStates.get(uuid).equals(AuthState.PENDING_SETUP)
-                || this.authStates.get(uuid).equals(AuthState.DEMAND_SETUP))) {
+        if (key != null && this.isPendingSetup(uuid)) {
             this.changeState(uuid, AuthState.DISABLED);
 
-            this.pendingKeys.remove(uuid);
+            PlayerSession session = this.findSession(uuid);
+            if (session != null) {
+                session.setPendingKey(null);
+            }
             return true;
         }
 
@@ -225,7 +392,9 @@ public abstract class AuthHandler {
      * @return Whether or not the player needs to authenticate
      */
     public boolean needsToAuthenticate(@NotNull UUID uuid) {
-        return this.is2FAEnabled(uuid) && !this.authStates.get(uuid).equals(AuthState.AUTHENTICATED);
+        AuthState authState = this.getAuthState(uuid);
+
+        return authState == AuthState.DEMAND_SETUP || authState == AuthState.PENDING_LOGIN;
     }
 
     /**
@@ -236,21 +405,49 @@ public abstract class AuthHandler {
      * @return Amount of fails
      */
     public int increaseFailedAttempts(@NotNull UUID uuid, int amount) {
-        if (!this.failedAttempts.containsKey(uuid)) {
-            this.failedAttempts.put(uuid, amount);
+        return this.getSession(uuid).increaseFailedAttempts(amount);
+    }
 
-            return amount;
-        } else {
-            int playerFailedAttempts = this.failedAttempts.get(uuid) + amount;
-            this.failedAttempts.put(uuid, playerFailedAttempts);
+    /**
+     * Drops a player's session when they leave. Players that failed to authenticate keep an empty session
+     * with their failed attempts, so rejoining doesn't reset them.
+     *
+     * @param uuid UUID of the player that left
+     */
+    public void playerQuit(@NotNull UUID uuid) {
+        this.clearState(uuid);
 
-            return playerFailedAttempts;
-        }
+        this.sessions.computeIfPresent(uuid, (id, session) -> {
+            if (session.getFailedAttempts() == 0) {
+                return null;
+            }
+
+            session.clear();
+            return session;
+        });
     }
 
-    public void playerQuit(@NotNull UUID uuid) {
-        pendingKeys.remove(uuid);
-        authStates.remove(uuid);
+    /**
+     * Counts the players that have a session by their state
+     *
+     * @return Amount of players in each state
+     */
+    public @NotNull Map<AuthState, Integer> countStates() {
+        Map<AuthState, Integer> counts = new EnumMap<>(AuthState.class);
+
+        for (AuthState authState : AuthState.values()) {
+            counts.put(authState, 0);
+        }
+
+        for (UUID uuid : this.sessions.keySet()) {
+            AuthState authState = this.readState(uuid);
+
+            if (authState != null) {
+                counts.merge(authState, 1, Integer::sum);
+            }
+        }
+
+        return counts;
     }
 
     public abstract void changeState(@NotNull UUID uuid, @NotNull AuthState authState);
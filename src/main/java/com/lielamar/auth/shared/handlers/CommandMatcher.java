@@ -0,0 +1,249 @@
+package com.lielamar.auth.shared.handlers;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Checks whether a command message starts with one of a list of commands.
+ *
+ * The commands are compiled into a case-insensitive prefix tree once, and a message is matched by walking its label
+ * through the tree, so the rest of the message is never read. By default a command without a namespace also matches
+ * any namespaced label ("pl:help" matches "help"), while a namespaced command only matches that namespace. Matchers
+ * that allow commands only match the namespaces the command is registered under.
+ */
+public class CommandMatcher {
+
+    private final Node root;
+    private final int size;
+    private final boolean anyNamespace;
+
+    public CommandMatcher(@NotNull Collection<String> commands) {
+        this(commands, command -> Collections.emptyList());
+    }
+
+    /**
+     * @param commands   Commands to match
+     * @param aliases    Returns the aliases of a command, which are matched as well
+     */
+    public CommandMatcher(@NotNull Collection<String> commands, @NotNull Function<String, Collection<String>> aliases) {
+        this(commands, aliases, null);
+    }
+
+    /**
+     * @param commands     Commands to match
+     * @param aliases      Returns the aliases of a command, which are matched as well
+     * @param namespaces   Returns the namespaces a command is registered under. If set, a command without a namespace
+     *                     only matches these namespaces instead of any namespace
+     */
+    public CommandMatcher(@NotNull Collection<String> commands, @NotNull Function<String, Collection<String>> aliases,
+            @Nullable Function<String, Collection<String>> namespaces) {
+        this.root = new Node();
+        this.anyNamespace = namespaces == null;
+
+        int size = 0;
+        for (String command : commands) {
+            String label = getLabel(command);
+
+            if (label == null) {
+                continue;
+            }
+
+            int colon = label.lastIndexOf(':');
+            String name = label.substring(colon + 1);
+
+            List<String> names = new ArrayList<>();
+            names.add(name);
+            for (String alias : aliases.apply(name)) {
+                String aliasLabel = getLabel(alias);
+
+                if (aliasLabel != null) {
+                    names.add(aliasLabel);
+                }
+            }
+
+            List<String> prefixes = new ArrayList<>();
+            if (colon >= 0) {
+                prefixes.add(label.substring(0, colon + 1));
+            } else {
+                prefixes.add("");
+
+                if (namespaces != null) {
+                    for (String namespace : namespaces.apply(name)) {
+                        prefixes.add(namespace.toLowerCase(Locale.ROOT) + ":");
+                    }
+                }
+            }
+
+            for (String prefix : prefixes) {
+                for (String commandName : names) {
+                    if (this.insert(prefix + commandName)) {
+                        size++;
+                    }
+                }
+            }
+        }
+
+        this.size = size;
+    }
+
+    /**
+     * @return   Amount of labels (including aliases) this matcher matches
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Checks whether the label of a message is one of the commands
+     *
+     * @param message   Command message, with or without the leading slash
+     * @return Whether the command is matched
+     */
+    public boolean matches(@NotNull CharSequence message) {
+        int start = skipSlash(message);
+        int end = start;
+        int colon = -1;
+
+        while (end < message.length() && !Character.isWhitespace(message.charAt(end))) {
+            if (message.charAt(end) == ':') {
+                colon = end;
+            }
+
+            end++;
+        }
+
+        if (end == start) {
+            return false;
+        }
+
+        return this.matches(message, start, end) || (this.anyNamespace && colon >= 0 && this.matches(message, colon + 1, end));
+    }
+
+    private boolean matches(@NotNull CharSequence message, int start, int end) {
+        Node node = this.root;
+
+        for (int i = start; i < end && node != null; i++) {
+            node = node.child(Character.toLowerCase(message.charAt(i)));
+        }
+
+        return node != null && node.terminal;
+    }
+
+    private boolean insert(@NotNull String label) {
+        Node node = this.root;
+
+        for (int i = 0; i < label.length(); i++) {
+            node = node.getOrCreateChild(label.charAt(i));
+        }
+
+        boolean inserted = !node.terminal;
+        node.terminal = true;
+        return inserted;
+    }
+
+    /**
+     * Returns the first argument of a command message without splitting the rest of it
+     *
+     * @param message   Command message, with or without the leading slash
+     * @return First argument, or null if there is none
+     */
+    public static @Nullable String getFirstArgument(@NotNull CharSequence message) {
+        int index = skipSlash(message);
+
+        while (index < message.length() && !Character.isWhitespace(message.charAt(index))) {
+            index++;
+        }
+
+        while (index < message.length() && Character.isWhitespace(message.charAt(index))) {
+            index++;
+        }
+
+        int start = index;
+        while (index < message.length() && !Character.isWhitespace(message.charAt(index))) {
+            index++;
+        }
+
+        return start == index ? null : message.subSequence(start, index).toString();
+    }
+
+    /**
+     * @return   Lower cased label of a configured command, or null if it is empty
+     */
+    private static @Nullable String getLabel(@Nullable String command) {
+        if (command == null) {
+            return null;
+        }
+
+        String trimmed = command.trim();
+        int start = skipSlash(trimmed);
+        int end = start;
+
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+            end++;
+        }
+
+        if (end == start) {
+            return null;
+        }
+
+        StringBuilder label = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            label.append(Character.toLowerCase(trimmed.charAt(i)));
+        }
+
+        return label.toString();
+    }
+
+    private static int skipSlash(@NotNull CharSequence message) {
+        return message.length() > 0 && message.charAt(0) == '/' ? 1 : 0;
+    }
+
+    private static final class Node {
+
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private boolean terminal;
+
+        private @Nullable Node child(char key) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.keys[i] == key) {
+                    return this.children[i];
+                }
+            }
+
+            return null;
+        }
+
+        private @NotNull Node getOrCreateChild(char key) {
+            Node child = this.child(key);
+
+            if (child == null) {
+                int length = this.keys.length;
+
+                char[] keys = new char[length + 1];
+                Node[] children = new Node[length + 1];
+                System.arraycopy(this.keys, 0, keys, 0, length);
+                System.arraycopy(this.children, 0, children, 0, length);
+
+                child = new Node();
+                keys[length] = key;
+                children[length] = child;
+
+                this.keys = keys;
+                this.children = children;
+            }
+
+            return child;
+        }
+    }
+}
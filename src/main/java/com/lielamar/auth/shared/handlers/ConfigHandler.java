@@ -1,8 +1,12 @@
 package com.lielamar.auth.shared.handlers;
 
 import com.lielamar.auth.shared.storage.StorageMethod;
+import com.lielamar.auth.shared.utils.Constants;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +19,8 @@ public abstract class ConfigHandler {
     protected List<String> whitelistedCommands = new ArrayList<>();
     protected List<String> blacklistedCommands = new ArrayList<>();
 
+    private volatile CommandMatcher whitelistedCommandMatcher, blacklistedCommandMatcher, mainCommandMatcher;
+
     protected StorageMethod storageMethod = StorageMethod.JSON;
     protected String host = "localhost";
     protected int port = -1;
@@ -32,6 +38,26 @@ public abstract class ConfigHandler {
 
     protected String mongodbURI = "";
 
+    protected List<String> shards = new ArrayList<>();
+
+    protected String readReplicaHost = "";
+    protected int readReplicaPort = -1;
+    protected String readReplicaUsername = "";
+    protected String readReplicaPassword = "";
+    protected int readReplicaConsistencyWindow = 5;
+
+    protected int h2CacheSize = 16384;
+
+    protected int jsonCacheSize = 2048;
+    protected long jsonWriteDelay = 1000;
+
+    protected boolean circuitBreakerEnabled = true;
+    protected int circuitBreakerFailureThreshold = 3;
+    protected int circuitBreakerProbeInterval = 10;
+    protected int circuitBreakerCacheSize = 4096;
+
+    protected boolean journalEnabled = true;
+
     public Map<Class<?>, Boolean> getDisabledEvents() {
         return this.disabledEvents;
     }
@@ -44,6 +70,72 @@ public abstract class ConfigHandler {
         return this.blacklistedCommands;
     }
 
+    /**
+     * Returns the whitelisted commands compiled into a matcher. The matcher is compiled the first time it is needed
+     * after a reload, so aliases of plugins that enabled after this one are included.
+     *
+     * @return Matcher of the whitelisted commands
+     */
+    public @NotNull CommandMatcher getWhitelistedCommandMatcher() {
+        CommandMatcher matcher = this.whitelistedCommandMatcher;
+
+        if (matcher == null) {
+            this.whitelistedCommandMatcher = matcher = new CommandMatcher(this.whitelistedCommands, this::getCommandAliases, this::getCommandNamespaces);
+        }
+
+        return matcher;
+    }
+
+    public @NotNull CommandMatcher getBlacklistedCommandMatcher() {
+        CommandMatcher matcher = this.blacklistedCommandMatcher;
+
+        if (matcher == null) {
+            this.blacklistedCommandMatcher = matcher = new CommandMatcher(this.blacklistedCommands, this::getCommandAliases);
+        }
+
+        return matcher;
+    }
+
+    public @NotNull CommandMatcher getMainCommandMatcher() {
+        CommandMatcher matcher = this.mainCommandMatcher;
+
+        if (matcher == null) {
+            this.mainCommandMatcher = matcher = new CommandMatcher(Collections.singletonList(Constants.mainCommand.getA()), this::getCommandAliases,
+                    this::getCommandNamespaces);
+        }
+
+        return matcher;
+    }
+
+    /**
+     * Makes the command matchers compile again with the current command lists
+     */
+    protected void clearCommandMatchers() {
+        this.whitelistedCommandMatcher = null;
+        this.blacklistedCommandMatcher = null;
+        this.mainCommandMatcher = null;
+    }
+
+    /**
+     * Returns the other names of a registered command, including its main name if the given one is an alias
+     *
+     * @param command Lower cased command name
+     * @return Aliases of the command
+     */
+    protected @NotNull Collection<String> getCommandAliases(@NotNull String command) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns the namespaces a registered command can also be run with, like "plugin" for "/plugin:command"
+     *
+     * @param command Lower cased command name
+     * @return Namespaces of the command
+     */
+    protected @NotNull Collection<String> getCommandNamespaces(@NotNull String command) {
+        return Collections.emptyList();
+    }
+
     public StorageMethod getStorageMethod() {
         return this.storageMethod;
     }
@@ -100,5 +192,61 @@ public abstract class ConfigHandler {
         return this.mongodbURI;
     }
 
+    public List<String> getShards() {
+        return this.shards;
+    }
+
+    public String getReadReplicaHost() {
+        return this.readReplicaHost;
+    }
+
+    public int getReadReplicaPort() {
+        return this.readReplicaPort;
+    }
+
+    public String getReadReplicaUsername() {
+        return this.readReplicaUsername;
+    }
+
+    public String getReadReplicaPassword() {
+        return this.readReplicaPassword;
+    }
+
+    public int getReadReplicaConsistencyWindow() {
+        return this.readReplicaConsistencyWindow;
+    }
+
+    public int getH2CacheSize() {
+        return this.h2CacheSize;
+    }
+
+    public int getJsonCacheSize() {
+        return this.jsonCacheSize;
+    }
+
+    public long getJsonWriteDelay() {
+        return this.jsonWriteDelay;
+    }
+
+    public boolean isCircuitBreakerEnabled() {
+        return this.circuitBreakerEnabled;
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return this.circuitBreakerFailureThreshold;
+    }
+
+    public int getCircuitBreakerProbeInterval() {
+        return this.circuitBreakerProbeInterval;
+    }
+
+    public int getCircuitBreakerCacheSize() {
+        return this.circuitBreakerCacheSize;
+    }
+
+    public boolean isJournalEnabled() {
+        return this.journalEnabled;
+    }
+
     public abstract void reload();
 }
@@ -0,0 +1,135 @@
+package com.lielamar.auth.shared.handlers;
+
+import com.lielamar.auth.shared.storage.StorageHandler;
+import com.lielamar.auth.shared.utils.hash.Hash;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Hashes players' IP addresses and keeps track of the addresses they are trusted on.
+ *
+ * The fingerprint of an address is computed once per session. A player's trusted fingerprints are stored
+ * comma separated in their IP field, most recent first, so storages that only held the last IP keep working.
+ */
+public class IPFingerprintHandler {
+
+    private static final String SEPARATOR = ",";
+
+    // The IP column of the SQL storage is 256 characters long
+    private static final int MAX_STORED_LENGTH = 255;
+
+    private final Hash hash;
+    private final int maxTrusted;
+
+    /**
+     * @param hash Hash to fingerprint addresses with
+     * @param maxTrusted Amount of fingerprints to trust per player
+     */
+    public IPFingerprintHandler(@NotNull Hash hash, int maxTrusted) {
+        this.hash = hash;
+        this.maxTrusted = Math.max(1, maxTrusted);
+    }
+
+    /**
+     * @param session Session of the player
+     * @param address Address the player connected from
+     * @return Fingerprint of the address
+     */
+    public @NotNull String getFingerprint(@NotNull PlayerSession session, @NotNull String address) {
+        String fingerprint = session.getFingerprint(address);
+
+        if (fingerprint == null) {
+            fingerprint = this.hash.hash(address);
+            session.setFingerprint(address, fingerprint);
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * @param storageHandler Storage to load the trusted fingerprints from if the session doesn't have them yet
+     * @param uuid UUID of the player
+     * @param session Session of the player
+     * @param address Address the player connected from
+     * @return Whether the player was authenticated from the address before
+     */
+    public boolean isTrusted(@NotNull StorageHandler storageHandler, @NotNull UUID uuid, @NotNull PlayerSession session, @NotNull String address) {
+        return this.getTrusted(storageHandler, uuid, session).contains(this.getFingerprint(session, address));
+    }
+
+    /**
+     * Trusts an address for a player, forgetting their oldest trusted address if they have too many
+     *
+     * @param storageHandler Storage to save the trusted fingerprints to
+     * @param uuid UUID of the player
+     * @param session Session of the player
+     * @param address Address to trust
+     */
+    public void trust(@NotNull StorageHandler storageHandler, @NotNull UUID uuid, @NotNull PlayerSession session, @NotNull String address) {
+        String fingerprint = this.getFingerprint(session, address);
+        Set<String> trusted = this.getTrusted(storageHandler, uuid, session);
+
+        // Already the most recent one, nothing to save
+        if (!trusted.isEmpty() && trusted.iterator().next().equals(fingerprint)) {
+            return;
+        }
+
+        Set<String> updated = new LinkedHashSet<>();
+        StringBuilder stored = new StringBuilder(fingerprint);
+        updated.add(fingerprint);
+
+        for (String other : trusted) {
+            if (updated.size() >= this.maxTrusted || stored.length() + SEPARATOR.length() + other.length() > MAX_STORED_LENGTH) {
+                break;
+            }
+
+            if (updated.add(other)) {
+                stored.append(SEPARATOR).append(other);
+            }
+        }
+
+        session.setTrustedFingerprints(Collections.unmodifiableSet(updated));
+        storageHandler.setIP(uuid, stored.toString());
+    }
+
+    /**
+     * Keeps a player's trusted fingerprints in their session if it doesn't have them yet
+     *
+     * @param session Session of the player
+     * @param stored Trusted fingerprints as they are stored
+     */
+    public void load(@NotNull PlayerSession session, @Nullable String stored) {
+        if (session.getTrustedFingerprints() == null) {
+            session.setTrustedFingerprints(parse(stored));
+        }
+    }
+
+    private @NotNull Set<String> getTrusted(@NotNull StorageHandler storageHandler, @NotNull UUID uuid, @NotNull PlayerSession session) {
+        Set<String> trusted = session.getTrustedFingerprints();
+
+        if (trusted == null) {
+            trusted = parse(storageHandler.getIP(uuid));
+            session.setTrustedFingerprints(trusted);
+        }
+
+        return trusted;
+    }
+
+    private static @NotNull Set<String> parse(@Nullable String stored) {
+        if (stored == null || stored.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> trusted = new LinkedHashSet<>();
+        for (String fingerprint : stored.split(SEPARATOR)) {
+            if (!fingerprint.isEmpty()) {
+                // Older versions compared the last IP ignoring case
+                trusted.add(fingerprint.toLowerCase());
+            }
+        }
+
+        return Collections.unmodifiableSet(trusted);
+    }
+}
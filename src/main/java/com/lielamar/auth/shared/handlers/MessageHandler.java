@@ -74,6 +74,9 @@ public abstract class MessageHandler {
         PLAYER_NOT_SETUP("&c%name% is not setup with 2FA"),
         RELOADED_CONFIG("&aConfig was reloaded!"),
         FAILED_AUTHENTICATION_ALERT("&c%name% failed to authenticate %times% times"),
+        STORAGE_UNREACHABLE_ALERT("&cThe 2FA storage is unreachable! Players are checked against their last known data until it recovers"),
+        STORAGE_RECOVERED_ALERT("&aThe 2FA storage is reachable again"),
+        STORAGE_UNAVAILABLE("&cThe 2FA storage is unreachable, please try to join again in a few minutes"),
         SOMETHING_WENT_WRONG("&cSomething went wrong. Please contact a Staff Member!"),
         COMMUNICATION_METHOD_NOT_CORRECT("&cWe've detected you have a proxy but your &7communication-method &cis set to &7NONE &cin config.yml."
                 + "\nPlease configure your &7communication-method &cproperly, otherwise the plugin might not work correctly!"),
@@ -90,7 +93,11 @@ public abstract class MessageHandler {
         DESCRIPTION_OF_CANCEL_COMMAND("Cancels 2FA setup"),
         DESCRIPTION_OF_HELP_COMMAND("Shows the Help Menu of the 2FA Plugin"),
         DESCRIPTION_OF_RELOAD_COMMAND("Reloads the Config"),
-        DESCRIPTION_OF_PRINT_INFO_COMMAND("Prints useful info about the plugin");
+        DESCRIPTION_OF_PRINT_INFO_COMMAND("Prints useful info about the plugin"),
+        DESCRIPTION_OF_STORAGE_COMMAND("Runs maintenance jobs on the storage"),
+        DESCRIPTION_OF_MIGRATE_COMMAND("Copies all players from one storage to another"),
+        DESCRIPTION_OF_STATS_COMMAND("Shows authentication statistics of the last hour"),
+        DESCRIPTION_OF_PROFILE_COMMAND("Measures what player joins cost while it's running");
 
         private String message;
 
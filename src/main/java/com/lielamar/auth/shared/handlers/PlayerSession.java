@@ -0,0 +1,185 @@
+package com.lielamar.auth.shared.handlers;
+
+import com.lielamar.auth.shared.utils.TotpKey;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Everything the plugin keeps in memory about an online player.
+ *
+ * Fields are volatile so the session can be read from async threads (for example AsyncPlayerChatEvent),
+ * while state changes keep happening on the main thread.
+ */
+public class PlayerSession {
+
+    private final long createdAt;
+    private volatile long joinedAt;
+
+    private volatile AuthHandler.AuthState authState;
+    private volatile long stateChangedAt;
+
+    private volatile String pendingKey;
+    private volatile String key;
+    private volatile TotpKey decodedKey;
+    private volatile boolean keyLoaded;
+
+    private volatile Map.Entry<String, String> fingerprint;
+    private volatile Set<String> trustedFingerprints;
+
+    private final AtomicInteger failedAttempts;
+    private volatile long lastFailedAttemptAt;
+
+    public PlayerSession() {
+        this.createdAt = System.currentTimeMillis();
+        this.joinedAt = -1;
+
+        this.authState = null;
+        this.stateChangedAt = this.createdAt;
+
+        this.pendingKey = null;
+        this.key = null;
+        this.decodedKey = null;
+        this.keyLoaded = false;
+
+        this.fingerprint = null;
+        this.trustedFingerprints = null;
+
+        this.failedAttempts = new AtomicInteger();
+        this.lastFailedAttemptAt = -1;
+    }
+
+    public long getCreatedAt() {
+        return this.createdAt;
+    }
+
+    public void setJoinedAt(long joinedAt) {
+        this.joinedAt = joinedAt;
+    }
+
+    /**
+     * @return   When the player joined, or -1 if it was taken already since they joined
+     */
+    public long takeJoinedAt() {
+        long joinedAt = this.joinedAt;
+        this.joinedAt = -1;
+        return joinedAt;
+    }
+
+    public @Nullable AuthHandler.AuthState getAuthState() {
+        return this.authState;
+    }
+
+    public void setAuthState(@Nullable AuthHandler.AuthState authState) {
+        this.authState = authState;
+        this.stateChangedAt = System.currentTimeMillis();
+    }
+
+    public long getStateChangedAt() {
+        return this.stateChangedAt;
+    }
+
+    public @Nullable String getPendingKey() {
+        return this.pendingKey;
+    }
+
+    public void setPendingKey(@Nullable String pendingKey) {
+        this.pendingKey = pendingKey;
+    }
+
+    /**
+     * @return   Whether the player's stored key was loaded into this session already.
+     *           If it was, {@link #getKey()} is the stored key, even if that is null.
+     */
+    public boolean isKeyLoaded() {
+        return this.keyLoaded;
+    }
+
+    public @Nullable String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return   The loaded key, decoded the first time it's needed, so failed attempts don't decode it again
+     */
+    public @Nullable TotpKey getDecodedKey() {
+        String key = this.key;
+        if (key == null) {
+            return null;
+        }
+
+        TotpKey decodedKey = this.decodedKey;
+        if (decodedKey == null || !decodedKey.getKey().equals(key)) {
+            decodedKey = new TotpKey(key);
+            this.decodedKey = decodedKey;
+        }
+        return decodedKey;
+    }
+
+    public void setKey(@Nullable String key) {
+        this.key = key;
+        this.decodedKey = null;
+        this.keyLoaded = true;
+    }
+
+    public void unloadKey() {
+        this.key = null;
+        this.decodedKey = null;
+        this.keyLoaded = false;
+    }
+
+    /**
+     * @param address   Address the player connected from
+     * @return          Fingerprint of the address if it was computed for this session already
+     */
+    public @Nullable String getFingerprint(@Nullable String address) {
+        Map.Entry<String, String> fingerprint = this.fingerprint;
+        return fingerprint != null && fingerprint.getKey().equals(address) ? fingerprint.getValue() : null;
+    }
+
+    public void setFingerprint(@NotNull String address, @NotNull String fingerprint) {
+        this.fingerprint = new AbstractMap.SimpleImmutableEntry<>(address, fingerprint);
+    }
+
+    /**
+     * @return   The player's trusted fingerprints, or null if they weren't loaded into this session yet.
+     *           The set is never modified, it's replaced instead.
+     */
+    public @Nullable Set<String> getTrustedFingerprints() {
+        return this.trustedFingerprints;
+    }
+
+    public void setTrustedFingerprints(@Nullable Set<String> trustedFingerprints) {
+        this.trustedFingerprints = trustedFingerprints;
+    }
+
+    public int getFailedAttempts() {
+        return this.failedAttempts.get();
+    }
+
+    public int increaseFailedAttempts(int amount) {
+        this.lastFailedAttemptAt = System.currentTimeMillis();
+        return this.failedAttempts.addAndGet(amount);
+    }
+
+    public long getLastFailedAttemptAt() {
+        return this.lastFailedAttemptAt;
+    }
+
+    /**
+     * Forgets everything about the player except their failed attempts, so leaving and rejoining
+     * the server doesn't reset them.
+     */
+    public void clear() {
+        this.setAuthState(null);
+        this.joinedAt = -1;
+        this.pendingKey = null;
+        this.unloadKey();
+        this.fingerprint = null;
+        this.trustedFingerprints = null;
+    }
+}
@@ -0,0 +1,174 @@
+package com.lielamar.auth.shared.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters of what the plugin does, written in the Prometheus text format by {@link #write(StringBuilder)}.
+ *
+ * Everything recorded on a hot path is a {@link LongAdder}, so recording never blocks. Values the plugin already keeps
+ * track of elsewhere are registered as samples, which are only read when the metrics are written.
+ */
+public class AuthMetrics {
+
+    private static final String PREFIX = "twofa_";
+
+    private final LatencyHistogram joinToAuthenticated;
+    private final LongAdder totpVerifications;
+    private final LongAdder totpFailures;
+    private final LongAdder autoAuthentications;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> storageLatency;
+    private final List<Sampled> sampled;
+
+    public AuthMetrics() {
+        this.joinToAuthenticated = new LatencyHistogram();
+        this.totpVerifications = new LongAdder();
+        this.totpFailures = new LongAdder();
+        this.autoAuthentications = new LongAdder();
+
+        this.storageLatency = new ConcurrentHashMap<>();
+        this.sampled = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    public @NotNull LatencyHistogram getJoinToAuthenticated() {
+        return this.joinToAuthenticated;
+    }
+
+    /**
+     * @param valid Whether the code the player entered was valid
+     */
+    public void recordVerification(boolean valid) {
+        this.totpVerifications.increment();
+
+        if (!valid) {
+            this.totpFailures.increment();
+        }
+    }
+
+    public void recordAutoAuthentication() {
+        this.autoAuthentications.increment();
+    }
+
+    /**
+     * @param backend Name of the storage
+     * @param operation Name of the operation
+     * @return Histogram of the operation's durations. Storages should keep it instead of looking it up on every call
+     */
+    public @NotNull LatencyHistogram getStorageLatency(@NotNull String backend, @NotNull String operation) {
+        return this.storageLatency.computeIfAbsent(backend, name -> new ConcurrentHashMap<>())
+                .computeIfAbsent(operation, name -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a value that is read whenever the metrics are written
+     *
+     * @param name Name of the metric, without the plugin's prefix
+     * @param type Prometheus type of the metric (gauge or counter)
+     * @param help Description of the metric
+     * @param samples Returns the current values by their labels, written as {@code label="value"}, or an empty string
+     *                for a value without labels. Called from the exporter's thread
+     */
+    public void register(@NotNull String name, @NotNull String type, @NotNull String help, @NotNull Supplier<Map<String, ? extends Number>> samples) {
+        this.sampled.add(new Sampled(name, type, help, samples));
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format
+     *
+     * @param out Builder to write to
+     */
+    public void write(@NotNull StringBuilder out) {
+        writeHistogram(out, "join_to_authenticated_seconds", "Time from joining until being authenticated",
+                Collections.singletonMap("", this.joinToAuthenticated));
+
+        writeCounter(out, "totp_verifications_total", "Codes checked against a player's key", this.totpVerifications.sum());
+        writeCounter(out, "totp_failures_total", "Codes that did not match a player's key", this.totpFailures.sum());
+        writeCounter(out, "auto_authentications_total", "Players authenticated automatically from a trusted address", this.autoAuthentications.sum());
+
+        Map<String, LatencyHistogram> storage = new LinkedHashMap<>();
+        this.storageLatency.forEach((backend, operations) -> operations.forEach((operation, histogram) ->
+                storage.put("backend=\"" + backend + "\",operation=\"" + operation + "\"", histogram)));
+        writeHistogram(out, "storage_operation_seconds", "Duration of storage operations", storage);
+
+        List<Sampled> sampled;
+        synchronized (this.sampled) {
+            sampled = new ArrayList<>(this.sampled);
+        }
+
+        for (Sampled metric : sampled) {
+            Map<String, ? extends Number> values;
+
+            try {
+                values = metric.samples.get();
+            } catch (RuntimeException exception) {
+                exception.printStackTrace();
+                continue;
+            }
+
+            writeHeader(out, metric.name, metric.type, metric.help);
+            values.forEach((labels, value) -> writeSample(out, metric.name, labels, value));
+        }
+    }
+
+    private static void writeCounter(StringBuilder out, String name, String help, long value) {
+        writeHeader(out, name, "counter", help);
+        writeSample(out, name, "", value);
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String help, Map<String, LatencyHistogram> histograms) {
+        writeHeader(out, name, "histogram", help);
+
+        histograms.forEach((labels, histogram) -> {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long[] buckets = histogram.getBuckets();
+            long count = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i];
+                String bound = i < LatencyHistogram.BOUNDS.length ? String.valueOf(LatencyHistogram.BOUNDS[i] / 1_000_000.0) : "+Inf";
+                writeSample(out, name + "_bucket", prefix + "le=\"" + bound + "\"", count);
+            }
+
+            writeSample(out, name + "_sum", labels, histogram.getSum() / 1_000_000.0);
+            writeSample(out, name + "_count", labels, count);
+        });
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, Number value) {
+        out.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static final class Sampled {
+
+        private final String name;
+        private final String type;
+        private final String help;
+        private final Supplier<Map<String, ? extends Number>> samples;
+
+        private Sampled(String name, String type, String help, Supplier<Map<String, ? extends Number>> samples) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.samples = samples;
+        }
+    }
+}
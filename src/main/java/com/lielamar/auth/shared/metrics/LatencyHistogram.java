@@ -0,0 +1,71 @@
+package com.lielamar.auth.shared.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations into fixed buckets. Recording only adds to two adders, so it can be called from any thread
+ * without slowing it down
+ */
+public class LatencyHistogram {
+
+    /** Upper bounds (in microseconds) of the buckets */
+    static final long[] BOUNDS = {100, 500, 1_000, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 30_000_000, 60_000_000};
+
+    private final LongAdder[] buckets;
+    private final LongAdder sum;
+
+    public LatencyHistogram() {
+        // The last bucket holds everything above the highest bound
+        this.buckets = new LongAdder[BOUNDS.length + 1];
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+
+        this.sum = new LongAdder();
+    }
+
+    /**
+     * @param millis Duration to record
+     */
+    public void recordMillis(long millis) {
+        this.recordMicros(millis * 1000);
+    }
+
+    /**
+     * @param nanos Duration to record
+     */
+    public void recordNanos(long nanos) {
+        this.recordMicros(nanos / 1000);
+    }
+
+    private void recordMicros(long micros) {
+        micros = Math.max(0, micros);
+
+        int bucket = 0;
+        while (bucket < BOUNDS.length && micros > BOUNDS[bucket]) {
+            bucket++;
+        }
+
+        this.buckets[bucket].increment();
+        this.sum.add(micros);
+    }
+
+    /**
+     * @return Amount of durations in each bucket. Unlike Prometheus buckets, these are not cumulative
+     */
+    long[] getBuckets() {
+        long[] counts = new long[this.buckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @return Sum of all durations in microseconds
+     */
+    long getSum() {
+        return this.sum.sum();
+    }
+}
@@ -0,0 +1,74 @@
+package com.lielamar.auth.shared.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the plugin's metrics to Prometheus on {@code /metrics}, using the HTTP server that comes with the JDK
+ */
+public class PrometheusExporter {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final AuthMetrics metrics;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts serving the metrics
+     *
+     * @param metrics Metrics to serve
+     * @param address Address to bind to
+     * @param port Port to bind to
+     * @throws IOException Throws an exception if the address can't be bound to
+     */
+    public PrometheusExporter(@NotNull AuthMetrics metrics, @NotNull String address, int port) throws IOException {
+        this.metrics = metrics;
+
+        this.server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "2FA Metrics Exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/metrics", this::handle);
+        this.server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            StringBuilder out = new StringBuilder(4096);
+            this.metrics.write(out);
+            byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void unload() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+}
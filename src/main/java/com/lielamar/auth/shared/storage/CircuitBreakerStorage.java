@@ -0,0 +1,393 @@
+package com.lielamar.auth.shared.storage;
+
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Wraps a remote storage and stops querying it while its database is down.
+ *
+ * After a few operations in a row fail, the breaker opens: every call returns straight away instead of waiting for the
+ * connection timeout. Reads are answered from the last data seen of each player, and a background task checks the
+ * database until it answers again, which closes the breaker. The key of a player whose data was never seen can't be
+ * told apart from a player without 2FA, so asking for it throws a {@link StorageUnavailableException} instead.
+ */
+public class CircuitBreakerStorage extends StorageHandler {
+
+    public enum State {
+        /** The database is reachable and every call goes to it */
+        CLOSED,
+        /** The database is down and calls are answered from the last known data */
+        OPEN
+    }
+
+    private static final UUID PROBE_UUID = new UUID(0, 0);
+
+    private final StorageHandler storage;
+    private final int failureThreshold;
+    private final long probeInterval;
+
+    private final Map<UUID, PlayerRecord> lastKnown;
+
+    private final AtomicInteger consecutiveFailures;
+    private final ThreadLocal<boolean[]> callFailed;
+    private volatile State state;
+
+    private final ScheduledExecutorService prober;
+    private ScheduledFuture<?> probeTask;
+
+    private volatile Consumer<State> stateListener;
+
+    /**
+     * @param storage Storage to wrap
+     * @param failureThreshold Failed operations in a row that open the breaker
+     * @param probeInterval Milliseconds between checks whether the database is back up
+     * @param cacheSize Players to remember the last known data of
+     */
+    public CircuitBreakerStorage(@NotNull StorageHandler storage, int failureThreshold, long probeInterval, int cacheSize) {
+        this.storage = storage;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.probeInterval = Math.max(1000, probeInterval);
+
+        this.lastKnown = new LinkedHashMap<UUID, PlayerRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, PlayerRecord> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        this.consecutiveFailures = new AtomicInteger();
+        this.callFailed = new ThreadLocal<>();
+        this.state = State.CLOSED;
+
+        this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "2FA Storage Probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Failures the storage caught on its own are reported here
+        this.storage.setFailureListener(throwable -> {
+            boolean[] failed = this.callFailed.get();
+
+            if (failed != null) {
+                failed[0] = true;
+            } else {
+                this.onFailure();
+            }
+        });
+    }
+
+    public @NotNull StorageHandler getStorage() {
+        return this.storage;
+    }
+
+    public @NotNull State getState() {
+        return this.state;
+    }
+
+    /**
+     * Sets a listener to be told whenever the breaker opens or closes. It is called from the thread that noticed the
+     * change, which may not be the main thread
+     *
+     * @param stateListener Listener to set, or null to remove it
+     */
+    public void setStateListener(@Nullable Consumer<State> stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    /**
+     * Runs an operation on the storage, or the fallback if the breaker is open or the operation fails
+     *
+     * @param operation Operation to run on the storage
+     * @param onSuccess Called with the result if the operation succeeded
+     * @param fallback Answer to give when the storage can't be used
+     * @param <T> Result type of the operation
+     * @return Result of the operation or the fallback
+     */
+    private <T> T call(Supplier<T> operation, @Nullable Consumer<T> onSuccess, Supplier<T> fallback) {
+        if (this.state == State.OPEN) {
+            return fallback.get();
+        }
+
+        boolean[] failed = new boolean[1];
+        this.callFailed.set(failed);
+
+        try {
+            T result = operation.get();
+
+            if (!failed[0]) {
+                this.consecutiveFailures.set(0);
+
+                if (onSuccess != null) {
+                    onSuccess.accept(result);
+                }
+                return result;
+            }
+        } catch (RuntimeException exception) {
+            exception.printStackTrace();
+        } finally {
+            this.callFailed.remove();
+        }
+
+        this.onFailure();
+        return fallback.get();
+    }
+
+    /**
+     * Runs a write on the storage without falling back. Used to replay writes that were kept elsewhere while the
+     * storage was down
+     *
+     * @param write Write to run
+     * @return Whether the write reached the storage
+     */
+    public boolean tryWrite(@NotNull Runnable write) {
+        return this.call(() -> {
+            write.run();
+            return true;
+        }, null, () -> false);
+    }
+
+    private void onFailure() {
+        if (this.consecutiveFailures.incrementAndGet() >= this.failureThreshold) {
+            this.open();
+        }
+    }
+
+    private synchronized void open() {
+        if (this.state == State.OPEN || this.prober.isShutdown()) {
+            return;
+        }
+
+        this.state = State.OPEN;
+        Bukkit.getServer().getLogger().severe("[2FA] The storage failed " + this.consecutiveFailures.get() + " times in a row. "
+                + "Serving the last known data until it is reachable again!");
+
+        this.probeTask = this.prober.scheduleWithFixedDelay(this::probe, this.probeInterval, this.probeInterval, TimeUnit.MILLISECONDS);
+        this.notifyListener(State.OPEN);
+    }
+
+    private synchronized void close() {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+
+        this.state = State.CLOSED;
+        this.consecutiveFailures.set(0);
+        Bukkit.getServer().getLogger().info("[2FA] The storage is reachable again.");
+
+        if (this.probeTask != null) {
+            this.probeTask.cancel(false);
+            this.probeTask = null;
+        }
+
+        this.notifyListener(State.CLOSED);
+    }
+
+    /**
+     * Checks whether the database answers again by looking up a player that doesn't exist
+     */
+    private void probe() {
+        boolean[] failed = new boolean[1];
+        this.callFailed.set(failed);
+
+        try {
+            this.storage.getKey(PROBE_UUID);
+        } catch (RuntimeException exception) {
+            failed[0] = true;
+        } finally {
+            this.callFailed.remove();
+        }
+
+        if (!failed[0]) {
+            this.close();
+        }
+    }
+
+    private void notifyListener(State state) {
+        Consumer<State> listener = this.stateListener;
+
+        if (listener != null) {
+            try {
+                listener.accept(state);
+            } catch (RuntimeException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    private @NotNull PlayerRecord getLastKnown(UUID uuid) {
+        synchronized (this.lastKnown) {
+            PlayerRecord record = this.lastKnown.get(uuid);
+            return record != null ? record : new PlayerRecord(uuid, null, null, -1);
+        }
+    }
+
+    private void remember(UUID uuid, UnaryOperator<PlayerRecord> update) {
+        synchronized (this.lastKnown) {
+            this.lastKnown.put(uuid, update.apply(this.getLastKnown(uuid)));
+        }
+    }
+
+    private void warnDroppedWrite(UUID uuid) {
+        Bukkit.getServer().getLogger().warning("[2FA] The storage is unreachable, a change to " + uuid + " was not saved!");
+    }
+
+    @Override
+    public void writeAndWait(@NotNull Runnable writes) {
+        this.storage.writeAndWait(writes);
+    }
+
+    @Override
+    public String setKey(UUID uuid, String key) {
+        this.remember(uuid, record -> new PlayerRecord(uuid, key, record.getIP(), record.getEnableDate()));
+        return this.call(() -> this.storage.setKey(uuid, key), null, () -> {
+            this.warnDroppedWrite(uuid);
+            return key;
+        });
+    }
+
+    @Override
+    public String getKey(UUID uuid) {
+        return this.call(() -> this.storage.getKey(uuid),
+                key -> this.remember(uuid, record -> new PlayerRecord(uuid, key, record.getIP(), record.getEnableDate())),
+                () -> {
+                    synchronized (this.lastKnown) {
+                        PlayerRecord record = this.lastKnown.get(uuid);
+
+                        if (record == null) {
+                            throw new StorageUnavailableException(uuid);
+                        }
+                        return record.getKey();
+                    }
+                });
+    }
+
+    @Override
+    public boolean hasKey(UUID uuid) {
+        return this.getKey(uuid) != null;
+    }
+
+    @Override
+    public void removeKey(UUID uuid) {
+        this.remember(uuid, record -> new PlayerRecord(uuid, null, record.getIP(), record.getEnableDate()));
+        this.call(() -> {
+            this.storage.removeKey(uuid);
+            return true;
+        }, null, () -> {
+            this.warnDroppedWrite(uuid);
+            return false;
+        });
+    }
+
+    @Override
+    public String setIP(UUID uuid, String ip) {
+        this.remember(uuid, record -> new PlayerRecord(uuid, record.getKey(), ip, record.getEnableDate()));
+        return this.call(() -> this.storage.setIP(uuid, ip), null, () -> {
+            this.warnDroppedWrite(uuid);
+            return ip;
+        });
+    }
+
+    @Override
+    public String getIP(UUID uuid) {
+        return this.call(() -> this.storage.getIP(uuid),
+                ip -> this.remember(uuid, record -> new PlayerRecord(uuid, record.getKey(), ip, record.getEnableDate())),
+                () -> this.getLastKnown(uuid).getIP());
+    }
+
+    @Override
+    public boolean hasIP(UUID uuid) {
+        return this.getIP(uuid) != null;
+    }
+
+    @Override
+    public long setEnableDate(UUID uuid, long enableDate) {
+        this.remember(uuid, record -> new PlayerRecord(uuid, record.getKey(), record.getIP(), enableDate));
+        return this.call(() -> this.storage.setEnableDate(uuid, enableDate), null, () -> {
+            this.warnDroppedWrite(uuid);
+            return enableDate;
+        });
+    }
+
+    @Override
+    public long getEnableDate(UUID uuid) {
+        return this.call(() -> this.storage.getEnableDate(uuid),
+                enableDate -> this.remember(uuid, record -> new PlayerRecord(uuid, record.getKey(), record.getIP(), enableDate)),
+                () -> this.getLastKnown(uuid).getEnableDate());
+    }
+
+    @Override
+    public boolean hasEnableDate(UUID uuid) {
+        return this.getEnableDate(uuid) != -1;
+    }
+
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        this.storage.forEachRecord(after, before, consumer);
+    }
+
+    /**
+     * While the breaker is open, only the players whose last data is known are answered
+     */
+    @Override
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        return this.call(() -> this.storage.loadPlayers(uuids), records -> {
+            synchronized (this.lastKnown) {
+                records.values().forEach(record -> this.lastKnown.put(record.getUuid(), record));
+            }
+        }, () -> {
+            Map<UUID, PlayerRecord> records = new HashMap<>();
+
+            synchronized (this.lastKnown) {
+                for (UUID uuid : uuids) {
+                    PlayerRecord record = this.lastKnown.get(uuid);
+
+                    if (record != null) {
+                        records.put(uuid, record);
+                    }
+                }
+            }
+
+            return records;
+        });
+    }
+
+    @Override
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        if (this.state == State.OPEN) {
+            throw new IOException("The storage is unreachable");
+        }
+
+        this.storage.saveRecords(records);
+    }
+
+    @Override
+    public void unload() {
+        this.prober.shutdownNow();
+        this.storage.setFailureListener(null);
+        this.storage.unload();
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return this.storage.isLoaded();
+    }
+}
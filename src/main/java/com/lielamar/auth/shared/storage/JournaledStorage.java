@@ -0,0 +1,559 @@
+package com.lielamar.auth.shared.storage;
+
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Writes every change to a local journal before it is sent to the database.
+ *
+ * Setters append the change to a queue and return straight away. A background thread writes the queued changes to the
+ * journal file, syncing them to disk once per batch, and then replays them to the storage in order. Changes are only
+ * removed from the journal after the storage accepted them, so a change made while the database is down is sent once
+ * it is back, even if the server restarts in between. Until then, reads of the player answer with the pending change.
+ *
+ * Every entry in the file is stored as its length, a CRC32 of its body and the body itself, so an entry that was cut
+ * off by a crash is noticed and dropped when the journal is read.
+ */
+public class JournaledStorage extends StorageHandler {
+
+    private static final byte KEY = 1;
+    private static final byte IP = 2;
+    private static final byte ENABLE_DATE = 3;
+
+    private static final long RETRY_INTERVAL = 1000;
+    private static final long COMPACT_THRESHOLD = 1024 * 1024;
+
+    private final CircuitBreakerStorage storage;
+    private final File file;
+
+    private final BlockingQueue<Entry> queue;
+    private final Map<UUID, Pending> pending;
+
+    private final Thread writer;
+    private volatile boolean running;
+
+    private FileChannel channel;
+
+    /**
+     * @param storage Storage to replay the changes to. The breaker tells whether a replayed change was accepted
+     * @param file Journal file
+     * @throws IOException Throws an exception if the journal could not be opened
+     */
+    public JournaledStorage(@NotNull CircuitBreakerStorage storage, @NotNull File file) throws IOException {
+        this.storage = storage;
+        this.file = file;
+
+        this.queue = new LinkedBlockingQueue<>();
+        this.pending = new ConcurrentHashMap<>();
+
+        Deque<Entry> unacknowledged = this.open();
+
+        if (!unacknowledged.isEmpty()) {
+            Bukkit.getServer().getLogger().info("[2FA] Replaying " + unacknowledged.size() + " changes from the storage journal");
+        }
+
+        this.running = true;
+        this.writer = new Thread(() -> this.run(unacknowledged), "2FA Storage Journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public @NotNull CircuitBreakerStorage getStorage() {
+        return this.storage;
+    }
+
+    /**
+     * @return   Number of changes the storage didn't accept yet
+     */
+    public int getPendingChanges() {
+        return this.pending.values().stream().mapToInt(Pending::size).sum();
+    }
+
+    /**
+     * Opens the journal file and reads the entries that were not acknowledged before the last shutdown
+     *
+     * @return Entries to replay, in order
+     * @throws IOException Throws an exception if the file could not be opened
+     */
+    private Deque<Entry> open() throws IOException {
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        Deque<Entry> entries = new ArrayDeque<>();
+        long valid = 0;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file.toPath())))) {
+            while (true) {
+                int length;
+                long checksum;
+                byte[] body;
+
+                try {
+                    length = input.readInt();
+                    checksum = input.readInt() & 0xFFFFFFFFL;
+
+                    if (length <= 0 || length > 65536) {
+                        break;
+                    }
+
+                    body = new byte[length];
+                    input.readFully(body);
+                } catch (EOFException exception) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(body);
+
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+
+                Entry entry = Entry.decode(body);
+                entries.add(entry);
+                this.track(entry);
+
+                valid += 8 + length;
+            }
+        }
+
+        // Dropping an entry that was only partly written when the server stopped
+        if (this.channel.size() > valid) {
+            Bukkit.getServer().getLogger().warning("[2FA] The storage journal ended with an incomplete change, which was dropped");
+            this.channel.truncate(valid);
+        }
+
+        this.channel.position(valid);
+        return entries;
+    }
+
+    private void run(Deque<Entry> replay) {
+        List<Entry> batch = new ArrayList<>();
+        long acknowledgedBytes = 0;
+
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Entry first = this.queue.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+
+                if (first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch);
+
+                    this.append(batch);
+                    replay.addAll(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException exception) {
+                exception.printStackTrace();
+                Bukkit.getServer().getLogger().severe("[2FA] Could not write to the storage journal!");
+                replay.addAll(batch);
+                batch.clear();
+            }
+
+            acknowledgedBytes += this.replay(replay);
+
+            try {
+                if (replay.isEmpty() && this.channel.size() > 0) {
+                    this.channel.truncate(0);
+                    this.channel.position(0);
+                    acknowledgedBytes = 0;
+                } else if (acknowledgedBytes > COMPACT_THRESHOLD) {
+                    this.rewrite(replay);
+                    acknowledgedBytes = 0;
+                }
+            } catch (IOException exception) {
+                exception.printStackTrace();
+                Bukkit.getServer().getLogger().severe("[2FA] Could not compact the storage journal!");
+            }
+        }
+
+        try {
+            this.channel.force(true);
+            this.channel.close();
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends a batch of entries to the journal and syncs it to disk once
+     */
+    private void append(List<Entry> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        for (Entry entry : batch) {
+            entry.writeTo(bytes);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+
+        this.channel.force(false);
+    }
+
+    /**
+     * Sends entries to the storage in order, until one is not accepted
+     *
+     * @return Size of the accepted entries in the journal
+     */
+    private long replay(Deque<Entry> replay) {
+        long acknowledged = 0;
+
+        while (!replay.isEmpty()) {
+            Entry entry = replay.peekFirst();
+
+            if (!this.storage.tryWrite(() -> entry.apply(this.storage.getStorage()))) {
+                break;
+            }
+
+            replay.pollFirst();
+            this.acknowledge(entry);
+            acknowledged += entry.size();
+        }
+
+        return acknowledged;
+    }
+
+    /**
+     * Replaces the journal with one holding only the entries that were not accepted yet
+     */
+    private void rewrite(Deque<Entry> replay) throws IOException {
+        File temp = new File(this.file.getPath() + ".tmp");
+
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(temp))) {
+            for (Entry entry : replay) {
+                entry.writeTo(output);
+            }
+        }
+
+        try (FileChannel tempChannel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+            tempChannel.force(true);
+        }
+
+        this.channel.close();
+        Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.channel.position(this.channel.size());
+    }
+
+    private void write(Entry entry) {
+        // Queued under the lock unload() stops the writer with, so nothing is queued once the writer may have exited
+        synchronized (this.queue) {
+            if (this.running) {
+                this.track(entry);
+                this.queue.add(entry);
+                return;
+            }
+        }
+
+        // Already unloaded. Writing straight to the storage is the best that can be done now
+        this.storage.tryWrite(() -> entry.apply(this.storage.getStorage()));
+    }
+
+    private void track(Entry entry) {
+        this.pending.compute(entry.uuid, (uuid, pending) -> {
+            if (pending == null) {
+                pending = new Pending();
+            }
+
+            pending.set(entry);
+            return pending;
+        });
+    }
+
+    private void acknowledge(Entry entry) {
+        this.pending.computeIfPresent(entry.uuid, (uuid, pending) -> pending.acknowledge(entry) ? null : pending);
+    }
+
+    private @Nullable Pending getPending(UUID uuid) {
+        return this.pending.get(uuid);
+    }
+
+    @Override
+    public String setKey(UUID uuid, String key) {
+        this.write(new Entry(KEY, uuid, key, 0));
+        return key;
+    }
+
+    @Override
+    public String getKey(UUID uuid) {
+        Pending pending = this.getPending(uuid);
+        Entry entry = pending == null ? null : pending.get(KEY);
+        return entry != null ? entry.text : this.storage.getKey(uuid);
+    }
+
+    @Override
+    public boolean hasKey(UUID uuid) {
+        return this.getKey(uuid) != null;
+    }
+
+    @Override
+    public void removeKey(UUID uuid) {
+        this.setKey(uuid, null);
+    }
+
+    @Override
+    public String setIP(UUID uuid, String ip) {
+        this.write(new Entry(IP, uuid, ip, 0));
+        return ip;
+    }
+
+    @Override
+    public String getIP(UUID uuid) {
+        Pending pending = this.getPending(uuid);
+        Entry entry = pending == null ? null : pending.get(IP);
+        return entry != null ? entry.text : this.storage.getIP(uuid);
+    }
+
+    @Override
+    public boolean hasIP(UUID uuid) {
+        return this.getIP(uuid) != null;
+    }
+
+    @Override
+    public long setEnableDate(UUID uuid, long enableDate) {
+        this.write(new Entry(ENABLE_DATE, uuid, null, enableDate));
+        return enableDate;
+    }
+
+    @Override
+    public long getEnableDate(UUID uuid) {
+        Pending pending = this.getPending(uuid);
+        Entry entry = pending == null ? null : pending.get(ENABLE_DATE);
+        return entry != null ? entry.number : this.storage.getEnableDate(uuid);
+    }
+
+    @Override
+    public boolean hasEnableDate(UUID uuid) {
+        return this.getEnableDate(uuid) != -1;
+    }
+
+    /**
+     * Bulk operations go to the storage directly. Changes still in the journal are not part of the iteration
+     */
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        this.storage.forEachRecord(after, before, consumer);
+    }
+
+    @Override
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        this.storage.saveRecords(records);
+    }
+
+    /**
+     * Changes still in the journal are applied on top of the records read from the storage
+     */
+    @Override
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> records = new HashMap<>(this.storage.loadPlayers(uuids));
+
+        for (Map.Entry<UUID, PlayerRecord> entry : records.entrySet()) {
+            Pending pending = this.getPending(entry.getKey());
+            if (pending == null) {
+                continue;
+            }
+
+            PlayerRecord record = entry.getValue();
+            Entry key = pending.get(KEY);
+            Entry ip = pending.get(IP);
+            Entry enableDate = pending.get(ENABLE_DATE);
+
+            entry.setValue(new PlayerRecord(record.getUuid(), key != null ? key.text : record.getKey(), ip != null ? ip.text : record.getIP(),
+                    enableDate != null ? enableDate.number : record.getEnableDate()));
+        }
+
+        return records;
+    }
+
+    /**
+     * Writes the queued changes to the journal and tries to replay them once more. Changes the storage still
+     * doesn't accept stay in the journal for the next start
+     */
+    @Override
+    public void unload() {
+        // The writer notices within a second, writes what is left in the queue and replays once more
+        synchronized (this.queue) {
+            this.running = false;
+        }
+
+        try {
+            this.writer.join(10000);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        int left = this.getPendingChanges();
+        if (left > 0) {
+            Bukkit.getServer().getLogger().warning("[2FA] " + left + " changes could not be saved to the storage yet. They are kept in the journal until the next start");
+        }
+
+        this.storage.unload();
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return this.storage.isLoaded();
+    }
+
+    /**
+     * A single change of one field of a player
+     */
+    private static final class Entry {
+
+        private final byte type;
+        private final UUID uuid;
+        private final String text;
+        private final long number;
+
+        private byte[] body;
+
+        private Entry(byte type, UUID uuid, @Nullable String text, long number) {
+            this.type = type;
+            this.uuid = uuid;
+            this.text = text;
+            this.number = number;
+        }
+
+        private static Entry decode(byte[] body) throws IOException {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+
+            byte type = input.readByte();
+            UUID uuid = new UUID(input.readLong(), input.readLong());
+
+            Entry entry;
+            if (type == ENABLE_DATE) {
+                entry = new Entry(type, uuid, null, input.readLong());
+            } else {
+                entry = new Entry(type, uuid, input.readBoolean() ? input.readUTF() : null, 0);
+            }
+
+            entry.body = body;
+            return entry;
+        }
+
+        private byte[] getBody() throws IOException {
+            if (this.body == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                DataOutputStream output = new DataOutputStream(bytes);
+
+                output.writeByte(this.type);
+                output.writeLong(this.uuid.getMostSignificantBits());
+                output.writeLong(this.uuid.getLeastSignificantBits());
+
+                if (this.type == ENABLE_DATE) {
+                    output.writeLong(this.number);
+                } else {
+                    output.writeBoolean(this.text != null);
+                    if (this.text != null) {
+                        output.writeUTF(this.text);
+                    }
+                }
+
+                this.body = bytes.toByteArray();
+            }
+
+            return this.body;
+        }
+
+        private void writeTo(OutputStream stream) throws IOException {
+            byte[] body = this.getBody();
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            DataOutputStream output = new DataOutputStream(stream);
+            output.writeInt(body.length);
+            output.writeInt((int) crc.getValue());
+            output.write(body);
+        }
+
+        private long size() {
+            return this.body == null ? 0 : 8 + this.body.length;
+        }
+
+        private void apply(StorageHandler storage) {
+            // Some storages only queue their writes, so the change is only acknowledged once it is stored
+            storage.writeAndWait(() -> {
+                switch (this.type) {
+                    case KEY:
+                        if (this.text == null) {
+                            storage.removeKey(this.uuid);
+                        } else {
+                            storage.setKey(this.uuid, this.text);
+                        }
+                        break;
+                    case IP:
+                        storage.setIP(this.uuid, this.text);
+                        break;
+                    default:
+                        storage.setEnableDate(this.uuid, this.number);
+                }
+            });
+        }
+    }
+
+    /**
+     * The latest changes of a player that the storage didn't accept yet, one per field
+     */
+    private static final class Pending {
+
+        private final Entry[] entries = new Entry[3];
+
+        private synchronized void set(Entry entry) {
+            this.entries[entry.type - 1] = entry;
+        }
+
+        private synchronized @Nullable Entry get(byte type) {
+            return this.entries[type - 1];
+        }
+
+        /**
+         * @return   Whether no change of the player is pending anymore
+         */
+        private synchronized boolean acknowledge(Entry entry) {
+            if (this.entries[entry.type - 1] == entry) {
+                this.entries[entry.type - 1] = null;
+            }
+
+            return this.size() == 0;
+        }
+
+        private synchronized int size() {
+            int size = 0;
+            for (Entry entry : this.entries) {
+                if (entry != null) {
+                    size++;
+                }
+            }
+            return size;
+        }
+    }
+}
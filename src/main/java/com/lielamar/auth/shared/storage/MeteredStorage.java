@@ -0,0 +1,167 @@
+package com.lielamar.auth.shared.storage;
+
+import com.lielamar.auth.shared.metrics.AuthMetrics;
+import com.lielamar.auth.shared.metrics.LatencyHistogram;
+import com.lielamar.auth.shared.utils.JoinProfiler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Wraps a storage and records how long its operations take, and which joins they were made for
+ */
+public class MeteredStorage extends StorageHandler {
+
+    private final StorageHandler storage;
+
+    private final LatencyHistogram reads;
+    private final LatencyHistogram writes;
+    private final LatencyHistogram batchWrites;
+
+    private final JoinProfiler joinProfiler;
+
+    /**
+     * @param storage Storage to wrap
+     * @param backend Name the storage's metrics are recorded under
+     * @param metrics Metrics to record to, or null to not time the operations
+     * @param joinProfiler Profiler to report calls to, or null
+     */
+    public MeteredStorage(@NotNull StorageHandler storage, @NotNull String backend, @Nullable AuthMetrics metrics, @Nullable JoinProfiler joinProfiler) {
+        this.storage = storage;
+
+        this.reads = metrics == null ? null : metrics.getStorageLatency(backend, "read");
+        this.writes = metrics == null ? null : metrics.getStorageLatency(backend, "write");
+        this.batchWrites = metrics == null ? null : metrics.getStorageLatency(backend, "batch_write");
+
+        this.joinProfiler = joinProfiler;
+    }
+
+    public @NotNull StorageHandler getStorage() {
+        return this.storage;
+    }
+
+    private <T> T time(@Nullable LatencyHistogram histogram, Supplier<T> operation) {
+        if (this.joinProfiler != null) {
+            this.joinProfiler.storageCall();
+        }
+
+        if (histogram == null) {
+            return operation.get();
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            return operation.get();
+        } finally {
+            histogram.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void setFailureListener(@Nullable Consumer<Throwable> failureListener) {
+        this.storage.setFailureListener(failureListener);
+    }
+
+    @Override
+    public void writeAndWait(@NotNull Runnable writes) {
+        this.storage.writeAndWait(writes);
+    }
+
+    @Override
+    public String setKey(UUID uuid, String secretKey) {
+        return this.time(this.writes, () -> this.storage.setKey(uuid, secretKey));
+    }
+
+    @Override
+    public String getKey(UUID uuid) {
+        return this.time(this.reads, () -> this.storage.getKey(uuid));
+    }
+
+    @Override
+    public boolean hasKey(UUID uuid) {
+        return this.time(this.reads, () -> this.storage.hasKey(uuid));
+    }
+
+    @Override
+    public void removeKey(UUID uuid) {
+        this.time(this.writes, () -> {
+            this.storage.removeKey(uuid);
+            return null;
+        });
+    }
+
+    @Override
+    public String setIP(UUID uuid, String lastIP) {
+        return this.time(this.writes, () -> this.storage.setIP(uuid, lastIP));
+    }
+
+    @Override
+    public String getIP(UUID uuid) {
+        return this.time(this.reads, () -> this.storage.getIP(uuid));
+    }
+
+    @Override
+    public boolean hasIP(UUID uuid) {
+        return this.time(this.reads, () -> this.storage.hasIP(uuid));
+    }
+
+    @Override
+    public long setEnableDate(UUID uuid, long enableDate) {
+        return this.time(this.writes, () -> this.storage.setEnableDate(uuid, enableDate));
+    }
+
+    @Override
+    public long getEnableDate(UUID uuid) {
+        return this.time(this.reads, () -> this.storage.getEnableDate(uuid));
+    }
+
+    @Override
+    public boolean hasEnableDate(UUID uuid) {
+        return this.time(this.reads, () -> this.storage.hasEnableDate(uuid));
+    }
+
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        this.storage.forEachRecord(after, before, consumer);
+    }
+
+    @Override
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        return this.time(this.reads, () -> this.storage.loadPlayers(uuids));
+    }
+
+    @Override
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        if (this.batchWrites == null) {
+            this.storage.saveRecords(records);
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            this.storage.saveRecords(records);
+        } finally {
+            this.batchWrites.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void unload() {
+        this.storage.unload();
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return this.storage.isLoaded();
+    }
+}
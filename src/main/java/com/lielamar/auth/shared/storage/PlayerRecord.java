@@ -0,0 +1,47 @@
+package com.lielamar.auth.shared.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Everything a storage keeps about a single player
+ */
+public final class PlayerRecord {
+
+    private final UUID uuid;
+    private final String key;
+    private final String ip;
+    private final long enableDate;
+
+    public PlayerRecord(@NotNull UUID uuid, @Nullable String key, @Nullable String ip, long enableDate) {
+        this.uuid = uuid;
+        this.key = key;
+        this.ip = ip;
+        this.enableDate = enableDate;
+    }
+
+    public @NotNull UUID getUuid() {
+        return this.uuid;
+    }
+
+    public @Nullable String getKey() {
+        return this.key;
+    }
+
+    public @Nullable String getIP() {
+        return this.ip;
+    }
+
+    public long getEnableDate() {
+        return this.enableDate;
+    }
+
+    /**
+     * @return   Whether the record belongs to a player without 2FA
+     */
+    public boolean isEmpty() {
+        return this.key == null && this.enableDate == -1;
+    }
+}
@@ -1,17 +1,36 @@
 package com.lielamar.auth.shared.storage;
 
 import com.lielamar.auth.shared.handlers.ConfigHandler;
+import com.lielamar.auth.shared.metrics.AuthMetrics;
 import com.lielamar.auth.shared.storage.json.JSONStorage;
+import com.lielamar.auth.shared.storage.mongodb.MongoDBAsyncStorage;
 import com.lielamar.auth.shared.storage.mongodb.MongoDBStorage;
+import com.lielamar.auth.shared.storage.sql.H2Storage;
 import com.lielamar.auth.shared.storage.sql.SQLStorage;
+import com.lielamar.auth.shared.storage.sql.ShardedStorage;
+import com.lielamar.auth.shared.utils.JoinProfiler;
 import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public abstract class StorageHandler {
 
     public static boolean isLoaded;
 
+    private volatile Consumer<Throwable> failureListener;
+
     /**
      * Sets the Key of the player who's UUID is uuid
      *
@@ -94,6 +113,111 @@ public abstract class StorageHandler {
      */
     public abstract boolean hasEnableDate(UUID uuid);
 
+    /**
+     * Goes over every stored record with a uuid between after and before (both exclusive, compared as strings),
+     * ordered by uuid. Records are read a few at a time, so the whole storage is never held in memory.
+     *
+     * @param after uuid to start after, or null to start at the first record
+     * @param before uuid to stop before, or null to go until the last record
+     * @param consumer Called with every record. Returning false stops the iteration
+     */
+    public abstract void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer);
+
+    /**
+     * Stores a batch of records, replacing whatever was stored for those players before
+     *
+     * @param records Records to store
+     * @throws IOException Throws an exception if the records could not be stored
+     */
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        for (PlayerRecord record : records) {
+            this.setKey(record.getUuid(), record.getKey());
+            this.setIP(record.getUuid(), record.getIP());
+            this.setEnableDate(record.getUuid(), record.getEnableDate());
+        }
+    }
+
+    /**
+     * Runs writes on this storage and returns once they are stored. Storages whose setters return before the write is
+     * done override this, so the journal only acknowledges changes that were actually stored
+     *
+     * @param writes Writes to run
+     */
+    public void writeAndWait(@NotNull Runnable writes) {
+        writes.run();
+    }
+
+    /**
+     * Reads the stored data of several players at once. Storages that can look up many players in one query
+     * override this
+     *
+     * @param uuids Players to read
+     * @return Records of the players by their uuid. Players without stored data get an empty record, and players
+     *         that could not be read are left out
+     */
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> records = new HashMap<>();
+
+        for (UUID uuid : uuids) {
+            records.put(uuid, new PlayerRecord(uuid, this.getKey(uuid), this.getIP(uuid), this.getEnableDate(uuid)));
+        }
+
+        return records;
+    }
+
+    /**
+     * Splits a collection into lists of at most the given size, for storages that read players in chunks
+     */
+    protected static <T> List<List<T>> partition(@NotNull Collection<T> values, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        List<T> chunk = new ArrayList<>(Math.min(size, values.size()));
+
+        for (T value : values) {
+            chunk.add(value);
+
+            if (chunk.size() == size) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(size);
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Checks whether a uuid is inside the range given to {@link #forEachRecord(String, String, Predicate)}
+     */
+    protected static boolean isInRange(@NotNull String uuid, @Nullable String after, @Nullable String before) {
+        return (after == null || uuid.compareTo(after) > 0) && (before == null || uuid.compareTo(before) < 0);
+    }
+
+    /**
+     * Sets a listener to be told about operations that could not reach the database
+     *
+     * @param failureListener Listener to set, or null to remove it
+     */
+    public void setFailureListener(@Nullable Consumer<Throwable> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * Reports an operation that could not reach the database. Storages that catch their own errors call this, so the
+     * failure is still noticed by a wrapping {@link CircuitBreakerStorage}
+     *
+     * @param throwable Error of the operation
+     */
+    protected void reportFailure(@NotNull Throwable throwable) {
+        Consumer<Throwable> listener = this.failureListener;
+
+        if (listener != null) {
+            listener.accept(throwable);
+        }
+    }
+
     /**
      * Unloads everything related to the storage type
      */
@@ -112,41 +236,180 @@ public abstract class StorageHandler {
      * @return Created Storage Handler
      */
     public static StorageHandler loadStorageHandler(ConfigHandler configHandler, String absolutePath) {
+        return loadStorageHandler(configHandler, absolutePath, null, null);
+    }
+
+    /**
+     * Sets up the Storage connection of the database
+     *
+     * @param configHandler Config the get the necessary data from
+     * @param absolutePath
+     * @param metrics Metrics to record the duration of the storage's operations to, or null to not record them
+     * @param joinProfiler Profiler to report the storage's calls to, or null
+     * @return Created Storage Handler
+     */
+    public static StorageHandler loadStorageHandler(ConfigHandler configHandler, String absolutePath, @Nullable AuthMetrics metrics,
+            @Nullable JoinProfiler joinProfiler) {
         try {
             isLoaded = true;
-            switch (configHandler.getStorageMethod()) {
-                case MYSQL:
-                    return new SQLStorage("com.mysql.cj.jdbc.MysqlDataSource",
-                            configHandler.getHost(), configHandler.getDatabase(), configHandler.getUsername(), configHandler.getPassword(), configHandler.getPort(),
-                            configHandler.getTablePrefix(), configHandler.getMaximumPoolSize(), configHandler.getMinimumIdle(), configHandler.getMaximumLifetime(), configHandler.getKeepAliveTime(), configHandler.getConnectionTimeout());
-
-                case H2:
-                    return new SQLStorage("org.h2.jdbcx.JdbcDataSource",
-                            configHandler.getHost(), configHandler.getDatabase(), configHandler.getUsername(), configHandler.getPassword(), configHandler.getPort(),
-                            configHandler.getTablePrefix(), configHandler.getMaximumPoolSize(), configHandler.getMinimumIdle(), configHandler.getMaximumLifetime(), configHandler.getKeepAliveTime(), configHandler.getConnectionTimeout());
-
-                case MARIADB:
-                    return new SQLStorage("org.mariadb.jdbc.MariaDbDataSource",
-                            configHandler.getHost(), configHandler.getDatabase(), configHandler.getUsername(), configHandler.getPassword(), configHandler.getPort(),
-                            configHandler.getTablePrefix(), configHandler.getMaximumPoolSize(), configHandler.getMinimumIdle(), configHandler.getMaximumLifetime(), configHandler.getKeepAliveTime(), configHandler.getConnectionTimeout());
-
-                case POSTGRESQL:
-                    return new SQLStorage("org.postgresql.ds.PGSimpleDataSource",
-                            configHandler.getHost(), configHandler.getDatabase(), configHandler.getUsername(), configHandler.getPassword(), configHandler.getPort(),
-                            configHandler.getTablePrefix(), configHandler.getMaximumPoolSize(), configHandler.getMinimumIdle(), configHandler.getMaximumLifetime(), configHandler.getKeepAliveTime(), configHandler.getConnectionTimeout());
-
-                case MONGODB:
-                    return new MongoDBStorage(configHandler.getHost(), configHandler.getDatabase(), configHandler.getUsername(), configHandler.getPassword(), configHandler.getPort(),
-                            configHandler.getCollectionPrefix(), configHandler.getMongodbURI());
-
-                default: // JSON
-                    return new JSONStorage(absolutePath);
+            StorageHandler storageHandler = createStorageHandler(configHandler.getStorageMethod(), configHandler, absolutePath);
+
+            if (metrics != null || joinProfiler != null) {
+                storageHandler = new MeteredStorage(storageHandler, configHandler.getStorageMethod().name(), metrics, joinProfiler);
             }
+
+            if (configHandler.getStorageMethod().isRemote() && configHandler.isCircuitBreakerEnabled()) {
+                storageHandler = new CircuitBreakerStorage(storageHandler, configHandler.getCircuitBreakerFailureThreshold(),
+                        configHandler.getCircuitBreakerProbeInterval() * 1000L, configHandler.getCircuitBreakerCacheSize());
+
+                if (configHandler.isJournalEnabled()) {
+                    try {
+                        storageHandler = new JournaledStorage((CircuitBreakerStorage) storageHandler, new File(absolutePath, "storage.journal"));
+                    } catch (IOException exception) {
+                        exception.printStackTrace();
+                        Bukkit.getServer().getLogger().severe("[2FA] Could not open the storage journal. Changes made while the database is down will be lost!");
+                    }
+                }
+            } else if (configHandler.getStorageMethod().isRemote() && configHandler.isJournalEnabled()) {
+                // The journal replays changes once the circuit breaker sees the database is back up, so it can't run without it
+                Bukkit.getServer().getLogger().warning("[2FA] The storage journal requires the circuit breaker and is not used. "
+                        + "Enable storage-data.circuit-breaker.enabled, or disable storage-data.journal.enabled to hide this warning");
+            }
+
+            return storageHandler;
         } catch (Exception exception) {
             isLoaded = false;
             exception.printStackTrace();
             Bukkit.getServer().getLogger().severe("Couldn't load the Database you specified for the above reason. Defaulting to JSON!");
-            return new JSONStorage(absolutePath);
+
+            StorageHandler storageHandler = new JSONStorage(absolutePath, configHandler.getJsonCacheSize(), configHandler.getJsonWriteDelay());
+            return metrics != null || joinProfiler != null ? new MeteredStorage(storageHandler, StorageMethod.JSON.name(), metrics, joinProfiler) : storageHandler;
+        }
+    }
+
+    /**
+     * Returns the storage that actually holds the data, without the journal, circuit breaker or metrics around it
+     *
+     * @param storage Storage to unwrap
+     * @return Backing storage
+     */
+    public static StorageHandler getBackingStorage(StorageHandler storage) {
+        if (storage instanceof JournaledStorage) {
+            storage = ((JournaledStorage) storage).getStorage();
+        }
+
+        if (storage instanceof CircuitBreakerStorage) {
+            storage = ((CircuitBreakerStorage) storage).getStorage();
+        }
+
+        if (storage instanceof MeteredStorage) {
+            storage = ((MeteredStorage) storage).getStorage();
+        }
+
+        return storage;
+    }
+
+    /**
+     * Creates a Storage Handler of a specific storage method
+     *
+     * @param storageMethod Storage method to create the handler of
+     * @param configHandler Config the get the necessary data from
+     * @param absolutePath Plugin's data folder
+     * @return Created Storage Handler
+     * @throws Exception Throws an exception if the storage could not be set up
+     */
+    public static StorageHandler createStorageHandler(StorageMethod storageMethod, ConfigHandler configHandler, String absolutePath) throws Exception {
+        switch (storageMethod) {
+            case MYSQL:
+                return createSQLStorage("com.mysql.cj.jdbc.MysqlDataSource", configHandler);
+
+            case H2:
+                return new H2Storage(absolutePath, configHandler.getDatabase(), configHandler.getTablePrefix(), configHandler.getH2CacheSize(),
+                        configHandler.getMaximumPoolSize(), configHandler.getMinimumIdle(), configHandler.getMaximumLifetime(), configHandler.getKeepAliveTime(), configHandler.getConnectionTimeout());
+
+            case MARIADB:
+                return createSQLStorage("org.mariadb.jdbc.MariaDbDataSource", configHandler);
+
+            case POSTGRESQL:
+                return createSQLStorage("org.postgresql.ds.PGSimpleDataSource", configHandler);
+
+            case MONGODB:
+                return new MongoDBStorage(configHandler.getHost(), configHandler.getDatabase(), configHandler.getUsername(), configHandler.getPassword(), configHandler.getPort(),
+                        configHandler.getCollectionPrefix(), configHandler.getMongodbURI());
+
+            case MONGODB_ASYNC:
+                return new MongoDBAsyncStorage(configHandler.getHost(), configHandler.getDatabase(), configHandler.getUsername(), configHandler.getPassword(), configHandler.getPort(),
+                        configHandler.getCollectionPrefix(), configHandler.getMongodbURI());
+
+            default: // JSON
+                return new JSONStorage(absolutePath, configHandler.getJsonCacheSize(), configHandler.getJsonWriteDelay());
         }
     }
+
+    /**
+     * Creates a SQL storage on a database server. If shards are configured, the players are split over the main
+     * database and the shards
+     *
+     * @param driver Class name of the data source
+     * @param configHandler Config the get the necessary data from
+     * @return Created Storage Handler
+     */
+    private static StorageHandler createSQLStorage(String driver, ConfigHandler configHandler) {
+        SQLStorage main = createSQLStorage(driver, configHandler, configHandler.getHost(), configHandler.getPort(), configHandler.getDatabase());
+
+        if (configHandler.getShards().isEmpty()) {
+            return withReadReplica(main, configHandler);
+        }
+
+        if (configHandler.getReadReplicaHost().length() > 0) {
+            Bukkit.getServer().getLogger().warning("[2FA] Read replicas are not used together with shards, reading from the shards directly");
+        }
+
+        Map<String, SQLStorage> shards = new LinkedHashMap<>();
+        shards.put(configHandler.getHost() + ":" + configHandler.getPort() + "/" + configHandler.getDatabase(), main);
+
+        for (String shard : configHandler.getShards()) {
+            // host[:port][/database]
+            String address = shard, database = configHandler.getDatabase();
+            int port = configHandler.getPort();
+
+            if (address.contains("/")) {
+                database = address.substring(address.indexOf('/') + 1);
+                address = address.substring(0, address.indexOf('/'));
+            }
+            if (address.contains(":")) {
+                port = Integer.parseInt(address.substring(address.indexOf(':') + 1));
+                address = address.substring(0, address.indexOf(':'));
+            }
+
+            shards.put(address + ":" + port + "/" + database, createSQLStorage(driver, configHandler, address, port, database));
+        }
+
+        return new ShardedStorage(shards);
+    }
+
+    private static SQLStorage createSQLStorage(String driver, ConfigHandler configHandler, String host, int port, String database) {
+        return new SQLStorage(driver, host, database, configHandler.getUsername(), configHandler.getPassword(), port,
+                configHandler.getTablePrefix(), configHandler.getMaximumPoolSize(), configHandler.getMinimumIdle(), configHandler.getMaximumLifetime(), configHandler.getKeepAliveTime(), configHandler.getConnectionTimeout());
+    }
+
+    /**
+     * Sets up the read replica of a SQL storage, if one is configured
+     *
+     * @param storage Storage to set the replica of
+     * @param configHandler Config the get the necessary data from
+     * @return The storage
+     */
+    private static SQLStorage withReadReplica(SQLStorage storage, ConfigHandler configHandler) {
+        if (configHandler.getReadReplicaHost().length() > 0) {
+            boolean ownCredentials = configHandler.getReadReplicaUsername().length() > 0;
+
+            storage.setReadReplica(configHandler.getReadReplicaHost(), configHandler.getReadReplicaPort(),
+                    ownCredentials ? configHandler.getReadReplicaUsername() : configHandler.getUsername(),
+                    ownCredentials ? configHandler.getReadReplicaPassword() : configHandler.getPassword(),
+                    configHandler.getDatabase(), configHandler.getReadReplicaConsistencyWindow() * 1000L);
+        }
+
+        return storage;
+    }
 }
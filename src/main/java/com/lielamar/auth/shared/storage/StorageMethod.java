@@ -2,11 +2,24 @@ package com.lielamar.auth.shared.storage;
 
 public enum StorageMethod {
 
-    JSON,
-    H2,
-    MYSQL,
-    MARIADB,
-    POSTGRESQL,
-    MONGODB
+    JSON(false),
+    H2(false),
+    MYSQL(true),
+    MARIADB(true),
+    POSTGRESQL(true),
+    MONGODB(true),
+    MONGODB_ASYNC(true);
 
+    private final boolean remote;
+
+    StorageMethod(boolean remote) {
+        this.remote = remote;
+    }
+
+    /**
+     * @return   Whether the data is stored on a database server rather than in the plugin's folder
+     */
+    public boolean isRemote() {
+        return this.remote;
+    }
 }
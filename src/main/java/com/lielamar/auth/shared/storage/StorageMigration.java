@@ -0,0 +1,193 @@
+package com.lielamar.auth.shared.storage;
+
+import com.lielamar.auth.shared.storage.json.JSONUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Copies every record of one storage to another.
+ *
+ * The uuid space is split into 16 partitions by the first hex digit, which are read in parallel and written to the
+ * target in batches. After every batch the last written uuid of the partition is saved to a checkpoint file, so an
+ * interrupted migration continues where it stopped the next time it runs.
+ */
+public class StorageMigration {
+
+    private static final String[] PARTITIONS = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c", "d", "e", "f"};
+    private static final String DONE = "done";
+
+    private final StorageHandler source;
+    private final StorageHandler target;
+    private final File checkpointFile;
+    private final int readers;
+    private final int batchSize;
+
+    private final JSONObject checkpoints;
+    private final boolean resuming;
+
+    private final AtomicLong migrated;
+    private volatile IOException failure;
+
+    public StorageMigration(@NotNull StorageHandler source, @NotNull StorageHandler target, @NotNull File checkpointFile, int readers, int batchSize) {
+        this.source = source;
+        this.target = target;
+        this.checkpointFile = checkpointFile;
+        this.readers = Math.max(1, readers);
+        this.batchSize = Math.max(1, batchSize);
+
+        this.checkpoints = this.readCheckpoints();
+        this.resuming = this.checkpoints.length() > 0;
+
+        this.migrated = new AtomicLong();
+        this.failure = null;
+    }
+
+    /**
+     * @return   Whether a checkpoint of a previous run was found
+     */
+    public boolean isResuming() {
+        return this.resuming;
+    }
+
+    public long getMigrated() {
+        return this.migrated.get();
+    }
+
+    /**
+     * Runs the migration on the calling thread until every partition is copied or a write fails
+     *
+     * @param progress Called every few seconds with a progress message
+     * @return Whether every record was migrated. If not, the checkpoint file is kept
+     */
+    public boolean run(@NotNull Consumer<String> progress) {
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(this.readers, runnable -> {
+            Thread thread = new Thread(runnable, "2FA Migration Reader #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < PARTITIONS.length; i++) {
+            String partition = PARTITIONS[i];
+            String after = this.getCheckpoint(partition);
+
+            if (DONE.equals(after)) {
+                continue;
+            }
+
+            // Partition 0 also takes anything sorted before "1", and the last one anything after "f"
+            String start = after != null ? after : (i == 0 ? null : partition);
+            String end = i + 1 < PARTITIONS.length ? PARTITIONS[i + 1] : null;
+
+            executor.execute(() -> this.migratePartition(partition, start, end));
+        }
+
+        executor.shutdown();
+
+        long startTime = System.currentTimeMillis();
+        long lastCount = 0, lastTime = startTime;
+
+        try {
+            while (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                long now = System.currentTimeMillis(), count = this.migrated.get();
+
+                progress.accept("Migrated " + count + " records (" + (count - lastCount) * 1000 / Math.max(1, now - lastTime) + " records/s)");
+                lastCount = count;
+                lastTime = now;
+            }
+        } catch (InterruptedException exception) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        long took = Math.max(1, System.currentTimeMillis() - startTime);
+
+        if (this.failure != null) {
+            this.failure.printStackTrace();
+            progress.accept("Migration stopped after " + this.migrated.get() + " records: " + this.failure.getMessage() + ". Run it again to continue.");
+            return false;
+        }
+
+        this.checkpointFile.delete();
+        progress.accept("Migrated " + this.migrated.get() + " records in " + took / 1000 + "s (" + this.migrated.get() * 1000 / took + " records/s)");
+        return true;
+    }
+
+    private void migratePartition(String partition, @Nullable String after, @Nullable String before) {
+        List<PlayerRecord> batch = new ArrayList<>(this.batchSize);
+
+        this.source.forEachRecord(after, before, record -> {
+            if (this.failure != null) {
+                return false;
+            }
+
+            batch.add(record);
+
+            if (batch.size() >= this.batchSize) {
+                return this.writeBatch(partition, batch);
+            }
+
+            return true;
+        });
+
+        if (this.failure == null && (batch.isEmpty() || this.writeBatch(partition, batch))) {
+            this.setCheckpoint(partition, DONE);
+        }
+    }
+
+    private boolean writeBatch(String partition, List<PlayerRecord> batch) {
+        try {
+            this.target.saveRecords(batch);
+        } catch (IOException exception) {
+            this.failure = exception;
+            return false;
+        }
+
+        this.migrated.addAndGet(batch.size());
+        this.setCheckpoint(partition, batch.get(batch.size() - 1).getUuid().toString());
+
+        batch.clear();
+        return true;
+    }
+
+    private synchronized @Nullable String getCheckpoint(String partition) {
+        return this.checkpoints.optString(partition, null);
+    }
+
+    private synchronized void setCheckpoint(String partition, String checkpoint) {
+        this.checkpoints.put(partition, checkpoint);
+
+        try {
+            JSONUtils.writeAtomically(this.checkpoints, this.checkpointFile);
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private JSONObject readCheckpoints() {
+        if (!this.checkpointFile.exists()) {
+            return new JSONObject();
+        }
+
+        try {
+            return JSONUtils.read(new FileInputStream(this.checkpointFile));
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            return new JSONObject();
+        }
+    }
+}
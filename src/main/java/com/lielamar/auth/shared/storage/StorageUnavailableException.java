@@ -0,0 +1,14 @@
+package com.lielamar.auth.shared.storage;
+
+import java.util.UUID;
+
+/**
+ * Thrown when a player's data is asked for while the storage is unreachable and the data is not known otherwise.
+ * The data is unknown, which is not the same as the player not having any.
+ */
+public class StorageUnavailableException extends RuntimeException {
+
+    public StorageUnavailableException(UUID uuid) {
+        super("The storage is unreachable and the data of " + uuid + " is not known");
+    }
+}
@@ -1,21 +1,73 @@
 package com.lielamar.auth.shared.storage.json;
 
+import com.lielamar.auth.shared.storage.PlayerRecord;
 import com.lielamar.auth.shared.storage.StorageHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.UUID;
-
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Stores every player in their own JSON file. Files are spread over two levels of directories named after the first
+ * four hex digits of the UUID (players/ab/cd/abcd....json), so no directory grows too large. Players without 2FA don't
+ * get a file at all.
+ *
+ * Records are loaded the first time they are needed and kept in a bounded LRU cache. Changes are written by a
+ * background thread every few moments (or straight away if the write delay is 0), through a temporary file that
+ * is then moved over the real one. Records that were changed stay in memory until their file was written, so a
+ * record is never read from a file that is older than the record in memory.
+ */
 public class JSONStorage extends StorageHandler {
 
     private final File dir;
 
+    private final Map<UUID, Record> records;
+    private final int cacheSize;
+    private final Object flushLock;
+
+    private final ScheduledExecutorService writer;
+
     public JSONStorage(String path) {
+        this(path, 2048, 1000);
+    }
+
+    /**
+     * @param path         Plugin's data folder
+     * @param cacheSize    Maximum amount of records to keep in memory
+     * @param writeDelay   Milliseconds between background writes, or 0 to write on every change
+     */
+    public JSONStorage(String path, int cacheSize, long writeDelay) {
         this.dir = new File(path + "/players/");
-        this.dir.mkdir();
+        this.dir.mkdirs();
+
+        this.records = new LinkedHashMap<>(16, 0.75f, true);
+        this.cacheSize = Math.max(1, cacheSize);
+        this.flushLock = new Object();
+
+        if (writeDelay > 0) {
+            this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "2FA JSON Writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.writer.scheduleWithFixedDelay(this::flush, writeDelay, writeDelay, TimeUnit.MILLISECONDS);
+        } else {
+            this.writer = null;
+        }
     }
 
     /**
@@ -25,191 +77,478 @@ public class JSONStorage extends StorageHandler {
      * @return JSON file
      */
     public File getFile(UUID uuid) {
-        return createFile(uuid);
+        String name = uuid.toString();
+        return new File(this.dir, name.substring(0, 2) + "/" + name.substring(2, 4) + "/" + name + ".json");
     }
 
     /**
-     * Checks if a JSON file of player exists. If not, it creates a new one.
+     * Returns the file a player's data was stored in before files were split into directories
      *
-     * @param uuid UUID of the player to create the file for
-     * @return Created file
+     * @param uuid Player's uuid to get the file of
+     * @return JSON file
      */
-    private File createFile(UUID uuid) {
-        File file = new File(this.dir, uuid.toString() + ".json");
+    public File getLegacyFile(UUID uuid) {
+        return new File(this.dir, uuid.toString() + ".json");
+    }
+
+    /**
+     * Returns the record of a player, loading it from their file if it isn't in memory
+     *
+     * @param uuid UUID of the player to get the record of
+     * @return Player's record
+     */
+    private Record getRecord(UUID uuid) {
+        synchronized (this) {
+            Record record = this.records.get(uuid);
+
+            if (record != null) {
+                return record;
+            }
+        }
+
+        Record loaded = this.load(uuid);
+
+        synchronized (this) {
+            // Another thread might have loaded the record while this one was reading the file
+            Record record = this.records.get(uuid);
+
+            if (record != null) {
+                return record;
+            }
+
+            this.records.put(uuid, loaded);
+            this.trim();
+            return loaded;
+        }
+    }
+
+    /**
+     * Drops the least recently used records that are written until at most cacheSize records are in memory.
+     * The most recently used record is always kept, since it was just loaded to be read or changed.
+     * Must be called while holding the lock of this storage
+     */
+    private void trim() {
+        Iterator<Record> iterator = this.records.values().iterator();
+
+        while (this.records.size() > this.cacheSize && iterator.hasNext()) {
+            Record record = iterator.next();
+
+            if (iterator.hasNext() && !record.isDirty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads a player's file. Players without a file get an empty record, which is only written once it changes.
+     *
+     * @param uuid UUID of the player to load
+     * @return Loaded record
+     */
+    private Record load(UUID uuid) {
+        Record record = new Record();
+        File file = this.getFile(uuid);
+
+        if (!file.exists()) {
+            file = this.getLegacyFile(uuid);
 
-        try {
             if (!file.exists()) {
-                if (file.createNewFile()) {
-                    JSONObject jsonObject = new JSONObject();
-                    jsonObject.put("key", JSONObject.NULL);
-                    jsonObject.put("ip", JSONObject.NULL);
-                    jsonObject.put("enable_date", -1);
-                    JSONUtils.write(jsonObject, new FileOutputStream(file));
-                }
-            } else {
-                JSONObject jsonObject = JSONUtils.read(new FileInputStream(file));
-                boolean changed = false;
-                if (!jsonObject.has("key")) {
-                    jsonObject.put("key", JSONObject.NULL);
-                    changed = true;
+                return record;
+            }
+
+            record.legacy = true;
+        }
+
+        try {
+            record.read(JSONUtils.read(new FileInputStream(file)));
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+
+        return record;
+    }
+
+    /**
+     * Changes a player's record and writes it straight away if there is no background writer
+     *
+     * @param uuid UUID of the player to change
+     * @param change Change to make to the record
+     */
+    private void change(UUID uuid, Consumer<Record> change) {
+        while (true) {
+            this.getRecord(uuid);
+
+            synchronized (this) {
+                // The record may have been dropped from memory since it was loaded, in which case it is loaded again
+                Record record = this.records.get(uuid);
+
+                if (record != null) {
+                    change.accept(record);
+                    record.changes++;
+                    break;
                 }
-                if (!jsonObject.has("ip")) {
-                    jsonObject.put("ip", JSONObject.NULL);
-                    changed = true;
+            }
+        }
+
+        if (this.writer == null) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Writes every changed record to its file
+     */
+    public void flush() {
+        synchronized (this.flushLock) {
+            Map<UUID, Record> records = new LinkedHashMap<>();
+            Map<UUID, JSONObject> snapshots = new HashMap<>();
+            Map<UUID, Long> changes = new HashMap<>();
+
+            synchronized (this) {
+                for (Map.Entry<UUID, Record> entry : this.records.entrySet()) {
+                    Record record = entry.getValue();
+
+                    if (record.isDirty()) {
+                        records.put(entry.getKey(), record);
+                        snapshots.put(entry.getKey(), record.toJSON());
+                        changes.put(entry.getKey(), record.changes);
+                    }
                 }
-                if (!jsonObject.has("enable_date")) {
-                    jsonObject.put("enable_date", -1);
-                    changed = true;
+            }
+
+            if (records.isEmpty()) {
+                return;
+            }
+
+            for (Map.Entry<UUID, Record> entry : records.entrySet()) {
+                try {
+                    this.write(entry.getKey(), snapshots.get(entry.getKey()), entry.getValue());
+
+                    // The record stays dirty if it changed again while it was written
+                    synchronized (this) {
+                        entry.getValue().written = changes.get(entry.getKey());
+                    }
+                } catch (IOException exception) {
+                    // The record is still dirty, so it is written again on the next flush
+                    exception.printStackTrace();
                 }
+            }
+
+            synchronized (this) {
+                this.trim();
+            }
+        }
+    }
+
+    /**
+     * Writes a record to its file, or deletes the file if the record is empty
+     *
+     * @param uuid UUID of the player to write
+     * @param jsonObject Snapshot of the record
+     * @param record Record the snapshot was taken of
+     * @throws IOException Throws an exception if something goes wrong
+     */
+    private void write(UUID uuid, JSONObject jsonObject, Record record) throws IOException {
+        File file = this.getFile(uuid);
+
+        if (isEmpty(jsonObject)) {
+            Files.deleteIfExists(file.toPath());
+        } else {
+            file.getParentFile().mkdirs();
+            JSONUtils.writeAtomically(jsonObject, file);
+        }
+
+        if (record.legacy) {
+            Files.deleteIfExists(this.getLegacyFile(uuid).toPath());
+            record.legacy = false;
+        }
+    }
 
-                if (changed) {
-                    JSONUtils.write(jsonObject, new FileOutputStream(file));
+    /**
+     * Deletes the files of players without 2FA, moves files of the old flat layout into their directories and
+     * removes leftover temporary files. Runs on the calling thread, so it should be called asynchronously.
+     *
+     * @return Result of the compaction
+     */
+    public Compaction compact() {
+        this.flush();
+
+        Compaction compaction = new Compaction();
+
+        // The old layout can hold millions of files in this folder, so it is streamed instead of listed
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir.toPath())) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    this.compactFile(path.toFile(), compaction, true);
                 }
             }
         } catch (IOException exception) {
             exception.printStackTrace();
+            compaction.failed++;
         }
-        return file;
+
+        File[] directories = this.dir.listFiles(File::isDirectory);
+
+        if (directories != null) {
+            for (File directory : directories) {
+                this.compactDirectory(directory, compaction, 1);
+            }
+        }
+
+        return compaction;
     }
 
-    @Override
-    public String setKey(UUID uuid, String key) {
-        try {
-            
-            File file = getFile(uuid);
-            JSONObject jsonObject = JSONUtils.read(new FileInputStream(file));
+    private void compactDirectory(File directory, Compaction compaction, int depth) {
+        File[] files = directory.listFiles();
 
-            if (key == null) {
-                jsonObject.put("key", JSONObject.NULL);
-            } else {
-                jsonObject.put("key", key);
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory() && depth < 2) {
+                this.compactDirectory(file, compaction, depth + 1);
+            } else if (file.isFile()) {
+                this.compactFile(file, compaction, false);
             }
+        }
 
-            JSONUtils.write(jsonObject, new FileOutputStream(file));
+        String[] left = directory.list();
+        if (left != null && left.length == 0) {
+            directory.delete();
+        }
+    }
 
-            return key;
-        } catch (IOException exception) {
-            exception.printStackTrace();
+    private void compactFile(File file, Compaction compaction, boolean legacy) {
+        // Locks every file on its own, so changes keep being written while a large folder is compacted
+        synchronized (this.flushLock) {
+            this.compactFileLocked(file, compaction, legacy);
         }
-        return null;
     }
 
-    @Override
-    public String getKey(UUID uuid) {
+    private void compactFileLocked(File file, Compaction compaction, boolean legacy) {
+        String name = file.getName();
+
+        if (name.endsWith(".tmp")) {
+            file.delete();
+            return;
+        }
+
+        if (!name.endsWith(".json")) {
+            return;
+        }
+
+        compaction.scanned++;
+
         try {
-            
-            File file = getFile(uuid);
             JSONObject jsonObject = JSONUtils.read(new FileInputStream(file));
 
-            if (!jsonObject.has("key")) {
-                return null;
-            }
-            Object key = jsonObject.get("key");
-            if (key == JSONObject.NULL) {
-                return null;
+            if (isEmpty(jsonObject)) {
+                Files.delete(file.toPath());
+                compaction.pruned++;
+                return;
             }
 
-            return key.toString();
-        } catch (IOException exception) {
+            if (legacy) {
+                UUID uuid = UUID.fromString(name.substring(0, name.length() - ".json".length()));
+                File target = this.getFile(uuid);
+
+                // A file in the new layout was written after this one, so it is the one to keep
+                if (!target.exists()) {
+                    target.getParentFile().mkdirs();
+                    Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    Files.delete(file.toPath());
+                }
+
+                synchronized (this) {
+                    Record record = this.records.get(uuid);
+
+                    if (record != null) {
+                        record.legacy = false;
+                    }
+                }
+
+                compaction.migrated++;
+            }
+        } catch (IOException | IllegalArgumentException exception) {
             exception.printStackTrace();
+            compaction.failed++;
         }
-        return null;
     }
 
+    /**
+     * Goes over the records in the directory layout. Files of the old flat layout are skipped, so {@link #compact()}
+     * should run first if there might be any.
+     */
     @Override
-    public boolean hasKey(UUID uuid) {
-        return getKey(uuid) != null;
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        this.flush();
+
+        for (String first : list(this.dir, true)) {
+            if (!isPrefixInRange(first, after, before)) {
+                continue;
+            }
+
+            File firstDirectory = new File(this.dir, first);
+
+            for (String second : list(firstDirectory, true)) {
+                if (!isPrefixInRange(first + second, after, before)) {
+                    continue;
+                }
+
+                for (String name : list(new File(firstDirectory, second), false)) {
+                    String uuid = name.substring(0, name.length() - ".json".length());
+
+                    if (!isInRange(uuid, after, before)) {
+                        continue;
+                    }
+
+                    try {
+                        Record record = new Record();
+                        record.read(JSONUtils.read(new FileInputStream(new File(new File(firstDirectory, second), name))));
+
+                        if (!consumer.test(new PlayerRecord(UUID.fromString(uuid), record.key, record.ip, record.enableDate))) {
+                            return;
+                        }
+                    } catch (IOException | IllegalArgumentException exception) {
+                        exception.printStackTrace();
+                    }
+                }
+            }
+        }
     }
 
+    /**
+     * Reads the files of the players that are not in memory in parallel
+     */
     @Override
-    public void removeKey(UUID uuid) {
-        setKey(uuid, null);
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> records = new ConcurrentHashMap<>();
+
+        uuids.parallelStream().forEach(uuid -> {
+            Record record = this.getRecord(uuid);
+
+            synchronized (this) {
+                records.put(uuid, new PlayerRecord(uuid, record.key, record.ip, record.enableDate));
+            }
+        });
+
+        return records;
     }
 
+    /**
+     * Writes the records straight to their files, without going through the cache
+     */
     @Override
-    public String setIP(UUID uuid, String ip) {
-
-        try {
-            
-            File file = getFile(uuid);
-            JSONObject jsonObject = JSONUtils.read(new FileInputStream(file));
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        synchronized (this.flushLock) {
+            for (PlayerRecord playerRecord : records) {
+                Record record = new Record();
+                record.key = playerRecord.getKey();
+                record.ip = playerRecord.getIP();
+                record.enableDate = playerRecord.getEnableDate();
+                record.legacy = true;
+
+                synchronized (this) {
+                    this.records.remove(playerRecord.getUuid());
+                }
 
-            if (ip == null) {
-                jsonObject.put("ip", JSONObject.NULL);
-            } else {
-                jsonObject.put("ip", ip);
+                this.write(playerRecord.getUuid(), record.toJSON(), record);
             }
+        }
+    }
 
-            JSONUtils.write(jsonObject, new FileOutputStream(file));
+    /**
+     * Lists the shard directories (two hex digits) or the record files of a directory, sorted by name
+     */
+    private static List<String> list(File directory, boolean directories) {
+        String[] names = directory.list((parent, name) -> directories ? name.length() == 2 : name.endsWith(".json"));
 
-            return ip;
-        } catch (IOException exception) {
-            exception.printStackTrace();
+        if (names == null) {
+            return Collections.emptyList();
         }
-        return null;
+
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    /**
+     * Checks whether any uuid starting with the prefix could be inside the range
+     */
+    private static boolean isPrefixInRange(String prefix, @Nullable String after, @Nullable String before) {
+        if (after != null && !after.startsWith(prefix) && prefix.compareTo(after) < 0) {
+            return false;
+        }
+
+        return before == null || prefix.compareTo(before) < 0;
+    }
+
+    /**
+     * A record is empty when the player has no key and no enable date, meaning they don't use 2FA
+     */
+    private static boolean isEmpty(JSONObject jsonObject) {
+        return jsonObject.isNull("key") && jsonObject.optLong("enable_date", -1) == -1;
     }
 
     @Override
-    public String getIP(UUID uuid) {
-        try {
-            
-            File file = getFile(uuid);
-            JSONObject jsonObject = JSONUtils.read(new FileInputStream(file));
+    public String setKey(UUID uuid, String key) {
+        this.change(uuid, record -> record.key = key);
+        return key;
+    }
 
-            if (!jsonObject.has("ip")) {
-                return null;
-            }
-            Object ip = jsonObject.get("ip");
-            if (ip == JSONObject.NULL) {
-                return null;
-            }
+    @Override
+    public String getKey(UUID uuid) {
+        Record record = this.getRecord(uuid);
 
-            return ip.toString();
-        } catch (IOException exception) {
-            exception.printStackTrace();
+        synchronized (this) {
+            return record.key;
         }
-        return null;
     }
 
     @Override
-    public boolean hasIP(UUID uuid) {
-        return getIP(uuid) != null;
+    public boolean hasKey(UUID uuid) {
+        return getKey(uuid) != null;
     }
 
     @Override
-    public long setEnableDate(UUID uuid, long enableDate) {
-        try {
-            
-            File file = getFile(uuid);
-            JSONObject jsonObject = JSONUtils.read(new FileInputStream(file));
+    public void removeKey(UUID uuid) {
+        setKey(uuid, null);
+    }
 
-            jsonObject.put("enable_date", enableDate);
+    @Override
+    public String setIP(UUID uuid, String ip) {
+        this.change(uuid, record -> record.ip = ip);
+        return ip;
+    }
 
-            JSONUtils.write(jsonObject, new FileOutputStream(file));
+    @Override
+    public String getIP(UUID uuid) {
+        Record record = this.getRecord(uuid);
 
-            return enableDate;
-        } catch (IOException exception) {
-            exception.printStackTrace();
+        synchronized (this) {
+            return record.ip;
         }
+    }
+
+    @Override
+    public boolean hasIP(UUID uuid) {
+        return getIP(uuid) != null;
+    }
 
-        return -1;
+    @Override
+    public long setEnableDate(UUID uuid, long enableDate) {
+        this.change(uuid, record -> record.enableDate = enableDate);
+        return enableDate;
     }
 
     @Override
     public long getEnableDate(UUID uuid) {
-        try {
-            File file = getFile(uuid);
-            JSONObject jsonObject = JSONUtils.read(new FileInputStream(file));
+        Record record = this.getRecord(uuid);
 
-            if (!jsonObject.has("enable_date")) {
-                return -1;
-            }
-            
-            return jsonObject.getLong("enable_date");
-        } catch (IOException exception) {
-            exception.printStackTrace();
+        synchronized (this) {
+            return record.enableDate;
         }
-        return -1;
     }
 
     @Override
@@ -219,10 +558,81 @@ public class JSONStorage extends StorageHandler {
 
     @Override
     public void unload() {
+        if (this.writer != null) {
+            this.writer.shutdown();
+
+            try {
+                this.writer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.flush();
+
+        synchronized (this) {
+            this.records.clear();
+        }
     }
-    
+
     @Override
     public boolean isLoaded() {
         return false;
     }
+
+    private static final class Record {
+
+        private String key;
+        private String ip;
+        private long enableDate = -1;
+
+        // Whether the record was read from the old flat layout, whose file has to be deleted on the next write
+        private volatile boolean legacy;
+
+        // Number of changes made to the record, and how many of them are in its file
+        private long changes;
+        private long written;
+
+        private boolean isDirty() {
+            return this.changes != this.written;
+        }
+
+        private void read(JSONObject jsonObject) {
+            this.key = jsonObject.optString("key", null);
+            this.ip = jsonObject.optString("ip", null);
+            this.enableDate = jsonObject.optLong("enable_date", -1);
+        }
+
+        private JSONObject toJSON() {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put("key", this.key == null ? JSONObject.NULL : this.key);
+            jsonObject.put("ip", this.ip == null ? JSONObject.NULL : this.ip);
+            jsonObject.put("enable_date", this.enableDate);
+            return jsonObject;
+        }
+    }
+
+    public static final class Compaction {
+
+        private int scanned;
+        private int migrated;
+        private int pruned;
+        private int failed;
+
+        public int getScanned() {
+            return this.scanned;
+        }
+
+        public int getMigrated() {
+            return this.migrated;
+        }
+
+        public int getPruned() {
+            return this.pruned;
+        }
+
+        public int getFailed() {
+            return this.failed;
+        }
+    }
 }
@@ -1,36 +1,42 @@
 package com.lielamar.auth.shared.storage.json;
 
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 public class JSONUtils {
 
     /**
-     * Reads an InputStream and creates a JSONObject
+     * Reads an InputStream and creates a JSONObject. The stream is parsed as it is read instead of being
+     * copied into a string first.
      *
      * @param is InputStream to create the JSONObject from
      * @return JSONObject of the InputStream
      * @throws IOException Throws an exception if something goes wrong
      */
     public static JSONObject read(InputStream is) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        try (Reader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            // Empty files are treated as empty objects, like they were before
+            int first;
+            do {
+                reader.mark(1);
+                first = reader.read();
+            } while (first != -1 && Character.isWhitespace(first));
 
-        StringBuilder fileDataBuilder = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            fileDataBuilder.append(line);
-            fileDataBuilder.append('\n');
-        }
-
-        String fileData = fileDataBuilder.toString();
+            if (first == -1) {
+                return new JSONObject();
+            }
 
-        if (fileData.length() < 2) {
-            fileData = "{}";
+            reader.reset();
+            return new JSONObject(new JSONTokener(reader));
+        } catch (org.json.JSONException exception) {
+            throw new IOException(exception);
         }
-        is.close();
-        return new JSONObject(fileData);
     }
 
     /**
@@ -41,9 +47,38 @@ public class JSONUtils {
      * @throws IOException Throws an exception if something goes wrong
      */
     public static void write(JSONObject jsonObject, OutputStream os) throws IOException {
-        byte[] bytes = jsonObject.toString().getBytes();
-        os.write(bytes);
-        os.close();
-        os.flush();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+            jsonObject.write(writer);
+        } catch (org.json.JSONException exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    /**
+     * Writes a JSONObject to a temporary file next to the target and then moves it over the target,
+     * so the target is never left half written
+     *
+     * @param jsonObject JSONObject to write
+     * @param file File to write the JSONObject to
+     * @throws IOException Throws an exception if something goes wrong
+     */
+    public static void writeAtomically(JSONObject jsonObject, File file) throws IOException {
+        File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (FileOutputStream os = new FileOutputStream(temporary);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+            jsonObject.write(writer);
+
+            writer.flush();
+            os.getFD().sync();
+        } catch (org.json.JSONException exception) {
+            throw new IOException(exception);
+        }
+
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 }
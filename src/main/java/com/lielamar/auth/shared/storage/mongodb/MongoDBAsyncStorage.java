@@ -0,0 +1,460 @@
+package com.lielamar.auth.shared.storage.mongodb;
+
+import com.lielamar.auth.shared.storage.PlayerRecord;
+import com.lielamar.auth.shared.storage.StorageHandler;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.*;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A MongoDB storage built on the asynchronous driver.
+ *
+ * Setters only queue their write and return right away, so the calling thread never waits for the database. Writes of
+ * the same player are chained to keep their order, while writes of different players run in parallel over the
+ * driver's pool. Reads of a player wait for that player's queued writes first. The *Async methods expose the same
+ * operations as futures for callers that don't want to block at all.
+ */
+public final class MongoDBAsyncStorage extends StorageHandler {
+
+    private static final int PAGE_SIZE = 500;
+
+    private MongoClient mongoClient;
+    private MongoCollection<Document> mongoCollection;
+
+    private final String host;
+    private final String database;
+    private final int port;
+    private final String username;
+    private final String password;
+
+    private final String uri;
+
+    private final String fullPlayersCollectionName;
+
+    private final Map<UUID, CompletableFuture<Void>> pendingWrites;
+    private final ThreadLocal<List<CompletableFuture<Void>>> awaitedWrites;
+
+    private boolean loaded = false;
+
+    public MongoDBAsyncStorage(String host, String database, String username, String password, int port,
+            String collectionPrefix, String uri) {
+        this.host = host;
+        this.database = database;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+
+        this.uri = uri;
+
+        this.fullPlayersCollectionName = collectionPrefix + "players";
+
+        this.pendingWrites = new ConcurrentHashMap<>();
+        this.awaitedWrites = new ThreadLocal<>();
+
+        try {
+            loaded = true;
+            openConnection();
+        } catch (Exception e) {
+            e.printStackTrace();
+            loaded = false;
+        }
+    }
+
+    /**
+     * Opens a MongoDB connection
+     */
+    public void openConnection() {
+        if (this.mongoClient != null) {
+            throw new IllegalStateException("A MongoDB instance already exists for the following database: " + this.database);
+        }
+
+        if (this.uri.length() > 0) {
+            this.mongoClient = MongoClients.create(this.uri);
+        } else {
+            MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                    .applyToClusterSettings(cluster -> cluster.hosts(Collections.singletonList(new ServerAddress(this.host, this.port))));
+
+            if (this.username.length() > 0 && this.password.length() > 0) {
+                settings.credential(MongoCredential.createCredential(this.username, this.database, this.password.toCharArray()));
+            }
+
+            this.mongoClient = MongoClients.create(settings.build());
+        }
+
+        this.mongoCollection = this.mongoClient.getDatabase(this.database).getCollection(this.fullPlayersCollectionName);
+
+        createIndexes();
+    }
+
+    /**
+     * Ensures a unique index on the uuid field, since every query looks players up by it
+     */
+    private void createIndexes() {
+        MongoDBAsyncStorage.<String>call(callback -> this.mongoCollection.createIndex(Indexes.ascending("uuid"), new IndexOptions().unique(true), callback))
+                .exceptionally(throwable -> {
+                    // Collections written by older versions may hold duplicate documents of a player
+                    throwable.printStackTrace();
+                    Bukkit.getServer().getLogger().warning("[2FA] Could not create a unique uuid index, the collection has duplicate players. Creating a regular index instead!");
+                    this.mongoCollection.createIndex(Indexes.ascending("uuid"), (result, t) -> {});
+                    return null;
+                });
+    }
+
+    /**
+     * Runs a driver operation and completes a future with its callback
+     *
+     * @param operation Operation to run with the callback
+     * @param <T> Result type of the operation
+     * @return Future of the result
+     */
+    private static <T> CompletableFuture<T> call(Consumer<SingleResultCallback<T>> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        operation.accept((result, throwable) -> {
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(result);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Queues a write of a player after the player's previous writes
+     *
+     * @param uuid UUID of the player
+     * @param operation Write to run
+     * @return Future completed once the write is done
+     */
+    private CompletableFuture<Void> queueWrite(UUID uuid, Supplier<CompletableFuture<?>> operation) {
+        CompletableFuture<Void> future = this.pendingWrites.compute(uuid, (key, previous) ->
+                (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous.handle((result, throwable) -> (Void) null))
+                        .thenCompose(ignored -> operation.get())
+                        .thenApply(result -> (Void) null));
+
+        List<CompletableFuture<Void>> awaited = this.awaitedWrites.get();
+        if (awaited != null) {
+            awaited.add(future);
+        }
+
+        future.whenComplete((result, throwable) -> {
+            this.pendingWrites.remove(uuid, future);
+
+            if (throwable != null) {
+                throwable.printStackTrace();
+                Bukkit.getServer().getLogger().severe("[2FA] Could not save the data of " + uuid + " to MongoDB!");
+                reportFailure(throwable);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * @param uuid UUID of the player
+     * @return Future completed once all queued writes of the player are done
+     */
+    private CompletableFuture<Void> afterWrites(UUID uuid) {
+        CompletableFuture<Void> pending = this.pendingWrites.get(uuid);
+        return pending == null ? CompletableFuture.completedFuture(null) : pending.handle((result, throwable) -> null);
+    }
+
+    private CompletableFuture<Void> setField(UUID uuid, String field, Object value) {
+        List<Bson> updates = new ArrayList<>();
+        updates.add(Updates.set(field, value));
+
+        if (!field.equals("key")) {
+            updates.add(Updates.setOnInsert("key", null));
+        }
+        if (!field.equals("ip")) {
+            updates.add(Updates.setOnInsert("ip", null));
+        }
+        if (!field.equals("enable_date")) {
+            updates.add(Updates.setOnInsert("enable_date", -1L));
+        }
+
+        return queueWrite(uuid, () -> MongoDBAsyncStorage.<UpdateResult>call(callback -> this.mongoCollection.updateOne(Filters.eq("uuid", uuid.toString()),
+                Updates.combine(updates), new UpdateOptions().upsert(true), callback)));
+    }
+
+    private CompletableFuture<Document> getField(UUID uuid, String field) {
+        return afterWrites(uuid).thenCompose(ignored -> call(callback -> this.mongoCollection.find(Filters.eq("uuid", uuid.toString()))
+                .projection(Projections.fields(Projections.include(field), Projections.excludeId()))
+                .first(callback)));
+    }
+
+    private static long getEnableDate(Document document) {
+        Object enableDate = document.get("enable_date");
+        return enableDate instanceof Number ? ((Number) enableDate).longValue() : -1;
+    }
+
+    public CompletableFuture<Void> setKeyAsync(UUID uuid, String key) {
+        return setField(uuid, "key", key);
+    }
+
+    public CompletableFuture<String> getKeyAsync(UUID uuid) {
+        return getField(uuid, "key").thenApply(document -> document == null ? null : document.getString("key"));
+    }
+
+    public CompletableFuture<Void> setIPAsync(UUID uuid, String ip) {
+        return setField(uuid, "ip", ip);
+    }
+
+    public CompletableFuture<String> getIPAsync(UUID uuid) {
+        return getField(uuid, "ip").thenApply(document -> document == null ? null : document.getString("ip"));
+    }
+
+    public CompletableFuture<Void> setEnableDateAsync(UUID uuid, long enableDate) {
+        return setField(uuid, "enable_date", enableDate);
+    }
+
+    public CompletableFuture<Long> getEnableDateAsync(UUID uuid) {
+        return getField(uuid, "enable_date").thenApply(document -> document == null ? -1 : getEnableDate(document));
+    }
+
+    /**
+     * Replaces the documents of the players with a single unordered bulk write
+     *
+     * @param records Records to write
+     * @return Future completed once the bulk write is done
+     */
+    public CompletableFuture<Void> saveRecordsAsync(@NotNull List<PlayerRecord> records) {
+        if (records.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>(records.size());
+
+        for (PlayerRecord record : records) {
+            Document document = new Document("uuid", record.getUuid().toString())
+                    .append("key", record.getKey())
+                    .append("ip", record.getIP())
+                    .append("enable_date", record.getEnableDate());
+
+            writes.add(new ReplaceOneModel<>(Filters.eq("uuid", record.getUuid().toString()), document, new ReplaceOptions().upsert(true)));
+        }
+
+        return MongoDBAsyncStorage.<BulkWriteResult>call(callback -> this.mongoCollection.bulkWrite(writes, new BulkWriteOptions().ordered(false), callback))
+                .thenApply(result -> null);
+    }
+
+    /**
+     * @return Future completed once every write queued so far is done
+     */
+    public CompletableFuture<Void> flush() {
+        return CompletableFuture.allOf(this.pendingWrites.values().stream()
+                .map(future -> future.handle((result, throwable) -> null))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Waits for the writes queued while running the given writes, and throws if any of them failed
+     */
+    @Override
+    public void writeAndWait(@NotNull Runnable writes) {
+        List<CompletableFuture<Void>> awaited = new ArrayList<>();
+        this.awaitedWrites.set(awaited);
+
+        try {
+            writes.run();
+        } finally {
+            this.awaitedWrites.remove();
+        }
+
+        CompletableFuture.allOf(awaited.toArray(new CompletableFuture[0])).join();
+    }
+
+    @Override
+    public String setKey(UUID uuid, String key) {
+        setKeyAsync(uuid, key);
+        return key;
+    }
+
+    @Override
+    public String getKey(UUID uuid) {
+        return getKeyAsync(uuid).join();
+    }
+
+    @Override
+    public boolean hasKey(UUID uuid) {
+        return getKey(uuid) != null;
+    }
+
+    @Override
+    public void removeKey(UUID uuid) {
+        setKey(uuid, null);
+    }
+
+    @Override
+    public String setIP(UUID uuid, String ip) {
+        setIPAsync(uuid, ip);
+        return ip;
+    }
+
+    @Override
+    public String getIP(UUID uuid) {
+        return getIPAsync(uuid).join();
+    }
+
+    @Override
+    public boolean hasIP(UUID uuid) {
+        return getIP(uuid) != null;
+    }
+
+    @Override
+    public long setEnableDate(UUID uuid, long enableDate) {
+        setEnableDateAsync(uuid, enableDate);
+        return enableDate;
+    }
+
+    @Override
+    public long getEnableDate(UUID uuid) {
+        return getEnableDateAsync(uuid).join();
+    }
+
+    @Override
+    public boolean hasEnableDate(UUID uuid) {
+        return getEnableDate(uuid) != -1;
+    }
+
+    /**
+     * Reads the records in pages, so only one page is held in memory at a time
+     */
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        flush().join();
+
+        String last = after;
+
+        while (true) {
+            List<Bson> filters = new ArrayList<>();
+            if (last != null) {
+                filters.add(Filters.gt("uuid", last));
+            }
+            if (before != null) {
+                filters.add(Filters.lt("uuid", before));
+            }
+
+            Bson filter = filters.isEmpty() ? new Document() : Filters.and(filters);
+            List<Document> page = MongoDBAsyncStorage.<List<Document>>call(callback -> this.mongoCollection.find(filter)
+                    .sort(Sorts.ascending("uuid")).limit(PAGE_SIZE).into(new ArrayList<>(), callback)).join();
+
+            for (Document document : page) {
+                String uuid = document.getString("uuid");
+                last = uuid;
+
+                try {
+                    PlayerRecord record = new PlayerRecord(UUID.fromString(uuid), document.getString("key"), document.getString("ip"),
+                            getEnableDate(document));
+
+                    if (!consumer.test(record)) {
+                        return;
+                    }
+                } catch (IllegalArgumentException | NullPointerException exception) {
+                    Bukkit.getServer().getLogger().warning("[2FA] Skipping a document with an invalid uuid: " + uuid);
+                }
+            }
+
+            if (page.size() < PAGE_SIZE || last == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends one {@code $in} query per chunk of {@value #PAGE_SIZE} players, all at once, after the queued writes
+     */
+    @Override
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        flush().join();
+
+        Map<List<UUID>, CompletableFuture<List<Document>>> queries = new LinkedHashMap<>();
+        for (List<UUID> chunk : partition(uuids, PAGE_SIZE)) {
+            List<String> ids = new ArrayList<>(chunk.size());
+            chunk.forEach(uuid -> ids.add(uuid.toString()));
+
+            queries.put(chunk, MongoDBAsyncStorage.<List<Document>>call(callback -> this.mongoCollection.find(Filters.in("uuid", ids))
+                    .into(new ArrayList<>(), callback)));
+        }
+
+        Map<UUID, PlayerRecord> records = new HashMap<>();
+        for (Map.Entry<List<UUID>, CompletableFuture<List<Document>>> query : queries.entrySet()) {
+            Map<String, Document> documents = new HashMap<>();
+
+            try {
+                for (Document document : query.getValue().join()) {
+                    documents.putIfAbsent(document.getString("uuid"), document);
+                }
+            } catch (CompletionException exception) {
+                exception.getCause().printStackTrace();
+                reportFailure(exception.getCause());
+                continue;
+            }
+
+            for (UUID uuid : query.getKey()) {
+                Document document = documents.get(uuid.toString());
+                records.put(uuid, document == null ? new PlayerRecord(uuid, null, null, -1)
+                        : new PlayerRecord(uuid, document.getString("key"), document.getString("ip"), getEnableDate(document)));
+            }
+        }
+
+        return records;
+    }
+
+    @Override
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        try {
+            saveRecordsAsync(records).join();
+        } catch (CompletionException exception) {
+            throw new IOException(exception.getCause());
+        }
+    }
+
+    @Override
+    public void unload() {
+        try {
+            flush().get(10, TimeUnit.SECONDS);
+        } catch (Exception exception) {
+            exception.printStackTrace();
+            Bukkit.getServer().getLogger().warning("[2FA] Some MongoDB writes did not complete before the plugin was disabled!");
+        }
+
+        mongoClient.close();
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return loaded;
+    }
+}
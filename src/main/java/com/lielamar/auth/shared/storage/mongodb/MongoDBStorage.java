@@ -1,12 +1,21 @@
 package com.lielamar.auth.shared.storage.mongodb;
 
+import com.lielamar.auth.shared.storage.PlayerRecord;
 import com.lielamar.auth.shared.storage.StorageHandler;
 import com.mongodb.*;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.UUID;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Predicate;
 
 public final class MongoDBStorage extends StorageHandler {
 
@@ -69,31 +78,81 @@ public final class MongoDBStorage extends StorageHandler {
 
         MongoDatabase mongoDatabase = mongoClient.getDatabase(this.database);
         this.mongoCollection = mongoDatabase.getCollection(fullPlayersCollectionName);
+
+        createIndexes();
     }
 
-    @Override
-    public String setKey(UUID uuid, String key) {
-        Document query = new Document("uuid", uuid.toString());
-        Document playerDocument = this.mongoCollection.find(query).first();
-
-        if (playerDocument == null) {
-            Document insertDocument = new Document("uuid", uuid.toString());
-            insertDocument.append("key", key);
-            insertDocument.append("ip", null);
-            insertDocument.append("enable_date", -1);
-            this.mongoCollection.insertOne(insertDocument);
-        } else {
-            playerDocument.put("key", key);
-            this.mongoCollection.updateOne(query, new Document("$set", playerDocument));
+    /**
+     * Ensures a unique index on the uuid field, since every query looks players up by it
+     */
+    private void createIndexes() {
+        try {
+            this.mongoCollection.createIndex(Indexes.ascending("uuid"), new IndexOptions().unique(true));
+        } catch (MongoException exception) {
+            // Collections written by older versions may hold duplicate documents of a player
+            exception.printStackTrace();
+            Bukkit.getServer().getLogger().warning("[2FA] Could not create a unique uuid index, the collection has duplicate players. Creating a regular index instead!");
+            this.mongoCollection.createIndex(Indexes.ascending("uuid"));
         }
+    }
+
+    /**
+     * Sets a single field of a player's document, creating the document if it doesn't exist yet
+     *
+     * @param uuid UUID of the player
+     * @param field Field to set
+     * @param value Value to set
+     */
+    private void setField(UUID uuid, String field, Object value) {
+        List<Bson> updates = new ArrayList<>();
+        updates.add(Updates.set(field, value));
+
+        if (!field.equals("key")) {
+            updates.add(Updates.setOnInsert("key", null));
+        }
+        if (!field.equals("ip")) {
+            updates.add(Updates.setOnInsert("ip", null));
+        }
+        if (!field.equals("enable_date")) {
+            updates.add(Updates.setOnInsert("enable_date", -1L));
+        }
+
+        this.mongoCollection.updateOne(Filters.eq("uuid", uuid.toString()), Updates.combine(updates), new UpdateOptions().upsert(true));
+    }
 
+    /**
+     * Reads a single field of a player's document
+     *
+     * @param uuid UUID of the player
+     * @param field Field to read
+     * @return Document holding only the field, or null if the player has no document
+     */
+    private @Nullable Document getField(UUID uuid, String field) {
+        return this.mongoCollection.find(Filters.eq("uuid", uuid.toString()))
+                .projection(Projections.fields(Projections.include(field), Projections.excludeId()))
+                .first();
+    }
+
+    /**
+     * Reads the enable date of a document. Older documents may store it as an int
+     *
+     * @param document Document to read
+     * @return Enable date, or -1 if there is none
+     */
+    private long getEnableDate(Document document) {
+        Object enableDate = document.get("enable_date");
+        return enableDate instanceof Number ? ((Number) enableDate).longValue() : -1;
+    }
+
+    @Override
+    public String setKey(UUID uuid, String key) {
+        setField(uuid, "key", key);
         return key;
     }
 
     @Override
     public String getKey(UUID uuid) {
-        Document query = new Document("uuid", uuid.toString());
-        Document playerDocument = this.mongoCollection.find(query).first();
+        Document playerDocument = getField(uuid, "key");
 
         if (playerDocument != null) {
             return playerDocument.getString("key");
@@ -113,27 +172,13 @@ public final class MongoDBStorage extends StorageHandler {
 
     @Override
     public String setIP(UUID uuid, String ip) {
-        Document query = new Document("uuid", uuid.toString());
-        Document playerDocument = this.mongoCollection.find(query).first();
-
-        if (playerDocument == null) {
-            Document insertDocument = new Document("uuid", uuid.toString());
-            insertDocument.append("key", null);
-            insertDocument.append("ip", ip);
-            insertDocument.append("enable_date", -1);
-            this.mongoCollection.insertOne(insertDocument);
-        } else {
-            playerDocument.put("ip", ip);
-            this.mongoCollection.updateOne(query, new Document("$set", playerDocument));
-        }
-
+        setField(uuid, "ip", ip);
         return ip;
     }
 
     @Override
     public String getIP(UUID uuid) {
-        Document query = new Document("uuid", uuid.toString());
-        Document playerDocument = this.mongoCollection.find(query).first();
+        Document playerDocument = getField(uuid, "ip");
 
         if (playerDocument != null) {
             return playerDocument.getString("ip");
@@ -148,30 +193,16 @@ public final class MongoDBStorage extends StorageHandler {
 
     @Override
     public long setEnableDate(UUID uuid, long enableDate) {
-        Document query = new Document("uuid", uuid.toString());
-        Document playerDocument = this.mongoCollection.find(query).first();
-
-        if (playerDocument == null) {
-            Document insertDocument = new Document("uuid", uuid.toString());
-            insertDocument.append("key", null);
-            insertDocument.append("ip", null);
-            insertDocument.append("enable_date", enableDate);
-            this.mongoCollection.insertOne(insertDocument);
-        } else {
-            playerDocument.put("enable_date", enableDate);
-            this.mongoCollection.updateOne(query, new Document("$set", playerDocument));
-        }
-
+        setField(uuid, "enable_date", enableDate);
         return enableDate;
     }
 
     @Override
     public long getEnableDate(UUID uuid) {
-        Document query = new Document("uuid", uuid.toString());
-        Document playerDocument = this.mongoCollection.find(query).first();
+        Document playerDocument = getField(uuid, "enable_date");
 
         if (playerDocument != null) {
-            return playerDocument.getLong("enable_date");
+            return getEnableDate(playerDocument);
         }
         return -1;
     }
@@ -181,6 +212,97 @@ public final class MongoDBStorage extends StorageHandler {
         return getEnableDate(uuid) != -1;
     }
 
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        List<Bson> filters = new ArrayList<>();
+        if (after != null) {
+            filters.add(Filters.gt("uuid", after));
+        }
+        if (before != null) {
+            filters.add(Filters.lt("uuid", before));
+        }
+
+        Bson filter = filters.isEmpty() ? new Document() : Filters.and(filters);
+
+        try (MongoCursor<Document> cursor = this.mongoCollection.find(filter).sort(Sorts.ascending("uuid")).batchSize(500).iterator()) {
+            while (cursor.hasNext()) {
+                Document document = cursor.next();
+                String uuid = document.getString("uuid");
+
+                try {
+                    PlayerRecord record = new PlayerRecord(UUID.fromString(uuid), document.getString("key"), document.getString("ip"),
+                            getEnableDate(document));
+
+                    if (!consumer.test(record)) {
+                        return;
+                    }
+                } catch (IllegalArgumentException | NullPointerException exception) {
+                    Bukkit.getServer().getLogger().warning("[2FA] Skipping a document with an invalid uuid: " + uuid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the players with one {@code $in} query per chunk of 500 players
+     */
+    @Override
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> records = new HashMap<>();
+
+        for (List<UUID> chunk : partition(uuids, 500)) {
+            List<String> ids = new ArrayList<>(chunk.size());
+            chunk.forEach(uuid -> ids.add(uuid.toString()));
+
+            Map<String, Document> documents = new HashMap<>();
+            try (MongoCursor<Document> cursor = this.mongoCollection.find(Filters.in("uuid", ids)).iterator()) {
+                while (cursor.hasNext()) {
+                    Document document = cursor.next();
+                    documents.putIfAbsent(document.getString("uuid"), document);
+                }
+            } catch (MongoException exception) {
+                exception.printStackTrace();
+                reportFailure(exception);
+                continue;
+            }
+
+            for (UUID uuid : chunk) {
+                Document document = documents.get(uuid.toString());
+                records.put(uuid, document == null ? new PlayerRecord(uuid, null, null, -1)
+                        : new PlayerRecord(uuid, document.getString("key"), document.getString("ip"), getEnableDate(document)));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Replaces the documents of the players with a single unordered bulk write
+     */
+    @Override
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>(records.size());
+
+        for (PlayerRecord record : records) {
+            Document document = new Document("uuid", record.getUuid().toString())
+                    .append("key", record.getKey())
+                    .append("ip", record.getIP())
+                    .append("enable_date", record.getEnableDate());
+
+            writes.add(new ReplaceOneModel<>(Filters.eq("uuid", record.getUuid().toString()), document, new ReplaceOptions().upsert(true)));
+        }
+
+        try {
+            this.mongoCollection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        } catch (MongoException exception) {
+            throw new IOException(exception);
+        }
+    }
+
     @Override
     public void unload() {
         mongoClient.close();
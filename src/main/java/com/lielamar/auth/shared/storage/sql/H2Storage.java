@@ -0,0 +1,64 @@
+package com.lielamar.auth.shared.storage.sql;
+
+import org.bukkit.Bukkit;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * An embedded H2 database stored in the plugin's data folder.
+ *
+ * The database runs inside the server in file mode (MVStore) and never opens a TCP port, so single servers get an
+ * indexed SQL storage without setting up a database server.
+ */
+public class H2Storage extends SQLStorage {
+
+    public H2Storage(String path, String database, String tablePrefix, int cacheSize,
+            int maximumPoolSize, int minimumIdle, int maximumLifetime, int keepAliveTime, int connectionTimeout) {
+        super("org.h2.jdbcx.JdbcDataSource", fileProperties(path, database, cacheSize),
+                tablePrefix, maximumPoolSize, minimumIdle, maximumLifetime, keepAliveTime, connectionTimeout);
+    }
+
+    /**
+     * Creates the data source properties of an embedded database file
+     *
+     * @param path Plugin's data folder
+     * @param database Name of the database file
+     * @param cacheSize Cache size of the database in KB
+     * @return Data source properties
+     */
+    private static Properties fileProperties(String path, String database, int cacheSize) {
+        String file = new File(path, database).getAbsolutePath();
+
+        // MySQL mode with lower case names keeps the queries and the information_schema check of SQLStorage working
+        String url = "jdbc:h2:file:" + file
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE"
+                + ";CACHE_SIZE=" + cacheSize
+                + ";AUTO_SERVER=FALSE;DB_CLOSE_ON_EXIT=FALSE";
+
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        properties.setProperty("user", "sa");
+        return properties;
+    }
+
+    /**
+     * Also creates an index on the uuid column, since every query looks players up by it
+     */
+    @Override
+    protected void createTables() {
+        super.createTables();
+
+        try (Connection connection = super.hikari.getConnection();
+             PreparedStatement statement = connection.prepareStatement("CREATE INDEX IF NOT EXISTS `" + super.getPlayersTableName()
+                     + "_uuid` ON `" + super.getPlayersTableName() + "` (`uuid`);")) {
+            statement.executeUpdate();
+        } catch (SQLException exception) {
+            exception.printStackTrace();
+            Bukkit.getServer().getLogger().warning("[2FA] Could not create the uuid index of the H2 database. Lookups will be slower!");
+        }
+    }
+}
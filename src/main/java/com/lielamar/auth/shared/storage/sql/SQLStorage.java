@@ -1,27 +1,40 @@
 package com.lielamar.auth.shared.storage.sql;
 
+import com.lielamar.auth.shared.storage.PlayerRecord;
 import com.lielamar.auth.shared.storage.StorageHandler;
 import com.zaxxer.hikari.HikariDataSource;
 import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 public class SQLStorage extends StorageHandler {
 
+    private static final int PAGE_SIZE = 500;
+    private static final long REPLICA_RETRY_DELAY = 30000;
+
     protected HikariDataSource hikari;
+    protected HikariDataSource replica;
 
     private final String driver;
-
-    private final String host;
-    private final String database;
-    private final String username;
-    private final String password;
-    private final int port;
+    private final Properties dataSourceProperties;
 
     private final int maximumPoolSize;
     private final int minimumIdle;
@@ -29,19 +42,29 @@ public class SQLStorage extends StorageHandler {
     private final int keepAliveTime;
     private final int connectionTimeout;
 
+    private final String playersTableName;
     private final String fullPlayersTableName;
 
+    private final Map<UUID, Long> recentWrites = new ConcurrentHashMap<>();
+    private long consistencyWindow;
+    private volatile long replicaDownUntil;
+
     private boolean loaded = false;
 
     public SQLStorage(String driver, String host, String database, String username, String password, int port,
             String tablePrefix, int maximumPoolSize, int minimumIdle, int maximumLifetime, int keepAliveTime, int connectionTimeout) {
-        this.driver = driver;
+        this(driver, serverProperties(host, database, username, password, port != -1 ? port : 3306),
+                tablePrefix, maximumPoolSize, minimumIdle, maximumLifetime, keepAliveTime, connectionTimeout);
+    }
 
-        this.host = host;
-        this.database = database;
-        this.username = username;
-        this.password = password;
-        this.port = port != -1 ? port : 3306;
+    /**
+     * @param driver Class name of the data source
+     * @param dataSourceProperties Properties to set on the data source
+     */
+    protected SQLStorage(String driver, Properties dataSourceProperties,
+            String tablePrefix, int maximumPoolSize, int minimumIdle, int maximumLifetime, int keepAliveTime, int connectionTimeout) {
+        this.driver = driver;
+        this.dataSourceProperties = dataSourceProperties;
 
         this.maximumPoolSize = maximumPoolSize;
         this.minimumIdle = minimumIdle;
@@ -49,7 +72,9 @@ public class SQLStorage extends StorageHandler {
         this.keepAliveTime = keepAliveTime;
         this.connectionTimeout = connectionTimeout;
 
-        this.fullPlayersTableName = tablePrefix + "players";
+        this.playersTableName = tablePrefix + "players";
+        // Quoted, since MySQL allows table names to start with a digit but other databases don't
+        this.fullPlayersTableName = "`" + this.playersTableName + "`";
 
         try {
             loaded = true;
@@ -84,7 +109,15 @@ public class SQLStorage extends StorageHandler {
         }
 
         hikari.setDataSourceClassName(this.driver);
+        hikari.setDataSourceProperties(this.dataSourceProperties);
 
+        this.createTables();
+    }
+
+    /**
+     * Creates the data source properties of a database server
+     */
+    private static Properties serverProperties(String host, String database, String username, String password, int port) {
         Properties properties = new Properties();
         properties.setProperty("serverName", host);
         properties.setProperty("port", port + "");
@@ -93,9 +126,103 @@ public class SQLStorage extends StorageHandler {
         if (password.length() > 0) {
             properties.setProperty("password", password);
         }
-        hikari.setDataSourceProperties(properties);
+        return properties;
+    }
 
-        this.createTables();
+    /**
+     * Sends reads to a replica of the database. A player's reads still go to the primary database for a short while
+     * after that player's own writes, since the replica may not have them yet
+     *
+     * @param host Host of the replica
+     * @param port Port of the replica, or -1 for the default port
+     * @param username User of the replica
+     * @param password Password of the replica
+     * @param database Name of the database on the replica
+     * @param consistencyWindow Milliseconds after a write in which the player's reads go to the primary database
+     */
+    public void setReadReplica(String host, int port, String username, String password, String database, long consistencyWindow) {
+        HikariDataSource replica = new HikariDataSource();
+
+        replica.setPoolName("2FA Read Replica");
+        replica.setMaximumPoolSize(this.maximumPoolSize);
+        replica.setMinimumIdle(this.minimumIdle);
+        replica.setMaxLifetime(this.maximumLifetime);
+        replica.setKeepaliveTime(this.keepAliveTime);
+        replica.setConnectionTimeout(this.connectionTimeout);
+        // Not failing here if the replica is down, reads fall back to the primary database until it is up
+        replica.setInitializationFailTimeout(-1);
+
+        replica.setDataSourceClassName(this.driver);
+        replica.setDataSourceProperties(serverProperties(host, database, username, password, port != -1 ? port : 3306));
+
+        this.replica = replica;
+        this.consistencyWindow = consistencyWindow;
+    }
+
+    /**
+     * Remembers that a player was just written to, so the player's reads use the primary database for a while
+     */
+    protected void markWritten(UUID uuid) {
+        if (this.replica == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        this.recentWrites.put(uuid, now);
+
+        if (this.recentWrites.size() > 1024) {
+            this.recentWrites.values().removeIf(time -> now - time > this.consistencyWindow);
+        }
+    }
+
+    /**
+     * Returns a connection to read a player's data from. Uses the replica if there is one, unless the player was just
+     * written to or the replica is down
+     *
+     * @param uuid UUID of the player to read
+     * @return Connection to read from
+     * @throws SQLException Throws an exception if no connection could be made
+     */
+    protected Connection getReadConnection(UUID uuid) throws SQLException {
+        return this.getReadConnection(Collections.singleton(uuid));
+    }
+
+    /**
+     * Returns a connection to read several players' data from. Uses the replica if there is one, unless one of the
+     * players was just written to or the replica is down
+     *
+     * @param uuids UUIDs of the players to read
+     * @return Connection to read from
+     * @throws SQLException Throws an exception if no connection could be made
+     */
+    protected Connection getReadConnection(Collection<UUID> uuids) throws SQLException {
+        if (this.replica == null || System.currentTimeMillis() < this.replicaDownUntil) {
+            return hikari.getConnection();
+        }
+
+        for (UUID uuid : uuids) {
+            Long lastWrite = this.recentWrites.get(uuid);
+            if (lastWrite != null) {
+                if (System.currentTimeMillis() - lastWrite <= this.consistencyWindow) {
+                    return hikari.getConnection();
+                }
+
+                this.recentWrites.remove(uuid, lastWrite);
+            }
+        }
+
+        try {
+            return this.replica.getConnection();
+        } catch (SQLException exception) {
+            this.replicaDownUntil = System.currentTimeMillis() + REPLICA_RETRY_DELAY;
+            Bukkit.getServer().getLogger().warning("[2FA] Could not connect to the read replica, reading from the primary database for "
+                    + REPLICA_RETRY_DELAY / 1000 + " seconds: " + exception.getMessage());
+            return hikari.getConnection();
+        }
+    }
+
+    protected String getPlayersTableName() {
+        return this.playersTableName;
     }
 
     /**
@@ -109,21 +236,21 @@ public class SQLStorage extends StorageHandler {
             
             connection = hikari.getConnection();
 
-            String sql = "CREATE TABLE IF NOT EXISTS " + this.fullPlayersTableName + " (`uuid` varchar(64), `key` varchar(64), `ip` varchar(256), `enable_date` long);";
+            String sql = "CREATE TABLE IF NOT EXISTS " + this.fullPlayersTableName + " (`uuid` varchar(64), `key` varchar(64), `ip` varchar(256), `enable_date` bigint);";
             PreparedStatement stmt = connection.prepareStatement(sql);
             stmt.executeUpdate();
 
             // Validating the SQL has the required columns. Ignoring the error because it can only throw an error when the SQL user doesn't have access to information_schema.
             try {
-                sql = "SELECT column_name FROM information_schema.columns WHERE table_name = '" + this.fullPlayersTableName + "' and column_name = 'enable_date'";
+                sql = "SELECT column_name FROM information_schema.columns WHERE table_name = '" + this.playersTableName + "' and column_name = 'enable_date'";
                 stmt = connection.prepareStatement(sql);
                 if (!stmt.executeQuery().next()) {
-                    sql = "ALTER TABLE " + this.fullPlayersTableName + " ADD `enable_date` long DEFAULT -1;";
+                    sql = "ALTER TABLE " + this.fullPlayersTableName + " ADD `enable_date` bigint DEFAULT -1;";
                     stmt = connection.prepareStatement(sql);
                     stmt.executeUpdate();
                 }
             } catch (Exception ignored) {
-                Bukkit.getServer().getLogger().severe("The plugin could not add the 'enable_date' column to your SQL database in table: " + this.fullPlayersTableName + "."
+                Bukkit.getServer().getLogger().severe("The plugin could not add the 'enable_date' column to your SQL database in table: " + this.playersTableName + "."
                         + "Please give your SQL user permissions to information_schema or add the column manually, otherwise the plugin won't work properly!");
                 
                 loaded = false;
@@ -150,6 +277,7 @@ public class SQLStorage extends StorageHandler {
 
         try {
             loaded = true;
+            markWritten(uuid);
             connection = hikari.getConnection();
             if (connection.isClosed()) {
                 return null;
@@ -176,6 +304,7 @@ public class SQLStorage extends StorageHandler {
             return key;
         } catch (SQLException exception) {
             exception.printStackTrace();
+            reportFailure(exception);
             loaded = false;
         } finally {
             loaded = false;
@@ -197,7 +326,7 @@ public class SQLStorage extends StorageHandler {
 
         try {
             loaded = true;
-            connection = hikari.getConnection();
+            connection = getReadConnection(uuid);
             if (connection.isClosed()) {
                 return null;
             }
@@ -209,10 +338,11 @@ public class SQLStorage extends StorageHandler {
             if (result.next()) {
                 String key = result.getString("key");
 
-                return key.equalsIgnoreCase("") ? null : key;
+                return key == null || key.isEmpty() ? null : key;
             }
         } catch (SQLException exception) {
             exception.printStackTrace();
+            reportFailure(exception);
             loaded = false;
         } finally {
             loaded = false;
@@ -244,6 +374,7 @@ public class SQLStorage extends StorageHandler {
 
         try {
             loaded = true;
+            markWritten(uuid);
             connection = hikari.getConnection();
             if (connection.isClosed()) {
                 return null;
@@ -270,6 +401,7 @@ public class SQLStorage extends StorageHandler {
             return ip;
         } catch (SQLException exception) {
             exception.printStackTrace();
+            reportFailure(exception);
             loaded = false;
         } finally {
             loaded = false;
@@ -291,7 +423,7 @@ public class SQLStorage extends StorageHandler {
 
         try {
             loaded = true;
-            connection = hikari.getConnection();
+            connection = getReadConnection(uuid);
             if (connection.isClosed()) {
                 return null;
             }
@@ -302,10 +434,11 @@ public class SQLStorage extends StorageHandler {
 
             if (result.next()) {
                 String IP = result.getString("ip");
-                return IP.equalsIgnoreCase("") ? null : IP;
+                return IP == null || IP.isEmpty() ? null : IP;
             }
         } catch (SQLException exception) {
             exception.printStackTrace();
+            reportFailure(exception);
             loaded = false;
         } finally {
             loaded = false;
@@ -332,6 +465,7 @@ public class SQLStorage extends StorageHandler {
 
         try {
             loaded = true;
+            markWritten(uuid);
             connection = hikari.getConnection();
             if (connection.isClosed()) {
                 return -1;
@@ -347,7 +481,7 @@ public class SQLStorage extends StorageHandler {
                 statement.setLong(1, enableDate);
                 statement.setString(2, uuid.toString());
             } else {
-                statement = connection.prepareStatement("INSERT INTO " + this.fullPlayersTableName + "(`uuid`, `key`, `ip`, `enable_date) VALUES (?,?,?,?);");
+                statement = connection.prepareStatement("INSERT INTO " + this.fullPlayersTableName + "(`uuid`, `key`, `ip`, `enable_date`) VALUES (?,?,?,?);");
                 statement.setString(1, uuid.toString());
                 statement.setString(2, "");
                 statement.setString(3, "");
@@ -358,6 +492,7 @@ public class SQLStorage extends StorageHandler {
             return enableDate;
         } catch (SQLException exception) {
             exception.printStackTrace();
+            reportFailure(exception);
             loaded = false;
         } finally {
             loaded = false;
@@ -379,7 +514,7 @@ public class SQLStorage extends StorageHandler {
 
         try {
             loaded = true;
-            connection = hikari.getConnection();
+            connection = getReadConnection(uuid);
             if (connection.isClosed()) {
                 return -1;
             }
@@ -389,10 +524,11 @@ public class SQLStorage extends StorageHandler {
             ResultSet result = statement.executeQuery();
 
             if (result.next()) {
-                return result.getLong("enableDate");
+                return result.getLong("enable_date");
             }
         } catch (SQLException exception) {
             exception.printStackTrace();
+            reportFailure(exception);
             loaded = false;
         } finally {
             loaded = false;
@@ -413,11 +549,288 @@ public class SQLStorage extends StorageHandler {
         return getEnableDate(uuid) != -1;
     }
 
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        String last = after;
+
+        while (true) {
+            // Reads a page at a time, starting after the last read uuid, so no cursor is kept open while the consumer runs
+            List<PlayerRecord> page = new ArrayList<>(PAGE_SIZE);
+            int rows = 0;
+
+            String sql = "SELECT `uuid`, `key`, `ip`, `enable_date` FROM " + this.fullPlayersTableName + " WHERE 1 = 1"
+                    + (last != null ? " AND `uuid` > ?" : "") + (before != null ? " AND `uuid` < ?" : "")
+                    + " ORDER BY `uuid` LIMIT " + PAGE_SIZE + ";";
+
+            try (Connection connection = hikari.getConnection();
+                 PreparedStatement statement = connection.prepareStatement(sql)) {
+                int index = 1;
+                if (last != null) {
+                    statement.setString(index++, last);
+                }
+                if (before != null) {
+                    statement.setString(index, before);
+                }
+
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        String uuid = result.getString("uuid");
+
+                        last = uuid;
+                        rows++;
+
+                        try {
+                            page.add(readRecord(uuid, result));
+                        } catch (IllegalArgumentException exception) {
+                            Bukkit.getServer().getLogger().warning("[2FA] Skipping a row with an invalid uuid: " + uuid);
+                        }
+                    }
+                }
+            } catch (SQLException exception) {
+                exception.printStackTrace();
+                reportFailure(exception);
+                return;
+            }
+
+            for (PlayerRecord record : page) {
+                if (!consumer.test(record)) {
+                    return;
+                }
+            }
+
+            if (rows < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the players with one {@code IN} query per chunk of {@value #PAGE_SIZE} players
+     */
+    @Override
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> records = new HashMap<>();
+
+        for (List<UUID> chunk : partition(uuids, PAGE_SIZE)) {
+            Map<UUID, PlayerRecord> loaded;
+
+            try (Connection connection = getReadConnection(chunk)) {
+                loaded = this.queryRecords(connection, chunk);
+            } catch (SQLException exception) {
+                exception.printStackTrace();
+                reportFailure(exception);
+                continue;
+            }
+
+            // Players without a row have nothing stored
+            for (UUID uuid : chunk) {
+                PlayerRecord record = loaded.get(uuid);
+                records.put(uuid, record != null ? record : new PlayerRecord(uuid, null, null, -1));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads the rows of the players that have one. Unlike {@link #loadPlayers(Collection)}, players without a row are
+     * left out and errors are thrown, so a missing row is never mistaken for a player without data
+     *
+     * @param uuids Players to read
+     * @param primary Whether to read from the primary database even if there is a read replica
+     * @return Records of the players that have a row
+     * @throws IOException Throws an exception if the rows could not be read
+     */
+    public @NotNull Map<UUID, PlayerRecord> findRecords(@NotNull Collection<UUID> uuids, boolean primary) throws IOException {
+        Map<UUID, PlayerRecord> records = new HashMap<>();
+
+        for (List<UUID> chunk : partition(uuids, PAGE_SIZE)) {
+            try (Connection connection = primary ? hikari.getConnection() : getReadConnection(chunk)) {
+                records.putAll(this.queryRecords(connection, chunk));
+            } catch (SQLException exception) {
+                throw new IOException(exception);
+            }
+        }
+
+        return records;
+    }
+
+    private Map<UUID, PlayerRecord> queryRecords(Connection connection, List<UUID> chunk) throws SQLException {
+        String sql = "SELECT `uuid`, `key`, `ip`, `enable_date` FROM " + this.fullPlayersTableName
+                + " WHERE `uuid` IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ");";
+        Map<UUID, PlayerRecord> records = new HashMap<>();
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < chunk.size(); i++) {
+                statement.setString(i + 1, chunk.get(i).toString());
+            }
+
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    String uuid = result.getString("uuid");
+
+                    try {
+                        PlayerRecord record = readRecord(uuid, result);
+                        records.put(record.getUuid(), record);
+                    } catch (IllegalArgumentException exception) {
+                        Bukkit.getServer().getLogger().warning("[2FA] Skipping a row with an invalid uuid: " + uuid);
+                    }
+                }
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads the record of the current row of a result
+     *
+     * @param uuid UUID read from the row
+     * @param result Result positioned on the row
+     * @return Record of the row
+     * @throws SQLException Throws an exception if the row could not be read
+     * @throws IllegalArgumentException Throws an exception if the uuid is invalid
+     */
+    private static PlayerRecord readRecord(String uuid, ResultSet result) throws SQLException {
+        String key = result.getString("key");
+        String ip = result.getString("ip");
+        long enableDate = result.getLong("enable_date");
+
+        if (result.wasNull()) {
+            enableDate = -1;
+        }
+
+        return new PlayerRecord(UUID.fromString(uuid), key == null || key.isEmpty() ? null : key,
+                ip == null || ip.isEmpty() ? null : ip, enableDate);
+    }
+
+    /**
+     * Replaces the rows of the players in one transaction
+     */
+    @Override
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        try (Connection connection = hikari.getConnection()) {
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + this.fullPlayersTableName + " WHERE `uuid` = ?;");
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + this.fullPlayersTableName + "(`uuid`, `key`, `ip`, `enable_date`) VALUES (?,?,?,?);")) {
+                for (PlayerRecord record : records) {
+                    markWritten(record.getUuid());
+
+                    delete.setString(1, record.getUuid().toString());
+                    delete.addBatch();
+
+                    insert.setString(1, record.getUuid().toString());
+                    insert.setString(2, record.getKey() == null ? "" : record.getKey());
+                    insert.setString(3, record.getIP() == null ? "" : record.getIP());
+                    insert.setLong(4, record.getEnableDate());
+                    insert.addBatch();
+                }
+
+                delete.executeBatch();
+                insert.executeBatch();
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    /**
+     * Inserts the rows of the players that don't have one yet in one transaction. Existing rows are kept as they are
+     *
+     * @param records Records to insert
+     * @return Number of inserted rows
+     * @throws IOException Throws an exception if the rows could not be inserted
+     */
+    public int insertRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        List<UUID> uuids = new ArrayList<>(records.size());
+        records.forEach(record -> uuids.add(record.getUuid()));
+
+        try (Connection connection = hikari.getConnection()) {
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + this.fullPlayersTableName + "(`uuid`, `key`, `ip`, `enable_date`) VALUES (?,?,?,?);")) {
+                Set<UUID> existing = new HashSet<>();
+                for (List<UUID> chunk : partition(uuids, PAGE_SIZE)) {
+                    existing.addAll(this.queryRecords(connection, chunk).keySet());
+                }
+
+                int inserted = 0;
+                for (PlayerRecord record : records) {
+                    if (!existing.add(record.getUuid())) {
+                        continue;
+                    }
+
+                    markWritten(record.getUuid());
+
+                    insert.setString(1, record.getUuid().toString());
+                    insert.setString(2, record.getKey() == null ? "" : record.getKey());
+                    insert.setString(3, record.getIP() == null ? "" : record.getIP());
+                    insert.setLong(4, record.getEnableDate());
+                    insert.addBatch();
+                    inserted++;
+                }
+
+                if (inserted > 0) {
+                    insert.executeBatch();
+                }
+                connection.commit();
+                return inserted;
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    /**
+     * Deletes the rows of the players in one transaction
+     *
+     * @param uuids Players to delete
+     * @throws IOException Throws an exception if the rows could not be deleted
+     */
+    public void deleteRecords(@NotNull Collection<UUID> uuids) throws IOException {
+        try (Connection connection = hikari.getConnection()) {
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + this.fullPlayersTableName + " WHERE `uuid` = ?;")) {
+                for (UUID uuid : uuids) {
+                    delete.setString(1, uuid.toString());
+                    delete.addBatch();
+                }
+
+                delete.executeBatch();
+                connection.commit();
+            } catch (SQLException exception) {
+                connection.rollback();
+                throw exception;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException exception) {
+            throw new IOException(exception);
+        }
+    }
+
     @Override
     public void unload() {
         if (!hikari.isClosed()) {
             hikari.close();
         }
+
+        if (this.replica != null && !this.replica.isClosed()) {
+            this.replica.close();
+        }
     }
 
     @Override
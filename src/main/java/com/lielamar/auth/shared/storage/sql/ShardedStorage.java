@@ -0,0 +1,504 @@
+package com.lielamar.auth.shared.storage.sql;
+
+import com.lielamar.auth.shared.storage.PlayerRecord;
+import com.lielamar.auth.shared.storage.StorageHandler;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Splits the players over several SQL databases.
+ *
+ * Every shard is placed on a hash ring at a number of points derived from its name, and a player belongs to the first
+ * shard after the hash of their uuid. Adding a shard only moves the players between it and the previous point on the
+ * ring, which {@link #rebalance()} copies over.
+ *
+ * Until then, a player without a row on their shard is looked up on the other shards, and a player found elsewhere is
+ * moved to their shard before they are changed. Rows are only ever changed on the shard the player belongs to, so a
+ * row already on that shard is always the newest one.
+ */
+public class ShardedStorage extends StorageHandler {
+
+    private static final int POINTS_PER_SHARD = 128;
+    private static final int BATCH_SIZE = 500;
+
+    private final Map<String, SQLStorage> shards;
+    private final TreeMap<Long, SQLStorage> ring;
+    private final ExecutorService executor;
+
+    /**
+     * @param shards Storages by their names. The names decide where the shards are placed on the ring, so they must
+     *               stay the same between restarts
+     */
+    public ShardedStorage(@NotNull Map<String, SQLStorage> shards) {
+        this.shards = new LinkedHashMap<>(shards);
+        this.ring = new TreeMap<>();
+
+        for (Map.Entry<String, SQLStorage> shard : this.shards.entrySet()) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                this.ring.put(hash(shard.getKey() + "#" + i), shard.getValue());
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "2FA Shard Worker #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * @param uuid UUID of the player
+     * @return Shard the player belongs to
+     */
+    public @NotNull SQLStorage getShard(@NotNull UUID uuid) {
+        Map.Entry<Long, SQLStorage> entry = this.ring.ceilingEntry(hash(uuid.toString()));
+        return entry != null ? entry.getValue() : this.ring.firstEntry().getValue();
+    }
+
+    public @NotNull Map<String, SQLStorage> getShards() {
+        return Collections.unmodifiableMap(this.shards);
+    }
+
+    @Override
+    public void setFailureListener(@Nullable Consumer<Throwable> failureListener) {
+        super.setFailureListener(failureListener);
+        this.shards.values().forEach(shard -> shard.setFailureListener(failureListener));
+    }
+
+    /**
+     * Reads a player's row from their shard, or from the shard they were on before if it was not moved yet
+     *
+     * @param uuid UUID of the player
+     * @return Player's record, or an empty record if they have no row or it could not be read
+     */
+    private @NotNull PlayerRecord getRecord(UUID uuid) {
+        SQLStorage shard = this.getShard(uuid);
+
+        try {
+            PlayerRecord record = shard.findRecords(Collections.singleton(uuid), false).get(uuid);
+
+            if (record == null) {
+                record = this.findElsewhere(Collections.singleton(uuid), shard, false).get(uuid);
+            }
+
+            if (record != null) {
+                return record;
+            }
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            reportFailure(exception);
+        }
+
+        return new PlayerRecord(uuid, null, null, -1);
+    }
+
+    /**
+     * Returns the shard to write a player to. A player that is still on another shard is moved to their shard first
+     *
+     * @param uuid UUID of the player
+     * @return Shard the player belongs to
+     */
+    private @NotNull SQLStorage getWritableShard(UUID uuid) {
+        SQLStorage shard = this.getShard(uuid);
+        if (this.shards.size() == 1) {
+            return shard;
+        }
+
+        try {
+            if (shard.findRecords(Collections.singleton(uuid), true).isEmpty()) {
+                for (SQLStorage other : this.shards.values()) {
+                    PlayerRecord record = other == shard ? null : other.findRecords(Collections.singleton(uuid), true).get(uuid);
+
+                    if (record != null) {
+                        shard.insertRecords(Collections.singletonList(record));
+                        other.deleteRecords(Collections.singleton(uuid));
+                        break;
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            reportFailure(exception);
+        }
+
+        return shard;
+    }
+
+    /**
+     * Looks players up on every shard but the one they belong to, in parallel
+     *
+     * @param uuids Players to look up
+     * @param skipped Shard that was already read, or null to read all of them
+     * @param primary Whether to read from the primary databases
+     * @return Records of the players that were found
+     * @throws IOException Throws an exception if a shard could not be read
+     */
+    private Map<UUID, PlayerRecord> findElsewhere(Collection<UUID> uuids, @Nullable SQLStorage skipped, boolean primary) throws IOException {
+        Map<UUID, PlayerRecord> records = new ConcurrentHashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (SQLStorage shard : this.shards.values()) {
+            if (shard != skipped) {
+                futures.add(this.executor.submit(() -> {
+                    records.putAll(shard.findRecords(uuids, primary));
+                    return null;
+                }));
+            }
+        }
+
+        waitFor(futures);
+        return records;
+    }
+
+    @Override
+    public String setKey(UUID uuid, String key) {
+        return this.getWritableShard(uuid).setKey(uuid, key);
+    }
+
+    @Override
+    public String getKey(UUID uuid) {
+        return this.getRecord(uuid).getKey();
+    }
+
+    @Override
+    public boolean hasKey(UUID uuid) {
+        return this.getKey(uuid) != null;
+    }
+
+    @Override
+    public void removeKey(UUID uuid) {
+        this.getWritableShard(uuid).removeKey(uuid);
+    }
+
+    @Override
+    public String setIP(UUID uuid, String ip) {
+        return this.getWritableShard(uuid).setIP(uuid, ip);
+    }
+
+    @Override
+    public String getIP(UUID uuid) {
+        return this.getRecord(uuid).getIP();
+    }
+
+    @Override
+    public boolean hasIP(UUID uuid) {
+        return this.getIP(uuid) != null;
+    }
+
+    @Override
+    public long setEnableDate(UUID uuid, long enableDate) {
+        return this.getWritableShard(uuid).setEnableDate(uuid, enableDate);
+    }
+
+    @Override
+    public long getEnableDate(UUID uuid) {
+        return this.getRecord(uuid).getEnableDate();
+    }
+
+    @Override
+    public boolean hasEnableDate(UUID uuid) {
+        return this.getEnableDate(uuid) != -1;
+    }
+
+    /**
+     * Reads all shards in parallel and merges their records, so they are still given in uuid order. Every shard
+     * reader only runs a small buffer ahead of the merge
+     */
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        List<ShardReader> readers = new ArrayList<>();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+
+        for (SQLStorage shard : this.shards.values()) {
+            ShardReader reader = new ShardReader(shard, stopped);
+            readers.add(reader);
+            this.executor.execute(() -> reader.read(after, before));
+        }
+
+        PriorityQueue<ShardReader> heads = new PriorityQueue<>(Comparator.comparing(reader -> reader.head.getUuid().toString()));
+
+        try {
+            for (ShardReader reader : readers) {
+                if (reader.next()) {
+                    heads.add(reader);
+                }
+            }
+
+            while (!heads.isEmpty()) {
+                ShardReader reader = heads.poll();
+
+                if (!consumer.test(reader.head)) {
+                    return;
+                }
+
+                if (reader.next()) {
+                    heads.add(reader);
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped.set(true);
+        }
+    }
+
+    /**
+     * Reads every shard's part of the players in parallel. Players without a row on their shard are then looked up on
+     * the other shards. Players on a shard that could not be read are left out
+     */
+    @Override
+    public @NotNull Map<UUID, PlayerRecord> loadPlayers(@NotNull Collection<UUID> uuids) {
+        Map<SQLStorage, List<UUID>> batches = new HashMap<>();
+
+        for (UUID uuid : uuids) {
+            batches.computeIfAbsent(this.getShard(uuid), shard -> new ArrayList<>()).add(uuid);
+        }
+
+        Map<SQLStorage, Future<Map<UUID, PlayerRecord>>> futures = new HashMap<>();
+        for (Map.Entry<SQLStorage, List<UUID>> batch : batches.entrySet()) {
+            futures.put(batch.getKey(), this.executor.submit(() -> batch.getKey().findRecords(batch.getValue(), false)));
+        }
+
+        Map<UUID, PlayerRecord> records = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+
+        for (Map.Entry<SQLStorage, Future<Map<UUID, PlayerRecord>>> future : futures.entrySet()) {
+            try {
+                Map<UUID, PlayerRecord> found = future.getValue().get();
+                records.putAll(found);
+
+                batches.get(future.getKey()).stream().filter(uuid -> !found.containsKey(uuid)).forEach(missing::add);
+            } catch (ExecutionException exception) {
+                exception.getCause().printStackTrace();
+                reportFailure(exception.getCause());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return records;
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return records;
+        }
+
+        try {
+            if (this.shards.size() > 1) {
+                records.putAll(this.findElsewhere(missing, null, false));
+            }
+
+            // Players without a row anywhere have nothing stored
+            missing.forEach(uuid -> records.putIfAbsent(uuid, new PlayerRecord(uuid, null, null, -1)));
+        } catch (IOException exception) {
+            exception.printStackTrace();
+            reportFailure(exception);
+        }
+
+        return records;
+    }
+
+    /**
+     * Stores every shard's part of the batch in parallel
+     */
+    @Override
+    public void saveRecords(@NotNull List<PlayerRecord> records) throws IOException {
+        Map<SQLStorage, List<PlayerRecord>> batches = new HashMap<>();
+
+        for (PlayerRecord record : records) {
+            batches.computeIfAbsent(this.getShard(record.getUuid()), shard -> new ArrayList<>()).add(record);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<SQLStorage, List<PlayerRecord>> batch : batches.entrySet()) {
+            futures.add(this.executor.submit(() -> {
+                batch.getKey().saveRecords(batch.getValue());
+                return null;
+            }));
+        }
+
+        waitFor(futures);
+    }
+
+    /**
+     * Moves every player that is not stored on the shard it belongs to. Players are copied to their shard before they
+     * are deleted from the old one, so a player is never missing if the rebalance is stopped half way. A player that
+     * already has a row on their shard was changed since the shard was added, so that row is kept
+     *
+     * @return Number of moved players
+     * @throws IOException Throws an exception if players could not be moved
+     */
+    public long rebalance() throws IOException {
+        AtomicLong moved = new AtomicLong();
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (SQLStorage shard : this.shards.values()) {
+            futures.add(this.executor.submit(() -> {
+                moved.addAndGet(this.rebalance(shard));
+                return null;
+            }));
+        }
+
+        waitFor(futures);
+        return moved.get();
+    }
+
+    private long rebalance(SQLStorage source) throws IOException {
+        Map<SQLStorage, List<PlayerRecord>> batches = new HashMap<>();
+        List<PlayerRecord> batch = new ArrayList<>(BATCH_SIZE);
+        long moved = 0;
+
+        String last = null;
+        boolean done = false;
+
+        // The source is read a batch at a time, and each batch is moved before the next one is read
+        while (!done) {
+            batch.clear();
+            source.forEachRecord(last, null, record -> {
+                batch.add(record);
+                return batch.size() < BATCH_SIZE;
+            });
+
+            done = batch.size() < BATCH_SIZE;
+            if (batch.isEmpty()) {
+                break;
+            }
+            last = batch.get(batch.size() - 1).getUuid().toString();
+
+            batches.clear();
+            for (PlayerRecord record : batch) {
+                SQLStorage target = this.getShard(record.getUuid());
+
+                if (target != source) {
+                    batches.computeIfAbsent(target, shard -> new ArrayList<>()).add(record);
+                }
+            }
+
+            for (Map.Entry<SQLStorage, List<PlayerRecord>> move : batches.entrySet()) {
+                move.getKey().insertRecords(move.getValue());
+
+                List<UUID> uuids = new ArrayList<>(move.getValue().size());
+                move.getValue().forEach(record -> uuids.add(record.getUuid()));
+                source.deleteRecords(uuids);
+
+                moved += uuids.size();
+            }
+        }
+
+        if (moved > 0) {
+            Bukkit.getServer().getLogger().info("[2FA] Moved " + moved + " players to other shards");
+        }
+
+        return moved;
+    }
+
+    private static void waitFor(List<Future<?>> futures) throws IOException {
+        IOException failure = null;
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException exception) {
+                if (failure == null) {
+                    failure = exception.getCause() instanceof IOException ? (IOException) exception.getCause() : new IOException(exception.getCause());
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IOException(exception);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void unload() {
+        this.executor.shutdownNow();
+        this.shards.values().forEach(SQLStorage::unload);
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return this.shards.values().stream().allMatch(SQLStorage::isLoaded);
+    }
+
+    /**
+     * Reads one shard on a worker thread into a small buffer for the merge in forEachRecord
+     */
+    private static final class ShardReader {
+
+        private static final PlayerRecord END = new PlayerRecord(new UUID(0, 0), null, null, -1);
+
+        private final SQLStorage shard;
+        private final AtomicBoolean stopped;
+        private final BlockingQueue<PlayerRecord> buffer;
+
+        private PlayerRecord head;
+
+        private ShardReader(SQLStorage shard, AtomicBoolean stopped) {
+            this.shard = shard;
+            this.stopped = stopped;
+            this.buffer = new ArrayBlockingQueue<>(BATCH_SIZE);
+        }
+
+        private void read(@Nullable String after, @Nullable String before) {
+            try {
+                this.shard.forEachRecord(after, before, record -> this.offer(record));
+            } finally {
+                this.offer(END);
+            }
+        }
+
+        private boolean offer(PlayerRecord record) {
+            try {
+                while (!this.stopped.get()) {
+                    if (this.buffer.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+
+            return false;
+        }
+
+        /**
+         * Moves to the next record of the shard
+         *
+         * @return Whether there was another record
+         */
+        private boolean next() throws InterruptedException {
+            this.head = this.buffer.take();
+            return this.head != END;
+        }
+    }
+}
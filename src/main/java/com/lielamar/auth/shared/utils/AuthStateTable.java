@@ -0,0 +1,248 @@
+package com.lielamar.auth.shared.utils;
+
+import com.lielamar.auth.shared.handlers.AuthHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map from player UUIDs to auth states, meant for proxies with a lot of players.
+ *
+ * UUIDs are stored as their two longs and states as a single byte in open-addressing arrays, so an entry costs
+ * about 17 bytes instead of a HashMap node, a UUID object and a table slot. The table is split into stripes that
+ * each have their own lock. Writes lock a single stripe, and reads are optimistic and only lock if a write happened
+ * while they were reading.
+ */
+public class AuthStateTable {
+
+    private static final int STRIPES = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private static final byte EMPTY = 0;
+    private static final byte REMOVED = -1;
+
+    private static final AuthHandler.AuthState[] STATES = AuthHandler.AuthState.values();
+
+    private final Stripe[] stripes;
+
+    public AuthStateTable() {
+        this.stripes = new Stripe[STRIPES];
+
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    public @Nullable AuthHandler.AuthState get(@NotNull UUID uuid) {
+        long msb = uuid.getMostSignificantBits(), lsb = uuid.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+
+        byte state = this.stripes[stripe(hash)].get(msb, lsb, hash);
+        return state > EMPTY ? STATES[state - 1] : null;
+    }
+
+    public void put(@NotNull UUID uuid, @NotNull AuthHandler.AuthState authState) {
+        long msb = uuid.getMostSignificantBits(), lsb = uuid.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+
+        this.stripes[stripe(hash)].put(msb, lsb, hash, (byte) (authState.ordinal() + 1));
+    }
+
+    public void remove(@NotNull UUID uuid) {
+        long msb = uuid.getMostSignificantBits(), lsb = uuid.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+
+        this.stripes[stripe(hash)].remove(msb, lsb, hash);
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Stripe stripe : this.stripes) {
+            size += stripe.size();
+        }
+
+        return size;
+    }
+
+    private static int stripe(long hash) {
+        return (int) (hash >>> 58) & (STRIPES - 1);
+    }
+
+    /**
+     * MurmurHash3's 64-bit finalizer. Online UUIDs are random already, but offline ones are not.
+     */
+    private static long hash(long msb, long lsb) {
+        long hash = msb ^ Long.rotateLeft(lsb, 32);
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    private static final class Stripe {
+
+        private final StampedLock lock = new StampedLock();
+
+        // The arrays are replaced together on resize, so an optimistic reader always sees arrays of the same length
+        private volatile Slots slots = new Slots(INITIAL_STRIPE_CAPACITY);
+        private int size;
+        private int used;
+
+        private byte get(long msb, long lsb, long hash) {
+            long stamp = this.lock.tryOptimisticRead();
+            byte state = this.slots.find(msb, lsb, hash);
+
+            if (this.lock.validate(stamp)) {
+                return state;
+            }
+
+            stamp = this.lock.readLock();
+            try {
+                return this.slots.find(msb, lsb, hash);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        private void put(long msb, long lsb, long hash, byte state) {
+            long stamp = this.lock.writeLock();
+            try {
+                Slots current = this.slots;
+                int index = current.indexOf(msb, lsb, hash);
+
+                if (index >= 0) {
+                    current.states[index] = state;
+                    return;
+                }
+
+                // Removed slots count as used, since lookups have to probe past them
+                if (this.used + 1 > current.states.length * LOAD_FACTOR) {
+                    current = this.resize(this.size + 1);
+                }
+
+                index = current.freeIndexOf(hash);
+                if (current.states[index] == EMPTY) {
+                    this.used++;
+                }
+
+                current.msb[index] = msb;
+                current.lsb[index] = lsb;
+                current.states[index] = state;
+                this.size++;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        private void remove(long msb, long lsb, long hash) {
+            long stamp = this.lock.writeLock();
+            try {
+                int index = this.slots.indexOf(msb, lsb, hash);
+
+                if (index >= 0) {
+                    this.slots.states[index] = REMOVED;
+                    this.size--;
+                }
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        private int size() {
+            long stamp = this.lock.readLock();
+            try {
+                return this.size;
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Rehashes every live entry into new arrays. Removed slots are dropped, so if most used
+         * slots were removed ones the stripe is only cleaned up and keeps its capacity.
+         */
+        private Slots resize(int entries) {
+            Slots current = this.slots;
+
+            int capacity = current.states.length;
+            if (entries > capacity * LOAD_FACTOR / 2) {
+                capacity <<= 1;
+            }
+
+            Slots resized = new Slots(capacity);
+
+            for (int i = 0; i < current.states.length; i++) {
+                if (current.states[i] > EMPTY) {
+                    int index = resized.freeIndexOf(hash(current.msb[i], current.lsb[i]));
+
+                    resized.msb[index] = current.msb[i];
+                    resized.lsb[index] = current.lsb[i];
+                    resized.states[index] = current.states[i];
+                }
+            }
+
+            this.used = this.size;
+            this.slots = resized;
+            return resized;
+        }
+    }
+
+    private static final class Slots {
+
+        private final long[] msb;
+        private final long[] lsb;
+        private final byte[] states;
+
+        private Slots(int capacity) {
+            this.msb = new long[capacity];
+            this.lsb = new long[capacity];
+            this.states = new byte[capacity];
+        }
+
+        private byte find(long msb, long lsb, long hash) {
+            int index = this.indexOf(msb, lsb, hash);
+            return index >= 0 ? this.states[index] : EMPTY;
+        }
+
+        private int indexOf(long msb, long lsb, long hash) {
+            int mask = this.states.length - 1;
+            int index = (int) hash & mask;
+
+            // Bounded by the capacity, so a reader racing with a writer can never loop forever
+            for (int probes = 0; probes <= mask; probes++) {
+                byte state = this.states[index];
+
+                if (state == EMPTY) {
+                    return -1;
+                }
+
+                if (state != REMOVED && this.msb[index] == msb && this.lsb[index] == lsb) {
+                    return index;
+                }
+
+                index = (index + 1) & mask;
+            }
+
+            return -1;
+        }
+
+        private int freeIndexOf(long hash) {
+            int mask = this.states.length - 1;
+            int index = (int) hash & mask;
+
+            while (this.states[index] > EMPTY) {
+                index = (index + 1) & mask;
+            }
+
+            return index;
+        }
+    }
+}
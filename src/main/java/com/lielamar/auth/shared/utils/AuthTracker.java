@@ -1,18 +1,123 @@
 package com.lielamar.auth.shared.utils;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what players do over the last hour, a minute at a time.
+ *
+ * Every statistic has a ring of one slot per minute. A slot holds the minute it counts in its upper bits and the count
+ * in its lower bits, so moving a slot to a new minute and counting in it is a single compare-and-set. Recording never
+ * blocks and can be done from any thread.
+ */
 public class AuthTracker {
 
-    private int authentications;
+    public enum Statistic {
+        AUTHENTICATIONS,
+        FAILURES,
+        SETUPS,
+        DISABLES,
+        AUTO_AUTHENTICATIONS
+    }
+
+    public static final int MAXIMUM_WINDOW = 60;
+
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final AtomicLongArray[] slots;
+    private final AtomicInteger authentications;
 
     public AuthTracker() {
-        this.authentications = 0;
+        this.slots = new AtomicLongArray[Statistic.values().length];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = new AtomicLongArray(MAXIMUM_WINDOW);
+        }
+
+        this.authentications = new AtomicInteger();
+    }
+
+    private static long currentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    /**
+     * Counts one occurrence of a statistic
+     *
+     * @param statistic Statistic to count
+     */
+    public void record(@NotNull Statistic statistic) {
+        if (statistic == Statistic.AUTHENTICATIONS) {
+            this.authentications.incrementAndGet();
+        }
+
+        AtomicLongArray ring = this.slots[statistic.ordinal()];
+        long minute = currentMinute();
+        int index = (int) (minute % MAXIMUM_WINDOW);
+
+        while (true) {
+            long slot = ring.get(index);
+            long next;
+
+            if ((slot >>> COUNT_BITS) == minute) {
+                // Full slots stop counting instead of overflowing into the minute
+                if ((slot & COUNT_MASK) == COUNT_MASK) {
+                    return;
+                }
+                next = slot + 1;
+            } else {
+                next = (minute << COUNT_BITS) | 1;
+            }
+
+            if (ring.compareAndSet(index, slot, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param statistic Statistic to count
+     * @param minutes Size of the window, up to {@link #MAXIMUM_WINDOW} minutes. The current minute counts as one
+     * @return Occurrences of the statistic in the last minutes
+     */
+    public long getCount(@NotNull Statistic statistic, int minutes) {
+        minutes = Math.max(1, Math.min(MAXIMUM_WINDOW, minutes));
+
+        AtomicLongArray ring = this.slots[statistic.ordinal()];
+        long minute = currentMinute();
+        long count = 0;
+
+        for (int i = 0; i < MAXIMUM_WINDOW; i++) {
+            long slot = ring.get(i);
+            long age = minute - (slot >>> COUNT_BITS);
+
+            if (slot != 0 && age >= 0 && age < minutes) {
+                count += slot & COUNT_MASK;
+            }
+        }
+
+        return count;
     }
 
-    public int getAuthentications() {
-        return authentications;
+    /**
+     * @param statistic Statistic to count
+     * @param minutes Size of the window, up to {@link #MAXIMUM_WINDOW} minutes
+     * @return Average occurrences of the statistic per minute over the last minutes
+     */
+    public double getRate(@NotNull Statistic statistic, int minutes) {
+        minutes = Math.max(1, Math.min(MAXIMUM_WINDOW, minutes));
+        return (double) this.getCount(statistic, minutes) / minutes;
     }
 
-    public void setAuthentications(int authentications) {
-        this.authentications = authentications;
+    /**
+     * Returns the authentications since the last call, for charts that are sent every few minutes
+     *
+     * @return Authentications since the last call
+     */
+    public int takeAuthentications() {
+        return this.authentications.getAndSet(0);
     }
 }
@@ -14,6 +14,10 @@ public class Constants {
     public static final Pair<String, String> reloadCommand = new Pair<>("reload", "2fa.reload");
     public static final Pair<String, String> reportCommand = new Pair<>("report", "2fa.report");
     public static final Pair<String, String> helpCommand = new Pair<>("help", "2fa.help");
+    public static final Pair<String, String> storageCommand = new Pair<>("storage", "2fa.storage");
+    public static final Pair<String, String> migrateCommand = new Pair<>("migrate", "2fa.migrate");
+    public static final Pair<String, String> statsCommand = new Pair<>("stats", "2fa.stats");
+    public static final Pair<String, String> profileCommand = new Pair<>("profile", "2fa.profile");
 
     public static final String alertsPermission = "2fa.alerts";
     public static final String demandPermission = "2fa.demand";
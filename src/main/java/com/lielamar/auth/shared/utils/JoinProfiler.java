@@ -0,0 +1,294 @@
+package com.lielamar.auth.shared.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures what joining costs while it is running, for example while players reconnect after a restart.
+ *
+ * For every join it measures the time the plugin spent on the main thread, how many storage calls were made, and how
+ * long it took until the player reached the state they are left in. Work is attributed to a join by running it through
+ * {@link #profile(UUID, Runnable)}, and storages report their calls with {@link #storageCall()}. When the profiler is
+ * not running, all of these return straight away.
+ */
+public class JoinProfiler {
+
+    private static final int MAXIMUM_SAMPLES = 10000;
+
+    private volatile boolean running;
+    private long startedAt;
+
+    private final Map<UUID, Sample> pending;
+    private final List<Sample> finished;
+    private final ThreadLocal<Sample> current;
+    private final AtomicInteger peakPendingCallbacks;
+
+    public JoinProfiler() {
+        this.running = false;
+
+        this.pending = new ConcurrentHashMap<>();
+        this.finished = new ArrayList<>();
+        this.current = new ThreadLocal<>();
+        this.peakPendingCallbacks = new AtomicInteger();
+    }
+
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Forgets the previous results and starts profiling joins
+     */
+    public void start() {
+        this.pending.clear();
+        synchronized (this.finished) {
+            this.finished.clear();
+        }
+        this.peakPendingCallbacks.set(0);
+
+        this.startedAt = System.currentTimeMillis();
+        this.running = true;
+    }
+
+    /**
+     * Stops profiling joins
+     *
+     * @return Results since the profiler was started
+     */
+    public @NotNull Report stop() {
+        this.running = false;
+        Report report = this.getReport();
+        this.pending.clear();
+        return report;
+    }
+
+    /**
+     * Starts measuring a player's join
+     *
+     * @param uuid UUID of the player that joined
+     */
+    public void join(@NotNull UUID uuid) {
+        if (this.running) {
+            this.pending.put(uuid, new Sample(System.nanoTime()));
+        }
+    }
+
+    /**
+     * Runs work that is part of a player's join, and counts the time it takes and the storage calls it makes
+     *
+     * @param uuid UUID of the player the work is for
+     * @param work Work to run
+     */
+    public void profile(@NotNull UUID uuid, @NotNull Runnable work) {
+        this.profile(uuid, work, true);
+    }
+
+    /**
+     * Runs work that is part of a player's join off the main thread, and counts the storage calls it makes
+     *
+     * @param uuid UUID of the player the work is for
+     * @param work Work to run
+     */
+    public void profileAsync(@NotNull UUID uuid, @NotNull Runnable work) {
+        this.profile(uuid, work, false);
+    }
+
+    private void profile(@NotNull UUID uuid, @NotNull Runnable work, boolean mainThread) {
+        Sample sample = this.running ? this.pending.get(uuid) : null;
+
+        if (sample == null || this.current.get() != null) {
+            work.run();
+            return;
+        }
+
+        this.current.set(sample);
+        long start = System.nanoTime();
+
+        try {
+            work.run();
+        } finally {
+            if (mainThread) {
+                sample.mainThreadNanos += System.nanoTime() - start;
+            }
+            this.current.remove();
+        }
+    }
+
+    /**
+     * Counts a storage call towards the join that is being profiled on this thread, if any
+     */
+    public void storageCall() {
+        if (!this.running) {
+            return;
+        }
+
+        Sample sample = this.current.get();
+        if (sample != null) {
+            sample.storageCalls++;
+        }
+    }
+
+    /**
+     * @param pendingCallbacks Amount of communication callbacks currently waiting for an answer
+     */
+    public void observePendingCallbacks(int pendingCallbacks) {
+        if (this.running) {
+            this.peakPendingCallbacks.accumulateAndGet(pendingCallbacks, Math::max);
+        }
+    }
+
+    /**
+     * Marks a player's join as done
+     *
+     * @param uuid UUID of the player
+     * @param state State the player was left in
+     */
+    public void finish(@NotNull UUID uuid, @NotNull String state) {
+        if (!this.running) {
+            return;
+        }
+
+        Sample sample = this.pending.remove(uuid);
+        if (sample == null) {
+            return;
+        }
+
+        sample.finishedAfterNanos = System.nanoTime() - sample.joinedAt;
+        sample.state = state;
+
+        synchronized (this.finished) {
+            if (this.finished.size() < MAXIMUM_SAMPLES) {
+                this.finished.add(sample);
+            }
+        }
+    }
+
+    public @NotNull Report getReport() {
+        List<Sample> samples;
+        synchronized (this.finished) {
+            samples = new ArrayList<>(this.finished);
+        }
+
+        return new Report(samples, this.pending.size(), this.peakPendingCallbacks.get(), System.currentTimeMillis() - this.startedAt);
+    }
+
+    private static final class Sample {
+
+        private final long joinedAt;
+
+        // Only changed by one thread at a time, since a join runs its steps one after another
+        private long mainThreadNanos;
+        private int storageCalls;
+
+        private long finishedAfterNanos;
+        private String state;
+
+        private Sample(long joinedAt) {
+            this.joinedAt = joinedAt;
+        }
+    }
+
+    public static final class Report {
+
+        private final int joins;
+        private final int unfinished;
+        private final int peakPendingCallbacks;
+        private final long duration;
+
+        private final long[] mainThreadNanos;
+        private final int[] storageCalls;
+        private final long[] finishedAfterNanos;
+        private final Map<String, Integer> states;
+
+        private Report(List<Sample> samples, int unfinished, int peakPendingCallbacks, long duration) {
+            this.joins = samples.size();
+            this.unfinished = unfinished;
+            this.peakPendingCallbacks = peakPendingCallbacks;
+            this.duration = duration;
+
+            this.mainThreadNanos = new long[this.joins];
+            this.storageCalls = new int[this.joins];
+            this.finishedAfterNanos = new long[this.joins];
+            this.states = new TreeMap<>();
+
+            for (int i = 0; i < this.joins; i++) {
+                Sample sample = samples.get(i);
+                this.mainThreadNanos[i] = sample.mainThreadNanos;
+                this.storageCalls[i] = sample.storageCalls;
+                this.finishedAfterNanos[i] = sample.finishedAfterNanos;
+                this.states.merge(sample.state, 1, Integer::sum);
+            }
+
+            Arrays.sort(this.mainThreadNanos);
+            Arrays.sort(this.storageCalls);
+            Arrays.sort(this.finishedAfterNanos);
+        }
+
+        /** @return Finished joins */
+        public int getJoins() {
+            return this.joins;
+        }
+
+        /** @return Joins that did not reach their state yet */
+        public int getUnfinished() {
+            return this.unfinished;
+        }
+
+        public int getPeakPendingCallbacks() {
+            return this.peakPendingCallbacks;
+        }
+
+        /** @return Milliseconds the profiler ran for */
+        public long getDuration() {
+            return this.duration;
+        }
+
+        /** @return Finished joins by the state they were left in */
+        public @NotNull Map<String, Integer> getStates() {
+            return this.states;
+        }
+
+        /** @return Average milliseconds spent on the main thread per join */
+        public double getAverageMainThreadMillis() {
+            return this.joins == 0 ? 0 : Arrays.stream(this.mainThreadNanos).sum() / 1_000_000.0 / this.joins;
+        }
+
+        /** @return Milliseconds spent on the main thread by the join at the percentile */
+        public double getMainThreadMillis(double percentile) {
+            Long nanos = percentile(this.mainThreadNanos, percentile);
+            return nanos == null ? 0 : nanos / 1_000_000.0;
+        }
+
+        public double getAverageStorageCalls() {
+            return this.joins == 0 ? 0 : (double) Arrays.stream(this.storageCalls).sum() / this.joins;
+        }
+
+        public int getMaximumStorageCalls() {
+            return this.joins == 0 ? 0 : this.storageCalls[this.joins - 1];
+        }
+
+        /** @return Milliseconds from joining until reaching the final state, of the join at the percentile */
+        public double getTimeToStateMillis(double percentile) {
+            Long nanos = percentile(this.finishedAfterNanos, percentile);
+            return nanos == null ? 0 : nanos / 1_000_000.0;
+        }
+
+        private static @Nullable Long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return null;
+            }
+
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.lielamar.auth.shared.utils;
+
+import com.warrenstrange.googleauth.GoogleAuthenticatorConfig;
+import org.apache.commons.codec.binary.Base32;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+
+/**
+ * A secret key decoded once, so checking codes doesn't decode it again every time.
+ *
+ * Codes are checked the same way {@link com.warrenstrange.googleauth.GoogleAuthenticator#authorize(String, int)}
+ * checks them with its default config, because googleauth only accepts the Base32 text of a key.
+ */
+public final class TotpKey {
+
+    private static final GoogleAuthenticatorConfig CONFIG = new GoogleAuthenticatorConfig();
+
+    private final String key;
+    private final SecretKeySpec secret;
+
+    public TotpKey(@NotNull String key) {
+        this.key = key;
+        this.secret = new SecretKeySpec(new Base32().decode(key.toUpperCase(Locale.ROOT)), CONFIG.getHmacHashFunction().toString());
+    }
+
+    public @NotNull String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @param code   Inserted code
+     * @return       Whether the code is valid right now
+     */
+    public boolean authorize(int code) {
+        return this.authorize(code, System.currentTimeMillis());
+    }
+
+    /**
+     * @param code   Inserted code
+     * @param time   Time to check the code at, in milliseconds
+     * @return       Whether the code is valid at that time, allowing the same clock drift googleauth allows
+     */
+    public boolean authorize(int code, long time) {
+        if (code <= 0 || code >= CONFIG.getKeyModulus()) {
+            return false;
+        }
+
+        long timeWindow = time / CONFIG.getTimeStepSizeInMillis();
+        int window = CONFIG.getWindowSize();
+
+        for (int i = -((window - 1) / 2); i <= window / 2; i++) {
+            if (this.calculateCode(timeWindow + i) == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param timeWindow   Time step to calculate the code of
+     * @return             The code of the time step (RFC 6238)
+     */
+    private int calculateCode(long timeWindow) {
+        byte[] data = new byte[8];
+        long value = timeWindow;
+        for (int i = 8; i-- > 0; value >>>= 8) {
+            data[i] = (byte) value;
+        }
+
+        byte[] hash;
+        try {
+            Mac mac = Mac.getInstance(this.secret.getAlgorithm());
+            mac.init(this.secret);
+            hash = mac.doFinal(data);
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalStateException(exception);
+        }
+
+        int offset = hash[hash.length - 1] & 0xF;
+        long truncatedHash = 0;
+        for (int i = 0; i < 4; i++) {
+            truncatedHash <<= 8;
+            truncatedHash |= hash[offset + i] & 0xFF;
+        }
+
+        return (int) ((truncatedHash & 0x7FFFFFFF) % CONFIG.getKeyModulus());
+    }
+}
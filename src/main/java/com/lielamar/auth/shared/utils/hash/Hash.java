@@ -1,7 +1,32 @@
 package com.lielamar.auth.shared.utils.hash;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 public interface Hash {
 
     String hash(String string);
 
+    /**
+     * Returns the hash of a type from the config
+     *
+     * @param type Name of the hash (SHA256, SHA512, HMAC-SHA256 or NONE)
+     * @param secret Secret key for the keyed hashes
+     * @return Hash of the given type, or no hash if the type is unknown
+     */
+    static @NotNull Hash of(@NotNull String type, @Nullable String secret) {
+        switch (type.toUpperCase().replace('_', '-')) {
+            case "SHA256":
+                return new SHA256();
+            case "SHA512":
+                return new SHA512();
+            case "HMAC-SHA256":
+                if (secret == null || secret.isEmpty()) {
+                    throw new IllegalArgumentException("HMAC-SHA256 requires a secret");
+                }
+                return new HmacSHA256(secret);
+            default:
+                return new NoHash();
+        }
+    }
 }
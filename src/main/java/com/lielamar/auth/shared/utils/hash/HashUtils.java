@@ -0,0 +1,34 @@
+package com.lielamar.auth.shared.utils.hash;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+final class HashUtils {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private HashUtils() {}
+
+    static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * @param bytes Bytes to encode
+     * @return Lowercase hex of the bytes, the same as commons-codec gives, so stored hashes stay valid
+     */
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,36 @@
+package com.lielamar.auth.shared.utils.hash;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * SHA256 keyed with a secret, so a leaked database can't be matched against a list of hashed IP addresses
+ * without also knowing the secret
+ */
+public class HmacSHA256 implements Hash {
+
+    private final ThreadLocal<Mac> mac;
+
+    public HmacSHA256(@NotNull String secret) {
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+    }
+
+    @Override
+    public String hash(String string) {
+        return HashUtils.toHex(this.mac.get().doFinal(string.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -1,11 +1,15 @@
 package com.lielamar.auth.shared.utils.hash;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 public class SHA256 implements Hash {
 
+    // Digests aren't thread safe, so every thread keeps its own instead of creating one per hash
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> HashUtils.getDigest("SHA-256"));
+
     @Override
     public String hash(String string) {
-        return DigestUtils.sha256Hex(string);
+        return HashUtils.toHex(DIGEST.get().digest(string.getBytes(StandardCharsets.UTF_8)));
     }
 }
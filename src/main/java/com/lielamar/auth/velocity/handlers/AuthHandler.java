@@ -1,9 +1,11 @@
 package com.lielamar.auth.velocity.handlers;
 
+import com.lielamar.auth.shared.utils.AuthStateTable;
 import com.lielamar.auth.velocity.TwoFactorAuthentication;
 import com.lielamar.auth.velocity.events.PlayerStateChangeEvent;
 import com.velocitypowered.api.proxy.Player;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Optional;
 import java.util.UUID;
@@ -12,8 +14,13 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
 
     private final TwoFactorAuthentication plugin;
 
+    // Proxies can hold a lot of players, and Velocity fires events on multiple threads
+    private final AuthStateTable states;
+
     public AuthHandler(@NotNull TwoFactorAuthentication plugin) {
         this.plugin = plugin;
+
+        this.states = new AuthStateTable();
     }
 
     @Override
@@ -37,6 +44,21 @@ public class AuthHandler extends com.lielamar.auth.shared.handlers.AuthHandler {
             authState = event.getAuthState();
         }
 
-        authStates.put(uuid, authState);
+        this.writeState(uuid, authState);
+    }
+
+    @Override
+    protected @Nullable AuthState readState(@NotNull UUID uuid) {
+        return this.states.get(uuid);
+    }
+
+    @Override
+    protected void writeState(@NotNull UUID uuid, @NotNull AuthState authState) {
+        this.states.put(uuid, authState);
+    }
+
+    @Override
+    protected void clearState(@NotNull UUID uuid) {
+        this.states.remove(uuid);
     }
 }
@@ -53,8 +53,12 @@ public class ConfigHandler extends com.lielamar.auth.shared.handlers.ConfigHandl
         this.disableChat = disabledEvents.getBoolean("chat", true);
         this.disableServerSwitch = disabledEvents.getBoolean("server-switch", true);
 
+        this.whitelistedCommands.clear();
+        this.blacklistedCommands.clear();
         this.whitelistedCommands.addAll(commands.getList("whitelisted"));
         this.blacklistedCommands.addAll(commands.getList("blacklisted"));
+
+        super.clearCommandMatchers();
     }
 
     public boolean isDisableCommands() {
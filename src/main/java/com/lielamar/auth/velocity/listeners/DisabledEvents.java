@@ -1,6 +1,5 @@
 package com.lielamar.auth.velocity.listeners;
 
-import com.lielamar.auth.shared.utils.Constants;
 import com.lielamar.auth.velocity.TwoFactorAuthentication;
 import com.lielamar.auth.velocity.handlers.MessageHandler;
 import com.velocitypowered.api.command.CommandSource;
@@ -10,8 +9,6 @@ import com.velocitypowered.api.event.player.ServerPreConnectEvent;
 import com.velocitypowered.api.proxy.Player;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Locale;
-
 public class DisabledEvents {
 
     private final TwoFactorAuthentication plugin;
@@ -34,13 +31,13 @@ public class DisabledEvents {
             String command = event.getCommand();
 
             if (this.plugin.getConfigHandler().isDisableCommands()) {
-                if (!this.plugin.getConfigHandler().getWhitelistedCommands().contains(command) && !command.toLowerCase(Locale.ROOT)
-                        .startsWith(Constants.mainCommand.getA().toLowerCase(Locale.ROOT))) {
+                if (!this.plugin.getConfigHandler().getWhitelistedCommandMatcher().matches(command)
+                        && !this.plugin.getConfigHandler().getMainCommandMatcher().matches(command)) {
                     event.setResult(CommandExecuteEvent.CommandResult.denied());
                     this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
                 }
             } else {
-                if (this.plugin.getConfigHandler().getBlacklistedCommands().contains(command)) {
+                if (this.plugin.getConfigHandler().getBlacklistedCommandMatcher().matches(command)) {
                     event.setResult(CommandExecuteEvent.CommandResult.denied());
                     this.plugin.getMessageHandler().sendMessage(player, MessageHandler.TwoFAMessages.VALIDATE_ACCOUNT);
                 }
@@ -10,8 +10,10 @@ import com.lielamar.auth.shared.utils.Constants;
 import com.lielamar.auth.velocity.TwoFactorAuthentication;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.PluginMessageEvent;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ServerConnection;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
@@ -33,6 +35,16 @@ public class OnPluginMessage extends PluginMessagingHandler {
             return;
         }
 
+        // Messages on our channel are meant for us only, so they should never be forwarded to the player
+        event.setResult(PluginMessageEvent.ForwardResult.handled());
+
+        // Backends can send messages through any player connected to them, so replies go back to the sending server
+        if (!(event.getSource() instanceof ServerConnection)) {
+            return;
+        }
+
+        RegisteredServer server = ((ServerConnection) event.getSource()).getServer();
+
         ByteArrayDataInput msg = ByteStreams.newDataInput(event.getData());
         String subChannel = msg.readUTF();
 
@@ -43,12 +55,6 @@ public class OnPluginMessage extends PluginMessagingHandler {
 
             Optional<Player> optionalPlayer = this.plugin.getProxy().getPlayer(playerUUID);
 
-            if (!optionalPlayer.isPresent()) {
-                return;
-            }
-
-            Player player = optionalPlayer.get();
-
             short bodyLength = msg.readShort();
             byte[] msgBody = new byte[bodyLength];
             msg.readFully(msgBody);
@@ -57,26 +63,44 @@ public class OnPluginMessage extends PluginMessagingHandler {
             try {
                 AuthCommunicationHandler.MessageType messageType = AuthCommunicationHandler.MessageType.valueOf(msgBodyData.readUTF());
 
-                if (messageType == AuthCommunicationHandler.MessageType.SET_STATE) {
+                // States of players that already left the proxy are not kept, they would never be cleaned up
+                if (messageType == AuthCommunicationHandler.MessageType.SET_STATE && optionalPlayer.isPresent()) {
                     AuthHandler.AuthState state = AuthHandler.AuthState.valueOf(msgBodyData.readUTF());
 
-                    this.plugin.getAuthHandler().changeState(player.getUniqueId(), state);
+                    this.plugin.getAuthHandler().changeState(playerUUID, state);
                 }
 
-                sendResponse(messageUUID, player, messageType);
+                sendResponse(messageUUID, playerUUID, server, messageType);
             } catch (IOException exception) {
                 exception.printStackTrace();
             }
         }
     }
 
-    public void sendResponse(UUID messageUUID, Player player, AuthCommunicationHandler.MessageType messageType) {
+    /**
+     * Pushes the player's state to the server they just connected to, so it doesn't have to ask for it
+     */
+    @Subscribe
+    public void onServerConnected(ServerPostConnectEvent event) {
+        Player player = event.getPlayer();
         AuthHandler.AuthState authState = this.plugin.getAuthHandler().getAuthState(player.getUniqueId());
 
+        byte[] message = this.createMessage(UUID.randomUUID(), player.getUniqueId(), AuthCommunicationHandler.MessageType.PUSH_STATE, authState);
+        player.getCurrentServer().ifPresent(serverConnection -> serverConnection.sendPluginMessage(this.plugin.getOUTGOING(), message));
+    }
+
+    public void sendResponse(UUID messageUUID, UUID playerUUID, RegisteredServer server, AuthCommunicationHandler.MessageType messageType) {
+        AuthHandler.AuthState authState = this.plugin.getAuthHandler().getAuthState(playerUUID);
+
+        // RegisteredServer#sendPluginMessage picks any player connected to the server to carry the message
+        server.sendPluginMessage(this.plugin.getOUTGOING(), this.createMessage(messageUUID, playerUUID, messageType, authState));
+    }
+
+    private byte[] createMessage(UUID messageUUID, UUID playerUUID, AuthCommunicationHandler.MessageType messageType, AuthHandler.AuthState authState) {
         ByteArrayDataOutput response = ByteStreams.newDataOutput();
         response.writeUTF(Constants.PROXY_SUB_CHANNEL_NAME);
         response.writeUTF(messageUUID.toString());
-        response.writeUTF(player.getUniqueId().toString());
+        response.writeUTF(playerUUID.toString());
 
         ByteArrayOutputStream msgBody = new ByteArrayOutputStream();
         DataOutputStream msgBodyData = new DataOutputStream(msgBody);
@@ -90,7 +114,6 @@ public class OnPluginMessage extends PluginMessagingHandler {
         response.writeShort(msgBody.toByteArray().length);
         response.write(msgBody.toByteArray());
 
-        Optional<ServerConnection> optionalServer = player.getCurrentServer();
-        optionalServer.ifPresent(serverConnection -> serverConnection.sendPluginMessage(this.plugin.getOUTGOING(), response.toByteArray()));
+        return response.toByteArray();
     }
 }
@@ -0,0 +1,456 @@
+package com.lielamar.auth;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.messaging.Messenger;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thin server for the tests. It has a main thread that ticks 20 times a second, an async pool, players that can join
+ * and quit, and a plugin manager that calls the registered listeners. It only supports what the plugin uses while
+ * players join, and throws on anything else the plugin asks the server, scheduler or plugin manager for.
+ */
+public final class TestServer {
+
+    private static final Logger LOGGER = Logger.getLogger("2FA Test");
+    private static final long TICK_MILLIS = 50;
+
+    private static TestServer instance;
+
+    private final Map<UUID, Player> players;
+    private final Map<UUID, String> kicks;
+    private final List<Throwable> errors;
+    private final Map<Class<?>, List<Map.Entry<Listener, Method>>> listeners;
+
+    private final Map<Integer, Task> tasks;
+    private final Queue<Task> scheduled;
+    private final AtomicInteger taskIds;
+    private final ExecutorService asyncPool;
+    private final Thread mainThread;
+    private long currentTick;
+
+    private final Server server;
+    private final BukkitScheduler scheduler;
+    private final PluginManager pluginManager;
+    private final Messenger messenger;
+
+    private TestServer() {
+        this.players = new ConcurrentHashMap<>();
+        this.kicks = new ConcurrentHashMap<>();
+        this.errors = new CopyOnWriteArrayList<>();
+        this.listeners = new ConcurrentHashMap<>();
+
+        this.tasks = new ConcurrentHashMap<>();
+        this.scheduled = new ConcurrentLinkedQueue<>();
+        this.taskIds = new AtomicInteger();
+        this.asyncPool = Executors.newFixedThreadPool(16, runnable -> {
+            Thread thread = new Thread(runnable, "Test Server Async");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.mainThread = new Thread(this::tickLoop, "Test Server Thread");
+        this.mainThread.setDaemon(true);
+
+        this.server = fake(Server.class, this::onServer, true);
+        this.scheduler = fake(BukkitScheduler.class, this::onScheduler, true);
+        this.pluginManager = fake(PluginManager.class, this::onPluginManager, true);
+        this.messenger = fake(Messenger.class, (method, args) -> null, false);
+    }
+
+    /**
+     * Installs the server if no other test did yet
+     *
+     * @return The installed server
+     */
+    public static synchronized TestServer install() {
+        if (instance == null) {
+            instance = new TestServer();
+            Bukkit.setServer(instance.server);
+            instance.mainThread.start();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Runs work on the main thread and waits for it
+     *
+     * @param work Work to run
+     */
+    public void runOnMainThread(@NotNull Runnable work) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        this.schedule(() -> {
+            try {
+                work.run();
+                done.complete(null);
+            } catch (Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+        }, 0, -1);
+
+        try {
+            done.get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException exception) {
+            throw new IllegalStateException(exception.getCause());
+        } catch (InterruptedException | TimeoutException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Checks a condition on the main thread every tick until it holds
+     *
+     * @param condition Condition to wait for
+     * @param timeout Milliseconds to wait at most
+     * @return Whether the condition held before the timeout
+     * @throws InterruptedException Throws an exception if the waiting thread was interrupted
+     */
+    public boolean await(@NotNull BooleanSupplier condition, long timeout) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        Task task = this.schedule(() -> {
+            if (condition.getAsBoolean()) {
+                latch.countDown();
+            }
+        }, 0, 1);
+
+        try {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        } finally {
+            task.cancel();
+        }
+    }
+
+    /**
+     * Connects a player in the given number of ticks, and calls their join event on the main thread
+     *
+     * @param name Name of the player
+     * @param address Address the player connects from
+     * @param delay Ticks until the player joins
+     * @param permissions Permissions the player has
+     * @return The player, who is not online until they joined
+     */
+    public @NotNull Player join(@NotNull String name, @NotNull String address, long delay, @NotNull String... permissions) {
+        UUID uuid = getUniqueId(name);
+        Set<String> granted = new HashSet<>(Arrays.asList(permissions));
+        PlayerInventory inventory = fake(PlayerInventory.class, (method, args) -> null, false);
+        InetSocketAddress socketAddress = new InetSocketAddress(address, 25565);
+
+        Player[] player = new Player[1];
+        player[0] = fake(Player.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getUniqueId":
+                    return uuid;
+                case "getName":
+                    return name;
+                case "getAddress":
+                    return socketAddress;
+                case "isOnline":
+                    return this.players.get(uuid) == player[0];
+                case "hasPermission":
+                    return args[0] instanceof String && granted.contains(args[0]);
+                case "getInventory":
+                    return inventory;
+                case "kickPlayer":
+                    this.kicks.put(uuid, String.valueOf(args[0]));
+                    this.quit(player[0]);
+                    return null;
+                default:
+                    return null;
+            }
+        }, false);
+
+        this.schedule(() -> {
+            this.kicks.remove(uuid);
+            this.players.put(uuid, player[0]);
+            this.callEvent(new PlayerJoinEvent(player[0], null));
+        }, delay, -1);
+
+        return player[0];
+    }
+
+    /**
+     * @param name Name of a player
+     * @return UUID the player gets when they join, which is their offline mode UUID
+     */
+    public static @NotNull UUID getUniqueId(@NotNull String name) {
+        return UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param uuid UUID of the player
+     * @return Message the player was kicked with the last time they were online, or null if they weren't kicked
+     */
+    public @Nullable String getKickMessage(@NotNull UUID uuid) {
+        return this.kicks.get(uuid);
+    }
+
+    /**
+     * @return Exceptions thrown by listeners and scheduled tasks, which the server logged and otherwise ignored
+     */
+    public @NotNull List<Throwable> getErrors() {
+        return this.errors;
+    }
+
+    /**
+     * Disconnects every player, cancels every task and forgets every listener, so the next test starts clean
+     */
+    public void reset() {
+        this.runOnMainThread(() -> new ArrayList<>(this.players.values()).forEach(this::quit));
+
+        this.tasks.values().forEach(Task::cancel);
+        this.listeners.clear();
+        this.kicks.clear();
+        this.errors.clear();
+    }
+
+    private void quit(Player player) {
+        if (this.players.get(player.getUniqueId()) == player) {
+            this.callEvent(new PlayerQuitEvent(player, null));
+            this.players.remove(player.getUniqueId());
+        }
+    }
+
+    private Object onServer(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getLogger":
+                return LOGGER;
+            case "getName":
+            case "getVersion":
+                return "Test";
+            case "getBukkitVersion":
+                return "1.19.2-R0.1-SNAPSHOT";
+            case "getScheduler":
+                return this.scheduler;
+            case "getPluginManager":
+                return this.pluginManager;
+            case "getMessenger":
+                return this.messenger;
+            case "getOnlinePlayers":
+                return Collections.unmodifiableCollection(new ArrayList<>(this.players.values()));
+            case "getPlayer":
+                if (args[0] instanceof UUID) {
+                    return this.players.get(args[0]);
+                }
+                break;
+            default:
+                break;
+        }
+
+        throw new UnsupportedOperationException("The test server does not support " + method);
+    }
+
+    private Object onScheduler(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "runTask":
+                this.schedule((Runnable) args[1], 0, -1);
+                return null;
+            case "runTaskLater":
+                this.schedule((Runnable) args[1], (Long) args[2], -1);
+                return null;
+            case "scheduleSyncRepeatingTask":
+                return this.schedule((Runnable) args[1], (Long) args[2], (Long) args[3]).id;
+            case "runTaskAsynchronously":
+                this.asyncPool.execute(() -> this.run((Runnable) args[1]));
+                return null;
+            case "cancelTask":
+                Task task = this.tasks.get((Integer) args[0]);
+                if (task != null) {
+                    task.cancel();
+                }
+                return null;
+            default:
+                throw new UnsupportedOperationException("The test scheduler does not support " + method);
+        }
+    }
+
+    private Object onPluginManager(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "isPluginEnabled":
+                // Only the plugin under test is installed
+                return args[0] instanceof Plugin;
+            case "registerEvents":
+                this.registerEvents((Listener) args[0]);
+                return null;
+            case "callEvent":
+                this.callEvent((Event) args[0]);
+                return null;
+            default:
+                throw new UnsupportedOperationException("The test plugin manager does not support " + method);
+        }
+    }
+
+    private void registerEvents(Listener listener) {
+        for (Method method : listener.getClass().getDeclaredMethods()) {
+            if (method.isAnnotationPresent(EventHandler.class) && method.getParameterCount() == 1) {
+                method.setAccessible(true);
+                this.listeners.computeIfAbsent(method.getParameterTypes()[0], type -> new CopyOnWriteArrayList<>())
+                        .add(new AbstractMap.SimpleImmutableEntry<>(listener, method));
+            }
+        }
+    }
+
+    private void callEvent(Event event) {
+        this.listeners.forEach((type, registered) -> {
+            if (!type.isInstance(event)) {
+                return;
+            }
+
+            for (Map.Entry<Listener, Method> listener : registered) {
+                try {
+                    listener.getValue().invoke(listener.getKey(), event);
+                } catch (InvocationTargetException exception) {
+                    this.error("Could not pass " + event.getClass().getSimpleName(), exception.getCause());
+                } catch (IllegalAccessException exception) {
+                    this.error("Could not pass " + event.getClass().getSimpleName(), exception);
+                }
+            }
+        });
+    }
+
+    private Task schedule(Runnable work, long delay, long period) {
+        Task task = new Task(this.taskIds.incrementAndGet(), work, delay, period);
+        this.tasks.put(task.id, task);
+        this.scheduled.add(task);
+        return task;
+    }
+
+    private void run(Runnable work) {
+        try {
+            work.run();
+        } catch (Throwable throwable) {
+            this.error("A task threw an exception", throwable);
+        }
+    }
+
+    private void tickLoop() {
+        List<Task> pending = new ArrayList<>();
+        long nextTickAt = System.nanoTime();
+
+        while (true) {
+            this.currentTick++;
+
+            for (Task task; (task = this.scheduled.poll()) != null; ) {
+                // Like on a real server, a task scheduled for now runs on the next tick at the earliest
+                task.nextTick = this.currentTick - 1 + Math.max(1, task.delay);
+                pending.add(task);
+            }
+
+            List<Task> due = new ArrayList<>();
+            pending.removeIf(task -> task.cancelled || (task.nextTick <= this.currentTick && due.add(task)));
+
+            for (Task task : due) {
+                if (!task.cancelled) {
+                    this.run(task.work);
+                }
+
+                if (task.period > 0 && !task.cancelled) {
+                    task.nextTick = this.currentTick + task.period;
+                    pending.add(task);
+                } else {
+                    this.tasks.remove(task.id);
+                }
+            }
+
+            // Ticks that ran late are not made up for, like on a real server
+            nextTickAt = Math.max(nextTickAt + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS), System.nanoTime());
+            LockSupport.parkNanos(nextTickAt - System.nanoTime());
+        }
+    }
+
+    private void error(String message, Throwable throwable) {
+        this.errors.add(throwable);
+        LOGGER.log(Level.SEVERE, message, throwable);
+    }
+
+    /**
+     * Creates a fake of an interface that answers its methods with the given answer. Unless the fake is strict, a null
+     * answer is turned into the default value of the return type. Object methods work by identity
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Answer answer, boolean strict) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Test" + type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            }
+
+            Object value = answer.answer(method, args == null ? new Object[0] : args);
+            return value == null && !strict ? defaultValue(method.getReturnType()) : value;
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0F;
+        } else if (type == double.class) {
+            return 0D;
+        } else if (type == Set.class) {
+            return Collections.emptySet();
+        }
+        return null;
+    }
+
+    private interface Answer {
+        Object answer(Method method, Object[] args);
+    }
+
+    private final class Task {
+
+        private final int id;
+        private final Runnable work;
+        private final long delay;
+        private final long period;
+
+        private long nextTick;
+        private volatile boolean cancelled;
+
+        private Task(int id, Runnable work, long delay, long period) {
+            this.id = id;
+            this.work = work;
+            this.delay = delay;
+            this.period = period;
+        }
+
+        private void cancel() {
+            this.cancelled = true;
+            tasks.remove(this.id);
+        }
+    }
+}
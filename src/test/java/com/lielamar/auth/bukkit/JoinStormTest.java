@@ -0,0 +1,131 @@
+package com.lielamar.auth.bukkit;
+
+import com.lielamar.auth.TestServer;
+import com.lielamar.auth.bukkit.listeners.OnAuthStateChange;
+import com.lielamar.auth.bukkit.listeners.OnPlayerConnection;
+import com.lielamar.auth.shared.storage.PlayerRecord;
+import com.lielamar.auth.shared.utils.JoinProfiler;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reconnects 500 players within 10 seconds, like after a restart, and reports what the joins cost. Half of the players
+ * have 2FA enabled. Runs with {@code gradle loadTest}.
+ */
+@Tag("load")
+class JoinStormTest {
+
+    private static final int PLAYERS = 500;
+    private static final long STORM_TICKS = 200;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    @TempDir
+    Path dataFolder;
+
+    private TestServer server;
+    private TwoFactorAuthentication plugin;
+
+    @BeforeEach
+    @SuppressWarnings("deprecation")
+    void enablePlugin() {
+        this.server = TestServer.install();
+
+        File folder = this.dataFolder.toFile();
+        this.plugin = new TwoFactorAuthentication(new JavaPluginLoader(Bukkit.getServer()),
+                new PluginDescriptionFile("2FA", "test", TwoFactorAuthentication.class.getName()), folder, new File(folder, "2FA.jar")) {};
+
+        this.server.runOnMainThread(() -> {
+            this.plugin.setupAuth();
+
+            Bukkit.getPluginManager().registerEvents(new OnPlayerConnection(this.plugin), this.plugin);
+            Bukkit.getPluginManager().registerEvents(new OnAuthStateChange(this.plugin), this.plugin);
+        });
+    }
+
+    @AfterEach
+    void disablePlugin() {
+        this.server.reset();
+
+        if (this.plugin.getAuthHandler() != null && this.plugin.getAuthHandler().getAuthCommunicationHandler() != null) {
+            this.plugin.getAuthHandler().getAuthCommunicationHandler().unload();
+        }
+        if (this.plugin.getStorageHandler() != null) {
+            this.plugin.getStorageHandler().unload();
+        }
+    }
+
+    @Test
+    void reconnectingPlayersReachTheirState() throws IOException, InterruptedException {
+        List<PlayerRecord> records = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i += 2) {
+            records.add(new PlayerRecord(TestServer.getUniqueId("Player" + i), "JBSWY3DPEHPK3PXP", null, System.currentTimeMillis()));
+        }
+        this.plugin.getStorageHandler().saveRecords(records);
+
+        this.plugin.getJoinProfiler().start();
+
+        List<Player> players = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            players.add(this.server.join("Player" + i, "10.0." + (i / 250) + "." + (i % 250 + 1), 1 + i * STORM_TICKS / PLAYERS, "2fa.use"));
+        }
+
+        JoinProfiler.Report report = this.awaitJoins();
+        this.print(report);
+
+        assertEquals(PLAYERS, report.getJoins());
+        assertEquals(0, report.getUnfinished());
+        assertEquals(PLAYERS / 2, report.getStates().get("PENDING_LOGIN"));
+        assertEquals(PLAYERS / 2, report.getStates().get("DISABLED"));
+
+        for (Player player : players) {
+            assertTrue(player.isOnline(), player.getName() + " was kicked: " + this.server.getKickMessage(player.getUniqueId()));
+        }
+        assertTrue(this.server.getErrors().isEmpty(), "The server logged errors: " + this.server.getErrors());
+    }
+
+    private JoinProfiler.Report awaitJoins() throws InterruptedException {
+        JoinProfiler joinProfiler = this.plugin.getJoinProfiler();
+
+        this.server.await(() -> {
+            JoinProfiler.Report report = joinProfiler.getReport();
+            return report.getJoins() == PLAYERS && report.getUnfinished() == 0;
+        }, TIMEOUT_MILLIS);
+
+        return joinProfiler.stop();
+    }
+
+    private void print(JoinProfiler.Report report) {
+        StringBuilder states = new StringBuilder();
+        for (Map.Entry<String, Integer> state : report.getStates().entrySet()) {
+            states.append(state.getKey()).append(" ").append(state.getValue()).append("  ");
+        }
+
+        Bukkit.getServer().getLogger().info(String.format("[2FA] Join storm: %d joins in %ds, %d still loading%n"
+                        + "- Main thread per join: %.2fms avg / %.2fms p99%n"
+                        + "- Storage calls per join: %.2f avg / %d max%n"
+                        + "- Time to final state: %.0fms p50 / %.0fms p99%n"
+                        + "- Peak pending callbacks: %d%n"
+                        + "- Final states: %s",
+                report.getJoins(), report.getDuration() / 1000, report.getUnfinished(),
+                report.getAverageMainThreadMillis(), report.getMainThreadMillis(99),
+                report.getAverageStorageCalls(), report.getMaximumStorageCalls(),
+                report.getTimeToStateMillis(50), report.getTimeToStateMillis(99),
+                report.getPeakPendingCallbacks(), states.toString().trim()));
+    }
+}
@@ -0,0 +1,97 @@
+package com.lielamar.auth.bukkit.communication;
+
+import com.lielamar.auth.shared.handlers.AuthHandler.AuthState;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.GetResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class RabbitMQAuthCommunicationTest {
+
+    @Test
+    void carriesAnAuthenticationOverToTheSameAddressOnly() {
+        RabbitMQAuthCommunication.KnownState known = RabbitMQAuthCommunication.KnownState.decode(
+                new RabbitMQAuthCommunication.KnownState(AuthState.AUTHENTICATED, "first", 0).encode(), 0);
+
+        assertEquals(AuthState.AUTHENTICATED, known.getState("first"));
+        assertEquals(AuthState.NONE, known.getState("second"));
+        assertEquals(AuthState.NONE, known.getState(null));
+    }
+
+    @Test
+    void doesNotTrustAuthenticationsWithoutAnAddress() {
+        assertEquals(AuthState.NONE, new RabbitMQAuthCommunication.KnownState(AuthState.AUTHENTICATED, null, 0).getState("first"));
+
+        // States sent by older versions are only the name of the state
+        assertEquals(AuthState.NONE, RabbitMQAuthCommunication.KnownState.decode("AUTHENTICATED", 0).getState("first"));
+        assertEquals(AuthState.PENDING_LOGIN, RabbitMQAuthCommunication.KnownState.decode("PENDING_LOGIN", 0).getState("first"));
+        assertEquals(AuthState.NONE, RabbitMQAuthCommunication.KnownState.decode("UNKNOWN;first", 0).getState("first"));
+    }
+
+    /**
+     * Runs against the broker at RABBITMQ_HOST:RABBITMQ_PORT (localhost:5672 by default), and is skipped if there is none
+     */
+    @Test
+    void keepsTheQueueNameOfTheServer() throws IOException, TimeoutException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(System.getenv().getOrDefault("RABBITMQ_HOST", "localhost"));
+        factory.setPort(Integer.parseInt(System.getenv().getOrDefault("RABBITMQ_PORT", "5672")));
+        factory.setConnectionTimeout(500);
+        factory.setAutomaticRecoveryEnabled(true);
+
+        Connection connection;
+        try {
+            connection = factory.newConnection("2FA Test");
+        } catch (IOException | TimeoutException exception) {
+            assumeTrue(false, "No RabbitMQ broker at " + factory.getHost() + ":" + factory.getPort());
+            return;
+        }
+
+        try {
+            Channel channel = connection.createChannel();
+            String exchange = "2fa-test-" + UUID.randomUUID();
+            String serverId = UUID.randomUUID().toString();
+
+            channel.exchangeDeclare(exchange, BuiltinExchangeType.TOPIC, false, true, null);
+            String queue = RabbitMQAuthCommunication.declareQueue(channel, exchange, serverId);
+
+            // Declaring it again, as a recovered connection does, keeps the name replies are sent to
+            assertEquals(queue, RabbitMQAuthCommunication.declareQueue(channel, exchange, serverId));
+            assertTrue(queue.endsWith(serverId));
+
+            channel.basicPublish("", queue, null, "AUTHENTICATED;first".getBytes(StandardCharsets.UTF_8));
+            channel.basicPublish(exchange, "state." + UUID.randomUUID(), null, "PENDING_LOGIN;".getBytes(StandardCharsets.UTF_8));
+
+            assertEquals("AUTHENTICATED;first", receive(channel, queue));
+            assertEquals("PENDING_LOGIN;", receive(channel, queue));
+
+            channel.exchangeDelete(exchange);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static String receive(Channel channel, String queue) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (System.currentTimeMillis() < deadline) {
+            GetResponse response = channel.basicGet(queue, true);
+
+            if (response != null) {
+                return new String(response.getBody(), StandardCharsets.UTF_8);
+            }
+        }
+
+        return fail("Nothing arrived on " + queue);
+    }
+}
@@ -0,0 +1,102 @@
+package com.lielamar.auth.bukkit.communication;
+
+import com.lielamar.auth.shared.communication.AuthCommunicationHandler.MessageType;
+import com.lielamar.auth.shared.handlers.AuthHandler.AuthState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs against the Redis server at REDIS_HOST:REDIS_PORT (localhost:6379 by default), and is skipped if there is none
+ */
+class RedisAuthCommunicationTest {
+
+    private static final String SERVER = "test-server";
+
+    private Jedis jedis;
+    private final UUID player = UUID.randomUUID();
+
+    @BeforeEach
+    void connect() {
+        String host = System.getenv().getOrDefault("REDIS_HOST", "localhost");
+        int port = Integer.parseInt(System.getenv().getOrDefault("REDIS_PORT", "6379"));
+
+        try {
+            this.jedis = new Jedis(host, port, 500);
+            this.jedis.ping();
+        } catch (JedisException exception) {
+            assumeTrue(false, "No Redis server at " + host + ":" + port);
+        }
+    }
+
+    @AfterEach
+    void disconnect() {
+        if (this.jedis != null && this.jedis.isConnected()) {
+            this.jedis.del("2fa:state:" + this.player);
+            this.jedis.close();
+        }
+    }
+
+    private AuthState set(AuthState authState, String fingerprint) {
+        return this.send(RedisAuthCommunication.RedisRequest.of(MessageType.SET_STATE, this.player, UUID.randomUUID(), authState, fingerprint));
+    }
+
+    private AuthState load(String fingerprint) {
+        return this.send(RedisAuthCommunication.RedisRequest.of(MessageType.LOAD_STATE, this.player, UUID.randomUUID(), null, fingerprint));
+    }
+
+    private AuthState send(RedisAuthCommunication.RedisRequest request) {
+        List<RedisAuthCommunication.RedisResponse> responses = RedisAuthCommunication.execute(this.jedis,
+                Collections.singletonList(request), SERVER, 60);
+
+        assertEquals(1, responses.size());
+        return responses.get(0).authState;
+    }
+
+    @Test
+    void carriesAnAuthenticationOverToTheSameAddress() {
+        this.set(AuthState.AUTHENTICATED, "first");
+
+        assertEquals(AuthState.AUTHENTICATED, this.load("first"));
+        assertTrue(this.jedis.ttl("2fa:state:" + this.player) > 0);
+    }
+
+    @Test
+    void doesNotCarryAnAuthenticationOverToAnotherAddress() {
+        this.set(AuthState.AUTHENTICATED, "first");
+
+        assertEquals(AuthState.NONE, this.load("second"));
+        assertEquals(AuthState.NONE, this.load(null));
+    }
+
+    @Test
+    void doesNotTrustAuthenticationsWithoutAnAddress() {
+        this.set(AuthState.AUTHENTICATED, null);
+        assertEquals(AuthState.NONE, this.load("first"));
+
+        // States written by older versions don't have an address either
+        this.jedis.del("2fa:state:" + this.player);
+        this.jedis.hset("2fa:state:" + this.player, "state", AuthState.AUTHENTICATED.name());
+        assertEquals(AuthState.NONE, this.load("first"));
+    }
+
+    @Test
+    void answersOtherStatesRegardlessOfTheAddress() {
+        this.set(AuthState.PENDING_LOGIN, "first");
+        assertEquals(AuthState.PENDING_LOGIN, this.load("second"));
+
+        // Authenticating from a new address binds the state to it
+        this.set(AuthState.AUTHENTICATED, "second");
+        assertEquals(AuthState.AUTHENTICATED, this.load("second"));
+        assertEquals(AuthState.NONE, this.load("first"));
+    }
+}
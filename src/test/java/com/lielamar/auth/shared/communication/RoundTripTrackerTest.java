@@ -0,0 +1,124 @@
+package com.lielamar.auth.shared.communication;
+
+import com.lielamar.auth.shared.handlers.AuthHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoundTripTrackerTest {
+
+    private static RoundTripTracker fastTracker() {
+        RoundTripTracker tracker = new RoundTripTracker(1500);
+        for (int i = 0; i < 20; i++) {
+            tracker.record(10);
+        }
+        return tracker;
+    }
+
+    @Test
+    void waitsTheConfiguredTimeoutUntilThereAreEnoughSamples() {
+        RoundTripTracker tracker = new RoundTripTracker(1500);
+        tracker.record(10);
+
+        assertEquals(1500, tracker.getTimeout());
+        assertEquals(-1, tracker.getHedgeDelay());
+    }
+
+    @Test
+    void doublesTheTimeoutOnEveryTimeoutUpToTheConfiguredTimeout() {
+        RoundTripTracker tracker = fastTracker();
+        assertEquals(250, tracker.getTimeout());
+
+        tracker.recordTimeout();
+        assertEquals(500, tracker.getTimeout());
+        tracker.recordTimeout();
+        assertEquals(1000, tracker.getTimeout());
+
+        for (int i = 0; i < 10; i++) {
+            tracker.recordTimeout();
+        }
+        assertEquals(1500, tracker.getTimeout());
+        assertEquals(8, tracker.getBackoff());
+    }
+
+    @Test
+    void resetsTheBackoffOnceAnAnswerArrives() {
+        RoundTripTracker tracker = fastTracker();
+        tracker.recordTimeout();
+        tracker.recordTimeout();
+
+        tracker.record(10);
+        assertEquals(1, tracker.getBackoff());
+        assertEquals(250, tracker.getTimeout());
+    }
+
+    @Test
+    void backsOffWhenCallbacksExpire() {
+        TestHandler handler = new TestHandler();
+        for (int i = 0; i < 20; i++) {
+            handler.getRoundTrips().record(10);
+        }
+
+        // Sent longer ago than the 250ms timeout
+        Callback callback = new Callback(System.currentTimeMillis() - 300);
+        handler.loadPlayerState(callback.getPlayerUUID(), callback);
+
+        handler.expireCallbacks();
+
+        assertEquals(1, callback.timeouts);
+        assertEquals(1, handler.getTimeouts());
+        assertEquals(2, handler.getRoundTrips().getBackoff());
+        assertEquals(0, handler.getPendingCallbacks());
+    }
+
+    private static class TestHandler extends AuthCommunicationHandler {
+
+        @Override
+        public void loadPlayerState(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback) {
+            this.registerCallback(callback);
+        }
+
+        @Override
+        public void setPlayerState(@NotNull UUID uuid, @NotNull AuthHandler.AuthState authState, @Nullable AuthCommunicationCallback callback) {
+            this.registerCallback(callback);
+        }
+
+        @Override
+        public void checkCommunication(@NotNull UUID uuid, @Nullable AuthCommunicationCallback callback) {
+            this.registerCallback(callback);
+        }
+    }
+
+    private static class Callback implements AuthCommunicationHandler.AuthCommunicationCallback {
+
+        private final UUID playerUUID = UUID.randomUUID();
+        private final long executionStamp;
+        private int timeouts;
+
+        private Callback(long executionStamp) {
+            this.executionStamp = executionStamp;
+        }
+
+        @Override
+        public void execute(AuthHandler.AuthState authState) {}
+
+        @Override
+        public void onTimeout() {
+            this.timeouts++;
+        }
+
+        @Override
+        public long getExecutionStamp() {
+            return this.executionStamp;
+        }
+
+        @Override
+        public UUID getPlayerUUID() {
+            return this.playerUUID;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.lielamar.auth.shared.handlers;
+
+import com.lielamar.auth.TestServer;
+import com.lielamar.auth.shared.storage.MemoryStorage;
+import com.warrenstrange.googleauth.GoogleAuthenticator;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuthHandlerTest {
+
+    private MemoryStorage storage;
+    private TestAuthHandler authHandler;
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    @BeforeEach
+    void createHandler() {
+        this.storage = new MemoryStorage();
+        this.authHandler = new TestAuthHandler(this.storage);
+    }
+
+    private static String createSecret() {
+        return new GoogleAuthenticator().createCredentials().getKey();
+    }
+
+    private static int code(String secret) {
+        return new GoogleAuthenticator().getTotpPassword(secret);
+    }
+
+    @Test
+    void doesNotKeepSessionsOfOfflinePlayers() {
+        UUID offline = UUID.randomUUID();
+        this.storage.setKey(offline, createSecret());
+
+        this.authHandler.resetKey(offline);
+        this.authHandler.getKey(offline);
+        this.authHandler.is2FAEnabled(offline);
+
+        assertNull(this.storage.getKey(offline));
+        assertTrue(this.authHandler.sessions.isEmpty());
+        assertTrue(this.authHandler.countStates().values().stream().allMatch(count -> count == 0));
+    }
+
+    @Test
+    void validatesWithAKeyThatWasChangedElsewhere() {
+        UUID uuid = UUID.randomUUID();
+        String oldSecret = createSecret();
+        this.storage.setKey(uuid, oldSecret);
+
+        this.authHandler.changeState(uuid, AuthHandler.AuthState.PENDING_LOGIN);
+        assertEquals(oldSecret, this.authHandler.getKey(uuid));
+
+        // An admin or another server replaced the key while the old one was kept in the session
+        String newSecret = createSecret();
+        this.storage.setKey(uuid, newSecret);
+
+        assertTrue(this.authHandler.validateKey(uuid, code(newSecret)));
+        assertEquals(AuthHandler.AuthState.AUTHENTICATED, this.authHandler.getAuthState(uuid));
+        assertFalse(this.authHandler.getSession(uuid).isKeyLoaded());
+    }
+
+    @Test
+    void rejectsWrongCodes() {
+        UUID uuid = UUID.randomUUID();
+        String secret = createSecret();
+        this.storage.setKey(uuid, secret);
+
+        this.authHandler.changeState(uuid, AuthHandler.AuthState.PENDING_LOGIN);
+
+        assertFalse(this.authHandler.validateKey(uuid, (code(secret) + 1) % 1000000));
+        assertEquals(AuthHandler.AuthState.PENDING_LOGIN, this.authHandler.getAuthState(uuid));
+    }
+
+    @Test
+    void dropsTheSessionWhenThePlayerLeaves() {
+        UUID uuid = UUID.randomUUID();
+        this.authHandler.changeState(uuid, AuthHandler.AuthState.DISABLED);
+        this.authHandler.playerQuit(uuid);
+
+        assertNull(this.authHandler.findSession(uuid));
+    }
+
+    private static class TestAuthHandler extends AuthHandler {
+
+        private TestAuthHandler(MemoryStorage storage) {
+            super(storage, null);
+        }
+
+        @Override
+        public void changeState(@NotNull UUID uuid, @NotNull AuthState authState) {
+            this.writeState(uuid, authState);
+        }
+    }
+}
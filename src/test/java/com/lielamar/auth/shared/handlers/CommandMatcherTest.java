@@ -0,0 +1,63 @@
+package com.lielamar.auth.shared.handlers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandMatcherTest {
+
+    private static final Function<String, Collection<String>> ALIASES = command ->
+            command.equals("login") ? Arrays.asList("l", "auth") : Collections.emptyList();
+
+    private static final Function<String, Collection<String>> NAMESPACES = command ->
+            command.equals("login") ? Collections.singletonList("AuthMe") : Collections.emptyList();
+
+    @Test
+    void matchesLabelsAndAliases() {
+        CommandMatcher matcher = new CommandMatcher(Arrays.asList("/login", "Register"), ALIASES);
+
+        assertTrue(matcher.matches("/login password"));
+        assertTrue(matcher.matches("/LOGIN"));
+        assertTrue(matcher.matches("l"));
+        assertTrue(matcher.matches("/register a b"));
+        assertFalse(matcher.matches("/log"));
+        assertFalse(matcher.matches("/loginx"));
+        assertFalse(matcher.matches("/"));
+        assertEquals(4, matcher.size());
+    }
+
+    @Test
+    void matchesAnyNamespaceByDefault() {
+        CommandMatcher matcher = new CommandMatcher(Arrays.asList("help", "essentials:msg"), ALIASES);
+
+        assertTrue(matcher.matches("/help"));
+        assertTrue(matcher.matches("/anyplugin:help"));
+        assertTrue(matcher.matches("/essentials:msg player"));
+        assertFalse(matcher.matches("/msg player"));
+        assertFalse(matcher.matches("/other:msg player"));
+    }
+
+    @Test
+    void matchesOnlyRegisteredNamespacesWhenGiven() {
+        CommandMatcher matcher = new CommandMatcher(Arrays.asList("login", "help"), ALIASES, NAMESPACES);
+
+        assertTrue(matcher.matches("/login"));
+        assertTrue(matcher.matches("/authme:login"));
+        assertTrue(matcher.matches("/AuthMe:auth password"));
+        assertTrue(matcher.matches("/help"));
+        assertFalse(matcher.matches("/anyplugin:help"));
+        assertFalse(matcher.matches("/anyplugin:login"));
+        assertFalse(matcher.matches("/minecraft:l"));
+    }
+
+    @Test
+    void readsTheFirstArgument() {
+        assertEquals("setup", CommandMatcher.getFirstArgument("/2fa  setup now"));
+        assertNull(CommandMatcher.getFirstArgument("/2fa "));
+    }
+}
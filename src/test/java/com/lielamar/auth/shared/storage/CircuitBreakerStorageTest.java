@@ -0,0 +1,103 @@
+package com.lielamar.auth.shared.storage;
+
+import com.lielamar.auth.TestServer;
+import com.lielamar.auth.shared.storage.sql.H2Storage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerStorageTest {
+
+    private MemoryStorage storage;
+    private CircuitBreakerStorage breaker;
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    @BeforeEach
+    void createBreaker() {
+        this.storage = new MemoryStorage();
+        this.breaker = new CircuitBreakerStorage(this.storage, 3, 60000, 100);
+    }
+
+    @AfterEach
+    void unloadBreaker() {
+        this.breaker.unload();
+    }
+
+    @Test
+    void answersKnownPlayersFromMemoryWhileOpen() {
+        UUID known = UUID.randomUUID();
+        this.breaker.setKey(known, "KEY");
+        this.breaker.setEnableDate(known, 1000);
+
+        this.storage.setDown(true);
+        for (int i = 0; i < 3; i++) {
+            this.breaker.getIP(known);
+        }
+
+        assertEquals(CircuitBreakerStorage.State.OPEN, this.breaker.getState());
+        assertEquals("KEY", this.breaker.getKey(known));
+        assertEquals(1000, this.breaker.getEnableDate(known));
+    }
+
+    @Test
+    void doesNotMistakeUnknownPlayersForPlayersWithoutAKey() {
+        this.storage.setDown(true);
+
+        UUID unknown = UUID.randomUUID();
+        for (int i = 0; i < 3; i++) {
+            assertThrows(StorageUnavailableException.class, () -> this.breaker.getKey(unknown));
+        }
+
+        assertEquals(CircuitBreakerStorage.State.OPEN, this.breaker.getState());
+        assertThrows(StorageUnavailableException.class, () -> this.breaker.hasKey(unknown));
+
+        // Answers that don't decide whether the player has 2FA are still given
+        assertNull(this.breaker.getIP(unknown));
+        assertEquals(-1, this.breaker.getEnableDate(unknown));
+    }
+
+    @Test
+    void removesKeysThroughTheStorage() {
+        UUID uuid = UUID.randomUUID();
+        this.breaker.setKey(uuid, "KEY");
+        this.breaker.removeKey(uuid);
+
+        assertTrue(this.storage.getRemovedKeys().contains(uuid));
+        assertNull(this.breaker.getKey(uuid));
+        assertEquals(CircuitBreakerStorage.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    void readsRemovedSqlKeysWithoutFailing(@TempDir Path directory) {
+        H2Storage h2 = new H2Storage(directory.toString(), "players", "2fa_", 1024, 2, 1, 1800000, 0, 5000);
+        List<Throwable> failures = new ArrayList<>();
+        h2.setFailureListener(failures::add);
+
+        try {
+            UUID uuid = UUID.randomUUID();
+
+            // Older versions removed keys by storing NULL
+            h2.setKey(uuid, null);
+            h2.setIP(uuid, null);
+
+            assertNull(h2.getKey(uuid));
+            assertNull(h2.getIP(uuid));
+            assertTrue(failures.isEmpty(), () -> "Reading NULL columns failed: " + failures);
+        } finally {
+            h2.unload();
+        }
+    }
+}
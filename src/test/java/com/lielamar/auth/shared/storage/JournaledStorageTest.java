@@ -0,0 +1,137 @@
+package com.lielamar.auth.shared.storage;
+
+import com.lielamar.auth.TestServer;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournaledStorageTest {
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    private static JournaledStorage journal(MemoryStorage storage, File file) throws IOException {
+        return new JournaledStorage(new CircuitBreakerStorage(storage, 3, 60000, 100), file);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void writesChangesToTheStorage(@TempDir Path directory) throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        JournaledStorage journal = journal(storage, directory.resolve("journal").toFile());
+
+        try {
+            UUID uuid = UUID.randomUUID();
+            journal.setKey(uuid, "KEY");
+            journal.setEnableDate(uuid, 1000);
+
+            await(() -> journal.getPendingChanges() == 0);
+            assertEquals("KEY", storage.getKey(uuid));
+            assertEquals(1000, storage.getEnableDate(uuid));
+        } finally {
+            journal.unload();
+        }
+    }
+
+    @Test
+    void keepsChangesUntilTheStorageAcceptsThem(@TempDir Path directory) throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        storage.setDown(true);
+        JournaledStorage journal = journal(storage, directory.resolve("journal").toFile());
+
+        try {
+            UUID uuid = UUID.randomUUID();
+            journal.setKey(uuid, "KEY");
+
+            // The journal tried to write the change while the storage was down
+            await(() -> storage.getWrites() > 0);
+            assertEquals(1, journal.getPendingChanges());
+            assertEquals("KEY", journal.getKey(uuid));
+
+            storage.setDown(false);
+            await(() -> journal.getPendingChanges() == 0);
+            assertEquals("KEY", storage.getKey(uuid));
+        } finally {
+            journal.unload();
+        }
+    }
+
+    @Test
+    void replaysChangesAfterARestart(@TempDir Path directory) throws Exception {
+        File file = directory.resolve("journal").toFile();
+        UUID uuid = UUID.randomUUID();
+
+        MemoryStorage down = new MemoryStorage();
+        down.setDown(true);
+        JournaledStorage journal = journal(down, file);
+        journal.setKey(uuid, "KEY");
+        journal.setIP(uuid, "IP");
+        journal.unload();
+
+        assertTrue(file.length() > 0);
+
+        MemoryStorage storage = new MemoryStorage();
+        JournaledStorage restarted = journal(storage, file);
+
+        try {
+            await(() -> restarted.getPendingChanges() == 0);
+            assertEquals("KEY", storage.getKey(uuid));
+            assertEquals("IP", storage.getIP(uuid));
+        } finally {
+            restarted.unload();
+        }
+    }
+
+    @Test
+    void replaysRemovedKeysAsRemovals(@TempDir Path directory) throws Exception {
+        File file = directory.resolve("journal").toFile();
+        UUID uuid = UUID.randomUUID();
+
+        MemoryStorage down = new MemoryStorage();
+        down.setDown(true);
+        JournaledStorage journal = journal(down, file);
+        journal.removeKey(uuid);
+        journal.unload();
+
+        MemoryStorage storage = new MemoryStorage();
+        JournaledStorage restarted = journal(storage, file);
+
+        try {
+            await(() -> restarted.getPendingChanges() == 0);
+            assertTrue(storage.getRemovedKeys().contains(uuid));
+        } finally {
+            restarted.unload();
+        }
+    }
+
+    @Test
+    void writesStraightToTheStorageOnceUnloaded(@TempDir Path directory) throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        JournaledStorage journal = journal(storage, directory.resolve("journal").toFile());
+        journal.unload();
+
+        UUID uuid = UUID.randomUUID();
+        journal.setKey(uuid, "KEY");
+
+        assertEquals("KEY", storage.getKey(uuid));
+        assertEquals(0, journal.getPendingChanges());
+    }
+}
@@ -0,0 +1,165 @@
+package com.lielamar.auth.shared.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * A storage kept in memory that can be taken down, like a database that stops answering. While it is down, every
+ * operation reports a failure and answers with nothing, the same way the SQL storage does
+ */
+public class MemoryStorage extends StorageHandler {
+
+    private final Map<String, PlayerRecord> records = new ConcurrentSkipListMap<>();
+    private final Set<UUID> removedKeys = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicInteger writes = new AtomicInteger();
+
+    private volatile boolean down;
+    private volatile long latency;
+
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    /**
+     * @param latency Milliseconds every operation takes
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @return Players whose key was removed through {@link #removeKey(UUID)}
+     */
+    public Set<UUID> getRemovedKeys() {
+        return this.removedKeys;
+    }
+
+    public int getReads() {
+        return this.reads.get();
+    }
+
+    public int getWrites() {
+        return this.writes.get();
+    }
+
+    private boolean reachable() {
+        if (this.latency > 0) {
+            try {
+                Thread.sleep(this.latency);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (this.down) {
+            reportFailure(new IOException("The memory storage is down"));
+            return false;
+        }
+        return true;
+    }
+
+    private PlayerRecord read(UUID uuid) {
+        this.reads.incrementAndGet();
+        PlayerRecord record = this.reachable() ? this.records.get(uuid.toString()) : null;
+        return record != null ? record : new PlayerRecord(uuid, null, null, -1);
+    }
+
+    private boolean write(UUID uuid, @Nullable String key, @Nullable String ip, @Nullable Long enableDate) {
+        this.writes.incrementAndGet();
+        if (!this.reachable()) {
+            return false;
+        }
+
+        this.records.compute(uuid.toString(), (id, record) -> new PlayerRecord(uuid,
+                key != null || record == null ? key : record.getKey(),
+                ip != null || record == null ? ip : record.getIP(),
+                enableDate != null ? enableDate : record == null ? -1 : record.getEnableDate()));
+        return true;
+    }
+
+    @Override
+    public String setKey(UUID uuid, String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("A key is removed with removeKey");
+        }
+
+        return this.write(uuid, key, null, null) ? key : null;
+    }
+
+    @Override
+    public String getKey(UUID uuid) {
+        return this.read(uuid).getKey();
+    }
+
+    @Override
+    public boolean hasKey(UUID uuid) {
+        return this.getKey(uuid) != null;
+    }
+
+    @Override
+    public void removeKey(UUID uuid) {
+        this.writes.incrementAndGet();
+        if (this.reachable()) {
+            this.removedKeys.add(uuid);
+            this.records.computeIfPresent(uuid.toString(), (id, record) -> new PlayerRecord(uuid, null, record.getIP(), record.getEnableDate()));
+        }
+    }
+
+    @Override
+    public String setIP(UUID uuid, String ip) {
+        return this.write(uuid, null, ip, null) ? ip : null;
+    }
+
+    @Override
+    public String getIP(UUID uuid) {
+        return this.read(uuid).getIP();
+    }
+
+    @Override
+    public boolean hasIP(UUID uuid) {
+        return this.getIP(uuid) != null;
+    }
+
+    @Override
+    public long setEnableDate(UUID uuid, long enableDate) {
+        return this.write(uuid, null, null, enableDate) ? enableDate : -1;
+    }
+
+    @Override
+    public long getEnableDate(UUID uuid) {
+        return this.read(uuid).getEnableDate();
+    }
+
+    @Override
+    public boolean hasEnableDate(UUID uuid) {
+        return this.getEnableDate(uuid) != -1;
+    }
+
+    @Override
+    public void forEachRecord(@Nullable String after, @Nullable String before, @NotNull Predicate<PlayerRecord> consumer) {
+        for (PlayerRecord record : this.records.values()) {
+            if (isInRange(record.getUuid().toString(), after, before) && !consumer.test(record)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void unload() {}
+
+    @Override
+    public boolean isLoaded() {
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package com.lielamar.auth.shared.storage.json;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JSONStorageTest {
+
+    @Test
+    void keepsChangedRecordsInMemoryUntilTheyAreWritten(@TempDir Path directory) {
+        JSONStorage storage = new JSONStorage(directory.toString(), 2, 60000);
+        List<UUID> players = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                UUID uuid = UUID.randomUUID();
+                players.add(uuid);
+                storage.setKey(uuid, "KEY" + i);
+            }
+
+            // None of the records were written yet, so none of them may be read from a (missing) file
+            for (int i = 0; i < players.size(); i++) {
+                assertFalse(storage.getFile(players.get(i)).exists());
+                assertEquals("KEY" + i, storage.getKey(players.get(i)));
+            }
+
+            storage.flush();
+            for (UUID uuid : players) {
+                assertTrue(storage.getFile(uuid).exists());
+            }
+        } finally {
+            storage.unload();
+        }
+
+        JSONStorage reloaded = new JSONStorage(directory.toString(), 2, 0);
+        try {
+            for (int i = 0; i < players.size(); i++) {
+                assertEquals("KEY" + i, reloaded.getKey(players.get(i)));
+            }
+        } finally {
+            reloaded.unload();
+        }
+    }
+
+    @Test
+    void deletesTheFileOfPlayersWithoutTwoFactor(@TempDir Path directory) {
+        JSONStorage storage = new JSONStorage(directory.toString(), 16, 0);
+
+        try {
+            UUID uuid = UUID.randomUUID();
+            storage.setKey(uuid, "KEY");
+            assertTrue(storage.getFile(uuid).exists());
+
+            storage.removeKey(uuid);
+            assertFalse(storage.getFile(uuid).exists());
+            assertNull(storage.getKey(uuid));
+        } finally {
+            storage.unload();
+        }
+    }
+
+    @Test
+    void neverLosesChangesWhileRecordsAreEvictedAndWritten(@TempDir Path directory) throws Exception {
+        JSONStorage storage = new JSONStorage(directory.toString(), 4, 5);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicInteger lost = new AtomicInteger();
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(executor.submit(() -> {
+                    List<UUID> players = new ArrayList<>();
+                    for (int i = 0; i < 8; i++) {
+                        players.add(UUID.randomUUID());
+                    }
+
+                    for (int round = 0; round < 10; round++) {
+                        for (UUID uuid : players) {
+                            storage.setKey(uuid, uuid + "/" + round);
+                        }
+                        for (UUID uuid : players) {
+                            if (!(uuid + "/" + round).equals(storage.getKey(uuid))) {
+                                lost.incrementAndGet();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            storage.unload();
+        }
+
+        assertEquals(0, lost.get());
+    }
+}
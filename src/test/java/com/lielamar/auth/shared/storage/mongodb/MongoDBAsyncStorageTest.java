@@ -0,0 +1,127 @@
+package com.lielamar.auth.shared.storage.mongodb;
+
+import com.lielamar.auth.TestServer;
+import com.lielamar.auth.shared.storage.PlayerRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs against the MongoDB server at MONGODB_HOST:MONGODB_PORT (localhost:27017 by default), and is skipped if there
+ * is none
+ */
+class MongoDBAsyncStorageTest {
+
+    private MongoDBAsyncStorage storage;
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    @BeforeEach
+    void connect() {
+        String host = System.getenv().getOrDefault("MONGODB_HOST", "localhost");
+        int port = Integer.parseInt(System.getenv().getOrDefault("MONGODB_PORT", "27017"));
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), 500);
+        } catch (IOException exception) {
+            assumeTrue(false, "No MongoDB server at " + host + ":" + port);
+        }
+
+        // Every run gets its own collection, so runs don't see each other's players
+        String prefix = "test_" + UUID.randomUUID().toString().replace("-", "") + "_";
+        this.storage = new MongoDBAsyncStorage(host, "2fa_test", "", "", port, prefix, "");
+        assertTrue(this.storage.isLoaded());
+    }
+
+    @AfterEach
+    void unload() {
+        if (this.storage != null) {
+            this.storage.unload();
+        }
+    }
+
+    @Test
+    void readsWaitForQueuedWrites() {
+        UUID player = UUID.randomUUID();
+
+        this.storage.setKey(player, "KEY");
+        this.storage.setIP(player, "fingerprint");
+        this.storage.setEnableDate(player, 1000L);
+
+        assertEquals("KEY", this.storage.getKey(player));
+        assertEquals("fingerprint", this.storage.getIP(player));
+        assertEquals(1000L, this.storage.getEnableDate(player));
+    }
+
+    @Test
+    void keepsTheOrderOfAPlayersWrites() {
+        UUID player = UUID.randomUUID();
+
+        for (int i = 0; i < 50; i++) {
+            this.storage.setKey(player, "KEY" + i);
+        }
+        this.storage.removeKey(player);
+        this.storage.setKey(player, "LAST");
+
+        assertEquals("LAST", this.storage.getKey(player));
+    }
+
+    @Test
+    void writeAndWaitReturnsOnceStored() {
+        UUID player = UUID.randomUUID();
+
+        this.storage.writeAndWait(() -> this.storage.setKey(player, "KEY"));
+
+        assertTrue(this.storage.flush().isDone());
+        assertEquals("KEY", this.storage.getKey(player));
+    }
+
+    @Test
+    void asyncReadsDoNotBlock() throws Exception {
+        UUID player = UUID.randomUUID();
+        this.storage.setKey(player, "KEY");
+
+        CompletableFuture<String> key = this.storage.getKeyAsync(player);
+        CompletableFuture<Long> enableDate = this.storage.getEnableDateAsync(UUID.randomUUID());
+
+        assertEquals("KEY", key.get(10, TimeUnit.SECONDS));
+        assertEquals(-1L, (long) enableDate.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void loadsPlayersInBulk() throws IOException {
+        List<PlayerRecord> saved = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            saved.add(new PlayerRecord(UUID.randomUUID(), "KEY" + i, null, i));
+        }
+        this.storage.saveRecords(saved);
+
+        UUID unknown = UUID.randomUUID();
+        List<UUID> uuids = new ArrayList<>(Arrays.asList(saved.get(0).getUuid(), saved.get(599).getUuid(), unknown));
+
+        Map<UUID, PlayerRecord> records = this.storage.loadPlayers(uuids);
+
+        assertEquals(3, records.size());
+        assertEquals("KEY0", records.get(saved.get(0).getUuid()).getKey());
+        assertEquals(599L, records.get(saved.get(599).getUuid()).getEnableDate());
+        assertTrue(records.get(unknown).isEmpty());
+    }
+}
@@ -0,0 +1,119 @@
+package com.lielamar.auth.shared.storage.sql;
+
+import com.lielamar.auth.TestServer;
+import com.lielamar.auth.shared.storage.PlayerRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedStorageTest {
+
+    @TempDir
+    Path directory;
+
+    private SQLStorage first;
+    private SQLStorage second;
+    private ShardedStorage sharded;
+
+    private final List<UUID> players = new ArrayList<>();
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    /**
+     * Stores players on the first shard, and then adds a second one that some of them belong to now
+     */
+    @BeforeEach
+    void addShard() {
+        this.first = new H2Storage(this.directory.toString(), "first", "2fa_", 1024, 2, 1, 1800000, 0, 5000);
+        this.second = new H2Storage(this.directory.toString(), "second", "2fa_", 1024, 2, 1, 1800000, 0, 5000);
+
+        for (int i = 0; i < 100; i++) {
+            UUID uuid = UUID.randomUUID();
+            this.players.add(uuid);
+            this.first.setKey(uuid, "KEY" + i);
+        }
+
+        Map<String, SQLStorage> shards = new LinkedHashMap<>();
+        shards.put("first", this.first);
+        shards.put("second", this.second);
+        this.sharded = new ShardedStorage(shards);
+    }
+
+    @AfterEach
+    void unload() {
+        this.sharded.unload();
+    }
+
+    private List<UUID> movedPlayers() {
+        List<UUID> moved = new ArrayList<>();
+        for (UUID uuid : this.players) {
+            if (this.sharded.getShard(uuid) == this.second) {
+                moved.add(uuid);
+            }
+        }
+
+        assertFalse(moved.isEmpty(), "No player belongs to the new shard");
+        return moved;
+    }
+
+    @Test
+    void findsPlayersThatWereNotMovedYet() {
+        for (int i = 0; i < this.players.size(); i++) {
+            assertEquals("KEY" + i, this.sharded.getKey(this.players.get(i)));
+        }
+
+        Map<UUID, PlayerRecord> records = this.sharded.loadPlayers(this.players);
+        for (int i = 0; i < this.players.size(); i++) {
+            assertEquals("KEY" + i, records.get(this.players.get(i)).getKey());
+        }
+    }
+
+    @Test
+    void movesPlayersToTheirShardBeforeChangingThem() {
+        UUID uuid = this.movedPlayers().get(0);
+        String key = this.sharded.getKey(uuid);
+
+        this.sharded.setIP(uuid, "IP");
+
+        assertEquals(key, this.second.getKey(uuid));
+        assertEquals("IP", this.second.getIP(uuid));
+        assertNull(this.first.getKey(uuid));
+        assertEquals(key, this.sharded.getKey(uuid));
+    }
+
+    @Test
+    void keepsNewerRowsWhenRebalancing() throws Exception {
+        List<UUID> moved = this.movedPlayers();
+        UUID changed = moved.get(0);
+
+        // The player was changed on their new shard while their old row was still on the first one
+        this.second.setKey(changed, "NEWER");
+
+        assertEquals(moved.size(), this.sharded.rebalance());
+        assertEquals("NEWER", this.sharded.getKey(changed));
+
+        for (UUID uuid : moved) {
+            assertNull(this.first.getKey(uuid));
+            assertNotNull(this.second.getKey(uuid));
+        }
+
+        for (int i = 0; i < this.players.size(); i++) {
+            UUID uuid = this.players.get(i);
+            if (!uuid.equals(changed)) {
+                assertEquals("KEY" + i, this.sharded.getKey(uuid));
+            }
+        }
+
+        assertEquals(0, this.sharded.rebalance());
+    }
+}
@@ -0,0 +1,167 @@
+package com.lielamar.auth.shared.utils;
+
+import com.lielamar.auth.shared.handlers.AuthHandler;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuthStateTableTest {
+
+    private static final AuthHandler.AuthState[] STATES = AuthHandler.AuthState.values();
+
+    @Test
+    void storesAndRemovesStates() {
+        AuthStateTable table = new AuthStateTable();
+        UUID uuid = UUID.randomUUID();
+
+        assertNull(table.get(uuid));
+
+        table.put(uuid, AuthHandler.AuthState.PENDING_LOGIN);
+        assertEquals(AuthHandler.AuthState.PENDING_LOGIN, table.get(uuid));
+
+        table.put(uuid, AuthHandler.AuthState.AUTHENTICATED);
+        assertEquals(AuthHandler.AuthState.AUTHENTICATED, table.get(uuid));
+        assertEquals(1, table.size());
+
+        table.remove(uuid);
+        assertNull(table.get(uuid));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void keepsEntriesWhileGrowingAndReusingRemovedSlots() {
+        AuthStateTable table = new AuthStateTable();
+        List<UUID> uuids = new ArrayList<>();
+
+        for (int i = 0; i < 100_000; i++) {
+            UUID uuid = new UUID(i, i * 31L);
+            uuids.add(uuid);
+            table.put(uuid, STATES[i % STATES.length]);
+        }
+
+        // Removing and adding players over and over fills the stripes with removed slots
+        for (int round = 0; round < 5; round++) {
+            for (int i = round; i < uuids.size(); i += 5) {
+                table.remove(uuids.get(i));
+            }
+            for (int i = round; i < uuids.size(); i += 5) {
+                table.put(uuids.get(i), STATES[(i + round) % STATES.length]);
+            }
+        }
+
+        assertEquals(uuids.size(), table.size());
+        for (int i = 0; i < uuids.size(); i++) {
+            assertEquals(STATES[(i + i % 5) % STATES.length], table.get(uuids.get(i)), "state of player " + i);
+        }
+    }
+
+    /**
+     * Every player has a single state it is ever set to. Writers set and remove their own players while readers check
+     * that a player is only ever seen without a state or with its own, which a torn optimistic read would break
+     */
+    @Test
+    void readersNeverSeeAnotherPlayersState() throws Exception {
+        int writers = 4, readers = 4, playersPerWriter = 20_000;
+        long duration = TimeUnit.SECONDS.toNanos(3);
+
+        AuthStateTable table = new AuthStateTable();
+        UUID[][] players = new UUID[writers][playersPerWriter];
+        Random random = new Random(42);
+
+        for (int writer = 0; writer < writers; writer++) {
+            for (int i = 0; i < playersPerWriter; i++) {
+                players[writer][i] = new UUID(random.nextLong(), random.nextLong());
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean stop = new AtomicBoolean();
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        List<Future<boolean[]>> results = new ArrayList<>();
+
+        for (int writer = 0; writer < writers; writer++) {
+            UUID[] own = players[writer];
+
+            results.add(executor.submit(() -> {
+                boolean[] present = new boolean[own.length];
+                Random writes = new Random(own[0].getLeastSignificantBits());
+                start.await();
+
+                while (!stop.get()) {
+                    int i = writes.nextInt(own.length);
+
+                    if (present[i]) {
+                        table.remove(own[i]);
+                    } else {
+                        table.put(own[i], stateOf(own[i]));
+                    }
+                    present[i] = !present[i];
+
+                    // A thread always reads its own writes
+                    if (table.get(own[i]) != (present[i] ? stateOf(own[i]) : null)) {
+                        failures.add("Writer did not read its own write of " + own[i]);
+                    }
+                }
+
+                return present;
+            }));
+        }
+
+        for (int reader = 0; reader < readers; reader++) {
+            int seed = reader;
+
+            executor.submit(() -> {
+                Random reads = new Random(seed);
+                start.await();
+
+                while (!stop.get()) {
+                    UUID uuid = players[reads.nextInt(writers)][reads.nextInt(playersPerWriter)];
+                    AuthHandler.AuthState state = table.get(uuid);
+
+                    if (state != null && state != stateOf(uuid)) {
+                        failures.add("Read " + state + " for " + uuid + ", which is only ever set to " + stateOf(uuid));
+                    }
+                }
+                return null;
+            });
+        }
+
+        start.countDown();
+        TimeUnit.NANOSECONDS.sleep(duration);
+        stop.set(true);
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(failures.isEmpty(), () -> failures.size() + " failures, first: " + failures.peek());
+
+        int expectedSize = 0;
+        for (int writer = 0; writer < writers; writer++) {
+            boolean[] present = results.get(writer).get();
+
+            for (int i = 0; i < playersPerWriter; i++) {
+                UUID uuid = players[writer][i];
+                assertEquals(present[i] ? stateOf(uuid) : null, table.get(uuid));
+                expectedSize += present[i] ? 1 : 0;
+            }
+        }
+
+        assertEquals(expectedSize, table.size());
+    }
+
+    private static AuthHandler.AuthState stateOf(UUID uuid) {
+        return STATES[(int) Math.floorMod(uuid.getMostSignificantBits(), (long) STATES.length)];
+    }
+}
@@ -0,0 +1,44 @@
+package com.lielamar.auth.shared.utils;
+
+import com.warrenstrange.googleauth.GoogleAuthenticator;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TotpKeyTest {
+
+    private static final long STEP = TimeUnit.SECONDS.toMillis(30);
+
+    @Test
+    void acceptsTheCodesGoogleAuthenticatorAccepts() {
+        GoogleAuthenticator authenticator = new GoogleAuthenticator();
+
+        for (int i = 0; i < 20; i++) {
+            String secret = authenticator.createCredentials().getKey();
+            TotpKey key = new TotpKey(secret.toLowerCase());
+            long time = System.currentTimeMillis() + i * 7919L * STEP;
+
+            for (long drift = -3; drift <= 3; drift++) {
+                int code = authenticator.getTotpPassword(secret, time + drift * STEP);
+
+                assertEquals(authenticator.authorize(secret, code, time), key.authorize(code, time));
+            }
+        }
+    }
+
+    @Test
+    void allowsOneStepOfDrift() {
+        TotpKey key = new TotpKey("JBSWY3DPEHPK3PXP");
+        GoogleAuthenticator authenticator = new GoogleAuthenticator();
+        long time = 1_600_000_000_000L;
+
+        assertTrue(key.authorize(authenticator.getTotpPassword("JBSWY3DPEHPK3PXP", time), time));
+        assertTrue(key.authorize(authenticator.getTotpPassword("JBSWY3DPEHPK3PXP", time - STEP), time));
+        assertTrue(key.authorize(authenticator.getTotpPassword("JBSWY3DPEHPK3PXP", time + STEP), time));
+        assertFalse(key.authorize(authenticator.getTotpPassword("JBSWY3DPEHPK3PXP", time + 2 * STEP), time));
+        assertFalse(key.authorize(0, time));
+        assertFalse(key.authorize(1_000_000, time));
+    }
+}